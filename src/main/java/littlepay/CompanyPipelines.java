@@ -0,0 +1,200 @@
+package littlepay;
+
+import littlepay.model.Tap;
+import littlepay.model.Trip;
+import littlepay.service.FareCappingService;
+import littlepay.service.PricingService;
+import littlepay.service.TripProcessorService;
+import littlepay.util.CsvWriter;
+import littlepay.util.PipelineMetrics;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a separate match, price and write pipeline for each company, in
+ * parallel. Each company's taps are matched on their own, priced with the
+ * company's own fares if it has any, and written to their own trips file, so
+ * a company's trips do not depend on any other company's taps or fares; fare
+ * caps already count per company, so they are unaffected by the split.
+ * Pipelines share a fixed number of threads and each runs on one, so a very
+ * large company never holds more than one of them. When there is more than
+ * one thread, the largest company starts first, since it decides when the run
+ * ends, and the rest follow smallest first so that small companies are not
+ * queued behind large ones. A company whose pipeline fails does not stop the
+ * others.
+ */
+public class CompanyPipelines {
+
+    private static final String RULES_SUFFIX = ".rules.properties";
+    private static final String FARES_SUFFIX = ".fares.properties";
+
+    private final RunOptions options;
+    private final Path capsPath;
+    private final Path fareRulesPath;
+    private final Path companyFaresDir;
+    private final int threads;
+    private final PipelineMetrics metrics;
+
+    /**
+     * @param options         Options for the run.
+     * @param capsPath        Resolved fare caps file, or null for none.
+     * @param fareRulesPath   Resolved fare rules file for companies without
+     *                        their own, or null for none.
+     * @param companyFaresDir Resolved directory of per-company fares, or null
+     *                        for none. {@code <company>.fares.properties}
+     *                        holds a company's base fares and
+     *                        {@code <company>.rules.properties} its time band
+     *                        rules; companies without them use the defaults.
+     * @param metrics         Metrics to record the pipelines in.
+     * @throws IllegalArgumentException if an option that cannot be split by
+     *                                  company is set.
+     */
+    public CompanyPipelines(RunOptions options, Path capsPath, Path fareRulesPath, Path companyFaresDir,
+            PipelineMetrics metrics) {
+        if (options.summaryPath() != null || options.tripStorePath() != null || options.columnarPath() != null
+                || options.journeysPath() != null || options.shards() > 1 || options.latenessSeconds() >= 0) {
+            throw new IllegalArgumentException("--summary, --trip-store, --columnar, --journeys, --shards and"
+                    + " --lateness are not supported with --per-company");
+        }
+        this.options = options;
+        this.capsPath = capsPath;
+        this.fareRulesPath = fareRulesPath;
+        this.companyFaresDir = companyFaresDir;
+        this.threads = options.threads() > 0 ? options.threads() : Runtime.getRuntime().availableProcessors();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Splits taps by company and runs every company's pipeline.
+     *
+     * @param taps       All taps, in any order.
+     * @param outputPath Output file the companies' file names are based on,
+     *                   see {@link #companyOutputPath(Path, String)}.
+     * @return The trips file written for each company, by company.
+     * @throws IOException if any company's pipeline failed; the other
+     *                     companies' files are still written.
+     */
+    public Map<String, Path> run(List<Tap> taps, Path outputPath) throws IOException, InterruptedException {
+        Map<String, List<Tap>> tapsByCompany = new HashMap<>();
+        for (Tap tap : taps) {
+            tapsByCompany.computeIfAbsent(String.valueOf(tap.companyId()), k -> new ArrayList<>()).add(tap);
+        }
+        List<String> companies = schedule(tapsByCompany, threads);
+        PricingService defaultPricing = fareRulesPath != null ? PricingService.load(fareRulesPath)
+                : new PricingService();
+
+        List<Callable<Path>> pipelines = new ArrayList<>();
+        for (String company : companies) {
+            pipelines.add(() -> runCompany(company, tapsByCompany.get(company), outputPath, defaultPricing));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, companies.size())),
+                Thread.ofPlatform().name("company-pipeline-", 1).factory());
+        Map<String, Path> outputs = new TreeMap<>();
+        Map<String, Throwable> failures = new TreeMap<>();
+        try {
+            List<Future<Path>> results = executor.invokeAll(pipelines);
+            for (int i = 0; i < companies.size(); i++) {
+                try {
+                    outputs.put(companies.get(i), results.get(i).get());
+                } catch (ExecutionException e) {
+                    failures.put(companies.get(i), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder("Pipelines failed for " + failures.size() + " of "
+                    + companies.size() + " companies:");
+            failures.forEach((company, cause) -> message.append("\n  ").append(company).append(": ").append(cause));
+            IOException failure = new IOException(message.toString(), failures.values().iterator().next());
+            failures.values().stream().skip(1).forEach(failure::addSuppressed);
+            throw failure;
+        }
+        return outputs;
+    }
+
+    /**
+     * Orders companies for a pool of the given size: the largest first if
+     * there is more than one thread, then the rest smallest first.
+     */
+    static List<String> schedule(Map<String, List<Tap>> tapsByCompany, int threads) {
+        List<String> companies = new ArrayList<>(tapsByCompany.keySet());
+        companies.sort(Comparator.<String>comparingInt(company -> tapsByCompany.get(company).size())
+                .thenComparing(Comparator.naturalOrder()));
+        if (threads > 1 && companies.size() > 1) {
+            companies.add(0, companies.remove(companies.size() - 1));
+        }
+        return companies;
+    }
+
+    /**
+     * @return The company's trips file: the output file name with the
+     *         company appended, e.g. {@code trips-Company1.csv}. The company
+     *         is URL-encoded so that it cannot leave the output directory.
+     */
+    static Path companyOutputPath(Path outputPath, String company) {
+        String name = outputPath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return outputPath.resolveSibling(stem + "-" + fileName(company) + extension);
+    }
+
+    private static String fileName(String company) {
+        return URLEncoder.encode(company, StandardCharsets.UTF_8);
+    }
+
+    private Path runCompany(String company, List<Tap> taps, Path outputPath, PricingService defaultPricing)
+            throws Exception {
+        long start = System.nanoTime();
+        Path companyOutput = companyOutputPath(outputPath, company);
+        PricingService pricing = companyPricing(company, defaultPricing);
+        FareCappingService fareCappingService = capsPath != null ? FareCappingService.load(capsPath) : null;
+        TripProcessorService tripProcessorService = new TripProcessorService(pricing, fareCappingService);
+
+        List<Trip> trips;
+        try (PipelineMetrics.StageTimer timer = metrics.startStage("match")) {
+            trips = tripProcessorService.generateTrips(taps);
+            timer.rows(trips.size());
+        }
+        metrics.tripsProduced(trips);
+        try (PipelineMetrics.StageTimer timer = metrics.startStage("write")) {
+            FareCalculator.writeTrips(new CsvWriter(), trips, companyOutput, options);
+            timer.rows(trips.size()).bytes(Files.size(companyOutput));
+        }
+        metrics.bytesWritten(Files.size(companyOutput));
+        System.out.println(company + ": " + taps.size() + " taps, " + trips.size() + " trips to " + companyOutput
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return companyOutput;
+    }
+
+    private PricingService companyPricing(String company, PricingService defaultPricing) throws IOException {
+        if (companyFaresDir == null) {
+            return defaultPricing;
+        }
+        Path faresFile = companyFaresDir.resolve(fileName(company) + FARES_SUFFIX);
+        Path rulesFile = companyFaresDir.resolve(fileName(company) + RULES_SUFFIX);
+        boolean ownFares = Files.isRegularFile(faresFile);
+        boolean ownRules = Files.isRegularFile(rulesFile);
+        if (!ownFares && !ownRules) {
+            return defaultPricing;
+        }
+        return PricingService.load(ownFares ? faresFile : null, ownRules ? rulesFile : fareRulesPath);
+    }
+}
@@ -1,16 +1,36 @@
 package littlepay;
 
+import littlepay.model.LinkedTrip;
 import littlepay.model.Tap;
 import littlepay.model.Trip;
+import littlepay.service.FareCappingService;
+import littlepay.service.JourneyLinker;
+import littlepay.service.OpenTapStore;
 import littlepay.service.PricingService;
 import littlepay.service.TripProcessorService;
+import littlepay.util.AsyncTripWriter;
 import littlepay.util.CsvReader;
+import littlepay.util.DelimiterScanner;
 import littlepay.util.CsvWriter;
+import littlepay.util.FlightRecording;
+import littlepay.util.JourneyWriter;
+import littlepay.util.MemoryGovernor;
+import littlepay.util.MetricsEndpoint;
+import littlepay.util.PipelineMetrics;
+import littlepay.util.RejectedRows;
+import littlepay.util.TapDeduplicator;
+import littlepay.util.TapField;
+import littlepay.util.TripAggregator;
+import littlepay.util.TripColumnFile;
+import littlepay.util.TripStore;
 
 import java.io.FileNotFoundException;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 
 /**
@@ -34,40 +54,283 @@ public class FareCalculator {
      * @throws Exception if any error occurs during processing.
      */
     public static void processFiles(Path rawInputPath, Path rawOutputPath) throws Exception {
-        Path baseDir = Paths.get(".").toAbsolutePath().normalize();
+        processFiles(rawInputPath, rawOutputPath, new RunOptions());
+    }
 
-        Path inputPath = rawInputPath.toAbsolutePath().normalize();
-        if (!inputPath.startsWith(baseDir)) {
-            throw new SecurityException("Input path is outside the allowed working directory: " + inputPath);
+    /**
+     * Processes taps from an input file and writes the resulting trips to an output
+     * file, enabling the optional features selected in {@code options}.
+     *
+     * @param rawInputPath  Path to the input taps CSV file.
+     * @param rawOutputPath Path to the output trips CSV file.
+     * @param options       Optional features for this run.
+     * @throws IllegalArgumentException if {@code --heap-threshold} is set
+     *                                  without {@code --lateness}.
+     * @throws Exception if any error occurs during processing.
+     */
+    public static void processFiles(Path rawInputPath, Path rawOutputPath, RunOptions options) throws Exception {
+        if (options.heapThresholdPercent() > 0 && options.latenessSeconds() < 0) {
+            // A sorted run holds every tap at once, so there is nothing for heap pressure to spill or slow down
+            throw new IllegalArgumentException("--heap-threshold is only supported with --lateness");
         }
+        RunPaths paths = RunPaths.resolve(rawInputPath, rawOutputPath, options);
+
+        System.out.println("Processing taps from: " + paths.input());
+        System.out.println("Outputting trips to: " + paths.output());
 
-        Path outputPath = rawOutputPath.toAbsolutePath().normalize();
-        if (!outputPath.startsWith(baseDir)) {
-            throw new SecurityException("Output path is outside the allowed working directory: " + outputPath);
+        FlightRecording recording = paths.jfr() != null ? new FlightRecording(paths.jfr()) : null;
+        MemoryGovernor governor = options.heapThresholdPercent() > 0
+                ? new MemoryGovernor(options.heapThresholdPercent() / 100.0)
+                : null;
+        PipelineMetrics metrics = new PipelineMetrics();
+        MetricsEndpoint endpoint = options.metricsPort() >= 0 ? new MetricsEndpoint(metrics, options.metricsPort())
+                : null;
+        if (endpoint != null) {
+            System.out.println("Serving metrics on port " + endpoint.port() + " at /metrics");
+        }
+        try {
+            if (options.shards() > 1) {
+                new ShardCoordinator(options.shards(), options, paths.caps(), paths.fareRules(), metrics)
+                        .run(paths.input(), paths.output());
+                System.out.println("Merged trips from " + options.shards() + " shards to " + paths.output());
+            } else {
+                CompanyPipelines companyPipelines = options.perCompany()
+                        ? new CompanyPipelines(options, paths.caps(), paths.fareRules(), paths.companyFares(), metrics)
+                        : null;
+                runPipeline(paths, companyPipelines, governor, options, metrics);
+            }
+        } finally {
+            if (governor != null) {
+                governor.close();
+                System.out.println("Memory governor: " + governor.describe());
+            }
+            if (endpoint != null) {
+                endpoint.close();
+            }
+            if (recording != null) {
+                recording.close();
+                System.out.println("JFR recording written to: " + paths.jfr());
+            }
+            if (paths.metricsJson() != null) {
+                if (paths.metricsJson().getParent() != null) {
+                    Files.createDirectories(paths.metricsJson().getParent());
+                }
+                Files.writeString(paths.metricsJson(), metrics.toJson());
+            }
         }
+    }
 
-        System.out.println("Processing taps from: " + inputPath);
-        System.out.println("Outputting trips to: " + outputPath);
+    /**
+     * The run's files, each resolved within the working directory, or null
+     * where its option is not set.
+     */
+    private record RunPaths(Path input, Path output, Path metricsJson, Path jfr, Path rejects, Path caps,
+            Path fareRules, Path summary, Path tripStore, Path columnar, Path journeys, Path spillDirectory,
+            Path companyFares) {
 
-        CsvReader csvReader = new CsvReader();
-        PricingService pricingService = new PricingService();
-        TripProcessorService tripProcessorService = new TripProcessorService(pricingService);
+        static RunPaths resolve(Path rawInputPath, Path rawOutputPath, RunOptions options) {
+            Path output = resolveWithinBaseDir(rawOutputPath, "Output");
+            return new RunPaths(
+                    resolveWithinBaseDir(rawInputPath, "Input"),
+                    output,
+                    resolveOption(options.metricsJsonPath(), "Metrics"),
+                    resolveOption(options.jfrPath(), "JFR recording"),
+                    resolveOption(options.rejectsPath(), "Rejected rows"),
+                    resolveOption(options.capsPath(), "Fare caps"),
+                    resolveOption(options.fareRulesPath(), "Fare rules"),
+                    resolveOption(options.summaryPath(), "Summary"),
+                    resolveOption(options.tripStorePath(), "Trip store"),
+                    resolveOption(options.columnarPath(), "Columnar trips"),
+                    resolveOption(options.journeysPath(), "Journeys"),
+                    options.spillDirectory() == null ? output.getParent()
+                            : resolveWithinBaseDir(options.spillDirectory(), "Spill"),
+                    resolveOption(options.companyFaresDir(), "Company fares"));
+        }
+
+        private static Path resolveOption(Path path, String label) {
+            return path == null ? null : resolveWithinBaseDir(path, label);
+        }
+    }
+
+    private static void runPipeline(RunPaths paths, CompanyPipelines companyPipelines, MemoryGovernor governor,
+            RunOptions options, PipelineMetrics metrics) throws Exception {
+        PricingService pricingService = paths.fareRules() != null ? PricingService.load(paths.fareRules())
+                : new PricingService();
+        FareCappingService fareCappingService = paths.caps() != null ? FareCappingService.load(paths.caps()) : null;
+        JourneyLinker journeyLinker = paths.journeys() != null
+                ? new JourneyLinker(pricingService, options.transferWindowSeconds())
+                : null;
+        List<LinkedTrip> journeyLegs = new ArrayList<>();
+        int threads = options.threads() > 0 ? options.threads() : Runtime.getRuntime().availableProcessors();
+        TripProcessorService tripProcessorService = new TripProcessorService(pricingService, fareCappingService,
+                journeyLinker, journeyLinker != null ? journeyLegs::add : null, threads);
         CsvWriter csvWriter = new CsvWriter();
 
-        List<Tap> taps = csvReader.readTaps(inputPath.toString());
+        List<Tap> taps;
+        try (RejectedRows rejects = new RejectedRows(metrics, paths.rejects());
+                PipelineMetrics.StageTimer timer = metrics.startStage("read")) {
+            TapDeduplicator deduplicator = options.dedup()
+                    ? new TapDeduplicator(options.dedupWindowSeconds(), options.dedupContent(), 1 << 16)
+                    : null;
+            DelimiterScanner scanner = options.fastParser() ? DelimiterScanner.create() : null;
+            if (scanner != null) {
+                System.out.println("Parsing taps with the " + scanner.description() + " delimiter scanner");
+            }
+            // Nothing after reading uses tap IDs, so they are only decoded for the deduplicator
+            CsvReader reader = new CsvReader(metrics, rejects, deduplicator, scanner,
+                    EnumSet.complementOf(EnumSet.of(TapField.ID)), options.companies());
+            taps = reader.readTaps(paths.input().toString());
+            if (options.companies() != null) {
+                System.out.println("Skipped " + reader.filteredRows() + " taps of companies other than "
+                        + String.join(", ", options.companies()));
+            }
+            timer.rows(taps == null ? 0 : taps.size()).bytes(Files.size(paths.input()));
+        }
+
+        if (companyPipelines != null) {
+            List<Tap> companyTaps = taps == null ? List.of() : taps;
+            int companies = companyPipelines.run(companyTaps, paths.output()).size();
+            System.out.println("Successfully processed " + companyTaps.size() + " taps for " + companies
+                    + " companies next to " + paths.output());
+            return;
+        }
 
         if (taps == null || taps.isEmpty()) {
             System.out.println("No taps found or error reading taps file. Creating empty trips file.");
-            csvWriter.writeTrips(new java.util.ArrayList<>(), outputPath.toString());
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("write")) {
+                writeTrips(csvWriter, new ArrayList<>(), paths.output(), options);
+                timer.bytes(Files.size(paths.output()));
+            }
+            metrics.bytesWritten(Files.size(paths.output()));
+            if (paths.summary() != null) {
+                new TripAggregator().writeSummary(paths.summary());
+            }
+            if (paths.tripStore() != null) {
+                TripStore.write(new ArrayList<>(), paths.tripStore());
+            }
+            if (paths.columnar() != null) {
+                TripColumnFile.write(new ArrayList<>(), paths.columnar());
+            }
+            if (paths.journeys() != null) {
+                JourneyWriter.write(journeyLegs, paths.journeys());
+            }
             return;
         }
 
-        List<Trip> trips = tripProcessorService.generateTrips(taps);
+        List<Trip> trips;
+        try (PipelineMetrics.StageTimer timer = metrics.startStage("match")) {
+            if (options.latenessSeconds() >= 0) {
+                List<Tap> lateTaps = new ArrayList<>();
+                try (OpenTapStore openTaps = newOpenTapStore(options, paths.spillDirectory(), governor)) {
+                    trips = tripProcessorService.generateTripsIncrementally(taps, options.latenessSeconds(),
+                            lateTaps::add, openTaps);
+                    if (options.openTapBudgetBytes() > 0 || governor != null) {
+                        System.out.println("Open ON taps peaked at " + openTaps.peakSize() + "; "
+                                + openTaps.spills() + " spilled off the heap, " + openTaps.recalls()
+                                + " brought back; heap pressure cut the budget " + openTaps.budgetCuts() + " times");
+                    }
+                }
+                if (!lateTaps.isEmpty()) {
+                    System.out.println(lateTaps.size() + " taps arrived more than " + options.latenessSeconds()
+                            + "s out of order and were not matched");
+                }
+            } else {
+                trips = tripProcessorService.generateTrips(taps);
+            }
+            timer.rows(trips.size());
+        }
+        metrics.tripsProduced(trips);
+        if (journeyLinker != null) {
+            System.out.println("Linked " + journeyLinker.linkedTrips() + " trips into earlier journeys");
+        }
+        if (fareCappingService != null) {
+            System.out.println("Fare caps reduced the charge on " + fareCappingService.cappedTrips() + " trips");
+        }
+
+        try (PipelineMetrics.StageTimer timer = metrics.startStage("write")) {
+            writeTrips(csvWriter, trips, paths.output(), options);
+            timer.rows(trips.size()).bytes(Files.size(paths.output()));
+        }
+        metrics.bytesWritten(Files.size(paths.output()));
+
+        if (paths.summary() != null) {
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("aggregate")) {
+                TripAggregator aggregator = new TripAggregator();
+                aggregator.addAll(trips);
+                aggregator.writeSummary(paths.summary());
+                timer.rows(trips.size()).bytes(Files.size(paths.summary()));
+            }
+            System.out.println("Trip summary written to: " + paths.summary());
+        }
+
+        if (paths.tripStore() != null) {
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("store")) {
+                TripStore.write(trips, paths.tripStore());
+                timer.rows(trips.size()).bytes(Files.size(paths.tripStore()));
+            }
+            System.out.println("Trip store written to: " + paths.tripStore());
+        }
+
+        if (paths.columnar() != null) {
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("columnar")) {
+                TripColumnFile.write(trips, paths.columnar());
+                timer.rows(trips.size()).bytes(Files.size(paths.columnar()));
+            }
+            System.out.println("Columnar trips written to: " + paths.columnar());
+        }
 
-        csvWriter.writeTrips(trips, outputPath.toString());
+        if (paths.journeys() != null) {
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("journeys")) {
+                JourneyWriter.write(journeyLegs, paths.journeys());
+                timer.rows(journeyLegs.size()).bytes(Files.size(paths.journeys()));
+            }
+            System.out.println("Journeys written to: " + paths.journeys());
+        }
 
         System.out.println("Successfully processed " + taps.size() + " taps and generated "
-                + (trips == null ? 0 : trips.size()) + " trips to " + outputPath);
+                + (trips == null ? 0 : trips.size()) + " trips to " + paths.output());
+    }
+
+    static void writeTrips(CsvWriter csvWriter, List<Trip> trips, Path outputPath, RunOptions options)
+            throws Exception {
+        if (options.fsyncPolicy() == null) {
+            csvWriter.writeTrips(trips, outputPath.toString());
+            return;
+        }
+        try (AsyncTripWriter writer = new AsyncTripWriter(outputPath, options.fsyncPolicy())) {
+            writer.writeAll(trips);
+            writer.commit();
+        }
+    }
+
+    /**
+     * @return A store for unmatched ON taps that spills off the heap beyond
+     *         {@code --open-tap-budget}, or under heap pressure if the heap is
+     *         watched.
+     */
+    static OpenTapStore newOpenTapStore(RunOptions options, Path spillDirectory, MemoryGovernor governor) {
+        if (options.openTapBudgetBytes() <= 0 && governor == null) {
+            return new OpenTapStore();
+        }
+        return new OpenTapStore(options.openTapBudgetBytes() > 0 ? options.openTapBudgetBytes() : Long.MAX_VALUE,
+                spillDirectory, governor);
+    }
+
+    /**
+     * Normalises a path and checks that it lies within the working directory.
+     *
+     * @param rawPath Path supplied by the caller.
+     * @param label   Label used in the error message, e.g. "Input".
+     * @return Absolute, normalised path.
+     * @throws SecurityException if the path is outside the working directory.
+     */
+    static Path resolveWithinBaseDir(Path rawPath, String label) {
+        Path baseDir = Paths.get(".").toAbsolutePath().normalize();
+        Path path = rawPath.toAbsolutePath().normalize();
+        if (!path.startsWith(baseDir)) {
+            throw new SecurityException(label + " path is outside the allowed working directory: " + path);
+        }
+        return path;
     }
 
     /**
@@ -75,29 +338,41 @@ public class FareCalculator {
      * Parses command-line arguments for input and output file paths,
      * then initiates the tap processing workflow.
      *
-     * @param args Command-line arguments. Expects up to two arguments:
+     * @param args Command-line arguments. Expects up to two positional arguments:
      *             args[0]: Path to the input taps CSV file (optional, defaults to
      *             "data\input\taps.csv").
      *             args[1]: Path to the output trips CSV file (optional, defaults to
      *             "data\output\trips.csv").
+     *             Optional features are enabled with {@code --name=value} flags,
+     *             see {@link RunOptions}.
      */
     public static void main(String[] args) {
         String tapsFilePath = DEFAULT_TAPS_FILE;
         String tripsFilePath = DEFAULT_TRIPS_FILE;
 
-        // Override default file paths if command-line arguments are provided
-        if (args.length >= 1) {
-            tapsFilePath = args[0];
-        }
-        if (args.length >= 2) {
-            tripsFilePath = args[1];
+        RunOptions options;
+        try {
+            options = RunOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: Invalid command-line option. " + e.getMessage());
+            return;
         }
 
         try {
+            List<String> positional = options.positional();
+
+            // Override default file paths if command-line arguments are provided
+            if (positional.size() >= 1) {
+                tapsFilePath = positional.get(0);
+            }
+            if (positional.size() >= 2) {
+                tripsFilePath = positional.get(1);
+            }
+
             Path inputPath = Paths.get(tapsFilePath);
             Path outputPath = Paths.get(tripsFilePath);
 
-            processFiles(inputPath, outputPath);
+            processFiles(inputPath, outputPath, options);
 
         } catch (InvalidPathException e) {
             System.err.println("Error: Invalid file path provided. " + e.getMessage());
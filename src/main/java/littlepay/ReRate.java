@@ -0,0 +1,148 @@
+package littlepay;
+
+import littlepay.model.Trip;
+import littlepay.service.PricingService;
+import littlepay.service.TripReRater;
+import littlepay.util.TripCsvEncoder;
+import littlepay.util.TripCsvReader;
+import littlepay.util.TripStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Command-line re-rating of previously produced trips after a fare change.
+ * Reads a trips CSV or a trip store written with {@code --trip-store}, and
+ * writes a delta file of the trips whose charge changes: the old charge and
+ * the difference, followed by the trip's columns with the corrected charge.
+ */
+public class ReRate {
+
+    public static final String DELTA_HEADER_LINE = "OldChargeAmount,ChargeDifference," + TripCsvEncoder.HEADER_LINE;
+
+    /**
+     * @param args args[0]: Path to a trips CSV or trip store.
+     *             args[1]: Path to write the delta file to.
+     *             Then optionally {@code --old-fares=<path>} and
+     *             {@code --new-fares=<path>} (fares as in
+     *             {@code config/fares.properties}, which is the default), and
+     *             {@code --old-fare-rules=<path>} and
+     *             {@code --new-fare-rules=<path>} (see {@code --fare-rules}).
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: ReRate <trips.csv or trip store> <delta.csv> [--old-fares=<path>]"
+                    + " [--new-fares=<path>] [--old-fare-rules=<path>] [--new-fare-rules=<path>]");
+            return;
+        }
+        try {
+            Path tripsPath = FareCalculator.resolveWithinBaseDir(Paths.get(args[0]), "Trips");
+            Path deltaPath = FareCalculator.resolveWithinBaseDir(Paths.get(args[1]), "Delta");
+            Path[] fareFiles = new Path[4];
+            String[] flags = { "--old-fares=", "--new-fares=", "--old-fare-rules=", "--new-fare-rules=" };
+            for (int i = 2; i < args.length; i++) {
+                int flag = 0;
+                while (flag < flags.length && !args[i].startsWith(flags[flag])) {
+                    flag++;
+                }
+                if (flag == flags.length) {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+                fareFiles[flag] = FareCalculator.resolveWithinBaseDir(
+                        Paths.get(args[i].substring(flags[flag].length())), "Fares");
+            }
+
+            long start = System.nanoTime();
+            TripReRater reRater = new TripReRater(PricingService.load(fareFiles[0], fareFiles[2]),
+                    PricingService.load(fareFiles[1], fareFiles[3]));
+            reRate(tripsPath, deltaPath, reRater);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.println("Re-rated " + reRater.tripsReRated() + " of " + reRater.tripsRead() + " trips in "
+                    + millis + " ms; delta written to " + deltaPath);
+            if (reRater.tripsNeedingReprocess() > 0) {
+                System.out.println(reRater.tripsNeedingReprocess() + " affected trips were on cards with capped or"
+                        + " journey-priced charges and were not re-rated; reprocess those cards' taps");
+            }
+        } catch (SecurityException e) {
+            System.err.println("Security Error: Path access denied. " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Re-rates every trip in a trips CSV or trip store and writes the changed
+     * ones to a delta file. The trips are read twice: once to find the cards
+     * with capped or journey-priced charges, then to re-rate.
+     *
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void reRate(Path tripsPath, Path deltaPath, TripReRater reRater) throws IOException {
+        forEachTrip(tripsPath, reRater::survey);
+        if (deltaPath.getParent() != null) {
+            Files.createDirectories(deltaPath.getParent());
+        }
+        TripCsvEncoder encoder = new TripCsvEncoder();
+        StringBuilder line = new StringBuilder(192);
+        // Same charset as the trips file
+        try (Writer writer = Files.newBufferedWriter(deltaPath, Charset.defaultCharset())) {
+            writer.write(DELTA_HEADER_LINE);
+            TripSink sink = trip -> {
+                BigDecimal newCharge = reRater.reRate(trip);
+                if (newCharge == null) {
+                    return;
+                }
+                line.setLength(0);
+                encoder.appendCharge(line, trip.chargeAmount()).append(',');
+                encoder.appendCharge(line, newCharge.subtract(trip.chargeAmount())).append(',');
+                encoder.appendTrip(line, new Trip(
+                        trip.startedEpochSecond(),
+                        trip.finishedEpochSecond(),
+                        trip.durationSecs(),
+                        trip.fromStopId(),
+                        trip.toStopId(),
+                        newCharge,
+                        trip.companyId(),
+                        trip.busId(),
+                        trip.pan(),
+                        trip.status()));
+                writer.append(line);
+            };
+            forEachTrip(tripsPath, sink);
+        }
+    }
+
+    private static void forEachTrip(Path tripsPath, TripSink sink) throws IOException {
+        if (TripStore.isTripStore(tripsPath)) {
+            try (TripStore store = TripStore.open(tripsPath)) {
+                store.forEach(trip -> {
+                    try {
+                        sink.accept(trip);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            try (TripCsvReader reader = new TripCsvReader(tripsPath)) {
+                reader.next(); // Header
+                while (reader.next()) {
+                    sink.accept(reader.trip());
+                }
+            }
+        }
+    }
+
+    private interface TripSink {
+        void accept(Trip trip) throws IOException;
+    }
+}
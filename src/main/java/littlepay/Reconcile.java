@@ -0,0 +1,530 @@
+package littlepay;
+
+import littlepay.util.FileSupport;
+import littlepay.util.TripCsvEncoder;
+import littlepay.util.TripCsvReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Command-line reconciliation of two trips files, such as the output of two
+ * engine versions for the same taps. Trips are paired by PAN and start time,
+ * so the files may be in any order; trips with the same PAN and start time
+ * are paired in file order. Every trip only in the old file is reported as
+ * missing, every trip only in the new file as extra, and every pair that
+ * differs with one report row per differing column.
+ * <p>
+ * Both files are streamed. The old file's trips are held in memory to pair
+ * with the new file's, so an old file too large for a share of the heap is
+ * first split, with the new file, into partitions by a hash of the pairing
+ * key, and the partitions are paired one at a time. Records are compared as
+ * written, without decoding the trips, so only the differing pairs are split
+ * into fields.
+ */
+public class Reconcile {
+
+    public static final String REPORT_HEADER_LINE = "Result,PAN,Started,Column,Old,New\n";
+
+    /**
+     * Heap taken by the old file's trips while they are held for pairing,
+     * per byte of the file: the record string, its key and the map entry.
+     */
+    static final int HEAP_BYTES_PER_FILE_BYTE = 4;
+
+    /**
+     * How a trip differs between the files.
+     */
+    public enum Result {
+        /** In the old file only. */
+        MISSING,
+        /** In the new file only. */
+        EXTRA,
+        /** In both, with different values. */
+        DIFFERENT
+    }
+
+    /**
+     * Counts from one reconciliation.
+     *
+     * @param oldTrips            Trips in the old file.
+     * @param newTrips            Trips in the new file.
+     * @param missing             Trips in the old file only.
+     * @param extra               Trips in the new file only.
+     * @param different           Trips in both with different values.
+     * @param differencesByColumn Number of differing trips per column, for
+     *                            the columns with any.
+     * @param partitions          Number of partitions the files were split
+     *                            into, 1 if they were not.
+     */
+    public record Summary(long oldTrips, long newTrips, long missing, long extra, long different,
+            Map<String, Long> differencesByColumn, int partitions) {
+
+        /**
+         * @return Whether the files hold the same trips.
+         */
+        public boolean matches() {
+            return missing == 0 && extra == 0 && different == 0;
+        }
+    }
+
+    /**
+     * @param args args[0]: Path to the old trips file.
+     *             args[1]: Path to the new trips file.
+     *             args[2]: Path to write the report to.
+     *             Then optionally {@code --partitions=<N>} to set the number
+     *             of partitions instead of choosing it from the old file's
+     *             size and the heap. Exits with status 1 if the files differ
+     *             or cannot be reconciled.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: Reconcile <old trips.csv> <new trips.csv> <report.csv> [--partitions=<N>]");
+            return;
+        }
+        boolean matches = true;
+        try {
+            Path oldPath = FareCalculator.resolveWithinBaseDir(Paths.get(args[0]), "Old trips");
+            Path newPath = FareCalculator.resolveWithinBaseDir(Paths.get(args[1]), "New trips");
+            Path reportPath = FareCalculator.resolveWithinBaseDir(Paths.get(args[2]), "Report");
+            int partitions = partitionsFor(Files.size(oldPath), Runtime.getRuntime().maxMemory());
+            for (int i = 3; i < args.length; i++) {
+                if (!args[i].startsWith("--partitions=")) {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+                partitions = Integer.parseInt(args[i].substring("--partitions=".length()));
+                if (partitions < 1) {
+                    throw new IllegalArgumentException("Option --partitions must be at least 1 but got: "
+                            + partitions);
+                }
+            }
+
+            long start = System.nanoTime();
+            Summary summary = reconcile(oldPath, newPath, reportPath, partitions);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.println("Reconciled " + summary.oldTrips() + " old and " + summary.newTrips()
+                    + " new trips in " + millis + " ms (" + summary.partitions() + " partitions): "
+                    + summary.missing() + " missing, " + summary.extra() + " extra, " + summary.different()
+                    + " different; report written to " + reportPath);
+            summary.differencesByColumn().forEach((column, count) ->
+                    System.out.println("  " + column + ": " + count + " different"));
+            matches = summary.matches();
+        } catch (SecurityException e) {
+            System.err.println("Security Error: Path access denied. " + e.getMessage());
+            matches = false;
+        } catch (Exception e) {
+            System.err.println("An unexpected error occurred: " + e.getMessage());
+            matches = false;
+        }
+        if (!matches) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return The number of partitions that lets each partition of an old
+     *         file of this size be held in half of the heap.
+     */
+    static int partitionsFor(long oldFileBytes, long maxHeapBytes) {
+        long perPartition = Math.max(1, maxHeapBytes / 2 / HEAP_BYTES_PER_FILE_BYTE);
+        return (int) Math.min(4096, Math.max(1, (oldFileBytes + perPartition - 1) / perPartition));
+    }
+
+    /**
+     * Pairs the trips of two trips files and writes their differences to a
+     * report, with columns {@code Result}, {@code PAN}, {@code Started},
+     * {@code Column}, {@code Old} and {@code New}. A missing or extra trip's
+     * whole record is in {@code Old} or {@code New}; a differing trip has a
+     * row per differing column, with that column's values. Values are escaped
+     * as in the trips file.
+     *
+     * @param partitions Number of partitions to split the files into, or 1 to
+     *                   hold the whole old file in memory.
+     * @throws IllegalArgumentException if the files have different columns or
+     *                                  no {@code PAN} or {@code Started} one.
+     * @throws IOException              if a file cannot be read or written.
+     */
+    public static Summary reconcile(Path oldPath, Path newPath, Path reportPath, int partitions)
+            throws IOException {
+        String[] columns = columns(oldPath);
+        if (!Arrays.equals(columns, columns(newPath))) {
+            throw new IllegalArgumentException("Trips files have different columns: " + oldPath + " has "
+                    + String.join(",", columns) + ", " + newPath + " has " + String.join(",", columns(newPath)));
+        }
+        if (reportPath.getParent() != null) {
+            Files.createDirectories(reportPath.getParent());
+        }
+        // Same charset as the trips files
+        try (Writer writer = Files.newBufferedWriter(reportPath, Charset.defaultCharset())) {
+            writer.write(REPORT_HEADER_LINE);
+            Pairing pairing = new Pairing(columns, writer);
+            if (partitions == 1) {
+                pairing.pair(oldPath, newPath);
+            } else {
+                Path parent = reportPath.toAbsolutePath().getParent();
+                Path workDir = Files.createTempDirectory(parent, "reconcile-");
+                try {
+                    List<Path> oldParts = partition(oldPath, workDir, "old-", partitions, pairing);
+                    List<Path> newParts = partition(newPath, workDir, "new-", partitions, pairing);
+                    for (int part = 0; part < partitions; part++) {
+                        pairing.pair(oldParts.get(part), newParts.get(part));
+                        Files.delete(oldParts.get(part));
+                        Files.delete(newParts.get(part));
+                    }
+                } finally {
+                    FileSupport.deleteRecursively(workDir);
+                }
+            }
+            return pairing.summary(partitions);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String[] columns(Path tripsPath) throws IOException {
+        try (TripCsvReader reader = new TripCsvReader(tripsPath)) {
+            return reader.next() ? reader.record().toString().split(",", -1) : new String[0];
+        }
+    }
+
+    /**
+     * Splits a trips file into partition files by a hash of each trip's
+     * pairing key, each with the file's header, keeping the file's order
+     * within each partition.
+     */
+    private static List<Path> partition(Path tripsPath, Path workDir, String prefix, int partitions,
+            Pairing pairing) throws IOException {
+        List<Path> parts = new ArrayList<>();
+        List<Writer> writers = new ArrayList<>();
+        try {
+            for (int part = 0; part < partitions; part++) {
+                Path path = workDir.resolve(prefix + part + ".csv");
+                parts.add(path);
+                Writer writer = Files.newBufferedWriter(path, Charset.defaultCharset());
+                writers.add(writer);
+                writer.write(TripCsvEncoder.HEADER_LINE);
+            }
+            forEachRecord(tripsPath, record -> {
+                try {
+                    Writer writer = writers.get(pairing.probe(record).partition(partitions));
+                    writer.append(record).append('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } finally {
+            for (Writer writer : writers) {
+                writer.close();
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Calls the action with each record after the header, as written.
+     */
+    private static void forEachRecord(Path tripsPath, Consumer<CharSequence> action) throws IOException {
+        try (TripCsvReader reader = new TripCsvReader(tripsPath)) {
+            reader.next(); // Header
+            while (reader.next()) {
+                action.accept(reader.record());
+            }
+        }
+    }
+
+    /**
+     * Pairs the trips of matching old and new files, or of matching
+     * partitions of them, and writes their differences.
+     */
+    private static final class Pairing {
+        private final String[] columns;
+        private final int startedColumn;
+        private final int panColumn;
+        private final Writer writer;
+        private final RecordKey probe;
+        private final StringBuilder line = new StringBuilder(256);
+        private final long[] differencesByColumn;
+        private long oldTrips;
+        private long newTrips;
+        private long missing;
+        private long extra;
+        private long different;
+
+        Pairing(String[] columns, Writer writer) {
+            this.columns = columns;
+            this.startedColumn = Arrays.asList(columns).indexOf("Started");
+            this.panColumn = Arrays.asList(columns).indexOf("PAN");
+            if (startedColumn < 0 || panColumn < 0) {
+                throw new IllegalArgumentException("Trips files have no Started or PAN column: "
+                        + String.join(",", columns));
+            }
+            this.probe = new RecordKey(startedColumn, panColumn);
+            this.writer = writer;
+            this.differencesByColumn = new long[columns.length];
+        }
+
+        /**
+         * Holds the old file's trips by key, then takes each new trip's pair
+         * from them; the old trips left over are missing from the new file.
+         */
+        void pair(Path oldPath, Path newPath) throws IOException {
+            // A record, or an ArrayDeque of the records of trips sharing a key, in file order
+            Map<RecordKey, Object> oldRecords = new LinkedHashMap<>();
+            forEachRecord(oldPath, record -> {
+                oldTrips++;
+                String oldRecord = record.toString();
+                oldRecords.merge(probe(oldRecord).copy(), oldRecord, Pairing::append);
+            });
+            forEachRecord(newPath, record -> {
+                newTrips++;
+                // Matched records are compared in the reader's buffer, without copying them
+                String oldRecord = take(oldRecords, probe(record));
+                if (oldRecord == null) {
+                    extra++;
+                    report(Result.EXTRA, record, null, escaped(record));
+                } else if (!oldRecord.contentEquals(record)) {
+                    different++;
+                    compare(oldRecord, record);
+                }
+            });
+            for (Object records : oldRecords.values()) {
+                if (records instanceof ArrayDeque<?> deque) {
+                    for (Object record : deque) {
+                        missing((String) record);
+                    }
+                } else {
+                    missing((String) records);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object append(Object records, Object record) {
+            ArrayDeque<String> deque;
+            if (records instanceof ArrayDeque<?>) {
+                deque = (ArrayDeque<String>) records;
+            } else {
+                deque = new ArrayDeque<>(4);
+                deque.add((String) records);
+            }
+            deque.add((String) record);
+            return deque;
+        }
+
+        private String take(Map<RecordKey, Object> records, RecordKey key) {
+            // One lookup for the usual unique key; repeated keys are put back
+            Object value = records.remove(key);
+            if (value instanceof ArrayDeque<?> deque) {
+                String record = (String) deque.poll();
+                if (!deque.isEmpty()) {
+                    String next = (String) deque.peek();
+                    records.put(new RecordKey(startedColumn, panColumn).of(next), deque);
+                }
+                return record;
+            }
+            return (String) value;
+        }
+
+        private void missing(String record) {
+            missing++;
+            report(Result.MISSING, record, escaped(record), null);
+        }
+
+        /**
+         * Reports each column in which two records of the same trip differ.
+         */
+        private void compare(String oldRecord, CharSequence newRecord) {
+            List<String> oldFields = fields(oldRecord);
+            List<String> newFields = fields(newRecord);
+            for (int column = 0; column < columns.length; column++) {
+                String oldField = column < oldFields.size() ? oldFields.get(column) : "";
+                String newField = column < newFields.size() ? newFields.get(column) : "";
+                if (!oldField.equals(newField)) {
+                    differencesByColumn[column]++;
+                    report(Result.DIFFERENT, newRecord, column, oldField, newField);
+                }
+            }
+        }
+
+        private void report(Result result, CharSequence record, String oldValue, String newValue) {
+            report(result, record, -1, oldValue, newValue);
+        }
+
+        private void report(Result result, CharSequence record, int column, String oldValue, String newValue) {
+            List<String> fields = fields(record);
+            line.setLength(0);
+            line.append(result).append(',')
+                    .append(panColumn < fields.size() ? fields.get(panColumn) : "").append(',')
+                    .append(startedColumn < fields.size() ? fields.get(startedColumn) : "").append(',')
+                    .append(column >= 0 ? columns[column] : "").append(',')
+                    .append(oldValue == null ? "" : oldValue).append(',')
+                    .append(newValue == null ? "" : newValue).append('\n');
+            try {
+                writer.append(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static String escaped(CharSequence record) {
+            StringBuilder out = new StringBuilder(record.length() + 16);
+            TripCsvEncoder.appendField(out, record.toString());
+            return out.toString();
+        }
+
+        /**
+         * @return The reused key, pointed at a record; only valid until the
+         *         next call.
+         */
+        RecordKey probe(CharSequence record) {
+            return probe.of(record);
+        }
+
+        /**
+         * @return The record's fields as written, escapes included, so that
+         *         they can be compared and reported without re-escaping.
+         */
+        private static List<String> fields(CharSequence record) {
+            List<String> fields = new ArrayList<>(12);
+            int fieldStart = 0;
+            for (int i = 0; i <= record.length(); i++) {
+                char c = i < record.length() ? record.charAt(i) : ',';
+                if (c == '"' && i + 1 < record.length()) {
+                    i++;
+                } else if (c == ',') {
+                    fields.add(record.subSequence(fieldStart, i).toString());
+                    fieldStart = i + 1;
+                }
+            }
+            return fields;
+        }
+
+        Summary summary(int partitions) {
+            Map<String, Long> byColumn = new LinkedHashMap<>();
+            for (int column = 0; column < columns.length; column++) {
+                if (differencesByColumn[column] > 0) {
+                    byColumn.put(columns[column], differencesByColumn[column]);
+                }
+            }
+            return new Summary(oldTrips, newTrips, missing, extra, different, byColumn, partitions);
+        }
+    }
+
+    /**
+     * The pairing key of a record: its start time and PAN as written, found
+     * in place in the record so that looking a record up copies nothing.
+     */
+    private static final class RecordKey {
+        private final int startedColumn;
+        private final int panColumn;
+        private CharSequence record;
+        private int startedStart;
+        private int startedEnd;
+        private int panStart;
+        private int panEnd;
+        private int hash;
+
+        RecordKey(int startedColumn, int panColumn) {
+            this.startedColumn = startedColumn;
+            this.panColumn = panColumn;
+        }
+
+        /**
+         * Points the key at a record, finding its start time and PAN.
+         * Missing columns are empty.
+         */
+        RecordKey of(CharSequence record) {
+            this.record = record;
+            startedStart = startedEnd = panStart = panEnd = 0;
+            int column = 0;
+            int fieldStart = 0;
+            int length = record.length();
+            for (int i = 0; i <= length; i++) {
+                char c = i < length ? record.charAt(i) : ',';
+                if (c == '"' && i + 1 < length) {
+                    i++;
+                } else if (c == ',') {
+                    if (column == startedColumn) {
+                        startedStart = fieldStart;
+                        startedEnd = i;
+                    }
+                    if (column == panColumn) {
+                        panStart = fieldStart;
+                        panEnd = i;
+                    }
+                    column++;
+                    fieldStart = i + 1;
+                }
+            }
+            int h = 1;
+            for (int i = startedStart; i < startedEnd; i++) {
+                h = 31 * h + record.charAt(i);
+            }
+            for (int i = panStart; i < panEnd; i++) {
+                h = 31 * h + record.charAt(i);
+            }
+            hash = h;
+            return this;
+        }
+
+        /**
+         * @return A key of the same record that is not reused, for a record
+         *         that will not change.
+         */
+        RecordKey copy() {
+            RecordKey copy = new RecordKey(startedColumn, panColumn);
+            copy.record = record;
+            copy.startedStart = startedStart;
+            copy.startedEnd = startedEnd;
+            copy.panStart = panStart;
+            copy.panEnd = panEnd;
+            copy.hash = hash;
+            return copy;
+        }
+
+        /**
+         * @return The key's partition, from other bits of the hash than the
+         *         ones a hash map of the partition's keys will use.
+         */
+        int partition(int partitions) {
+            return (int) Math.floorMod((hash * 0x9E3779B97F4A7C15L) >>> 32, (long) partitions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RecordKey key && hash == key.hash
+                    && sameText(startedStart, startedEnd, key, key.startedStart, key.startedEnd)
+                    && sameText(panStart, panEnd, key, key.panStart, key.panEnd);
+        }
+
+        private boolean sameText(int start, int end, RecordKey other, int otherStart, int otherEnd) {
+            if (end - start != otherEnd - otherStart) {
+                return false;
+            }
+            for (int i = 0; i < end - start; i++) {
+                if (record.charAt(start + i) != other.record.charAt(otherStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
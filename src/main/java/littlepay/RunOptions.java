@@ -0,0 +1,570 @@
+package littlepay;
+
+import littlepay.service.JourneyLinker;
+import littlepay.util.FsyncPolicy;
+import littlepay.util.RollingTripWriter;
+import littlepay.util.TapDeduplicator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Command-line options for a {@link FareCalculator} run.
+ * Positional arguments are the input and output file paths; optional features
+ * are enabled with {@code --name=value} flags. Every flag is off by default so
+ * that a plain run behaves exactly as before.
+ */
+public class RunOptions {
+
+    private final List<String> positional = new ArrayList<>();
+    private Path metricsJsonPath;
+    private int metricsPort = -1;
+    private Path jfrPath;
+    private Path rejectsPath;
+    private FsyncPolicy fsyncPolicy;
+    private Path capsPath;
+    private Path fareRulesPath;
+    private Path journeysPath;
+    private long transferWindowSeconds = JourneyLinker.DEFAULT_TRANSFER_WINDOW_SECONDS;
+    private Path summaryPath;
+    private boolean dedup;
+    private long dedupWindowSeconds = TapDeduplicator.DEFAULT_WINDOW_SECONDS;
+    private boolean dedupContent;
+    private long latenessSeconds = -1;
+    private int shards = 1;
+    private Path tripStorePath;
+    private Path columnarPath;
+    private Set<String> companies;
+    private boolean fastParser;
+    private long rollBytes = RollingTripWriter.DEFAULT_MAX_BYTES;
+    private long rollIntervalSeconds = RollingTripWriter.DEFAULT_MAX_AGE_SECONDS;
+    private long openTapBudgetBytes = -1;
+    private Path spillDirectory;
+    private boolean perCompany;
+    private Path companyFaresDir;
+    private int threads;
+    private int heapThresholdPercent;
+
+    /**
+     * Parses command-line arguments into options.
+     *
+     * @param args Command-line arguments.
+     * @return Parsed options.
+     * @throws IllegalArgumentException if a flag is unknown or has an invalid
+     *                                  value.
+     */
+    public static RunOptions parse(String[] args) {
+        RunOptions options = new RunOptions();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                options.applyFlag(arg);
+            } else {
+                options.positional.add(arg);
+            }
+        }
+        return options;
+    }
+
+    private void applyFlag(String arg) {
+        int eq = arg.indexOf('=');
+        String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+        String value = eq < 0 ? null : arg.substring(eq + 1);
+        switch (name) {
+            case "metrics-json" -> metricsJsonPath = Paths.get(requireValue(name, value));
+            case "metrics-port" -> metricsPort = parseInt(name, requireValue(name, value));
+            case "jfr" -> jfrPath = Paths.get(requireValue(name, value));
+            case "rejects" -> rejectsPath = Paths.get(requireValue(name, value));
+            case "async-output" -> fsyncPolicy = parseBoolean(name, value) ? FsyncPolicy.NONE : null;
+            case "fsync" -> fsyncPolicy = FsyncPolicy.parse(requireValue(name, value));
+            case "caps" -> capsPath = Paths.get(requireValue(name, value));
+            case "fare-rules" -> fareRulesPath = Paths.get(requireValue(name, value));
+            case "journeys" -> journeysPath = Paths.get(requireValue(name, value));
+            case "transfer-window" -> {
+                transferWindowSeconds = parseDurationSeconds(name, requireValue(name, value));
+                if (transferWindowSeconds < 0) {
+                    throw new IllegalArgumentException("Option --transfer-window must not be negative but got: "
+                            + value);
+                }
+            }
+            case "summary" -> summaryPath = Paths.get(requireValue(name, value));
+            case "dedup" -> dedup = parseBoolean(name, value);
+            case "dedup-window" -> {
+                dedupWindowSeconds = parseDurationSeconds(name, requireValue(name, value));
+                dedup = true;
+            }
+            case "trip-store" -> tripStorePath = Paths.get(requireValue(name, value));
+            case "columnar" -> columnarPath = Paths.get(requireValue(name, value));
+            case "company" -> {
+                companies = new LinkedHashSet<>();
+                for (String company : requireValue(name, value).split(",")) {
+                    if (!company.trim().isEmpty()) {
+                        companies.add(company.trim());
+                    }
+                }
+                if (companies.isEmpty()) {
+                    throw new IllegalArgumentException("Option --company requires a value");
+                }
+            }
+            case "shards" -> {
+                shards = parseInt(name, requireValue(name, value));
+                if (shards < 1) {
+                    throw new IllegalArgumentException("Option --shards must be at least 1 but got: " + value);
+                }
+            }
+            case "lateness" -> latenessSeconds = parseDurationSeconds(name, requireValue(name, value));
+            case "fast-parser" -> fastParser = parseBoolean(name, value);
+            case "roll-size" -> rollBytes = parseMegabytes(name, requireValue(name, value));
+            case "roll-interval" -> {
+                rollIntervalSeconds = parseDurationSeconds(name, requireValue(name, value));
+                if (rollIntervalSeconds <= 0) {
+                    throw new IllegalArgumentException("Option --roll-interval must be positive but got: " + value);
+                }
+            }
+            case "open-tap-budget" -> openTapBudgetBytes = parseMegabytes(name, requireValue(name, value));
+            case "spill-dir" -> spillDirectory = Paths.get(requireValue(name, value));
+            case "per-company" -> perCompany = parseBoolean(name, value);
+            case "company-fares" -> {
+                companyFaresDir = Paths.get(requireValue(name, value));
+                perCompany = true;
+            }
+            case "threads" -> {
+                threads = parseInt(name, requireValue(name, value));
+                if (threads < 1) {
+                    throw new IllegalArgumentException("Option --threads must be at least 1 but got: " + value);
+                }
+            }
+            case "heap-threshold" -> {
+                heapThresholdPercent = parseInt(name, requireValue(name, value));
+                if (heapThresholdPercent < 1 || heapThresholdPercent > 99) {
+                    throw new IllegalArgumentException("Option --heap-threshold expects a percentage from 1 to 99"
+                            + " but got: " + value);
+                }
+            }
+            case "dedup-content" -> {
+                dedupContent = parseBoolean(name, value);
+                dedup |= dedupContent;
+            }
+            default -> throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    private static String requireValue(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Option --" + name + " requires a value");
+        }
+        return value;
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if (value == null || value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Option --" + name + " expects true or false but got: " + value);
+    }
+
+    /**
+     * Parses a duration such as "90s", "30m", "24h" or "7d" into seconds.
+     */
+    private static long parseDurationSeconds(String name, String value) {
+        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        long multiplier = switch (unit) {
+            case 's' -> 1;
+            case 'm' -> 60;
+            case 'h' -> 3600;
+            case 'd' -> 86_400;
+            default -> throw new IllegalArgumentException(
+                    "Option --" + name + " expects a duration such as 30m, 24h or 7d but got: " + value);
+        };
+        try {
+            return Math.multiplyExact(Long.parseLong(value.substring(0, value.length() - 1)), multiplier);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException(
+                    "Option --" + name + " expects a duration such as 30m, 24h or 7d but got: " + value);
+        }
+    }
+
+    /**
+     * Parses a size such as "64mb" into bytes.
+     */
+    private static long parseMegabytes(String name, String value) {
+        String text = value.toLowerCase();
+        try {
+            if (text.endsWith("mb")) {
+                long megabytes = Long.parseLong(text.substring(0, text.length() - 2));
+                if (megabytes > 0) {
+                    return Math.multiplyExact(megabytes, 1024L * 1024);
+                }
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Option --" + name + " expects a size such as 64mb but got: " + value);
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number but got: " + value);
+        }
+    }
+
+    /**
+     * @return Positional (non-flag) arguments in the order given.
+     */
+    public List<String> positional() {
+        return positional;
+    }
+
+    /**
+     * @return Path to write the JSON metrics summary to, or null if disabled.
+     */
+    public Path metricsJsonPath() {
+        return metricsJsonPath;
+    }
+
+    public RunOptions metricsJsonPath(Path metricsJsonPath) {
+        this.metricsJsonPath = metricsJsonPath;
+        return this;
+    }
+
+    /**
+     * @return Port to serve Prometheus metrics on, or -1 if disabled.
+     */
+    public int metricsPort() {
+        return metricsPort;
+    }
+
+    public RunOptions metricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /**
+     * @return Path to write a JFR recording of the run to, or null if disabled.
+     */
+    public Path jfrPath() {
+        return jfrPath;
+    }
+
+    public RunOptions jfrPath(Path jfrPath) {
+        this.jfrPath = jfrPath;
+        return this;
+    }
+
+    /**
+     * @return Path to write every rejected input row to, or null if disabled.
+     */
+    public Path rejectsPath() {
+        return rejectsPath;
+    }
+
+    public RunOptions rejectsPath(Path rejectsPath) {
+        this.rejectsPath = rejectsPath;
+        return this;
+    }
+
+    /**
+     * @return Durability policy for the asynchronous output writer, or null to
+     *         write synchronously with {@code CsvWriter}.
+     */
+    public FsyncPolicy fsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public RunOptions fsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    /**
+     * @return Path to a properties file of daily and weekly fare caps, or null
+     *         to charge every trip in full.
+     */
+    public Path capsPath() {
+        return capsPath;
+    }
+
+    public RunOptions capsPath(Path capsPath) {
+        this.capsPath = capsPath;
+        return this;
+    }
+
+    /**
+     * @return Path to a properties file of time-band fare rules, or null to
+     *         charge the base fares at all times.
+     */
+    public Path fareRulesPath() {
+        return fareRulesPath;
+    }
+
+    public RunOptions fareRulesPath(Path fareRulesPath) {
+        this.fareRulesPath = fareRulesPath;
+        return this;
+    }
+
+    /**
+     * @return Path to write journey legs to, which also links trips into
+     *         journeys priced as one, or null to price every trip alone.
+     */
+    public Path journeysPath() {
+        return journeysPath;
+    }
+
+    public RunOptions journeysPath(Path journeysPath) {
+        this.journeysPath = journeysPath;
+        return this;
+    }
+
+    /**
+     * @return Longest gap between two trips of one journey, in seconds.
+     */
+    public long transferWindowSeconds() {
+        return transferWindowSeconds;
+    }
+
+    public RunOptions transferWindowSeconds(long transferWindowSeconds) {
+        this.transferWindowSeconds = transferWindowSeconds;
+        return this;
+    }
+
+    /**
+     * @return Path to write trip count and revenue rollups to, or null if
+     *         disabled.
+     */
+    public Path summaryPath() {
+        return summaryPath;
+    }
+
+    public RunOptions summaryPath(Path summaryPath) {
+        this.summaryPath = summaryPath;
+        return this;
+    }
+
+    /**
+     * @return Whether to skip repeated taps while reading.
+     */
+    public boolean dedup() {
+        return dedup;
+    }
+
+    public RunOptions dedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    /**
+     * @return How far apart in tap time a repeat can be and still be detected,
+     *         in seconds; 0 or less to remember every tap.
+     */
+    public long dedupWindowSeconds() {
+        return dedupWindowSeconds;
+    }
+
+    public RunOptions dedupWindowSeconds(long dedupWindowSeconds) {
+        this.dedupWindowSeconds = dedupWindowSeconds;
+        return this;
+    }
+
+    /**
+     * @return Whether repeats must match in every field rather than just the
+     *         tap ID.
+     */
+    public boolean dedupContent() {
+        return dedupContent;
+    }
+
+    public RunOptions dedupContent(boolean dedupContent) {
+        this.dedupContent = dedupContent;
+        return this;
+    }
+
+    /**
+     * @return Whether to split input rows with the byte-level parser rather
+     *         than opencsv.
+     */
+    public boolean fastParser() {
+        return fastParser;
+    }
+
+    public RunOptions fastParser(boolean fastParser) {
+        this.fastParser = fastParser;
+        return this;
+    }
+
+    /**
+     * @return Size in bytes at which the ingest server starts a new trips
+     *         file.
+     */
+    public long rollBytes() {
+        return rollBytes;
+    }
+
+    public RunOptions rollBytes(long rollBytes) {
+        this.rollBytes = rollBytes;
+        return this;
+    }
+
+    /**
+     * @return Age in seconds at which the ingest server completes a trips file
+     *         even if it is not full.
+     */
+    public long rollIntervalSeconds() {
+        return rollIntervalSeconds;
+    }
+
+    public RunOptions rollIntervalSeconds(long rollIntervalSeconds) {
+        this.rollIntervalSeconds = rollIntervalSeconds;
+        return this;
+    }
+
+    /**
+     * @return Estimated heap in bytes for unmatched ON taps when matching in
+     *         arrival order, beyond which they spill off the heap, or -1 for
+     *         no limit.
+     */
+    public long openTapBudgetBytes() {
+        return openTapBudgetBytes;
+    }
+
+    public RunOptions openTapBudgetBytes(long openTapBudgetBytes) {
+        this.openTapBudgetBytes = openTapBudgetBytes;
+        return this;
+    }
+
+    /**
+     * @return Directory for spilled ON taps, or null for the output directory.
+     */
+    public Path spillDirectory() {
+        return spillDirectory;
+    }
+
+    public RunOptions spillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * @return Whether to split taps by company and run a separate pipeline,
+     *         with its own output file, for each.
+     */
+    public boolean perCompany() {
+        return perCompany;
+    }
+
+    public RunOptions perCompany(boolean perCompany) {
+        this.perCompany = perCompany;
+        return this;
+    }
+
+    /**
+     * @return Directory of per-company fares and fare rules, or null for none.
+     */
+    public Path companyFaresDir() {
+        return companyFaresDir;
+    }
+
+    public RunOptions companyFaresDir(Path companyFaresDir) {
+        this.companyFaresDir = companyFaresDir;
+        return this;
+    }
+
+    /**
+     * @return Number of threads to share between parallel pipelines, or to
+     *         match taps on in a sorted run, or 0 for one per processor.
+     */
+    public int threads() {
+        return threads;
+    }
+
+    public RunOptions threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return Percentage of the maximum heap in use after garbage collection
+     *         above which stages shed memory, or 0 not to watch the heap.
+     */
+    public int heapThresholdPercent() {
+        return heapThresholdPercent;
+    }
+
+    public RunOptions heapThresholdPercent(int heapThresholdPercent) {
+        this.heapThresholdPercent = heapThresholdPercent;
+        return this;
+    }
+
+    /**
+     * @return How far out of order taps may arrive when matching taps in
+     *         arrival order as a live feed would, in seconds, or -1 to sort all
+     *         taps before matching.
+     */
+    public long latenessSeconds() {
+        return latenessSeconds;
+    }
+
+    public RunOptions latenessSeconds(long latenessSeconds) {
+        this.latenessSeconds = latenessSeconds;
+        return this;
+    }
+
+    /**
+     * @return Number of worker JVMs to split the run across by PAN; 1 to run in
+     *         this process.
+     */
+    public int shards() {
+        return shards;
+    }
+
+    public RunOptions shards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * @return Path to write an indexed trip store for lookups by PAN to, or
+     *         null if disabled.
+     */
+    public Path tripStorePath() {
+        return tripStorePath;
+    }
+
+    public RunOptions tripStorePath(Path tripStorePath) {
+        this.tripStorePath = tripStorePath;
+        return this;
+    }
+
+    /**
+     * @return Path to write a columnar binary file of the trips for analytics
+     *         to, or null if disabled.
+     */
+    public Path columnarPath() {
+        return columnarPath;
+    }
+
+    public RunOptions columnarPath(Path columnarPath) {
+        this.columnarPath = columnarPath;
+        return this;
+    }
+
+    /**
+     * @return The companies whose taps to read, or null to read every
+     *         company's.
+     */
+    public Set<String> companies() {
+        return companies;
+    }
+
+    public RunOptions companies(Set<String> companies) {
+        this.companies = companies;
+        return this;
+    }
+}
@@ -0,0 +1,380 @@
+package littlepay;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvValidationException;
+import littlepay.util.EpochTime;
+import littlepay.util.FileSupport;
+import littlepay.util.FsyncPolicy;
+import littlepay.util.PanKeys;
+import littlepay.util.PipelineMetrics;
+import littlepay.util.TapField;
+import littlepay.util.TapLayout;
+import littlepay.util.TripCsvReader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs the pipeline across several local worker JVMs.
+ * Taps are hash-partitioned by PAN into one file per shard, so every card's
+ * taps (and so its trips and fare caps) stay within one shard. Each shard is
+ * processed by a separate JVM running the normal pipeline through
+ * {@link #main(String[])}, and the sorted shard outputs are merged by start
+ * time and PAN into a trips file identical to a single-process run.
+ * Only the options that affect trips are passed on to the workers; metrics and
+ * recordings cover the coordinator itself.
+ */
+public class ShardCoordinator {
+
+    private static final int TRIP_PAN_COLUMN = 8;
+    /** Trips merged between checks of how much is written since the last fsync. */
+    private static final int SYNC_CHECK_TRIPS = 4096;
+
+    private final int shardCount;
+    private final RunOptions options;
+    private final Path capsPath;
+    private final Path fareRulesPath;
+    private final PipelineMetrics metrics;
+
+    /**
+     * @param shardCount    Number of shards and worker JVMs.
+     * @param options       Options for the run; those that affect trips are
+     *                      forwarded to the workers.
+     * @param capsPath      Resolved fare caps file, or null for none.
+     * @param fareRulesPath Resolved fare rules file, or null for none.
+     * @param metrics       Metrics to record the coordinator's stages in.
+     */
+    public ShardCoordinator(int shardCount, RunOptions options, Path capsPath, Path fareRulesPath,
+            PipelineMetrics metrics) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+        }
+        if (options.summaryPath() != null || options.rejectsPath() != null || options.tripStorePath() != null
+                || options.columnarPath() != null || options.journeysPath() != null || options.perCompany()) {
+            throw new IllegalArgumentException("--summary, --rejects, --trip-store, --columnar, --journeys and"
+                    + " --per-company are not supported with --shards");
+        }
+        this.shardCount = shardCount;
+        this.options = options;
+        this.capsPath = capsPath;
+        this.fareRulesPath = fareRulesPath;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Partitions the input, runs one worker per shard and merges the results.
+     * Shard files are written to a temporary directory next to the output and
+     * deleted afterwards.
+     *
+     * @throws IOException if a file cannot be read or written, or a worker
+     *                     fails.
+     */
+    public void run(Path inputPath, Path outputPath) throws IOException, InterruptedException {
+        Path workDir = Files.createDirectories(outputPath.toAbsolutePath().getParent())
+                .resolve(".shards-" + ProcessHandle.current().pid() + "-" + System.nanoTime());
+        Files.createDirectory(workDir);
+        try {
+            List<Path> shardInputs = new ArrayList<>();
+            List<Path> shardOutputs = new ArrayList<>();
+            for (int shard = 0; shard < shardCount; shard++) {
+                shardInputs.add(workDir.resolve("taps-" + shard + ".csv"));
+                shardOutputs.add(workDir.resolve("trips-" + shard + ".csv"));
+            }
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("partition")) {
+                timer.rows(partition(inputPath, shardInputs)).bytes(Files.size(inputPath));
+            }
+            metrics.bytesRead(Files.size(inputPath));
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("shards")) {
+                runWorkers(workDir, shardInputs, shardOutputs);
+                long shardBytes = 0;
+                for (Path shardOutput : shardOutputs) {
+                    shardBytes += Files.size(shardOutput);
+                }
+                timer.bytes(shardBytes);
+            }
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("merge")) {
+                timer.rows(merge(shardOutputs, outputPath, options.fsyncPolicy())).bytes(Files.size(outputPath));
+            }
+            metrics.bytesWritten(Files.size(outputPath));
+        } finally {
+            FileSupport.deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * Splits the taps file by a hash of each row's PAN, copying the header to
+     * every shard. The PAN column is found from the header as the workers find
+     * it. Rows too short to have a PAN go to shard 0, where the worker will
+     * skip them.
+     *
+     * @return Number of data rows read.
+     */
+    long partition(Path inputPath, List<Path> shardInputs) throws IOException {
+        List<CSVWriter> writers = new ArrayList<>();
+        long rows = 0;
+        // Same charset as the FileReader in CsvReader, so workers see the same text
+        try (CSVReader reader = new CSVReader(new InputStreamReader(Files.newInputStream(inputPath),
+                Charset.defaultCharset()))) {
+            for (Path shardInput : shardInputs) {
+                writers.add(new CSVWriter(new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(shardInput),
+                        Charset.defaultCharset()))));
+            }
+            String[] header = reader.readNext();
+            TapLayout layout = header == null ? null : TapLayout.fromHeader(header);
+            int panColumn = (layout != null ? layout : TapLayout.DEFAULT).position(TapField.PAN);
+            if (header != null) {
+                for (CSVWriter writer : writers) {
+                    writer.writeNext(header);
+                }
+            }
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                rows++;
+                writers.get(row.length > panColumn ? shardOf(row[panColumn].trim()) : 0).writeNext(row);
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException("Failed to validate CSV content from " + inputPath, e);
+        } finally {
+            for (CSVWriter writer : writers) {
+                writer.close();
+            }
+        }
+        return rows;
+    }
+
+    int shardOf(String pan) {
+        return (int) Math.floorMod(PanKeys.hash64(pan), (long) shardCount);
+    }
+
+    private void runWorkers(Path workDir, List<Path> shardInputs, List<Path> shardOutputs)
+            throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> workers = new ArrayList<>();
+        List<Path> logs = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                        ShardCoordinator.class.getName(), shardInputs.get(shard).toString(),
+                        shardOutputs.get(shard).toString()));
+                command.addAll(workerFlags());
+                Path log = workDir.resolve("worker-" + shard + ".log");
+                logs.add(log);
+                workers.add(new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(log.toFile())
+                        .start());
+            }
+            for (int shard = 0; shard < shardCount; shard++) {
+                int exitCode = workers.get(shard).waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Shard " + shard + " failed with exit code " + exitCode + ":\n"
+                            + Files.readString(logs.get(shard), Charset.defaultCharset()));
+                }
+            }
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+        }
+    }
+
+    /**
+     * @return The flags that change which trips are produced, or how much
+     *         heap matching them takes, for the workers.
+     */
+    List<String> workerFlags() {
+        List<String> flags = new ArrayList<>();
+        if (capsPath != null) {
+            flags.add("--caps=" + capsPath);
+        }
+        if (fareRulesPath != null) {
+            flags.add("--fare-rules=" + fareRulesPath);
+        }
+        if (options.dedup()) {
+            flags.add("--dedup-window=" + options.dedupWindowSeconds() + "s");
+            flags.add("--dedup-content=" + options.dedupContent());
+        }
+        if (options.latenessSeconds() >= 0) {
+            flags.add("--lateness=" + options.latenessSeconds() + "s");
+        }
+        if (options.openTapBudgetBytes() > 0) {
+            flags.add("--open-tap-budget=" + (options.openTapBudgetBytes() >> 20) + "mb");
+        }
+        if (options.spillDirectory() != null) {
+            flags.add("--spill-dir=" + options.spillDirectory().toAbsolutePath());
+        }
+        if (options.heapThresholdPercent() > 0) {
+            flags.add("--heap-threshold=" + options.heapThresholdPercent());
+        }
+        // The workers share the machine, so each matches on its share of the threads
+        int threads = options.threads() > 0 ? options.threads() : Runtime.getRuntime().availableProcessors();
+        flags.add("--threads=" + Math.max(1, threads / shardCount));
+        if (options.companies() != null) {
+            flags.add("--company=" + String.join(",", options.companies()));
+        }
+        return flags;
+    }
+
+    /**
+     * Merges sorted trips files by start time and PAN. A card's trips are all
+     * in one shard, so trips that tie on both keep their order within it.
+     *
+     * @return Number of trips written.
+     */
+    static long merge(List<Path> sortedTripFiles, Path outputPath) throws IOException {
+        return merge(sortedTripFiles, outputPath, null);
+    }
+
+    /**
+     * Merges sorted trips files as {@link #merge(List, Path)} does, through a
+     * temporary file renamed over the output. Unless the fsync policy is null
+     * or {@code NONE}, the file is synced as the policy asks before the rename
+     * and the directory after it.
+     *
+     * @return Number of trips written.
+     * @throws IOException if a file cannot be read or the output written.
+     */
+    static long merge(List<Path> sortedTripFiles, Path outputPath, FsyncPolicy fsyncPolicy) throws IOException {
+        FsyncPolicy policy = fsyncPolicy != null ? fsyncPolicy : FsyncPolicy.NONE;
+        long[] trips = new long[1];
+        FileSupport.replace(outputPath, file -> trips[0] = mergeTo(sortedTripFiles, file, policy));
+        if (policy.mode() != FsyncPolicy.Mode.NONE) {
+            FileSupport.forceDirectory(outputPath.toAbsolutePath().getParent());
+        }
+        return trips[0];
+    }
+
+    private static long mergeTo(List<Path> sortedTripFiles, Path outputFile, FsyncPolicy policy) throws IOException {
+        List<TripRecordReader> readers = new ArrayList<>();
+        PriorityQueue<TripRecordReader> heads = new PriorityQueue<>(Comparator
+                .comparingLong(TripRecordReader::started)
+                .thenComparing(TripRecordReader::pan)
+                .thenComparingInt(TripRecordReader::index));
+        long trips = 0;
+        long syncedBytes = 0;
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                     Charset.defaultCharset()), 1 << 16)) {
+            String header = null;
+            for (Path file : sortedTripFiles) {
+                TripRecordReader reader = new TripRecordReader(file, readers.size());
+                readers.add(reader);
+                String fileHeader = reader.next() ? reader.record() : null;
+                header = header != null ? header : fileHeader;
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+            }
+            if (header != null) {
+                writer.append(header).append('\n');
+            }
+            while (!heads.isEmpty()) {
+                TripRecordReader reader = heads.poll();
+                writer.append(reader.record()).append('\n');
+                trips++;
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+                if (policy.mode() == FsyncPolicy.Mode.EVERY_N_BYTES && trips % SYNC_CHECK_TRIPS == 0) {
+                    writer.flush();
+                    if (channel.position() - syncedBytes >= policy.intervalBytes()) {
+                        channel.force(false);
+                        syncedBytes = channel.position();
+                    }
+                }
+            }
+            writer.flush();
+            if (policy.mode() != FsyncPolicy.Mode.NONE) {
+                channel.force(true);
+            }
+        } finally {
+            for (TripRecordReader reader : readers) {
+                reader.close();
+            }
+        }
+        return trips;
+    }
+
+    /**
+     * A trips file being merged, with the sort keys of its current record.
+     */
+    private static final class TripRecordReader implements AutoCloseable {
+        private final TripCsvReader reader;
+        private final int index;
+        private long started;
+        private String pan;
+
+        TripRecordReader(Path file, int index) throws IOException {
+            this.reader = new TripCsvReader(file);
+            this.index = index;
+        }
+
+        /**
+         * @return false at the end of the file.
+         */
+        boolean next() throws IOException {
+            if (!reader.next()) {
+                return false;
+            }
+            CharSequence record = reader.record();
+            started = record.length() >= 19 ? EpochTime.parse(record.subSequence(0, 19)) : EpochTime.NONE;
+            pan = reader.field(TRIP_PAN_COLUMN);
+            return true;
+        }
+
+        String record() {
+            return reader.record().toString();
+        }
+
+        long started() {
+            return started;
+        }
+
+        String pan() {
+            return pan;
+        }
+
+        int index() {
+            return index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Worker entry point: runs the normal pipeline on one shard. Unlike
+     * {@link FareCalculator#main(String[])}, failures exit with a non-zero code
+     * so the coordinator can detect them.
+     *
+     * @param args Shard input path, shard output path and pipeline flags.
+     */
+    public static void main(String[] args) {
+        try {
+            RunOptions options = RunOptions.parse(args);
+            FareCalculator.processFiles(Paths.get(options.positional().get(0)),
+                    Paths.get(options.positional().get(1)), options);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
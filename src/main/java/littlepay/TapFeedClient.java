@@ -0,0 +1,138 @@
+package littlepay;
+
+import littlepay.util.PanKeys;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stands in for a fleet of validators when testing {@link TapIngestServer}:
+ * replays a taps file over many concurrent connections, one virtual thread
+ * each. Rows are spread over the connections by PAN, so each card's taps
+ * still arrive in file order. Every connection is opened before any row is
+ * sent, so the server really holds them all at once.
+ */
+public class TapFeedClient {
+
+    private static final int DEFAULT_CONNECTIONS = 100;
+    private static final int PAN_COLUMN = 6;
+
+    /**
+     * Sends rows over the given number of connections and closes them.
+     *
+     * @param rows         Tap rows without line ends, in the taps file format.
+     * @param connections  Number of connections to open.
+     * @param holdMillis   How long to keep every connection open after its
+     *                     rows are sent, like idle devices.
+     * @throws IOException if a connection fails.
+     */
+    public static void send(String host, int port, List<String> rows, int connections, long holdMillis)
+            throws IOException, InterruptedException {
+        List<StringBuilder> batches = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            batches.add(new StringBuilder());
+        }
+        for (String row : rows) {
+            String[] fields = row.split(",", -1);
+            int connection = fields.length > PAN_COLUMN
+                    ? (int) Math.floorMod(PanKeys.hash64(fields[PAN_COLUMN].trim()), (long) connections)
+                    : 0;
+            batches.get(connection).append(row).append('\n');
+        }
+
+        CountDownLatch connected = new CountDownLatch(connections);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (StringBuilder batch : batches) {
+            byte[] bytes = batch.toString().getBytes(Charset.defaultCharset());
+            threads.add(Thread.ofVirtual().name("tap-feed-client").start(() -> {
+                boolean counted = false;
+                try (Socket socket = new Socket(host, port)) {
+                    connected.countDown();
+                    counted = true;
+                    connected.await();
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    out.write(bytes);
+                    out.flush();
+                    Thread.sleep(holdMillis);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                    if (!counted) {
+                        connected.countDown(); // Don't hold up the other connections
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * @param args args[0]: Server address as {@code host:port}.
+     *             args[1]: Taps CSV file to replay, with a header row.
+     *             Then optionally {@code --connections=<N>} (default 100) and
+     *             {@code --hold=<seconds>} to keep connections open after
+     *             sending.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args[0].lastIndexOf(':') < 0) {
+            System.err.println("Usage: TapFeedClient <host:port> <taps.csv> [--connections=<N>] [--hold=<seconds>]");
+            return;
+        }
+        try {
+            String host = args[0].substring(0, args[0].lastIndexOf(':'));
+            int port = Integer.parseInt(args[0].substring(args[0].lastIndexOf(':') + 1));
+            Path tapsPath = FareCalculator.resolveWithinBaseDir(Paths.get(args[1]), "Input");
+            int connections = DEFAULT_CONNECTIONS;
+            long holdMillis = 0;
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].startsWith("--connections=")) {
+                    connections = Integer.parseInt(args[i].substring("--connections=".length()));
+                } else if (args[i].startsWith("--hold=")) {
+                    holdMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args[i].substring("--hold=".length())));
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (connections < 1) {
+                throw new IllegalArgumentException("Option --connections must be at least 1 but got: " + connections);
+            }
+
+            List<String> rows = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(tapsPath, Charset.defaultCharset())) {
+                reader.readLine(); // Header
+                String row;
+                while ((row = reader.readLine()) != null) {
+                    rows.add(row);
+                }
+            }
+            long start = System.nanoTime();
+            send(host, port, rows, connections, holdMillis);
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000 - holdMillis);
+            System.out.println("Sent " + rows.size() + " taps over " + connections + " connections in " + millis
+                    + " ms (" + rows.size() * 1000L / millis + " taps/s)");
+        } catch (SecurityException e) {
+            System.err.println("Security Error: Path access denied. " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package littlepay;
+
+import com.opencsv.CSVParser;
+import littlepay.model.Tap;
+import littlepay.service.IncrementalTripMatcher;
+import littlepay.service.OpenTapStore;
+import littlepay.service.PricingService;
+import littlepay.service.TapReorderBuffer;
+import littlepay.service.TripMatcher;
+import littlepay.util.CsvReader;
+import littlepay.util.MemoryGovernor;
+import littlepay.util.MetricsEndpoint;
+import littlepay.util.PipelineMetrics;
+import littlepay.util.RejectedRows;
+import littlepay.util.RollingTripWriter;
+import littlepay.util.SkipReason;
+import littlepay.util.TapDeduplicator;
+import littlepay.util.TapField;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts taps pushed by validators over TCP and turns them into trips as they
+ * arrive. Each connection carries tap rows in the taps file format, one per
+ * line and without a header, and is read by its own virtual thread, so tens of
+ * thousands of mostly idle connections cost little more than their sockets.
+ * Rows are parsed with the same rules as {@link CsvReader}. The valid taps
+ * from each read go as one batch, to keep lock traffic low, through a bounded
+ * queue to a single matcher thread, which restores time order with a
+ * {@link TapReorderBuffer}, matches taps with an
+ * {@link IncrementalTripMatcher} and writes trips to a
+ * {@link RollingTripWriter}. When the matcher falls behind, the queue blocks
+ * the connection threads and TCP flow control slows the senders down.
+ * Trips are written as soon as they are known, so they are not in start-time
+ * order; fare caps and journeys, which need that order, are not supported.
+ */
+public class TapIngestServer implements AutoCloseable {
+
+    /** Lateness used when none is given: taps may arrive up to 5 minutes out of order. */
+    public static final long DEFAULT_LATENESS_SECONDS = 300;
+
+    private static final Logger LOGGER = Logger.getLogger(TapIngestServer.class.getName());
+    private static final int QUEUE_CAPACITY = 4096; // Batches of taps
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int INITIAL_READ_BYTES = 2048;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SHUTDOWN_GRACE_MILLIS = 5000;
+    private static final long PRESSURE_PAUSE_MILLIS = 100;
+    private static final List<Tap> END_OF_STREAM = Collections.unmodifiableList(new ArrayList<>());
+
+    private final CsvReader csvReader;
+    private final RejectedRows rejects;
+    private final RollingTripWriter output;
+    private final PipelineMetrics metrics;
+    private final OpenTapStore openTaps;
+    private final MemoryGovernor governor;
+    private final IncrementalTripMatcher matcher;
+    private final TapReorderBuffer reorderBuffer;
+    private final BlockingQueue<List<Tap>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<Socket, Thread> connections = new ConcurrentHashMap<>();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final Charset charset = Charset.defaultCharset(); // Same as CsvReader's FileReader
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private Thread matcherThread;
+    private volatile boolean closing;
+    private volatile Exception failure;
+
+    /**
+     * @param options Options for the server; {@code --dedup*} and
+     *                {@code --lateness} are applied.
+     * @param pricing Fares to charge.
+     * @param output  Where to write trips.
+     * @param rejects Collector for rows that cannot be parsed.
+     * @param metrics Metrics to record parsed rows and trips in.
+     * @throws IllegalArgumentException if an option the server cannot honour
+     *                                  is set.
+     */
+    public TapIngestServer(RunOptions options, PricingService pricing, RollingTripWriter output,
+            RejectedRows rejects, PipelineMetrics metrics) {
+        this(options, pricing, output, rejects, metrics, new OpenTapStore());
+    }
+
+    /**
+     * As {@link #TapIngestServer(RunOptions, PricingService, RollingTripWriter, RejectedRows, PipelineMetrics)},
+     * holding unmatched ON taps in the given store, which the caller closes.
+     */
+    public TapIngestServer(RunOptions options, PricingService pricing, RollingTripWriter output,
+            RejectedRows rejects, PipelineMetrics metrics, OpenTapStore openTaps) {
+        this(options, pricing, output, rejects, metrics, openTaps, null);
+    }
+
+    /**
+     * As {@link #TapIngestServer(RunOptions, PricingService, RollingTripWriter, RejectedRows, PipelineMetrics,
+     * OpenTapStore)}, pausing reads from connections for a moment at a time
+     * while the governor reports heap pressure, so that the matcher can catch
+     * up and the senders are slowed by TCP flow control.
+     *
+     * @param governor Heap pressure to pause for, or null for none.
+     */
+    public TapIngestServer(RunOptions options, PricingService pricing, RollingTripWriter output,
+            RejectedRows rejects, PipelineMetrics metrics, OpenTapStore openTaps, MemoryGovernor governor) {
+        if (options.capsPath() != null || options.journeysPath() != null || options.summaryPath() != null
+                || options.tripStorePath() != null || options.columnarPath() != null || options.shards() > 1) {
+            throw new IllegalArgumentException("--caps, --journeys, --summary, --trip-store, --columnar and --shards"
+                    + " are not supported by the ingest server");
+        }
+        TapDeduplicator deduplicator = options.dedup()
+                ? new TapDeduplicator(options.dedupWindowSeconds(), options.dedupContent(), 1 << 16)
+                : null;
+        this.csvReader = new CsvReader(metrics, rejects, deduplicator, null,
+                EnumSet.complementOf(EnumSet.of(TapField.ID)), options.companies());
+        this.rejects = rejects;
+        this.output = output;
+        this.metrics = metrics;
+        this.openTaps = openTaps;
+        this.governor = governor;
+        this.matcher = new IncrementalTripMatcher(new TripMatcher(pricing), trip -> {
+            metrics.tripProduced(trip);
+            try {
+                output.write(trip);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, openTaps);
+        long lateness = options.latenessSeconds() >= 0 ? options.latenessSeconds() : DEFAULT_LATENESS_SECONDS;
+        this.reorderBuffer = new TapReorderBuffer(lateness, matcher::accept, tap -> { });
+    }
+
+    /**
+     * Starts listening and matching.
+     *
+     * @param port Port to listen on, or 0 for any free port.
+     * @return The port listened on.
+     * @throws IOException if the port cannot be bound.
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+        matcherThread = new Thread(this::matchTaps, "tap-ingest-matcher");
+        matcherThread.start();
+        acceptor = Thread.ofVirtual().name("tap-ingest-acceptor").start(this::acceptConnections);
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of connections currently open.
+     */
+    public int openConnections() {
+        return connections.size();
+    }
+
+    /**
+     * @return Number of connections accepted since the server started.
+     */
+    public long connectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    /**
+     * @return Number of taps that arrived too far out of order to be matched.
+     *         Only exact once the server is closed.
+     */
+    public long lateTaps() {
+        return reorderBuffer.lateTaps();
+    }
+
+    /**
+     * Stops accepting connections, gives open connections a few seconds to
+     * finish sending before cutting them off, then matches the remaining taps
+     * (unmatched ON taps become incomplete trips) and completes the current
+     * trips file.
+     *
+     * @throws IOException      if trips could not be written, or the calling
+     *                          thread was interrupted while waiting for the
+     *                          connections and matcher to finish.
+     * @throws RuntimeException as thrown by matching or pricing the taps, e.g.
+     *                          for a stop pair without a fare.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            stopThreads();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the tap ingest server", e);
+        }
+        if (failure instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure != null) {
+            throw (IOException) failure;
+        }
+    }
+
+    private void stopThreads() throws IOException, InterruptedException {
+        closing = true;
+        serverSocket.close();
+        acceptor.join();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_GRACE_MILLIS);
+        for (Thread connection : new ArrayList<>(connections.values())) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis > 0) {
+                connection.join(remainingMillis);
+            }
+        }
+        for (Map.Entry<Socket, Thread> connection : new ArrayList<>(connections.entrySet())) {
+            connection.getKey().close();
+            connection.getValue().interrupt(); // In case it is blocked on a full queue
+        }
+        for (Thread connection : new ArrayList<>(connections.values())) {
+            connection.join();
+        }
+        if (matcherThread.isAlive()) {
+            queue.put(END_OF_STREAM);
+            matcherThread.join();
+        }
+    }
+
+    private void acceptConnections() {
+        while (!closing) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closing) {
+                    // Typically out of file descriptors; back off rather than spin
+                    LOGGER.log(Level.WARNING, "Failed to accept a connection", e);
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            connectionsAccepted.increment();
+            Thread connection = Thread.ofVirtual().name("tap-ingest-connection").unstarted(() -> serve(socket));
+            connections.put(socket, connection);
+            connection.start();
+        }
+    }
+
+    /**
+     * Reads one connection's lines until it is closed. Lines end with '\n',
+     * optionally preceded by '\r'; empty lines are ignored, so devices can use
+     * them as keep-alives.
+     */
+    private void serve(Socket socket) {
+        String source = "tcp:" + socket.getRemoteSocketAddress();
+        CSVParser parser = new CSVParser();
+        byte[] buffer = new byte[INITIAL_READ_BYTES];
+        List<Tap> taps = new ArrayList<>();
+        int length = 0;
+        long lineNumber = 0;
+        try (socket; InputStream in = socket.getInputStream()) {
+            int read;
+            while ((read = readUnlessUnderPressure(in, buffer, length)) > 0) {
+                int lineStart = 0;
+                for (int i = length; i < length + read; i++) {
+                    if (buffer[i] == '\n') {
+                        acceptLine(source, ++lineNumber, parser, buffer, lineStart, i, taps);
+                        lineStart = i + 1;
+                    }
+                }
+                if (!taps.isEmpty()) {
+                    queue.put(taps);
+                    taps = new ArrayList<>();
+                }
+                length += read - lineStart;
+                System.arraycopy(buffer, lineStart, buffer, 0, length);
+                if (length == buffer.length) {
+                    if (buffer.length >= MAX_LINE_BYTES) {
+                        throw new IOException("Line " + (lineNumber + 1) + " is longer than " + MAX_LINE_BYTES
+                                + " bytes");
+                    }
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            if (length > 0) {
+                acceptLine(source, ++lineNumber, parser, buffer, 0, length, taps);
+                if (!taps.isEmpty()) {
+                    queue.put(taps);
+                }
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                LOGGER.log(Level.WARNING, "Connection " + source + " failed", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private int readUnlessUnderPressure(InputStream in, byte[] buffer, int length)
+            throws IOException, InterruptedException {
+        if (governor != null && governor.underPressure()) {
+            governor.awaitRelief(PRESSURE_PAUSE_MILLIS);
+        }
+        return in.read(buffer, length, buffer.length - length);
+    }
+
+    private void acceptLine(String source, long lineNumber, CSVParser parser, byte[] buffer, int start, int end,
+            List<Tap> taps) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+        String text = new String(buffer, start, end - start, charset);
+        String[] row;
+        try {
+            row = parser.parseLine(text);
+        } catch (IOException e) {
+            // An unterminated quote; rows cannot span lines on a connection
+            rejects.reject(source, lineNumber, SkipReason.UNEXPECTED_ERROR, String.valueOf(e), new String[] { text });
+            return;
+        }
+        Tap tap = csvReader.parseRow(source, lineNumber, row);
+        if (tap != null) {
+            taps.add(tap);
+        }
+    }
+
+    private void matchTaps() {
+        List<List<Tap>> batches = new ArrayList<>(64);
+        long nextTick = System.nanoTime() + TICK_NANOS;
+        try {
+            while (true) {
+                List<Tap> first = queue.poll(TICK_NANOS, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batches.add(first);
+                    queue.drainTo(batches, 63);
+                }
+                for (List<Tap> batch : batches) {
+                    if (batch == END_OF_STREAM) {
+                        reorderBuffer.flush();
+                        matcher.flush();
+                        output.close();
+                        return;
+                    }
+                    for (Tap tap : batch) {
+                        reorderBuffer.add(tap);
+                    }
+                }
+                batches.clear();
+                if (System.nanoTime() - nextTick >= 0) {
+                    output.tick();
+                    metrics.openTaps(openTaps.heapEntries(), openTaps.spilledEntries(), openTaps.spilledBytes());
+                    nextTick = System.nanoTime() + TICK_NANOS;
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            failure = e instanceof UncheckedIOException unchecked ? unchecked.getCause() : (IOException) e;
+            LOGGER.log(Level.SEVERE, "Failed to write trips; no more taps will be accepted", failure);
+            stopAcceptingAfterFailure();
+        } catch (RuntimeException e) {
+            failure = e;
+            LOGGER.log(Level.SEVERE, "Failed to match taps; no more taps will be accepted", e);
+            stopAcceptingAfterFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops taking taps once trips can no longer be matched or written, so
+     * that devices see their connections fail instead of blocking on a full
+     * queue.
+     */
+    private void stopAcceptingAfterFailure() {
+        closing = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Map.Entry<Socket, Thread> connection : connections.entrySet()) {
+            try {
+                connection.getKey().close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            connection.getValue().interrupt();
+        }
+    }
+
+    /**
+     * Runs the server until the JVM is stopped (e.g. with Ctrl+C), then shuts
+     * it down cleanly.
+     *
+     * @param args args[0]: Port to listen on, or 0 for any free port.
+     *             args[1]: Directory to write trips files to.
+     *             Then optionally {@code --fare-rules}, {@code --dedup*},
+     *             {@code --lateness}, {@code --rejects},
+     *             {@code --metrics-port}, {@code --roll-size},
+     *             {@code --roll-interval}, {@code --open-tap-budget},
+     *             {@code --spill-dir} and {@code --heap-threshold}.
+     */
+    public static void main(String[] args) {
+        try {
+            RunOptions options = RunOptions.parse(args);
+            if (options.positional().size() < 2) {
+                System.err.println("Usage: TapIngestServer <port> <output directory> [--fare-rules=<path>]"
+                        + " [--dedup...] [--lateness=<duration>] [--rejects=<path>] [--metrics-port=<port>]"
+                        + " [--roll-size=<N>mb] [--roll-interval=<duration>] [--open-tap-budget=<N>mb]"
+                        + " [--spill-dir=<path>] [--heap-threshold=<percent>]");
+                return;
+            }
+            int port = Integer.parseInt(options.positional().get(0));
+            Path outputDir = FareCalculator.resolveWithinBaseDir(Paths.get(options.positional().get(1)), "Output");
+            Path fareRulesPath = options.fareRulesPath() == null ? null
+                    : FareCalculator.resolveWithinBaseDir(options.fareRulesPath(), "Fare rules");
+            Path rejectsPath = options.rejectsPath() == null ? null
+                    : FareCalculator.resolveWithinBaseDir(options.rejectsPath(), "Rejected rows");
+            Path spillDirectory = options.spillDirectory() == null ? outputDir
+                    : FareCalculator.resolveWithinBaseDir(options.spillDirectory(), "Spill");
+
+            PricingService pricing = fareRulesPath != null ? PricingService.load(fareRulesPath)
+                    : new PricingService();
+            PipelineMetrics metrics = new PipelineMetrics();
+            RejectedRows rejects = new RejectedRows(metrics, rejectsPath);
+            RollingTripWriter output = new RollingTripWriter(outputDir, options.rollBytes(),
+                    options.rollIntervalSeconds());
+            MemoryGovernor governor = options.heapThresholdPercent() > 0
+                    ? new MemoryGovernor(options.heapThresholdPercent() / 100.0)
+                    : null;
+            OpenTapStore openTaps = FareCalculator.newOpenTapStore(options, spillDirectory, governor);
+            TapIngestServer server = new TapIngestServer(options, pricing, output, rejects, metrics, openTaps,
+                    governor);
+            MetricsEndpoint endpoint = options.metricsPort() >= 0
+                    ? new MetricsEndpoint(metrics, options.metricsPort())
+                    : null;
+            int boundPort = server.start(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    rejects.close();
+                    System.out.println("Stopped after " + server.connectionsAccepted() + " connections: "
+                            + metrics.rowsParsed() + " taps, " + output.tripsWritten() + " trips in "
+                            + output.filesCompleted() + " files, " + server.lateTaps() + " late taps, "
+                            + openTaps.peakSize() + " open ON taps at peak (" + openTaps.spills()
+                            + " spilled off the heap)");
+                    openTaps.close();
+                    if (governor != null) {
+                        governor.close();
+                        System.out.println("Memory governor: " + governor.describe());
+                    }
+                } catch (Exception e) {
+                    System.err.println("Failed to shut down cleanly: " + e.getMessage());
+                } finally {
+                    if (endpoint != null) {
+                        endpoint.close();
+                    }
+                }
+            }, "tap-ingest-shutdown"));
+
+            System.out.println("Listening for taps on port " + boundPort + "; writing trips to " + outputDir);
+            if (endpoint != null) {
+                System.out.println("Serving metrics on port " + endpoint.port() + " at /metrics");
+            }
+        } catch (SecurityException e) {
+            System.err.println("Security Error: Path access denied. " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+}
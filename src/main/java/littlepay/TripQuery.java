@@ -0,0 +1,59 @@
+package littlepay;
+
+import littlepay.model.Trip;
+import littlepay.util.EpochTime;
+import littlepay.util.TripCsvEncoder;
+import littlepay.util.TripStore;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Command-line lookup of one card's trips in a trip store written with
+ * {@code --trip-store}. Prints the matching trips as trips CSV.
+ */
+public class TripQuery {
+
+    /**
+     * @param args args[0]: Path to the trip store.
+     *             args[1]: PAN of the card.
+     *             args[2]: Start of the time range, "dd-MM-yyyy HH:mm:ss",
+     *             inclusive (optional).
+     *             args[3]: End of the time range, "dd-MM-yyyy HH:mm:ss",
+     *             exclusive (optional).
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: TripQuery <trip store> <PAN> [from dd-MM-yyyy HH:mm:ss] [to dd-MM-yyyy HH:mm:ss]");
+            return;
+        }
+        try {
+            Path storePath = FareCalculator.resolveWithinBaseDir(Paths.get(args[0]), "Trip store");
+            long from = args.length > 2 ? EpochTime.parseOrThrow(args[2]) : Long.MIN_VALUE + 1;
+            long to = args.length > 3 ? EpochTime.parseOrThrow(args[3]) : Long.MAX_VALUE;
+
+            long queryStart = System.nanoTime();
+            List<Trip> trips;
+            try (TripStore store = TripStore.open(storePath)) {
+                trips = store.query(args[1], from, to);
+            }
+            long queryMicros = (System.nanoTime() - queryStart) / 1000;
+
+            TripCsvEncoder encoder = new TripCsvEncoder();
+            StringBuilder out = new StringBuilder(TripCsvEncoder.HEADER_LINE);
+            for (Trip trip : trips) {
+                encoder.appendTrip(out, trip);
+            }
+            System.out.print(out);
+            System.err.println(trips.size() + " trips found in " + queryMicros + " us");
+        } catch (DateTimeParseException e) {
+            System.err.println("Error: Invalid time, expected dd-MM-yyyy HH:mm:ss. " + e.getMessage());
+        } catch (SecurityException e) {
+            System.err.println("Security Error: Path access denied. " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+}
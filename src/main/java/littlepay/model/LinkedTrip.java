@@ -0,0 +1,17 @@
+package littlepay.model;
+
+/**
+ * A trip together with the journey it is part of. Trips by the same card that
+ * connect within the transfer window share a journey ID; legs are numbered
+ * from 1.
+ */
+public record LinkedTrip(Trip trip, long journeyId, int leg) {
+
+    /**
+     * @return The same journey leg for a replacement trip, e.g. one with a
+     *         capped charge.
+     */
+    public LinkedTrip withTrip(Trip replacement) {
+        return new LinkedTrip(replacement, journeyId, leg);
+    }
+}
@@ -5,15 +5,33 @@ public enum Stop {
     STOP2,
     STOP3;
 
+    private static final Stop[] VALUES = values();
+
     public static Stop fromString(String text) {
+        Stop stop = lookup(text);
+        if (stop == null) {
+            throw new IllegalArgumentException("Unknown stop ID: " + text);
+        }
+        return stop;
+    }
+
+    /**
+     * Looks up a stop by name ("STOP1") or Pascal case name ("Stop1"), ignoring
+     * case and surrounding whitespace.
+     *
+     * @return The stop, or null if the text is not a known stop ID.
+     */
+    public static Stop lookup(String text) {
         if (text != null) {
-            for (Stop b : Stop.values()) {
-                if (text.trim().equalsIgnoreCase(b.name()) || text.trim().equalsIgnoreCase(b.toPascalCase())) {
+            String trimmed = text.trim();
+            for (Stop b : VALUES) {
+                // The Pascal case name differs from the enum name only in case
+                if (trimmed.equalsIgnoreCase(b.name())) {
                     return b;
                 }
             }
         }
-        throw new IllegalArgumentException("Unknown stop ID: " + text);
+        return null;
     }
 
     public String toPascalCase() {
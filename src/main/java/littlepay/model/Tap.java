@@ -1,13 +1,32 @@
 package littlepay.model;
 
+import littlepay.util.EpochTime;
+
 import java.time.LocalDateTime;
 
+/**
+ * A single tap event. The timestamp is held as UTC epoch seconds, which is all
+ * the precision the input format carries, so that parsing, sorting and trip
+ * durations need no date objects.
+ */
 public record Tap(
         String id,
-        LocalDateTime dateTimeUTC,
+        long dateTimeEpochSecond,
         TapType tapType,
         Stop stopId,
         String companyId,
         String busId,
         String pan) {
-}
\ No newline at end of file
+
+    public Tap(String id, LocalDateTime dateTimeUTC, TapType tapType, Stop stopId, String companyId, String busId,
+            String pan) {
+        this(id, EpochTime.of(dateTimeUTC), tapType, stopId, companyId, busId, pan);
+    }
+
+    /**
+     * @return The tap time in UTC, truncated to whole seconds.
+     */
+    public LocalDateTime dateTimeUTC() {
+        return EpochTime.toLocalDateTime(dateTimeEpochSecond);
+    }
+}
@@ -3,5 +3,23 @@ package littlepay.model;
 public enum TapType {
     ON,
     OFF,
-    INVALID
+    INVALID;
+
+    private static final TapType[] VALUES = values();
+
+    /**
+     * Looks up a tap type by name, ignoring case.
+     *
+     * @return The tap type, or null if the text is not a known tap type.
+     */
+    public static TapType lookup(String text) {
+        if (text != null) {
+            for (TapType type : VALUES) {
+                if (type.name().equalsIgnoreCase(text)) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
 }
\ No newline at end of file
@@ -1,11 +1,18 @@
 package littlepay.model;
 
+import littlepay.util.EpochTime;
+
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
+/**
+ * A trip produced from one or two taps. Timestamps are held as UTC epoch
+ * seconds; a trip without a finish time (INCOMPLETE) uses
+ * {@link EpochTime#NONE}.
+ */
 public record Trip(
-        LocalDateTime started,
-        LocalDateTime finished,
+        long startedEpochSecond,
+        long finishedEpochSecond,
         long durationSecs,
         Stop fromStopId,
         Stop toStopId,
@@ -14,4 +21,24 @@ public record Trip(
         String busId,
         String pan,
         TripStatus status) {
-}
\ No newline at end of file
+
+    public Trip(LocalDateTime started, LocalDateTime finished, long durationSecs, Stop fromStopId, Stop toStopId,
+            BigDecimal chargeAmount, String companyId, String busId, String pan, TripStatus status) {
+        this(EpochTime.of(started), EpochTime.of(finished), durationSecs, fromStopId, toStopId, chargeAmount,
+                companyId, busId, pan, status);
+    }
+
+    /**
+     * @return The start time in UTC, or null if the trip has none.
+     */
+    public LocalDateTime started() {
+        return EpochTime.toLocalDateTime(startedEpochSecond);
+    }
+
+    /**
+     * @return The finish time in UTC, or null if the trip has none.
+     */
+    public LocalDateTime finished() {
+        return EpochTime.toLocalDateTime(finishedEpochSecond);
+    }
+}
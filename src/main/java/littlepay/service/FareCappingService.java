@@ -0,0 +1,217 @@
+package littlepay.service;
+
+import littlepay.model.Trip;
+import littlepay.util.EpochTime;
+import littlepay.util.LongLongHashMap;
+import littlepay.util.PanKeys;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Applies daily and weekly fare caps per card (PAN) and company.
+ * Trips must be passed to {@link #apply(Trip)} in start-time order, as
+ * {@link TripProcessorService} produces them. Running totals are kept in cents
+ * in primitive hash maps, and are dropped wholesale when the trips move into a
+ * new day or week, so memory only holds cards seen in the current period.
+ * Days are UTC days and weeks start on Monday.
+ */
+public class FareCappingService {
+
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final long UNCAPPED = Long.MAX_VALUE;
+
+    private record Caps(long dailyCents, long weeklyCents) {
+    }
+
+    private final Caps defaultCaps;
+    private final Map<String, Caps> companyCaps;
+    private final Map<String, CompanyTotals> totalsByCompany = new HashMap<>();
+    private long currentDay = Long.MIN_VALUE;
+    private long currentWeek = Long.MIN_VALUE;
+    private long cappedTrips;
+
+    /**
+     * Creates a capping service from cap properties. Keys are {@code daily} and
+     * {@code weekly} for the caps that apply to every company, and
+     * {@code <CompanyId>.daily} and {@code <CompanyId>.weekly} to override them
+     * for one company. Values are dollar amounts; a missing cap means uncapped.
+     *
+     * @throws IllegalArgumentException if a key or amount is invalid.
+     */
+    public FareCappingService(Properties properties) {
+        Map<String, Long> daily = new HashMap<>();
+        Map<String, Long> weekly = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            String company = dot < 0 ? "" : key.substring(0, dot);
+            String period = key.substring(dot + 1);
+            long cents = parseCents(key, properties.getProperty(key));
+            switch (period) {
+                case "daily" -> daily.put(company, cents);
+                case "weekly" -> weekly.put(company, cents);
+                default -> throw new IllegalArgumentException("Unknown fare cap key: " + key);
+            }
+        }
+        this.defaultCaps = new Caps(daily.getOrDefault("", UNCAPPED), weekly.getOrDefault("", UNCAPPED));
+        this.companyCaps = new HashMap<>();
+        for (String company : union(daily, weekly)) {
+            if (!company.isEmpty()) {
+                companyCaps.put(company, new Caps(daily.getOrDefault(company, defaultCaps.dailyCents()),
+                        weekly.getOrDefault(company, defaultCaps.weeklyCents())));
+            }
+        }
+    }
+
+    /**
+     * Loads caps from a properties file, see {@link #FareCappingService(Properties)}.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public static FareCappingService load(Path capsFile) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(capsFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return new FareCappingService(properties);
+    }
+
+    /**
+     * Caps a trip's charge against what the card has already been charged by the
+     * same company today and this week, and adds the capped charge to those
+     * totals.
+     *
+     * @param trip Next trip in start-time order.
+     * @return The trip, or a copy with a reduced charge if a cap was reached.
+     * @throws IllegalStateException if the trip starts on an earlier day than a
+     *                               trip already applied.
+     */
+    public Trip apply(Trip trip) {
+        BigDecimal charge = trip.chargeAmount();
+        if (trip.startedEpochSecond() == EpochTime.NONE || charge == null || charge.signum() <= 0) {
+            return trip;
+        }
+        rollOver(Math.floorDiv(trip.startedEpochSecond(), SECONDS_PER_DAY));
+
+        CompanyTotals totals = totalsByCompany.computeIfAbsent(trip.companyId(), this::newCompanyTotals);
+        long fareCents = charge.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+        long dailySpent = totals.daily.get(trip.pan());
+        long weeklySpent = totals.weekly.get(trip.pan());
+        long remaining = Math.min(totals.caps.dailyCents() - dailySpent, totals.caps.weeklyCents() - weeklySpent);
+        long chargedCents = Math.max(0, Math.min(fareCents, remaining));
+        totals.daily.add(trip.pan(), chargedCents);
+        totals.weekly.add(trip.pan(), chargedCents);
+
+        if (chargedCents == fareCents) {
+            return trip;
+        }
+        cappedTrips++;
+        return new Trip(
+                trip.startedEpochSecond(),
+                trip.finishedEpochSecond(),
+                trip.durationSecs(),
+                trip.fromStopId(),
+                trip.toStopId(),
+                BigDecimal.valueOf(chargedCents, 2),
+                trip.companyId(),
+                trip.busId(),
+                trip.pan(),
+                trip.status());
+    }
+
+    /**
+     * @return Number of trips whose charge has been reduced by a cap.
+     */
+    public long cappedTrips() {
+        return cappedTrips;
+    }
+
+    private void rollOver(long day) {
+        if (day == currentDay) {
+            return;
+        }
+        if (day < currentDay) {
+            throw new IllegalStateException("Trips must be capped in start-time order");
+        }
+        // Epoch day 0 was a Thursday, so shifting by 3 makes weeks start on Monday
+        long week = Math.floorDiv(day + 3, 7);
+        for (CompanyTotals totals : totalsByCompany.values()) {
+            totals.daily.clear();
+            if (week != currentWeek) {
+                totals.weekly.clear();
+            }
+        }
+        currentDay = day;
+        currentWeek = week;
+    }
+
+    private CompanyTotals newCompanyTotals(String companyId) {
+        return new CompanyTotals(companyCaps.getOrDefault(companyId, defaultCaps));
+    }
+
+    private static long parseCents(String key, String value) {
+        try {
+            BigDecimal amount = new BigDecimal(value.trim());
+            if (amount.signum() < 0) {
+                throw new IllegalArgumentException("Fare cap must not be negative: " + key + "=" + value);
+            }
+            return amount.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid fare cap amount: " + key + "=" + value);
+        }
+    }
+
+    private static Set<String> union(Map<String, Long> a, Map<String, Long> b) {
+        Set<String> keys = new HashSet<>(a.keySet());
+        keys.addAll(b.keySet());
+        return keys;
+    }
+
+    private static final class CompanyTotals {
+        final Caps caps;
+        final PanTotals daily = new PanTotals();
+        final PanTotals weekly = new PanTotals();
+
+        CompanyTotals(Caps caps) {
+            this.caps = caps;
+        }
+    }
+
+    /**
+     * Cents charged per card. Numeric PANs are keyed directly in a primitive
+     * map; anything else falls back to an ordinary map.
+     */
+    private static final class PanTotals {
+        private final LongLongHashMap numeric = new LongLongHashMap();
+        private final Map<String, Long> other = new HashMap<>();
+
+        long get(String pan) {
+            long key = PanKeys.numericKey(pan);
+            return key != PanKeys.NO_NUMERIC_KEY ? numeric.get(key, 0) : other.getOrDefault(pan, 0L);
+        }
+
+        void add(String pan, long cents) {
+            long key = PanKeys.numericKey(pan);
+            if (key != PanKeys.NO_NUMERIC_KEY) {
+                numeric.addTo(key, cents);
+            } else {
+                other.merge(pan, cents, Long::sum);
+            }
+        }
+
+        void clear() {
+            numeric.clear();
+            other.clear();
+        }
+    }
+}
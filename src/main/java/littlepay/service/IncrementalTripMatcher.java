@@ -0,0 +1,67 @@
+package littlepay.service;
+
+import littlepay.model.Tap;
+import littlepay.model.Trip;
+
+import java.util.function.Consumer;
+
+/**
+ * Matches taps into trips one tap at a time, keeping only each card's
+ * unmatched ON tap between calls. Taps must arrive in chronological order per
+ * card, e.g. from a {@link TapReorderBuffer}. Trips are emitted as soon as
+ * they are known, so they are not in start-time order. The unmatched ON
+ * taps are held in an {@link OpenTapStore}, which may spill them off the heap.
+ * Instances are not thread-safe.
+ */
+public class IncrementalTripMatcher {
+
+    private final TripMatcher tripMatcher;
+    private final Consumer<Trip> trips;
+    private final OpenTapStore openOnTaps;
+
+    public IncrementalTripMatcher(PricingService pricingService, Consumer<Trip> trips) {
+        this(new TripMatcher(pricingService), trips);
+    }
+
+    public IncrementalTripMatcher(TripMatcher tripMatcher, Consumer<Trip> trips) {
+        this(tripMatcher, trips, new OpenTapStore());
+    }
+
+    /**
+     * @param openOnTaps Store for the unmatched ON taps, owned by the caller.
+     */
+    public IncrementalTripMatcher(TripMatcher tripMatcher, Consumer<Trip> trips, OpenTapStore openOnTaps) {
+        this.tripMatcher = tripMatcher;
+        this.trips = trips;
+        this.openOnTaps = openOnTaps;
+    }
+
+    /**
+     * Applies the next tap of its card, emitting any trip it completes.
+     */
+    public void accept(Tap tap) {
+        Tap lastOnTap = openOnTaps.get(tap.pan());
+        Tap stillOpen = tripMatcher.match(lastOnTap, tap, trips);
+        if (stillOpen == null) {
+            if (lastOnTap != null) {
+                openOnTaps.remove(tap.pan());
+            }
+        } else if (stillOpen != lastOnTap) {
+            openOnTaps.put(tap.pan(), stillOpen);
+        }
+    }
+
+    /**
+     * @return Number of cards with an unmatched ON tap.
+     */
+    public long openTaps() {
+        return openOnTaps.size();
+    }
+
+    /**
+     * Ends the stream: every unmatched ON tap becomes an incomplete trip.
+     */
+    public void flush() {
+        openOnTaps.drain(onTap -> trips.accept(tripMatcher.createIncompleteTrip(onTap)));
+    }
+}
@@ -0,0 +1,178 @@
+package littlepay.service;
+
+import littlepay.model.LinkedTrip;
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import littlepay.util.EpochTime;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Links a card's trips into multi-leg journeys and prices each journey as one.
+ * A completed trip continues the card's journey when it starts at the stop the
+ * previous leg ended at, on a different bus of the same company, within the
+ * transfer window after the previous leg finished.
+ * A journey is charged the fare from its first stop to its latest stop, but at
+ * least its dearest leg, at the time the journey started; each leg is charged
+ * whatever brings the journey's total up to that, never more than its own fare.
+ * Trips must be passed to {@link #link(Trip)} in start-time order, as
+ * {@link TripProcessorService} produces them. Only each card's open journey is
+ * kept, and journeys are dropped once their window has passed, so memory is
+ * bounded by the number of cards travelling within one window.
+ * Instances are not thread-safe.
+ */
+public class JourneyLinker {
+
+    /** Default transfer window: one hour. */
+    public static final long DEFAULT_TRANSFER_WINDOW_SECONDS = 3600;
+
+    private final PricingService pricingService;
+    private final long transferWindowSeconds;
+    // Access order, so journeys not extended for longest come first
+    private final Map<String, OpenJourney> openJourneys = new LinkedHashMap<>(1024, 0.75f, true);
+    private long nextJourneyId = 1;
+    private long linkedTrips;
+
+    /**
+     * @param pricingService        Fares for the journeys' first-to-latest stops.
+     * @param transferWindowSeconds Longest gap between one leg finishing and the
+     *                              next starting.
+     */
+    public JourneyLinker(PricingService pricingService, long transferWindowSeconds) {
+        if (transferWindowSeconds < 0) {
+            throw new IllegalArgumentException("Transfer window must not be negative: " + transferWindowSeconds);
+        }
+        this.pricingService = pricingService;
+        this.transferWindowSeconds = transferWindowSeconds;
+    }
+
+    /**
+     * Adds a trip to its card's open journey, or starts a new journey.
+     *
+     * @param trip Next trip in start-time order.
+     * @return The trip with its journey ID and leg, and a reduced charge if it
+     *         continues a journey.
+     */
+    public LinkedTrip link(Trip trip) {
+        expireBefore(trip.startedEpochSecond());
+        OpenJourney journey = trip.pan() == null ? null : openJourneys.get(trip.pan());
+        if (journey != null && journey.continuesWith(trip, transferWindowSeconds)) {
+            return journey.addLeg(trip);
+        }
+
+        LinkedTrip linked = new LinkedTrip(trip, nextJourneyId++, 1);
+        if (isLinkable(trip)) {
+            openJourneys.put(trip.pan(), new OpenJourney(linked));
+        } else if (journey != null) {
+            // An incomplete or cancelled trip ends the card's journey
+            openJourneys.remove(trip.pan());
+        }
+        return linked;
+    }
+
+    /**
+     * @return Number of trips linked as a second or later leg of a journey.
+     */
+    public long linkedTrips() {
+        return linkedTrips;
+    }
+
+    /**
+     * @return Number of journeys that later trips could still continue.
+     */
+    public int openJourneys() {
+        return openJourneys.size();
+    }
+
+    private void expireBefore(long epochSecond) {
+        if (epochSecond == EpochTime.NONE) {
+            return;
+        }
+        Iterator<OpenJourney> journeys = openJourneys.values().iterator();
+        while (journeys.hasNext()) {
+            // Legs finish in roughly the order they are extended, so the first
+            // unexpired journey ends the sweep; the rest go in later sweeps
+            if (epochSecond - journeys.next().lastFinished <= transferWindowSeconds) {
+                break;
+            }
+            journeys.remove();
+        }
+    }
+
+    private static boolean isLinkable(Trip trip) {
+        return trip.status() == TripStatus.COMPLETED
+                && trip.pan() != null
+                && trip.chargeAmount() != null
+                && trip.startedEpochSecond() != EpochTime.NONE
+                && trip.finishedEpochSecond() != EpochTime.NONE;
+    }
+
+    private final class OpenJourney {
+        private final long journeyId;
+        private final Stop origin;
+        private final long startedEpochSecond;
+        private final String companyId;
+        private int legs;
+        private long lastFinished;
+        private Stop lastStop;
+        private String lastBusId;
+        private BigDecimal charged;
+        private BigDecimal dearestLeg;
+
+        OpenJourney(LinkedTrip first) {
+            Trip trip = first.trip();
+            this.journeyId = first.journeyId();
+            this.origin = trip.fromStopId();
+            this.startedEpochSecond = trip.startedEpochSecond();
+            this.companyId = trip.companyId();
+            this.legs = 1;
+            this.charged = trip.chargeAmount();
+            this.dearestLeg = trip.chargeAmount();
+            this.lastFinished = trip.finishedEpochSecond();
+            this.lastStop = trip.toStopId();
+            this.lastBusId = trip.busId();
+        }
+
+        boolean continuesWith(Trip trip, long windowSeconds) {
+            long gap = trip.startedEpochSecond() - lastFinished;
+            return isLinkable(trip)
+                    && gap >= 0 && gap <= windowSeconds
+                    && trip.fromStopId() == lastStop
+                    && Objects.equals(trip.companyId(), companyId)
+                    && !Objects.equals(trip.busId(), lastBusId);
+        }
+
+        LinkedTrip addLeg(Trip trip) {
+            BigDecimal legFare = trip.chargeAmount();
+            dearestLeg = dearestLeg.max(legFare);
+            BigDecimal journeyFare = pricingService.getFare(origin, trip.toStopId(), startedEpochSecond)
+                    .max(dearestLeg);
+            BigDecimal charge = journeyFare.subtract(charged).max(BigDecimal.ZERO).min(legFare);
+            charged = charged.add(charge);
+            legs++;
+            lastFinished = trip.finishedEpochSecond();
+            lastStop = trip.toStopId();
+            lastBusId = trip.busId();
+            linkedTrips++;
+
+            Trip leg = charge.compareTo(legFare) == 0 ? trip
+                    : new Trip(
+                            trip.startedEpochSecond(),
+                            trip.finishedEpochSecond(),
+                            trip.durationSecs(),
+                            trip.fromStopId(),
+                            trip.toStopId(),
+                            charge,
+                            trip.companyId(),
+                            trip.busId(),
+                            trip.pan(),
+                            trip.status());
+            return new LinkedTrip(leg, journeyId, legs);
+        }
+    }
+}
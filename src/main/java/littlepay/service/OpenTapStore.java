@@ -0,0 +1,291 @@
+package littlepay.service;
+
+import littlepay.model.Tap;
+import littlepay.util.MappedTapTable;
+import littlepay.util.MemoryGovernor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Holds each card's unmatched ON tap for {@link IncrementalTripMatcher}.
+ * Recently used taps are kept on the heap, in access order, up to a byte
+ * budget; beyond it, the least recently used are spilled to a
+ * {@link MappedTapTable} off the heap and brought back when their card taps
+ * again. Most cards finish their trip within minutes, so the spilled taps are
+ * mostly ones that will become incomplete trips. Heap use is estimated from
+ * the taps' string lengths and typical object overheads. With a
+ * {@link MemoryGovernor}, the budget is halved after every collection that
+ * leaves the heap under pressure, spilling taps to match, and doubled again,
+ * up to the budget given, after each collection once the pressure is over.
+ * Instances are not thread-safe.
+ */
+public class OpenTapStore implements AutoCloseable {
+
+    /** Heap budget when spilling is enabled without one. */
+    public static final long DEFAULT_HEAP_BUDGET_BYTES = 256L << 20;
+
+    // Smallest budget pressure can cut the heap budget to
+    private static final long MIN_HEAP_BUDGET_BYTES = 64 * 1024;
+    // Map entry, Tap record, four String objects and their byte arrays, without the characters
+    private static final long ENTRY_OVERHEAD_BYTES = 48 + 40 + 4 * (24 + 16);
+
+    private final long maxHeapBudgetBytes;
+    private final Path spillDirectory;
+    private final MemoryGovernor governor;
+    private final LinkedHashMap<String, Tap> heap = new LinkedHashMap<>(1024, 0.75f, true);
+    private MappedTapTable spilled;
+    private long heapBytes;
+    private long spills;
+    private long recalls;
+    private long peakSize;
+    private long heapBudgetBytes;
+    private long budgetCuts;
+    private long seenPressureSignals;
+    private long seenCollections;
+
+    /**
+     * Creates a store that keeps every tap on the heap.
+     */
+    public OpenTapStore() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param heapBudgetBytes Estimated heap to use for taps before spilling.
+     * @param spillDirectory  Directory for the spill files, which are only
+     *                        created once the budget is exceeded.
+     */
+    public OpenTapStore(long heapBudgetBytes, Path spillDirectory) {
+        this(heapBudgetBytes, spillDirectory, null);
+    }
+
+    /**
+     * @param heapBudgetBytes Most estimated heap to use for taps before
+     *                        spilling, e.g. {@link Long#MAX_VALUE} to spill
+     *                        only under pressure.
+     * @param spillDirectory  Directory for the spill files, which are only
+     *                        created once the budget is exceeded.
+     * @param governor        Heap pressure to adapt the budget to, or null to
+     *                        keep it fixed.
+     */
+    public OpenTapStore(long heapBudgetBytes, Path spillDirectory, MemoryGovernor governor) {
+        if (heapBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Heap budget must be positive: " + heapBudgetBytes);
+        }
+        this.maxHeapBudgetBytes = heapBudgetBytes;
+        this.heapBudgetBytes = heapBudgetBytes;
+        this.spillDirectory = spillDirectory;
+        this.governor = governor;
+        if (governor != null) {
+            seenPressureSignals = governor.pressureSignals();
+            seenCollections = governor.collections();
+        }
+    }
+
+    /**
+     * @return The card's open ON tap, or null if none.
+     * @throws UncheckedIOException if a spill file cannot be grown.
+     */
+    public Tap get(String pan) {
+        Tap tap = heap.get(pan);
+        if (tap == null && spilled != null && spilled.size() > 0) {
+            tap = spilled.remove(pan);
+            if (tap != null) {
+                recalls++;
+                putOnHeap(pan, tap);
+            }
+        }
+        return tap;
+    }
+
+    /**
+     * Sets the card's open ON tap, replacing any existing one.
+     *
+     * @throws UncheckedIOException if a spill file cannot be created or grown.
+     */
+    public void put(String pan, Tap tap) {
+        putOnHeap(pan, tap);
+    }
+
+    /**
+     * Removes the card's open ON tap, if any.
+     */
+    public void remove(String pan) {
+        Tap tap = heap.remove(pan);
+        if (tap != null) {
+            heapBytes -= estimateBytes(pan, tap);
+        } else if (spilled != null) {
+            spilled.remove(pan);
+        }
+    }
+
+    /**
+     * @return Number of cards with an open ON tap.
+     */
+    public long size() {
+        return heap.size() + (spilled == null ? 0 : spilled.size());
+    }
+
+    /**
+     * Passes every open ON tap to the consumer, in no particular order, and
+     * removes them all.
+     */
+    public void drain(Consumer<Tap> consumer) {
+        heap.values().forEach(consumer);
+        heap.clear();
+        heapBytes = 0;
+        if (spilled != null) {
+            spilled.forEach(consumer);
+            spilled.clear();
+        }
+    }
+
+    /**
+     * @return Most cards that have had an open ON tap at once.
+     */
+    public long peakSize() {
+        return peakSize;
+    }
+
+    /**
+     * @return Current heap budget in bytes, lower than the one given while
+     *         the heap is under pressure.
+     */
+    public long heapBudgetBytes() {
+        return heapBudgetBytes;
+    }
+
+    /**
+     * @return Number of times heap pressure has cut the heap budget.
+     */
+    public long budgetCuts() {
+        return budgetCuts;
+    }
+
+    /**
+     * @return Number of taps on the heap.
+     */
+    public int heapEntries() {
+        return heap.size();
+    }
+
+    /**
+     * @return Estimated heap used by the taps on the heap, in bytes.
+     */
+    public long heapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * @return Number of taps spilled off the heap.
+     */
+    public long spilledEntries() {
+        return spilled == null ? 0 : spilled.size();
+    }
+
+    /**
+     * @return Bytes of spill file in use.
+     */
+    public long spilledBytes() {
+        return spilled == null ? 0 : spilled.usedBytes();
+    }
+
+    /**
+     * @return Number of times a tap has been moved off the heap.
+     */
+    public long spills() {
+        return spills;
+    }
+
+    /**
+     * @return Number of times a spilled tap has been brought back.
+     */
+    public long recalls() {
+        return recalls;
+    }
+
+    /**
+     * @return A one-line summary of where the taps are held.
+     */
+    public String describeOccupancy() {
+        return String.format("%d open ON taps (peak %d): %d on heap (~%d KB), %d spilled (%d KB);"
+                + " %d spills, %d recalls", size(), peakSize, heapEntries(), heapBytes >> 10, spilledEntries(),
+                spilledBytes() >> 10, spills, recalls);
+    }
+
+    /**
+     * Deletes the spill files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (spilled != null) {
+            spilled.close();
+            spilled = null;
+        }
+    }
+
+    private void putOnHeap(String pan, Tap tap) {
+        if (governor != null) {
+            adaptBudget();
+        }
+        Tap previous = heap.put(pan, tap);
+        if (previous != null) {
+            heapBytes -= estimateBytes(pan, previous);
+        } else if (spilled == null || spilled.size() == 0 || spilled.remove(pan) == null) {
+            peakSize = Math.max(peakSize, size()); // A new card rather than a newer tap for a spilled one
+        }
+        heapBytes += estimateBytes(pan, tap);
+        if (heapBytes > heapBudgetBytes) {
+            spillLeastRecentlyUsed();
+        }
+    }
+
+    private void adaptBudget() {
+        long pressureSignals = governor.pressureSignals();
+        if (pressureSignals != seenPressureSignals) {
+            seenPressureSignals = pressureSignals;
+            heapBudgetBytes = Math.max(MIN_HEAP_BUDGET_BYTES, Math.min(heapBudgetBytes, heapBytes) / 2);
+            budgetCuts++;
+        } else if (heapBudgetBytes < maxHeapBudgetBytes && !governor.underPressure()
+                && governor.collections() != seenCollections) {
+            seenCollections = governor.collections();
+            heapBudgetBytes = heapBudgetBytes > maxHeapBudgetBytes / 2 ? maxHeapBudgetBytes : heapBudgetBytes * 2;
+        }
+    }
+
+    /**
+     * Moves the least recently used taps off the heap until it is back under
+     * budget, leaving the one just added.
+     */
+    private void spillLeastRecentlyUsed() {
+        if (spilled == null) {
+            try {
+                spilled = new MappedTapTable(spillDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        Iterator<Map.Entry<String, Tap>> eldest = heap.entrySet().iterator();
+        while (heapBytes > heapBudgetBytes && heap.size() > 1) {
+            Map.Entry<String, Tap> entry = eldest.next();
+            spilled.put(entry.getKey(), entry.getValue());
+            heapBytes -= estimateBytes(entry.getKey(), entry.getValue());
+            eldest.remove();
+            spills++;
+        }
+    }
+
+    private static long estimateBytes(String pan, Tap tap) {
+        return ENTRY_OVERHEAD_BYTES + length(pan) + length(tap.id()) + length(tap.companyId()) + length(tap.busId());
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : text.length();
+    }
+}
@@ -0,0 +1,246 @@
+package littlepay.service;
+
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import littlepay.util.PipelineMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Matches a batch of taps into trips on several threads, giving the same
+ * trips for each card, in the same order, as matching the cards one by one.
+ * <p>
+ * Taps are grouped by PAN and the groups measured. Cards with few taps are
+ * packed together into units of roughly even size. A card with more taps
+ * than a unit holds, such as a test or staff card, is sorted and cut into
+ * time-ordered segments of that size instead, so that it does not leave one
+ * thread matching it long after the others are done. The units run in a
+ * {@link ForkJoinPool}, whose idle threads steal work from busy ones. The
+ * pool threads' CPU time and allocation are added to the stage being timed
+ * on the calling thread, if any.
+ * <p>
+ * Each segment is matched from a card with no open ON tap. Segments are
+ * only cut just before an ON or OFF tap, never an invalid one, which would
+ * pass an open ON tap through unchanged. So how a segment would have
+ * started with an open ON tap only differs at its first tap: an ON tap
+ * would have made the open tap incomplete, and an OFF tap would have
+ * completed it. Segments are stitched together in order by applying that
+ * first tap to the previous segment's open ON tap with
+ * {@link TripMatcher#match(Tap, Tap, java.util.function.Consumer)}.
+ */
+public class ParallelTripMatcher {
+
+    /**
+     * Fewest taps in a unit of work, below which scheduling costs more than
+     * it saves.
+     */
+    static final int MIN_UNIT_TAPS = 4096;
+
+    /**
+     * Units per thread, so that threads that finish early have units left to
+     * steal.
+     */
+    private static final int UNITS_PER_THREAD = 8;
+
+    private static final Comparator<Tap> BY_TIME = Comparator.comparingLong(Tap::dateTimeEpochSecond);
+
+    private final TripMatcher tripMatcher;
+    private final int threads;
+    private final int minUnitTaps;
+
+    /**
+     * @param threads Number of threads to match on.
+     */
+    public ParallelTripMatcher(TripMatcher tripMatcher, int threads) {
+        this(tripMatcher, threads, MIN_UNIT_TAPS);
+    }
+
+    ParallelTripMatcher(TripMatcher tripMatcher, int threads, int minUnitTaps) {
+        this.tripMatcher = tripMatcher;
+        this.threads = threads;
+        this.minUnitTaps = minUnitTaps;
+    }
+
+    /**
+     * Matches taps into trips, each card's in chronological order, with taps
+     * at the same time in input order.
+     *
+     * @param taps All taps, in any order.
+     * @return The trips, each card's in the order they were completed; cards
+     *         in no particular order.
+     */
+    public List<Trip> match(List<Tap> taps) {
+        Map<String, List<Tap>> tapsByPan = new HashMap<>();
+        for (Tap tap : taps) {
+            tapsByPan.computeIfAbsent(tap.pan(), pan -> new ArrayList<>()).add(tap);
+        }
+        int unitTaps = Math.max(minUnitTaps, taps.size() / (threads * UNITS_PER_THREAD) + 1);
+
+        List<Unit> units = new ArrayList<>();
+        List<List<Segment>> hotCards = new ArrayList<>();
+        Batch batch = new Batch();
+        for (List<Tap> panTaps : tapsByPan.values()) {
+            if (panTaps.size() <= unitTaps) {
+                batch.cards.add(panTaps);
+                batch.taps += panTaps.size();
+                if (batch.taps >= unitTaps) {
+                    units.add(batch);
+                    batch = new Batch();
+                }
+                continue;
+            }
+            // Stable, so taps at the same time keep their input order
+            Tap[] sorted = panTaps.toArray(new Tap[0]);
+            Arrays.parallelSort(sorted, BY_TIME);
+            List<Segment> segments = new ArrayList<>();
+            for (int start = 0, end; start < sorted.length; start = end) {
+                end = Math.min(sorted.length, start + unitTaps);
+                while (end < sorted.length && sorted[end].tapType() == TapType.INVALID) {
+                    end++;
+                }
+                Segment segment = new Segment(Arrays.asList(sorted).subList(start, end));
+                segments.add(segment);
+                units.add(segment);
+            }
+            hotCards.add(segments);
+        }
+        if (batch.taps > 0) {
+            units.add(batch);
+        }
+
+        Unit[] work = units.toArray(new Unit[0]);
+        if (threads > 1 && work.length > 1) {
+            ForkJoinPool pool = new ForkJoinPool(Math.min(threads, work.length));
+            try {
+                pool.invoke(new UnitRange(work, 0, work.length, PipelineMetrics.StageTimer.current()));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (Unit unit : work) {
+                unit.run();
+            }
+        }
+
+        List<Trip> trips = new ArrayList<>(taps.size() / 2 + 16);
+        for (Unit unit : work) {
+            if (unit instanceof Batch done) {
+                trips.addAll(done.trips);
+            }
+        }
+        for (List<Segment> segments : hotCards) {
+            stitch(segments, trips);
+        }
+        return trips;
+    }
+
+    /**
+     * Joins a card's segments in order, adding the trips that cross each
+     * boundary between the segments' own trips.
+     */
+    private void stitch(List<Segment> segments, List<Trip> trips) {
+        Tap openOnTap = null;
+        for (Segment segment : segments) {
+            if (openOnTap != null) {
+                tripMatcher.match(openOnTap, segment.taps.get(0), trips::add);
+            }
+            trips.addAll(segment.trips);
+            openOnTap = segment.openOnTap;
+        }
+        if (openOnTap != null) {
+            trips.add(tripMatcher.createIncompleteTrip(openOnTap));
+        }
+    }
+
+    private abstract static class Unit {
+        final List<Trip> trips = new ArrayList<>();
+
+        abstract void run();
+    }
+
+    /**
+     * Whole cards, each matched from its first tap to its last.
+     */
+    private final class Batch extends Unit {
+        final List<List<Tap>> cards = new ArrayList<>();
+        int taps;
+
+        @Override
+        void run() {
+            for (List<Tap> panTaps : cards) {
+                panTaps.sort(BY_TIME);
+                Tap lastOnTap = null;
+                for (Tap tap : panTaps) {
+                    lastOnTap = tripMatcher.match(lastOnTap, tap, trips::add);
+                }
+                if (lastOnTap != null) {
+                    trips.add(tripMatcher.createIncompleteTrip(lastOnTap));
+                }
+            }
+        }
+    }
+
+    /**
+     * Consecutive taps of one card, matched from no open ON tap and leaving
+     * the last one open for {@link #stitch(List, List)}.
+     */
+    private final class Segment extends Unit {
+        final List<Tap> taps;
+        Tap openOnTap;
+
+        Segment(List<Tap> taps) {
+            this.taps = taps;
+        }
+
+        @Override
+        void run() {
+            Tap lastOnTap = null;
+            for (Tap tap : taps) {
+                lastOnTap = tripMatcher.match(lastOnTap, tap, trips::add);
+            }
+            openOnTap = lastOnTap;
+        }
+    }
+
+    /**
+     * Runs a range of units, halving it so that idle threads can steal the
+     * other half.
+     */
+    private static final class UnitRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Unit[] units;
+        private final int from;
+        private final int to;
+        private final transient PipelineMetrics.StageTimer stage;
+
+        UnitRange(Unit[] units, int from, int to, PipelineMetrics.StageTimer stage) {
+            this.units = units;
+            this.from = from;
+            this.to = to;
+            this.stage = stage;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                if (stage != null) {
+                    stage.runOnWorker(units[from]::run);
+                } else {
+                    units[from].run();
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new UnitRange(units, from, middle, stage), new UnitRange(units, middle, to, stage));
+        }
+    }
+}
@@ -1,17 +1,43 @@
 package littlepay.service;
 
 import littlepay.model.Stop;
+import littlepay.util.EpochTime;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 
+/**
+ * Prices trips from the stop-pair fares in {@code config/fares.properties},
+ * optionally varied by time bands such as peak hours or weekends (see
+ * {@link #PricingService(Properties)}).
+ * Fares are compiled when the service is created into a table indexed by time
+ * band, from stop and to stop, and the band of every minute of the week is
+ * precomputed, so pricing a trip is a pair of array lookups.
+ */
 public class PricingService {
 
+    private static final String BASE_BAND = "base";
+    private static final int STOP_COUNT = Stop.values().length;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final long SECONDS_PER_WEEK = 7 * 86_400L;
+    // Epoch day 0 was a Thursday, so shifting by 3 days makes weeks start on Monday
+    private static final long MONDAY_SHIFT_SECONDS = 3 * 86_400L;
+
     private record StopPair(Stop stop1, Stop stop2) {
         @Override
         public boolean equals(Object o) {
@@ -33,8 +59,148 @@ public class PricingService {
     private final Map<StopPair, BigDecimal> fares = new HashMap<>();
     private static final String FARES_CONFIG_FILE = "config/fares.properties";
 
+    /** Band of each minute of the week from Monday 00:00, or null with no bands. */
+    private final byte[] bandByMinute;
+    private final long offsetSeconds;
+    /** Fares indexed by (band * STOP_COUNT + from) * STOP_COUNT + to; null if undefined. */
+    private final BigDecimal[] fareTable;
+    /** Maximum fares indexed by band * STOP_COUNT + from. */
+    private final BigDecimal[] maxFareTable;
+
     public PricingService() {
-        loadFaresFromConfig();
+        this(new Properties());
+    }
+
+    /**
+     * Creates a pricing service whose fares vary by time band. Bands are
+     * declared as {@code band.<name>=<days> <HH:mm>-<HH:mm>[, ...]}, where days
+     * are a day such as {@code SAT} or a range such as {@code MON-FRI}, e.g.
+     * {@code band.peak=MON-FRI 07:00-09:30, MON-FRI 16:00-18:30}. A window
+     * ending before it starts runs past midnight. Fares in a band are set with
+     * {@code <name>.<STOP>_<STOP>=<amount>}; pairs without one, and times
+     * outside every band, use the base fares. {@code offset=+10:00} sets the
+     * UTC offset the windows are in (default UTC).
+     *
+     * @throws IllegalArgumentException if a key or value is invalid, or two
+     *                                  bands overlap.
+     */
+    public PricingService(Properties rules) {
+        this(null, rules);
+    }
+
+    /**
+     * Creates a pricing service from given base fares instead of
+     * {@code config/fares.properties}, e.g. to compare old and new fares.
+     *
+     * @param baseFares Fares in the format of {@code config/fares.properties}
+     *                  ({@code STOP1_STOP2=3.25}), or null to load that file.
+     * @param rules     Time bands, see {@link #PricingService(Properties)}.
+     * @throws IllegalArgumentException if a key or value is invalid, or two
+     *                                  bands overlap.
+     */
+    public PricingService(Properties baseFares, Properties rules) {
+        if (baseFares == null) {
+            loadFaresFromConfig();
+        } else {
+            for (String key : baseFares.stringPropertyNames()) {
+                Stop[] pair = parseStopPair(key);
+                if (pair == null) {
+                    throw new IllegalArgumentException("Unknown fare key: " + key);
+                }
+                fares.put(new StopPair(pair[0], pair[1]), parseAmount(key, baseFares.getProperty(key)));
+            }
+        }
+
+        List<String> bands = new ArrayList<>(List.of(BASE_BAND));
+        for (String key : rules.stringPropertyNames()) {
+            if (key.startsWith("band.")) {
+                String band = key.substring(5);
+                if (band.isEmpty() || band.contains(".") || band.equals(BASE_BAND)) {
+                    throw new IllegalArgumentException("Invalid time band name: " + key);
+                }
+                bands.add(band);
+            }
+        }
+        if (bands.size() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many time bands: " + (bands.size() - 1));
+        }
+        bands.subList(1, bands.size()).sort(null); // Ids in name order, so overlap errors are repeatable
+
+        this.bandByMinute = bands.size() > 1 ? new byte[MINUTES_PER_WEEK] : null;
+        for (int band = 1; band < bands.size(); band++) {
+            String key = "band." + bands.get(band);
+            for (String window : rules.getProperty(key).split(",")) {
+                markWindow(key, window.trim(), band, bands);
+            }
+        }
+        this.offsetSeconds = parseOffset(rules.getProperty("offset", "Z"));
+
+        Stop[] stops = Stop.values();
+        this.fareTable = new BigDecimal[bands.size() * STOP_COUNT * STOP_COUNT];
+        for (String key : rules.stringPropertyNames()) {
+            if (key.startsWith("band.") || key.equals("offset")) {
+                continue;
+            }
+            int dot = key.indexOf('.');
+            int band = dot < 0 ? -1 : bands.indexOf(key.substring(0, dot));
+            Stop[] pair = dot < 0 ? null : parseStopPair(key.substring(dot + 1));
+            if (band < 1 || pair == null) {
+                throw new IllegalArgumentException("Unknown fare rule key: " + key);
+            }
+            BigDecimal amount = parseAmount(key, rules.getProperty(key));
+            fareTable[tableIndex(band, pair[0], pair[1])] = amount;
+            fareTable[tableIndex(band, pair[1], pair[0])] = amount;
+        }
+
+        this.maxFareTable = new BigDecimal[bands.size() * STOP_COUNT];
+        for (int band = 0; band < bands.size(); band++) {
+            for (Stop from : stops) {
+                BigDecimal maxFare = BigDecimal.ZERO;
+                for (Stop to : stops) {
+                    int index = tableIndex(band, from, to);
+                    if (from == to) {
+                        fareTable[index] = BigDecimal.ZERO;
+                    } else if (fareTable[index] == null) {
+                        fareTable[index] = fares.get(new StopPair(from, to));
+                    }
+                    if (fareTable[index] != null && fareTable[index].compareTo(maxFare) > 0) {
+                        maxFare = fareTable[index];
+                    }
+                }
+                maxFareTable[band * STOP_COUNT + from.ordinal()] = maxFare;
+            }
+        }
+    }
+
+    /**
+     * Loads fare rules from a properties file, see
+     * {@link #PricingService(Properties)}.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public static PricingService load(Path rulesFile) throws IOException {
+        return new PricingService(loadProperties(rulesFile));
+    }
+
+    /**
+     * Loads base fares and fare rules from properties files, see
+     * {@link #PricingService(Properties, Properties)}.
+     *
+     * @param faresFile Base fares, or null for {@code config/fares.properties}.
+     * @param rulesFile Fare rules, or null for none.
+     * @throws IOException if a file cannot be read.
+     */
+    public static PricingService load(Path faresFile, Path rulesFile) throws IOException {
+        return new PricingService(faresFile != null ? loadProperties(faresFile) : null,
+                rulesFile != null ? loadProperties(rulesFile) : new Properties());
+    }
+
+    private static Properties loadProperties(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
     }
 
     private void loadFaresFromConfig() {
@@ -78,22 +244,150 @@ public class PricingService {
         fares.put(new StopPair(s1, s2), new BigDecimal(amount));
     }
 
+    /**
+     * @return The base fare between two stops, ignoring time bands.
+     */
     public BigDecimal getFare(Stop fromStop, Stop toStop) {
+        return getFare(fromStop, toStop, EpochTime.NONE);
+    }
+
+    /**
+     * @param epochSecond Start of the trip, which picks the time band, or
+     *                    {@link EpochTime#NONE} for the base fare.
+     * @return The fare between two stops at that time.
+     * @throws IllegalArgumentException if no fare is defined for the route.
+     */
+    public BigDecimal getFare(Stop fromStop, Stop toStop, long epochSecond) {
         if (fromStop == toStop) {
             return BigDecimal.ZERO;
         }
-        BigDecimal fare = fares.get(new StopPair(fromStop, toStop));
+        BigDecimal fare = fromStop == null || toStop == null ? null
+                : fareTable[tableIndex(bandAt(epochSecond), fromStop, toStop)];
         if (fare == null) {
             throw new IllegalArgumentException("No fare defined for route between " + fromStop + " and " + toStop);
         }
         return fare;
     }
 
+    /**
+     * @return The highest base fare from a stop, ignoring time bands.
+     */
     public BigDecimal getMaxFare(Stop fromStop) {
-        return fares.entrySet().stream()
-                .filter(entry -> entry.getKey().stop1() == fromStop || entry.getKey().stop2() == fromStop)
-                .map(Map.Entry::getValue)
-                .max(BigDecimal::compareTo)
-                .orElse(BigDecimal.ZERO);
+        return getMaxFare(fromStop, EpochTime.NONE);
+    }
+
+    /**
+     * @return The highest fare from a stop at a time, or zero if there is none.
+     */
+    public BigDecimal getMaxFare(Stop fromStop, long epochSecond) {
+        return fromStop == null ? BigDecimal.ZERO
+                : maxFareTable[bandAt(epochSecond) * STOP_COUNT + fromStop.ordinal()];
+    }
+
+    private static int tableIndex(int band, Stop fromStop, Stop toStop) {
+        return (band * STOP_COUNT + fromStop.ordinal()) * STOP_COUNT + toStop.ordinal();
+    }
+
+    private int bandAt(long epochSecond) {
+        if (bandByMinute == null || epochSecond == EpochTime.NONE) {
+            return 0;
+        }
+        long secondOfWeek = Math.floorMod(epochSecond + offsetSeconds + MONDAY_SHIFT_SECONDS, SECONDS_PER_WEEK);
+        return bandByMinute[(int) (secondOfWeek / 60)];
+    }
+
+    /**
+     * Assigns the minutes of one window, e.g. "MON-FRI 07:00-09:30", to a band.
+     */
+    private void markWindow(String key, String window, int band, List<String> bands) {
+        String[] parts = window.split("\\s+");
+        String[] days = parts[0].split("-");
+        String[] times = parts.length == 2 ? parts[1].split("-") : new String[0];
+        if (days.length > 2 || times.length != 2) {
+            throw new IllegalArgumentException("Invalid time band window in " + key + ": " + window);
+        }
+        int firstDay = parseDay(key, days[0]);
+        int lastDay = parseDay(key, days[days.length - 1]);
+        int start = parseMinuteOfDay(key, times[0]);
+        int end = parseMinuteOfDay(key, times[1]);
+        if (start == end || start == MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Empty time band window in " + key + ": " + window);
+        }
+        int length = end > start ? end - start : end + MINUTES_PER_DAY - start;
+        for (int day = firstDay; ; day = (day + 1) % 7) {
+            for (int i = 0; i < length; i++) {
+                int minute = (day * MINUTES_PER_DAY + start + i) % MINUTES_PER_WEEK;
+                if (bandByMinute[minute] != 0 && bandByMinute[minute] != band) {
+                    throw new IllegalArgumentException("Time bands " + bands.get(bandByMinute[minute]) + " and "
+                            + bands.get(band) + " overlap");
+                }
+                bandByMinute[minute] = (byte) band;
+            }
+            if (day == lastDay) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return Day of the week from 0 for Monday, given at least its first three
+     *         letters.
+     */
+    private static int parseDay(String key, String text) {
+        String upper = text.toUpperCase();
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (upper.length() >= 3 && day.name().startsWith(upper)) {
+                return day.ordinal();
+            }
+        }
+        throw new IllegalArgumentException("Invalid day in " + key + ": " + text);
+    }
+
+    private static int parseMinuteOfDay(String key, String text) {
+        String[] parts = text.split(":");
+        try {
+            int hour = Integer.parseInt(parts[0]);
+            int minute = parts.length == 2 ? Integer.parseInt(parts[1]) : -1;
+            int minuteOfDay = hour * 60 + minute;
+            if (parts.length == 2 && hour >= 0 && minute >= 0 && minute < 60 && minuteOfDay <= MINUTES_PER_DAY) {
+                return minuteOfDay;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid time in " + key + ": " + text);
+    }
+
+    private static long parseOffset(String text) {
+        try {
+            return ZoneOffset.of(text.trim()).getTotalSeconds();
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid UTC offset: offset=" + text);
+        }
+    }
+
+    /**
+     * @return The two stops of a "STOP1_STOP2" key, or null if it is not one.
+     */
+    private static Stop[] parseStopPair(String text) {
+        String[] stops = text.split("_");
+        if (stops.length != 2) {
+            return null;
+        }
+        Stop stop1 = Stop.lookup(stops[0]);
+        Stop stop2 = Stop.lookup(stops[1]);
+        return stop1 == null || stop2 == null ? null : new Stop[] { stop1, stop2 };
+    }
+
+    private static BigDecimal parseAmount(String key, String value) {
+        try {
+            BigDecimal amount = new BigDecimal(value.trim());
+            if (amount.signum() < 0) {
+                throw new IllegalArgumentException("Fare must not be negative: " + key + "=" + value);
+            }
+            return amount;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid fare amount: " + key + "=" + value);
+        }
     }
 }
@@ -0,0 +1,111 @@
+package littlepay.service;
+
+import littlepay.model.Tap;
+
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Restores chronological order to a feed of taps that arrive slightly out of
+ * order. Taps are held until the watermark, the latest tap time seen minus the
+ * allowed lateness, passes them, and are then released in timestamp order
+ * (taps with equal timestamps in arrival order), so each card's taps reach the
+ * matcher in order. A tap that arrives behind the watermark can no longer be
+ * put in order; it is counted and sent to the late-tap output instead.
+ * Instances are not thread-safe.
+ */
+public class TapReorderBuffer {
+
+    private record Pending(Tap tap, long sequence) implements Comparable<Pending> {
+        @Override
+        public int compareTo(Pending other) {
+            int byTime = Long.compare(tap.dateTimeEpochSecond(), other.tap.dateTimeEpochSecond());
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final long latenessSeconds;
+    private final Consumer<Tap> output;
+    private final Consumer<Tap> lateOutput;
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    private long watermark = Long.MIN_VALUE;
+    private long sequence;
+    private long lateTaps;
+
+    /**
+     * @param latenessSeconds How far behind the latest tap seen a tap may
+     *                        arrive and still be released in order.
+     * @param output          Receives taps in timestamp order.
+     * @param lateOutput      Receives taps that arrived behind the watermark.
+     */
+    public TapReorderBuffer(long latenessSeconds, Consumer<Tap> output, Consumer<Tap> lateOutput) {
+        if (latenessSeconds < 0) {
+            throw new IllegalArgumentException("Lateness must not be negative: " + latenessSeconds);
+        }
+        this.latenessSeconds = latenessSeconds;
+        this.output = output;
+        this.lateOutput = lateOutput;
+    }
+
+    /**
+     * Adds a tap and releases every buffered tap the watermark has passed.
+     */
+    public void add(Tap tap) {
+        long time = tap.dateTimeEpochSecond();
+        if (time < watermark) {
+            lateTaps++;
+            lateOutput.accept(tap);
+            return;
+        }
+        pending.add(new Pending(tap, sequence++));
+        advanceWatermark(time - latenessSeconds);
+    }
+
+    /**
+     * Moves the watermark forward without a new tap, e.g. from the wall clock
+     * when a live feed goes quiet, and releases the taps it passes.
+     *
+     * @param epochSecond New watermark; ignored if behind the current one.
+     */
+    public void advanceWatermark(long epochSecond) {
+        if (epochSecond <= watermark) {
+            return;
+        }
+        watermark = epochSecond;
+        while (!pending.isEmpty() && pending.peek().tap().dateTimeEpochSecond() <= watermark) {
+            output.accept(pending.poll().tap());
+        }
+    }
+
+    /**
+     * Ends the stream: releases every buffered tap in order.
+     */
+    public void flush() {
+        while (!pending.isEmpty()) {
+            Pending next = pending.poll();
+            watermark = Math.max(watermark, next.tap().dateTimeEpochSecond());
+            output.accept(next.tap());
+        }
+    }
+
+    /**
+     * @return The current watermark in epoch seconds; taps before it are late.
+     */
+    public long watermark() {
+        return watermark;
+    }
+
+    /**
+     * @return Number of taps held back waiting for the watermark.
+     */
+    public int buffered() {
+        return pending.size();
+    }
+
+    /**
+     * @return Number of taps that arrived too late.
+     */
+    public long lateTaps() {
+        return lateTaps;
+    }
+}
@@ -0,0 +1,121 @@
+package littlepay.service;
+
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import littlepay.util.EpochTime;
+
+import java.math.BigDecimal;
+import java.util.function.Consumer;
+
+/**
+ * Turns one card's taps, fed in chronological order, into trips.
+ * The matcher itself holds no state: the caller keeps the card's open ON tap
+ * and passes it back in with each tap, so the same rules serve batch matching
+ * in {@link TripProcessorService} and live matching in
+ * {@link IncrementalTripMatcher}.
+ */
+public class TripMatcher {
+
+    private final PricingService pricingService;
+
+    public TripMatcher(PricingService pricingService) {
+        this.pricingService = pricingService;
+    }
+
+    /**
+     * Applies the next tap of a card.
+     *
+     * @param lastOnTap  The card's unmatched ON tap, or null if none.
+     * @param currentTap The card's next tap in chronological order.
+     * @param trips      Receives any trip the tap completes.
+     * @return The card's unmatched ON tap after this tap, or null if none.
+     */
+    public Tap match(Tap lastOnTap, Tap currentTap, Consumer<Trip> trips) {
+        if (currentTap.tapType() == TapType.ON) {
+            // If there was a previous ON tap that wasn't matched, it's incomplete.
+            if (lastOnTap != null) {
+                trips.accept(createIncompleteTrip(lastOnTap));
+            }
+            return currentTap;
+        }
+        if (currentTap.tapType() == TapType.OFF) {
+            if (lastOnTap != null) {
+                // We have a potential pair
+                if (lastOnTap.stopId().equals(currentTap.stopId())) {
+                    // Cancelled Trip
+                    trips.accept(createCancelledTrip(lastOnTap, currentTap));
+                } else {
+                    // Completed Trip
+                    trips.accept(createCompletedTrip(lastOnTap, currentTap));
+                }
+                return null; // This ON tap is now matched
+            }
+            // OFF tap without a preceding ON tap for this PAN.
+            // As per plan: "OFF tap with no preceding ON tap (should be ignored or
+            // logged)".
+            // Currently ignoring. Logging can be added.
+        }
+        return lastOnTap;
+    }
+
+    public Trip createCompletedTrip(Tap onTap, Tap offTap) {
+        long started = onTap.dateTimeEpochSecond();
+        long finished = offTap.dateTimeEpochSecond();
+        long durationSeconds = finished - started;
+        BigDecimal chargeAmount = pricingService.getFare(onTap.stopId(), offTap.stopId(), started);
+
+        return new Trip(
+                started,
+                finished,
+                durationSeconds,
+                onTap.stopId(),
+                offTap.stopId(),
+                chargeAmount,
+                onTap.companyId(),
+                onTap.busId(),
+                onTap.pan(),
+                TripStatus.COMPLETED);
+    }
+
+    public Trip createCancelledTrip(Tap onTap, Tap offTap) {
+        long started = onTap.dateTimeEpochSecond();
+        long finished = offTap.dateTimeEpochSecond();
+        long durationSeconds = finished - started;
+
+        return new Trip(
+                started,
+                finished,
+                durationSeconds,
+                onTap.stopId(),
+                offTap.stopId(),
+                BigDecimal.ZERO,
+                onTap.companyId(),
+                onTap.busId(),
+                onTap.pan(),
+                TripStatus.CANCELLED);
+    }
+
+    public Trip createIncompleteTrip(Tap onTap) {
+        // Assumptions for Incomplete Trips from plan:
+        // - ChargeAmount = maximum fare from ON tap's StopId
+        // - ToStopId can be set to the FromStopId (or null - choosing null)
+        // - Finished timestamp might be the same as Started (or null - choosing null)
+        // - DurationSecs might be 0
+
+        BigDecimal chargeAmount = pricingService.getMaxFare(onTap.stopId(), onTap.dateTimeEpochSecond());
+
+        return new Trip(
+                onTap.dateTimeEpochSecond(),
+                EpochTime.NONE, // No finished timestamp for INCOMPLETE
+                0,
+                onTap.stopId(),
+                null, // ToStopId set to null for INCOMPLETE
+                chargeAmount,
+                onTap.companyId(),
+                onTap.busId(),
+                onTap.pan(),
+                TripStatus.INCOMPLETE);
+    }
+}
@@ -1,149 +1,144 @@
 package littlepay.service;
 
+import littlepay.model.LinkedTrip;
 import littlepay.model.Tap;
-import littlepay.model.TapType;
 import littlepay.model.Trip;
-import littlepay.model.TripStatus;
+import littlepay.util.TripOrder;
 
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class TripProcessorService {
 
-    private final PricingService pricingService;
+    private final TripMatcher tripMatcher;
+    private final FareCappingService fareCappingService;
+    private final JourneyLinker journeyLinker;
+    private final Consumer<LinkedTrip> journeyLegs;
+    private final int threads;
 
     public TripProcessorService(PricingService pricingService) {
-        this.pricingService = pricingService;
+        this(pricingService, null);
     }
 
     /**
-     * Groups taps by PAN and sorts them chronologically.
-     * 
-     * @param taps List of all taps.
-     * @return Map with PAN as key and a chronologically sorted list of taps as
-     *         value.
+     * @param pricingService     Per-trip fares.
+     * @param fareCappingService Daily and weekly caps to apply to the generated
+     *                           trips, or null for none.
      */
-    private Map<String, List<Tap>> groupAndSortTapsByPan(List<Tap> taps) {
-        if (taps == null) {
-            return new HashMap<>();
-        }
-        return taps.stream()
-                .sorted(Comparator.comparing(Tap::dateTimeUTC))
-                .collect(Collectors.groupingBy(Tap::pan));
+    public TripProcessorService(PricingService pricingService, FareCappingService fareCappingService) {
+        this(pricingService, fareCappingService, null, null);
+    }
+
+    /**
+     * @param pricingService     Per-trip fares.
+     * @param fareCappingService Daily and weekly caps to apply to the generated
+     *                           trips, or null for none.
+     * @param journeyLinker      Links trips into journeys priced as one before
+     *                           caps are applied, or null for none.
+     * @param journeyLegs        Receives every trip with its journey, with its
+     *                           final charge, in start-time order; may be null.
+     */
+    public TripProcessorService(PricingService pricingService, FareCappingService fareCappingService,
+            JourneyLinker journeyLinker, Consumer<LinkedTrip> journeyLegs) {
+        this(pricingService, fareCappingService, journeyLinker, journeyLegs, 1);
+    }
+
+    /**
+     * @param pricingService     Per-trip fares.
+     * @param fareCappingService Daily and weekly caps to apply to the generated
+     *                           trips, or null for none.
+     * @param journeyLinker      Links trips into journeys priced as one before
+     *                           caps are applied, or null for none.
+     * @param journeyLegs        Receives every trip with its journey, with its
+     *                           final charge, in start-time order; may be null.
+     * @param threads            Number of threads {@link #generateTrips(List)}
+     *                           matches taps on.
+     */
+    public TripProcessorService(PricingService pricingService, FareCappingService fareCappingService,
+            JourneyLinker journeyLinker, Consumer<LinkedTrip> journeyLegs, int threads) {
+        this.tripMatcher = new TripMatcher(pricingService);
+        this.fareCappingService = fareCappingService;
+        this.journeyLinker = journeyLinker;
+        this.journeyLegs = journeyLegs;
+        this.threads = threads;
     }
 
     /**
-     * Processes a list of taps to generate a list of trips.
+     * Processes a list of taps to generate a list of trips. Each card's taps
+     * are matched in chronological order; cards, and long runs of one card's
+     * taps, are matched in parallel by a {@link ParallelTripMatcher}.
      * 
      * @param allTaps List of all tap events.
      * @return List of generated trips.
      */
     public List<Trip> generateTrips(List<Tap> allTaps) {
-        Map<String, List<Tap>> tapsByPan = groupAndSortTapsByPan(allTaps);
-        List<Trip> processedTrips = new ArrayList<>();
+        List<Trip> processedTrips = new ParallelTripMatcher(tripMatcher, threads)
+                .match(allTaps == null ? List.of() : allTaps);
+        return sortAndCap(processedTrips);
+    }
 
-        for (List<Tap> panTaps : tapsByPan.values()) {
-            Tap lastOnTap = null;
-            for (Tap currentTap : panTaps) {
-                if (currentTap.tapType() == TapType.ON) {
-                    // If there was a previous ON tap that wasn't matched, it's incomplete.
-                    if (lastOnTap != null) {
-                        processedTrips.add(createIncompleteTrip(lastOnTap));
-                    }
-                    lastOnTap = currentTap;
-                } else if (currentTap.tapType() == TapType.OFF) {
-                    if (lastOnTap != null) {
-                        // We have a potential pair
-                        if (lastOnTap.stopId().equals(currentTap.stopId())) {
-                            // Cancelled Trip
-                            processedTrips.add(createCancelledTrip(lastOnTap, currentTap));
-                        } else {
-                            // Completed Trip
-                            processedTrips.add(createCompletedTrip(lastOnTap, currentTap));
-                        }
-                        lastOnTap = null; // This ON tap is now matched
-                    } else {
-                        // OFF tap without a preceding ON tap for this PAN.
-                        // As per plan: "OFF tap with no preceding ON tap (should be ignored or
-                        // logged)".
-                        // Currently ignoring. Logging can be added.
-                    }
-                }
-            }
-            // After iterating through all taps for a PAN, if there's an unmatched ON tap,
-            // it's incomplete.
-            if (lastOnTap != null) {
-                processedTrips.add(createIncompleteTrip(lastOnTap));
+    /**
+     * Generates trips by feeding taps in arrival order through a
+     * {@link TapReorderBuffer} into an {@link IncrementalTripMatcher}, as a live
+     * feed would be matched, instead of sorting all taps first. Gives the same
+     * trips as {@link #generateTrips(List)} as long as no tap arrives more than
+     * {@code latenessSeconds} behind the latest tap seen before it.
+     *
+     * @param allTaps         List of all tap events, in arrival order.
+     * @param latenessSeconds How far out of order taps may arrive.
+     * @param lateTaps        Receives taps that arrived too late to be matched.
+     * @return List of generated trips.
+     */
+    public List<Trip> generateTripsIncrementally(List<Tap> allTaps, long latenessSeconds, Consumer<Tap> lateTaps) {
+        return generateTripsIncrementally(allTaps, latenessSeconds, lateTaps, new OpenTapStore());
+    }
+
+    /**
+     * As {@link #generateTripsIncrementally(List, long, Consumer)}, holding the
+     * unmatched ON taps in the given store.
+     *
+     * @param openOnTaps Store for the unmatched ON taps, owned by the caller.
+     */
+    public List<Trip> generateTripsIncrementally(List<Tap> allTaps, long latenessSeconds, Consumer<Tap> lateTaps,
+                                                 OpenTapStore openOnTaps) {
+        List<Trip> processedTrips = new ArrayList<>();
+        IncrementalTripMatcher matcher = new IncrementalTripMatcher(tripMatcher, processedTrips::add, openOnTaps);
+        TapReorderBuffer buffer = new TapReorderBuffer(latenessSeconds, matcher::accept, lateTaps);
+        if (allTaps != null) {
+            for (Tap tap : allTaps) {
+                buffer.add(tap);
             }
         }
+        buffer.flush();
+        matcher.flush();
+
+        return sortAndCap(processedTrips);
+    }
 
+    private List<Trip> sortAndCap(List<Trip> processedTrips) {
         // Sort the trips before returning
         // Primary sort by start time, secondary sort by PAN for stability
-        processedTrips.sort(Comparator.comparing(Trip::started)
-                .thenComparing(Trip::pan));
+        TripOrder.sort(processedTrips);
 
-        return processedTrips;
-    }
-
-    private Trip createCompletedTrip(Tap onTap, Tap offTap) {
-        LocalDateTime started = onTap.dateTimeUTC();
-        LocalDateTime finished = offTap.dateTimeUTC();
-        long durationSeconds = ChronoUnit.SECONDS.between(started, finished);
-        BigDecimal chargeAmount = pricingService.getFare(onTap.stopId(), offTap.stopId());
-
-        return new Trip(
-                started,
-                finished,
-                durationSeconds,
-                onTap.stopId(),
-                offTap.stopId(),
-                chargeAmount,
-                onTap.companyId(),
-                onTap.busId(),
-                onTap.pan(),
-                TripStatus.COMPLETED);
-    }
+        // Journeys and caps depend on earlier trips, so they are applied in start-time order
+        if (journeyLinker != null) {
+            processedTrips.replaceAll(this::linkAndCap);
+        } else if (fareCappingService != null) {
+            processedTrips.replaceAll(fareCappingService::apply);
+        }
 
-    private Trip createCancelledTrip(Tap onTap, Tap offTap) {
-        LocalDateTime started = onTap.dateTimeUTC();
-        LocalDateTime finished = offTap.dateTimeUTC();
-        long durationSeconds = ChronoUnit.SECONDS.between(started, finished);
-
-        return new Trip(
-                started,
-                finished,
-                durationSeconds,
-                onTap.stopId(),
-                offTap.stopId(),
-                BigDecimal.ZERO,
-                onTap.companyId(),
-                onTap.busId(),
-                onTap.pan(),
-                TripStatus.CANCELLED);
+        return processedTrips;
     }
 
-    private Trip createIncompleteTrip(Tap onTap) {
-        // Assumptions for Incomplete Trips from plan:
-        // - ChargeAmount = maximum fare from ON tap's StopId
-        // - ToStopId can be set to the FromStopId (or null - choosing null)
-        // - Finished timestamp might be the same as Started (or null - choosing null)
-        // - DurationSecs might be 0
-
-        BigDecimal chargeAmount = pricingService.getMaxFare(onTap.stopId());
-
-        return new Trip(
-                onTap.dateTimeUTC(),
-                null, // Finished timestamp set to null for INCOMPLETE
-                0,
-                onTap.stopId(),
-                null, // ToStopId set to null for INCOMPLETE
-                chargeAmount,
-                onTap.companyId(),
-                onTap.busId(),
-                onTap.pan(),
-                TripStatus.INCOMPLETE);
+    private Trip linkAndCap(Trip trip) {
+        LinkedTrip linked = journeyLinker.link(trip);
+        if (fareCappingService != null) {
+            linked = linked.withTrip(fareCappingService.apply(linked.trip()));
+        }
+        if (journeyLegs != null) {
+            journeyLegs.accept(linked);
+        }
+        return linked.trip();
     }
-}
\ No newline at end of file
+}
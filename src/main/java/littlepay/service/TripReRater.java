@@ -0,0 +1,114 @@
+package littlepay.service;
+
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Re-prices previously produced trips after a retroactive fare change, without
+ * reprocessing their taps. A trip is affected only if its stop pair (or, for an
+ * incomplete trip, its start stop) has a different fare in the old and new
+ * pricing at the trip's start time, which is two table lookups, so unaffected
+ * trips cost next to nothing.
+ * A trip whose recorded charge is not the old fare was reduced by fare caps or
+ * journey pricing, which depend on the card's other trips: a full-fare trip
+ * earlier in the day, week or journey sets what the reduced one pays. So the
+ * trips are first passed to {@link #survey(Trip)}, and no affected trip of a
+ * card with any reduced trip is re-rated; they are counted instead, so those
+ * cards can be reprocessed in full.
+ * Instances are not thread-safe.
+ */
+public class TripReRater {
+
+    private final PricingService oldPricing;
+    private final PricingService newPricing;
+    private final Set<String> adjustedCards = new HashSet<>();
+    private long tripsRead;
+    private long tripsReRated;
+    private long tripsNeedingReprocess;
+
+    /**
+     * @param oldPricing Fares the trips were charged with.
+     * @param newPricing Fares the trips should have been charged with.
+     */
+    public TripReRater(PricingService oldPricing, PricingService newPricing) {
+        this.oldPricing = oldPricing;
+        this.newPricing = newPricing;
+    }
+
+    /**
+     * Notes the card of a trip whose charge was reduced by caps or journey
+     * pricing. Every trip is passed here before any is re-rated.
+     */
+    public void survey(Trip trip) {
+        BigDecimal oldFare = fare(oldPricing, trip);
+        if (oldFare != null && !isCharged(trip, oldFare)) {
+            adjustedCards.add(trip.pan());
+        }
+    }
+
+    /**
+     * @return The trip's corrected charge, or null if its fare has not changed
+     *         or it cannot be re-rated on its own.
+     */
+    public BigDecimal reRate(Trip trip) {
+        tripsRead++;
+        BigDecimal oldFare = fare(oldPricing, trip);
+        if (oldFare == null) {
+            return null; // Cancelled trips are free under any fares
+        }
+        BigDecimal newFare = fare(newPricing, trip);
+        if (oldFare.compareTo(newFare) == 0) {
+            return null;
+        }
+        if (!isCharged(trip, oldFare) || adjustedCards.contains(trip.pan())) {
+            tripsNeedingReprocess++;
+            return null;
+        }
+        tripsReRated++;
+        return newFare;
+    }
+
+    /**
+     * @return The trip's fare under the given pricing, or null for a cancelled
+     *         trip.
+     */
+    private static BigDecimal fare(PricingService pricing, Trip trip) {
+        if (trip.status() == TripStatus.COMPLETED) {
+            return pricing.getFare(trip.fromStopId(), trip.toStopId(), trip.startedEpochSecond());
+        }
+        if (trip.status() == TripStatus.INCOMPLETE) {
+            return pricing.getMaxFare(trip.fromStopId(), trip.startedEpochSecond());
+        }
+        return null;
+    }
+
+    private static boolean isCharged(Trip trip, BigDecimal fare) {
+        return trip.chargeAmount() != null && trip.chargeAmount().compareTo(fare) == 0;
+    }
+
+    /**
+     * @return Number of trips passed to {@link #reRate(Trip)}.
+     */
+    public long tripsRead() {
+        return tripsRead;
+    }
+
+    /**
+     * @return Number of trips given a corrected charge.
+     */
+    public long tripsReRated() {
+        return tripsReRated;
+    }
+
+    /**
+     * @return Number of affected trips on cards with a capped or
+     *         journey-priced charge, so those cards need a full reprocess.
+     */
+    public long tripsNeedingReprocess() {
+        return tripsNeedingReprocess;
+    }
+}
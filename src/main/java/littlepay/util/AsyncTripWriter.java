@@ -0,0 +1,263 @@
+package littlepay.util;
+
+import littlepay.model.Trip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a trips CSV file from a dedicated I/O thread.
+ * The processing thread encodes trips into one of two byte buffers; when it is
+ * full it is handed to the I/O thread and encoding continues into the other, so
+ * the caller only waits on the disk if it gets a whole buffer ahead.
+ * Output goes to a temporary file next to the target, which is fsynced
+ * according to the {@link FsyncPolicy} and then atomically renamed into place
+ * by {@link #commit()}; unless the policy is {@code NONE}, the directory is
+ * fsynced too, so that the rename survives a crash. Closing without committing deletes the temporary file
+ * and leaves any existing target untouched.
+ */
+public class AsyncTripWriter implements AutoCloseable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final Path target;
+    private final Path tempFile;
+    private final FileChannel channel;
+    private final FsyncPolicy fsyncPolicy;
+    private final TripCsvEncoder encoder = new TripCsvEncoder();
+    private final Charset charset = Charset.defaultCharset();
+    private final boolean asciiCompatible = isAsciiCompatible(charset);
+    private final StringBuilder line = new StringBuilder(128);
+    private final BlockingQueue<ByteBuffer> emptyBuffers = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<ByteBuffer> fullBuffers = new ArrayBlockingQueue<>(2);
+    private final Thread ioThread;
+    private ByteBuffer current;
+    private long bytesWritten;
+    private volatile IOException ioFailure;
+    private boolean finished;
+
+    public AsyncTripWriter(Path target, FsyncPolicy fsyncPolicy) throws IOException {
+        this(target, fsyncPolicy, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AsyncTripWriter(Path target, FsyncPolicy fsyncPolicy, int bufferSize) throws IOException {
+        this.target = target.toAbsolutePath();
+        this.fsyncPolicy = fsyncPolicy;
+        Path directory = this.target.getParent();
+        Files.createDirectories(directory);
+        // Same directory as the target so the final rename stays on one file system
+        this.tempFile = directory.resolve("." + this.target.getFileName() + "." + ProcessHandle.current().pid() + "."
+                + System.nanoTime() + ".tmp");
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        this.current = ByteBuffer.allocate(bufferSize);
+        this.emptyBuffers.add(ByteBuffer.allocate(bufferSize));
+        this.ioThread = new Thread(this::drain, "trips-writer");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+        writeText(TripCsvEncoder.HEADER_LINE);
+    }
+
+    /**
+     * Encodes and queues one trip.
+     *
+     * @throws IOException if the I/O thread has failed.
+     */
+    public void write(Trip trip) throws IOException {
+        line.setLength(0);
+        encoder.appendTrip(line, trip);
+        writeText(line);
+    }
+
+    public void writeAll(List<Trip> trips) throws IOException {
+        for (Trip trip : trips) {
+            write(trip);
+        }
+    }
+
+    /**
+     * @return Bytes queued for writing so far, including the header.
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes out everything queued, applies the final fsync and renames the
+     * temporary file over the target.
+     *
+     * @throws IOException if any write, sync or the rename fails.
+     */
+    public void commit() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Writer already closed");
+        }
+        finished = true;
+        try {
+            handOff(current);
+            current = null;
+            handOff(END_OF_STREAM);
+            awaitIoThread();
+            if (ioFailure != null) {
+                throw ioFailure;
+            }
+            if (fsyncPolicy.mode() != FsyncPolicy.Mode.NONE) {
+                channel.force(true);
+            }
+            channel.close();
+            FileSupport.moveReplacing(tempFile, target);
+            if (fsyncPolicy.mode() != FsyncPolicy.Mode.NONE) {
+                FileSupport.forceDirectory(target.getParent());
+            }
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Discards the output if {@link #commit()} has not been called.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            ioThread.interrupt();
+            awaitIoThread();
+            discard();
+        }
+    }
+
+    private void discard() throws IOException {
+        channel.close();
+        Files.deleteIfExists(tempFile);
+    }
+
+    /**
+     * Encodes text in the platform default charset, as the {@code FileWriter}
+     * used by {@link CsvWriter} does. ASCII text, the common case, is copied
+     * directly when the charset encodes ASCII as single bytes.
+     */
+    private void writeText(CharSequence text) throws IOException {
+        if (asciiCompatible && isAscii(text)) {
+            for (int i = 0; i < text.length(); i++) {
+                putByte((byte) text.charAt(i));
+            }
+            return;
+        }
+        ByteBuffer encoded = charset.encode(CharBuffer.wrap(text));
+        while (encoded.hasRemaining()) {
+            putByte(encoded.get());
+        }
+    }
+
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isAsciiCompatible(Charset charset) {
+        char[] ascii = new char[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+        }
+        String probe = new String(ascii);
+        return Arrays.equals(probe.getBytes(charset), probe.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void putByte(byte b) throws IOException {
+        if (!current.hasRemaining()) {
+            handOff(current);
+            current = takeEmptyBuffer();
+        }
+        current.put(b);
+        bytesWritten++;
+    }
+
+    private void handOff(ByteBuffer buffer) throws IOException {
+        try {
+            while (!fullBuffers.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                checkIoThread();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing trips", e);
+        }
+    }
+
+    private ByteBuffer takeEmptyBuffer() throws IOException {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = emptyBuffers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkIoThread();
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing trips", e);
+        }
+    }
+
+    private void checkIoThread() throws IOException {
+        if (ioFailure != null) {
+            throw ioFailure;
+        }
+        if (!ioThread.isAlive()) {
+            throw new IOException("Trips writer thread stopped unexpectedly");
+        }
+    }
+
+    private void awaitIoThread() throws IOException {
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing trips", e);
+        }
+    }
+
+    private void drain() {
+        long bytesSinceSync = 0;
+        try {
+            while (true) {
+                ByteBuffer buffer = fullBuffers.take();
+                if (buffer == END_OF_STREAM) {
+                    return;
+                }
+                buffer.flip();
+                bytesSinceSync += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (fsyncPolicy.mode() == FsyncPolicy.Mode.EVERY_N_BYTES
+                        && bytesSinceSync >= fsyncPolicy.intervalBytes()) {
+                    channel.force(false);
+                    bytesSinceSync = 0;
+                }
+                buffer.clear();
+                emptyBuffers.put(buffer);
+            }
+        } catch (IOException e) {
+            ioFailure = e;
+        } catch (InterruptedException e) {
+            // Writer was closed without committing
+        }
+    }
+}
@@ -7,73 +7,371 @@ import littlepay.model.TapType;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Reads taps from a CSV file, skipping invalid rows as rejects. Rows are split
+ * by opencsv, or optionally by a byte-level parser built on a
+ * {@link DelimiterScanner}, which slices fields straight out of a byte buffer
+ * from the scanner's offsets. The byte-level parser only handles rows without
+ * quote or escape characters; from the first row with either, the rest of the
+ * file is handed to opencsv, so both give the same taps and rejects.
+ * <p>
+ * Columns are found by their names in the header row (see {@link TapLayout}).
+ * Each row is parsed through a {@link TapRowView}, which only decodes the
+ * fields asked for: the date, tap type and stop are always read, and the
+ * other text fields only if they are in the reader's projection. Rows of
+ * companies outside an optional company filter are skipped by comparing the
+ * company column's bytes, before anything else in the row is decoded or
+ * checked.
+ */
 public class CsvReader {
 
     private static final Logger LOGGER = Logger.getLogger(CsvReader.class.getName());
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int COLUMNS = TapField.values().length;
+
+    private final PipelineMetrics metrics;
+    private final RejectedRows rejects;
+    private final TapDeduplicator deduplicator;
+    private final DelimiterScanner scanner;
+    private final Set<TapField> fields;
+    private final String[] companies;
+    private final byte[][] encodedCompanies;
+    private final LongAdder filteredRows = new LongAdder();
+
+    public CsvReader() {
+        this(new PipelineMetrics());
+    }
+
+    public CsvReader(PipelineMetrics metrics) {
+        this(metrics, new RejectedRows(metrics));
+    }
+
+    public CsvReader(PipelineMetrics metrics, RejectedRows rejects) {
+        this(metrics, rejects, null);
+    }
+
+    public CsvReader(PipelineMetrics metrics, RejectedRows rejects, TapDeduplicator deduplicator) {
+        this(metrics, rejects, deduplicator, null);
+    }
+
+    /**
+     * @param metrics      Metrics to record parsed rows in.
+     * @param rejects      Collector for skipped rows.
+     * @param deduplicator Skips repeated taps as {@link SkipReason#DUPLICATE},
+     *                     or null to keep them.
+     * @param scanner      Scanner for the byte-level parser, or null to parse
+     *                     with opencsv only.
+     */
+    public CsvReader(PipelineMetrics metrics, RejectedRows rejects, TapDeduplicator deduplicator,
+            DelimiterScanner scanner) {
+        this(metrics, rejects, deduplicator, scanner, EnumSet.allOf(TapField.class), null);
+    }
+
+    /**
+     * @param metrics      Metrics to record parsed rows in.
+     * @param rejects      Collector for skipped rows.
+     * @param deduplicator Skips repeated taps as {@link SkipReason#DUPLICATE},
+     *                     or null to keep them. Compares every field, so all
+     *                     of them are read when it is given.
+     * @param scanner      Scanner for the byte-level parser, or null to parse
+     *                     with opencsv only.
+     * @param fields       The text fields to read; taps have null for the
+     *                     others. The date, tap type and stop are always read.
+     * @param companies    The companies whose taps to read, or null for all.
+     *                     Other companies' rows are counted in
+     *                     {@link #filteredRows()} and not checked.
+     */
+    public CsvReader(PipelineMetrics metrics, RejectedRows rejects, TapDeduplicator deduplicator,
+            DelimiterScanner scanner, Set<TapField> fields, Set<String> companies) {
+        this.metrics = metrics;
+        this.rejects = rejects;
+        this.deduplicator = deduplicator;
+        this.scanner = scanner;
+        this.fields = deduplicator != null ? EnumSet.allOf(TapField.class) : EnumSet.copyOf(fields);
+        this.fields.addAll(EnumSet.of(TapField.DATE_TIME, TapField.TAP_TYPE, TapField.STOP));
+        if (companies == null) {
+            this.companies = null;
+            this.encodedCompanies = null;
+        } else {
+            Charset charset = Charset.defaultCharset(); // Same as the FileReader's
+            this.companies = companies.toArray(new String[0]);
+            this.encodedCompanies = companies.stream()
+                    .filter(company -> charset.newEncoder().canEncode(company))
+                    .map(company -> company.getBytes(charset))
+                    .toArray(byte[][]::new);
+        }
+    }
+
+    /**
+     * @return The number of rows skipped for being of a company outside the
+     *         company filter.
+     */
+    public long filteredRows() {
+        return filteredRows.sum();
+    }
 
     public List<Tap> readTaps(String filePath) throws IOException {
         List<Tap> taps = new ArrayList<>();
-        try (Reader reader = new FileReader(filePath);
-                com.opencsv.CSVReader csvReader = new com.opencsv.CSVReader(reader)) {
+        try {
+            metrics.bytesRead(Files.size(Paths.get(filePath)));
+            if (scanner != null && AsyncTripWriter.isAsciiCompatible(Charset.defaultCharset())) {
+                readWithScanner(filePath, taps);
+            } else {
+                readWithOpenCsv(filePath, new FileReader(filePath), 0, null, taps);
+            }
+        } catch (CsvValidationException e) {
+            LOGGER.log(Level.SEVERE, "CSV validation error while reading file " + filePath, e);
+            throw new IOException("Failed to validate CSV content from " + filePath, e);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "I/O error while reading file " + filePath, e);
+            throw e; // Re-throw IOException
+        }
+        return taps;
+    }
 
-            String[] headers = csvReader.readNext(); // Read and skip header row
-            if (headers == null) {
-                LOGGER.info("CSV file is empty or has no headers: " + filePath);
-                return taps;
+    /**
+     * Parses rows with opencsv.
+     *
+     * @param reader     Text from the start of the file, or from the start of a
+     *                   row after the header.
+     * @param lineNumber Row number of the row before the reader's first row, or
+     *                   0 if the reader starts with the header.
+     * @param layout     The header's layout, or null if the reader starts with
+     *                   the header.
+     */
+    private void readWithOpenCsv(String filePath, Reader reader, int lineNumber, TapLayout layout, List<Tap> taps)
+            throws IOException, CsvValidationException {
+        try (reader; com.opencsv.CSVReader csvReader = new com.opencsv.CSVReader(reader)) {
+            if (lineNumber == 0) {
+                String[] headers = csvReader.readNext();
+                if (headers == null) {
+                    LOGGER.info("CSV file is empty or has no headers: " + filePath);
+                    return;
+                }
+                layout = layoutOf(filePath, headers);
+                lineNumber = 1; // Row number after header
             }
 
+            TapRowView row = new TapRowView();
             String[] line;
-            int lineNumber = 1; // Row number after header
             while ((line = csvReader.readNext()) != null) {
                 lineNumber++;
-                try {
-                    if (line.length < 7) {
-                        LOGGER.warning("Skipping malformed row (not enough columns: expected 7, got " + line.length
-                                + ") at line " + lineNumber + " in file " + filePath);
+                acceptRow(filePath, lineNumber, row.over(line), layout, System.nanoTime(), taps);
+            }
+        }
+    }
+
+    /**
+     * Parses rows from bytes, using the scanner's offsets of separators and line
+     * ends. Line ends are '\n', '\r\n' or a lone '\r', as for opencsv, which
+     * reads lines with {@code BufferedReader}.
+     */
+    private void readWithScanner(String filePath, List<Tap> taps) throws IOException, CsvValidationException {
+        Charset charset = Charset.defaultCharset();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int[] positions = new int[BUFFER_SIZE];
+        int[] fieldEnds = new int[COLUMNS + 1];
+        long bufferOffset = 0; // File offset of buffer[0]
+        int length = 0;
+        int lineNumber = 0; // Header row is 0
+        TapLayout layout = null;
+        TapRowView row = new TapRowView();
+        boolean endOfFile = false;
+        try (InputStream in = Files.newInputStream(Paths.get(filePath))) {
+            while (!endOfFile) {
+                int read = in.readNBytes(buffer, length, buffer.length - length);
+                endOfFile = length + read < buffer.length;
+                length += read;
+
+                int count = scanner.scan(buffer, 0, length, positions);
+                // Timed from here, so the buffer's scan is not charged to its first row
+                long parseStart = System.nanoTime();
+                int rowStart = 0;
+                int fields = 0;
+                for (int p = 0; p < count; p++) {
+                    int position = positions[p];
+                    byte b = buffer[position];
+                    if (b == '"' || b == '\\') {
+                        // Quoting and escaping are left to opencsv, from this row on
+                        InputStream rest = Files.newInputStream(Paths.get(filePath));
+                        rest.skipNBytes(bufferOffset + rowStart);
+                        readWithOpenCsv(filePath, new InputStreamReader(rest, charset), lineNumber, layout, taps);
+                        return;
+                    }
+                    if (fields == fieldEnds.length) {
+                        fieldEnds = Arrays.copyOf(fieldEnds, fields * 2);
+                    }
+                    fieldEnds[fields] = position;
+                    if (b == ',') {
+                        fields++;
                         continue;
                     }
-                    // Expected columns: ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN
-                    String id = line[0].trim();
-                    LocalDateTime dateTimeUTC = LocalDateTime.parse(line[1].trim(), DATE_TIME_FORMATTER);
-                    TapType tapType = TapType.valueOf(line[2].trim().toUpperCase());
-                    Stop stopId = Stop.fromString(line[3].trim());
-                    String companyId = line[4].trim();
-                    String busId = line[5].trim();
-                    String pan = line[6].trim();
-
-                    taps.add(new Tap(id, dateTimeUTC, tapType, stopId, companyId, busId, pan));
-
-                } catch (DateTimeParseException e) {
-                    LOGGER.log(
-                            Level.WARNING, "Skipping row due to invalid date format at line " + lineNumber + " in file "
-                                    + filePath + ": " + (line.length > 1 ? line[1] : "[DATE_MISSING_OR_ROW_TOO_SHORT]")
-                                    + ". Error: " + e.getMessage());
-                } catch (IllegalArgumentException e) { // Catches TapType or Stop.fromString errors
-                    LOGGER.log(Level.WARNING, "Skipping row due to invalid enum value at line " + lineNumber
-                            + " in file " + filePath + ": " + e.getMessage());
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING,
-                            "Skipping row due to an unexpected error at line " + lineNumber + " in file " + filePath,
-                            e);
+                    if (b == '\r' && position + 1 == length && !endOfFile) {
+                        break; // Can't tell yet whether a '\n' follows
+                    }
+                    row.over(buffer, rowStart, fieldEnds, fields + 1, charset);
+                    if (lineNumber++ > 0) {
+                        acceptRow(filePath, lineNumber, row, layout, parseStart, taps);
+                    } else {
+                        layout = layoutOf(filePath, row.toArray());
+                    }
+                    parseStart = System.nanoTime();
+                    if (b == '\r' && position + 1 < length && buffer[position + 1] == '\n') {
+                        p++;
+                        position++;
+                    }
+                    rowStart = position + 1;
+                    fields = 0;
+                }
+
+                if (endOfFile) {
+                    if (rowStart < length) {
+                        // Last row without a line end
+                        if (fields == fieldEnds.length) {
+                            fieldEnds = Arrays.copyOf(fieldEnds, fields * 2);
+                        }
+                        fieldEnds[fields] = length;
+                        row.over(buffer, rowStart, fieldEnds, fields + 1, charset);
+                        if (lineNumber++ > 0) {
+                            acceptRow(filePath, lineNumber, row, layout, parseStart, taps);
+                        }
+                    }
+                } else {
+                    // Keep the partial row, growing the buffer if it fills it
+                    length -= rowStart;
+                    System.arraycopy(buffer, rowStart, buffer, 0, length);
+                    bufferOffset += rowStart;
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        positions = new int[buffer.length];
+                    }
                 }
             }
-        } catch (CsvValidationException e) {
-            LOGGER.log(Level.SEVERE, "CSV validation error while reading file " + filePath, e);
-            throw new IOException("Failed to validate CSV content from " + filePath, e);
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "I/O error while reading file " + filePath, e);
-            throw e; // Re-throw IOException
         }
-        return taps;
+        if (lineNumber == 0) {
+            LOGGER.info("CSV file is empty or has no headers: " + filePath);
+        }
+    }
+
+    /**
+     * Takes the file's layout from its header row, or the default one if the
+     * header does not name every column.
+     */
+    private TapLayout layoutOf(String filePath, String[] header) {
+        TapLayout layout = TapLayout.fromHeader(header);
+        if (layout == null) {
+            LOGGER.warning("Unrecognised header in " + filePath + ", reading columns in the order "
+                    + Arrays.toString(Arrays.stream(TapField.values()).map(TapField::header).toArray()));
+            return TapLayout.DEFAULT;
+        }
+        if (deduplicator != null && layout.position(TapField.ID) < 0) {
+            LOGGER.info("No ID column in " + filePath + "; repeated taps are found by their content");
+        }
+        return layout;
+    }
+
+    private void acceptRow(String filePath, int lineNumber, TapRowView row, TapLayout layout, long rowStart,
+            List<Tap> taps) {
+        Tap tap = parseRow(filePath, lineNumber, row, layout, rowStart);
+        if (tap != null) {
+            taps.add(tap);
+        }
+    }
+
+    /**
+     * Converts one row of fields to a tap, with the same checks as
+     * {@link #readTaps(String)}: an invalid or repeated row is recorded as
+     * rejected instead. The fields are taken to be in the default order of
+     * {@link TapLayout#DEFAULT}. Safe to call from several threads at once.
+     *
+     * @param source     Where the row came from, for reject logs.
+     * @param lineNumber Line number of the row in its source.
+     * @param line       The row's fields.
+     * @return The tap, or null if the row was rejected or filtered out.
+     */
+    public Tap parseRow(String source, long lineNumber, String[] line) {
+        return parseRow(source, lineNumber, new TapRowView().over(line), TapLayout.DEFAULT, System.nanoTime());
+    }
+
+    private Tap parseRow(String filePath, long lineNumber, TapRowView row, TapLayout layout, long rowStart) {
+        try {
+            if (companies != null) {
+                int company = layout.position(TapField.COMPANY);
+                if (company < row.fieldCount() && !row.textIsAnyOf(company, companies, encodedCompanies)) {
+                    filteredRows.increment();
+                    return null;
+                }
+            }
+            // Invalid rows are detected without throwing where possible, since
+            // building exceptions dominates the cost of parsing a dirty feed.
+            if (row.fieldCount() < layout.minColumns()) {
+                rejects.reject(filePath, lineNumber, SkipReason.MISSING_COLUMNS, layout.tooFewColumnsDetail(), row);
+                return null;
+            }
+            CharSequence dateTimeText = row.asciiText(layout.position(TapField.DATE_TIME));
+            if (!EpochTime.isWellFormed(dateTimeText)) {
+                rejects.reject(filePath, lineNumber, SkipReason.INVALID_DATE, "invalid date format", row);
+                return null;
+            }
+            long dateTimeUTC = EpochTime.parseOrThrow(dateTimeText);
+            TapType tapType = TapType.lookup(row.text(layout.position(TapField.TAP_TYPE)));
+            if (tapType == null) {
+                rejects.reject(filePath, lineNumber, SkipReason.INVALID_VALUE, "unknown tap type", row);
+                return null;
+            }
+            Stop stopId = Stop.lookup(row.text(layout.position(TapField.STOP)));
+            if (stopId == null) {
+                rejects.reject(filePath, lineNumber, SkipReason.INVALID_VALUE, "unknown stop ID", row);
+                return null;
+            }
+
+            Tap tap = new Tap(field(row, layout, TapField.ID), dateTimeUTC, tapType, stopId,
+                    field(row, layout, TapField.COMPANY), field(row, layout, TapField.BUS),
+                    field(row, layout, TapField.PAN));
+            if (deduplicator != null && isDuplicate(tap)) {
+                rejects.reject(filePath, lineNumber, SkipReason.DUPLICATE, "duplicate tap", row);
+                return null;
+            }
+            metrics.rowParsed(System.nanoTime() - rowStart);
+            return tap;
+
+        } catch (DateTimeParseException e) {
+            rejects.reject(filePath, lineNumber, SkipReason.INVALID_DATE, "invalid date", row);
+        } catch (Exception e) {
+            rejects.reject(filePath, lineNumber, SkipReason.UNEXPECTED_ERROR, String.valueOf(e), row);
+        }
+        return null;
+    }
+
+    /**
+     * @return The field's trimmed text, or null if it is not projected or the
+     *         file has no such column.
+     */
+    private String field(TapRowView row, TapLayout layout, TapField field) {
+        int position = layout.position(field);
+        return position >= 0 && fields.contains(field) ? row.text(position) : null;
+    }
+
+    private boolean isDuplicate(Tap tap) {
+        // The deduplicator is not thread-safe; the lock is uncontended when reading a file
+        synchronized (deduplicator) {
+            return deduplicator.isDuplicate(tap);
+        }
     }
-}
\ No newline at end of file
+}
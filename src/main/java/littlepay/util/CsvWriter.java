@@ -13,13 +13,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 
 public class CsvWriter {
 
-        private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
         private static final DecimalFormat CURRENCY_FORMAT = new DecimalFormat("$0.00");
         private static final String[] CSV_HEADER = {
                         "Started", "Finished", "DurationSecs", "FromStopId", "ToStopId",
@@ -50,9 +48,11 @@ public class CsvWriter {
 
                         List<String[]> stringArray = new ArrayList<>();
                         for (Trip trip : trips) {
-                                String started = trip.started() != null ? trip.started().format(DATE_TIME_FORMATTER)
+                                String started = trip.startedEpochSecond() != EpochTime.NONE
+                                                ? EpochTime.format(trip.startedEpochSecond())
                                                 : "";
-                                String finished = trip.finished() != null ? trip.finished().format(DATE_TIME_FORMATTER)
+                                String finished = trip.finishedEpochSecond() != EpochTime.NONE
+                                                ? EpochTime.format(trip.finishedEpochSecond())
                                                 : "";
                                 String durationSecs = String.valueOf(trip.durationSecs());
                                 String fromStopId = trip.fromStopId() != null ? trip.fromStopId().toPascalCase() : "";
@@ -0,0 +1,42 @@
+package littlepay.util;
+
+/**
+ * Finds the bytes that give a CSV file its structure: separators, line ends,
+ * and the quote and escape characters, so a parser can slice fields out of a
+ * byte buffer without examining every byte itself.
+ */
+public interface DelimiterScanner {
+
+    /**
+     * Records the offsets of every ',', '\n', '\r', '"' and '\\' in
+     * {@code bytes[from, to)}, in ascending order.
+     *
+     * @param positions Receives the offsets; must have room for
+     *                  {@code to - from} entries.
+     * @return Number of offsets recorded.
+     */
+    int scan(byte[] bytes, int from, int to, int[] positions);
+
+    /**
+     * @return A short description of the implementation, for logs.
+     */
+    String description();
+
+    /**
+     * @return A scanner using SIMD instructions through the Vector API when the
+     *         JVM was started with {@code --add-modules jdk.incubator.vector},
+     *         otherwise a scalar one.
+     */
+    static DelimiterScanner create() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded reflectively so this class never links against the incubator module
+                return (DelimiterScanner) Class.forName("littlepay.util.VectorDelimiterScanner")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Fall through to the scalar scanner
+            }
+        }
+        return new ScalarDelimiterScanner();
+    }
+}
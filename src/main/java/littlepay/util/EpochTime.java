@@ -0,0 +1,183 @@
+package littlepay.util;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Allocation-free conversion between "dd-MM-yyyy HH:mm:ss" text and UTC epoch
+ * seconds, the timestamp representation used by {@code Tap} and {@code Trip}.
+ * The fast paths cover every ordinary timestamp; anything unusual (a day past
+ * the end of its month, years outside 1-9999) goes through
+ * {@link DateTimeFormatter} so the results always match the pattern
+ * formatter exactly.
+ */
+public final class EpochTime {
+
+    /** Marker for "no timestamp", e.g. the finish time of an incomplete trip. */
+    public static final long NONE = Long.MIN_VALUE;
+
+    public static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+
+    private static final int SECONDS_PER_DAY = 86_400;
+
+    /**
+     * The "dd-MM-yyyy " prefix for the most recently formatted day. Trips are
+     * written in start-time order, so consecutive trips almost always share it.
+     * The holder is immutable, so racing threads at worst rebuild it.
+     */
+    private static volatile DayPrefix lastDayPrefix = new DayPrefix(Long.MIN_VALUE, "");
+
+    private record DayPrefix(long epochDay, String prefix) {
+    }
+
+    private EpochTime() {
+    }
+
+    /**
+     * Checks that text has the "dd-MM-yyyy HH:mm:ss" shape: the right length,
+     * separators and digits. Values are not range checked.
+     */
+    public static boolean isWellFormed(CharSequence text) {
+        if (text.length() != 19) {
+            return false;
+        }
+        for (int i = 0; i < 19; i++) {
+            char c = text.charAt(i);
+            boolean ok = switch (i) {
+                case 2, 5 -> c == '-';
+                case 10 -> c == ' ';
+                case 13, 16 -> c == ':';
+                default -> c >= '0' && c <= '9';
+            };
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses "dd-MM-yyyy HH:mm:ss" text into UTC epoch seconds without
+     * allocating.
+     *
+     * @param text Text to parse.
+     * @return Epoch seconds, or {@link #NONE} if the text is not an ordinary
+     *         timestamp. Callers should then fall back to {@link #FORMATTER}.
+     */
+    public static long parse(CharSequence text) {
+        if (!isWellFormed(text)) {
+            return NONE;
+        }
+        int day = twoDigits(text, 0);
+        int month = twoDigits(text, 3);
+        int year = twoDigits(text, 6) * 100 + twoDigits(text, 8);
+        int hour = twoDigits(text, 11);
+        int minute = twoDigits(text, 14);
+        int second = twoDigits(text, 17);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59) {
+            return NONE;
+        }
+        return epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+    }
+
+    /**
+     * Parses "dd-MM-yyyy HH:mm:ss" text into UTC epoch seconds, using the fast
+     * path where possible.
+     *
+     * @throws java.time.format.DateTimeParseException if the text is not a valid
+     *                                                 timestamp.
+     */
+    public static long parseOrThrow(CharSequence text) {
+        long epochSecond = parse(text);
+        return epochSecond != NONE ? epochSecond : of(LocalDateTime.parse(text, FORMATTER));
+    }
+
+    /**
+     * Formats UTC epoch seconds as "dd-MM-yyyy HH:mm:ss".
+     */
+    public static String format(long epochSecond) {
+        return appendTo(new StringBuilder(19), epochSecond).toString();
+    }
+
+    /**
+     * Appends UTC epoch seconds formatted as "dd-MM-yyyy HH:mm:ss".
+     */
+    public static StringBuilder appendTo(StringBuilder out, long epochSecond) {
+        long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+        DayPrefix dayPrefix = lastDayPrefix;
+        if (dayPrefix.epochDay() != epochDay) {
+            dayPrefix = new DayPrefix(epochDay, formatDayPrefix(epochDay));
+            lastDayPrefix = dayPrefix;
+        }
+        if (dayPrefix.prefix() == null) {
+            return out.append(toLocalDateTime(epochSecond).format(FORMATTER));
+        }
+        int secondOfDay = Math.floorMod(epochSecond, SECONDS_PER_DAY);
+        out.append(dayPrefix.prefix());
+        appendTwoDigits(out, secondOfDay / 3600).append(':');
+        appendTwoDigits(out, secondOfDay / 60 % 60).append(':');
+        return appendTwoDigits(out, secondOfDay % 60);
+    }
+
+    public static long of(LocalDateTime dateTime) {
+        return dateTime == null ? NONE : dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static LocalDateTime toLocalDateTime(long epochSecond) {
+        return epochSecond == NONE ? null : LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * @return The "dd-MM-yyyy " prefix for the day, or null if the year is
+     *         outside the range the fast path formats.
+     */
+    private static String formatDayPrefix(long epochDay) {
+        // Inverse of epochDay(), from Howard Hinnant's civil_from_days
+        long z = epochDay + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1 || year > 9999) {
+            return null;
+        }
+        StringBuilder prefix = new StringBuilder(11);
+        appendTwoDigits(prefix, day).append('-');
+        appendTwoDigits(prefix, month).append('-');
+        appendTwoDigits(prefix, (int) (year / 100));
+        appendTwoDigits(prefix, (int) (year % 100));
+        return prefix.append(' ').toString();
+    }
+
+    private static long epochDay(int year, int month, int day) {
+        // Howard Hinnant's days_from_civil, shifted so 1970-01-01 is day 0
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        return switch (month) {
+            case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+
+    private static int twoDigits(CharSequence text, int offset) {
+        return (text.charAt(offset) - '0') * 10 + (text.charAt(offset + 1) - '0');
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder out, int value) {
+        return out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
@@ -0,0 +1,111 @@
+package littlepay.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * File operations shared by the writers and tools: replacing a file only
+ * once its new content is complete, recognising binary files by their magic
+ * number, and removing work directories.
+ */
+public final class FileSupport {
+
+    private FileSupport() {
+    }
+
+    /**
+     * Writes a file's new content.
+     */
+    @FunctionalInterface
+    public interface Content {
+        void writeTo(Path file) throws IOException;
+    }
+
+    /**
+     * Writes content to a temporary file next to the target and renames it
+     * over the target, so that readers see either the old file or the whole
+     * new one. The temporary file is deleted if writing fails.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public static void replace(Path path, Content content) throws IOException {
+        Path target = path.toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path tempFile = target.resolveSibling("." + target.getFileName() + "." + ProcessHandle.current().pid()
+                + ".tmp");
+        try {
+            content.writeTo(tempFile);
+            moveReplacing(tempFile, target);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Renames a file over another, atomically where the file system allows.
+     *
+     * @throws IOException if the file cannot be moved.
+     */
+    public static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Flushes a directory's entries, such as a rename into it, to disk.
+     *
+     * @throws IOException if the directory cannot be synced.
+     */
+    public static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // Windows can't open a directory, and makes renames durable itself
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return Whether a file starts with the given 4-byte magic number.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean startsWith(Path path, int magic) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate(4);
+            while (start.hasRemaining() && channel.read(start) >= 0) {
+                // Keep reading until the magic number is complete or the file ends
+            }
+            return !start.hasRemaining() && start.getInt(0) == magic;
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it, if it exists.
+     *
+     * @throws IOException if anything cannot be deleted.
+     */
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
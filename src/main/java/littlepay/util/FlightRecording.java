@@ -0,0 +1,46 @@
+package littlepay.util;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+/**
+ * A JFR recording scoped to a single run. The recording uses the JDK's
+ * "profile" settings plus the pipeline stage events, and is written to the
+ * destination file when closed so it can be opened in JDK Mission Control.
+ */
+public class FlightRecording implements AutoCloseable {
+
+    private final Recording recording;
+
+    public FlightRecording(Path destination) throws IOException {
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration("profile");
+        } catch (ParseException e) {
+            throw new IOException("Unable to load JFR profile settings", e);
+        }
+        if (destination.getParent() != null) {
+            Files.createDirectories(destination.getParent());
+        }
+        recording = new Recording(configuration);
+        recording.setName("littlepay-run");
+        recording.enable(PipelineStageEvent.NAME);
+        recording.setToDisk(true);
+        recording.setDestination(destination);
+        recording.start();
+    }
+
+    /**
+     * Stops the recording and writes it to the destination file.
+     */
+    @Override
+    public void close() {
+        recording.stop();
+        recording.close();
+    }
+}
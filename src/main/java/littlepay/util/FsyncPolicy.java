@@ -0,0 +1,56 @@
+package littlepay.util;
+
+/**
+ * How often {@link AsyncTripWriter} forces written data to disk.
+ *
+ * @param mode          When to fsync.
+ * @param intervalBytes For {@link Mode#EVERY_N_BYTES}, the number of bytes
+ *                      written between syncs.
+ */
+public record FsyncPolicy(Mode mode, long intervalBytes) {
+
+    public enum Mode {
+        /** Never fsync; leave it to the operating system. */
+        NONE,
+        /** Fsync once, after the last byte is written and before the rename. */
+        AT_END,
+        /** Fsync every {@code intervalBytes}, and once more at the end. */
+        EVERY_N_BYTES
+    }
+
+    public static final FsyncPolicy NONE = new FsyncPolicy(Mode.NONE, 0);
+    public static final FsyncPolicy AT_END = new FsyncPolicy(Mode.AT_END, 0);
+
+    public FsyncPolicy {
+        if (mode == Mode.EVERY_N_BYTES && intervalBytes <= 0) {
+            throw new IllegalArgumentException("Fsync interval must be positive: " + intervalBytes);
+        }
+    }
+
+    public static FsyncPolicy everyMegabytes(long megabytes) {
+        return new FsyncPolicy(Mode.EVERY_N_BYTES, megabytes * 1024 * 1024);
+    }
+
+    /**
+     * Parses a policy from "none", "end" or "&lt;N&gt;mb" (e.g. "64mb").
+     *
+     * @throws IllegalArgumentException if the text is not a valid policy.
+     */
+    public static FsyncPolicy parse(String text) {
+        String value = text.trim().toLowerCase();
+        if (value.equals("none")) {
+            return NONE;
+        }
+        if (value.equals("end")) {
+            return AT_END;
+        }
+        if (value.endsWith("mb")) {
+            try {
+                return everyMegabytes(Long.parseLong(value.substring(0, value.length() - 2)));
+            } catch (NumberFormatException e) {
+                // Fall through to the error below
+            }
+        }
+        throw new IllegalArgumentException("Invalid fsync policy (expected none, end or <N>mb): " + text);
+    }
+}
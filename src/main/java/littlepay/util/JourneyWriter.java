@@ -0,0 +1,43 @@
+package littlepay.util;
+
+import littlepay.model.LinkedTrip;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes journey legs as CSV: a JourneyId and Leg column followed by the
+ * trip's columns, exactly as they appear in the trips file.
+ */
+public final class JourneyWriter {
+
+    public static final String HEADER_LINE = "JourneyId,Leg," + TripCsvEncoder.HEADER_LINE;
+
+    private JourneyWriter() {
+    }
+
+    /**
+     * @param legs Journey legs in the order to write them.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(List<LinkedTrip> legs, Path journeysFile) throws IOException {
+        if (journeysFile.getParent() != null) {
+            Files.createDirectories(journeysFile.getParent());
+        }
+        TripCsvEncoder encoder = new TripCsvEncoder();
+        StringBuilder line = new StringBuilder(160);
+        // Same charset as the trips file, so shared columns are encoded alike
+        try (Writer writer = Files.newBufferedWriter(journeysFile, Charset.defaultCharset())) {
+            writer.write(HEADER_LINE);
+            for (LinkedTrip leg : legs) {
+                line.setLength(0);
+                line.append(leg.journeyId()).append(',').append(leg.leg()).append(',');
+                writer.append(encoder.appendTrip(line, leg.trip()));
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package littlepay.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An open-addressing hash set of {@code long} values in a single flat array
+ * with linear probing, the set counterpart of {@link LongLongHashMap}: 8 bytes
+ * per slot and one memory access per lookup in the common case.
+ * Not thread-safe.
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final int initialCapacity;
+    private long[] keys;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    // The EMPTY sentinel cannot be stored in the table, so it is tracked aside
+    private boolean hasEmptyKey;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize Number of values to size the table for up front.
+     */
+    public LongHashSet(int expectedSize) {
+        this.initialCapacity = LongLongHashMap.tableSizeFor(expectedSize);
+        allocate(initialCapacity);
+    }
+
+    public int size() {
+        return size + (hasEmptyKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        return keys[slotOf(key)] == key;
+    }
+
+    /**
+     * Adds the value if absent.
+     *
+     * @return true if the value was added, false if it was already present.
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            boolean added = !hasEmptyKey;
+            hasEmptyKey = true;
+            return added;
+        }
+        int slot = slotOf(key);
+        if (keys[slot] == key) {
+            return false;
+        }
+        keys[slot] = key;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Removes all values, keeping capacity for as many values as the set held
+     * (see {@link LongLongHashMap#clear()}).
+     */
+    public void clear() {
+        int capacity = Math.max(initialCapacity, LongLongHashMap.tableSizeFor(size));
+        size = 0;
+        hasEmptyKey = false;
+        if (capacity < keys.length) {
+            allocate(capacity);
+        } else {
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    /**
+     * Calls the consumer for every value, in no particular order.
+     */
+    public void forEach(LongConsumer consumer) {
+        if (hasEmptyKey) {
+            consumer.accept(EMPTY);
+        }
+        for (long key : keys) {
+            if (key != EMPTY) {
+                consumer.accept(key);
+            }
+        }
+    }
+
+    private int slotOf(long key) {
+        int slot = LongLongHashMap.mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        allocate(newCapacity);
+        for (long key : oldKeys) {
+            if (key != EMPTY) {
+                keys[slotOf(key)] = key;
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+}
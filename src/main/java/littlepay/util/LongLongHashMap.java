@@ -0,0 +1,221 @@
+package littlepay.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from {@code long} keys to {@code long} values.
+ * Entries live in two flat arrays with linear probing, so the map costs about
+ * 16 bytes per slot with no per-entry objects, which keeps per-card state for
+ * millions of cards compact and cheap to clear. Not thread-safe.
+ */
+public class LongLongHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final int initialCapacity;
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    // The EMPTY sentinel cannot be stored in the table, so it is kept aside
+    private boolean hasEmptyKey;
+    private long emptyKeyValue;
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize Number of entries to size the table for up front.
+     */
+    public LongLongHashMap(int expectedSize) {
+        this.initialCapacity = tableSizeFor(expectedSize);
+        allocate(initialCapacity);
+    }
+
+    public int size() {
+        return size + (hasEmptyKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        return keys[slotOf(key)] == key;
+    }
+
+    /**
+     * @return The value for the key, or {@code defaultValue} if absent.
+     */
+    public long get(long key, long defaultValue) {
+        if (key == EMPTY) {
+            return hasEmptyKey ? emptyKeyValue : defaultValue;
+        }
+        int slot = slotOf(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    public void put(long key, long value) {
+        if (key == EMPTY) {
+            hasEmptyKey = true;
+            emptyKeyValue = value;
+            return;
+        }
+        int slot = slotOf(key);
+        if (keys[slot] != key) {
+            keys[slot] = key;
+            if (++size > resizeAt) {
+                values[slot] = value;
+                rehash(keys.length << 1);
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Adds {@code delta} to the key's value, treating an absent key as 0.
+     *
+     * @return The new value.
+     */
+    public long addTo(long key, long delta) {
+        long value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * Removes the key if present.
+     *
+     * @return true if the key was present.
+     */
+    public boolean remove(long key) {
+        if (key == EMPTY) {
+            boolean had = hasEmptyKey;
+            hasEmptyKey = false;
+            return had;
+        }
+        int slot = slotOf(key);
+        if (keys[slot] != key) {
+            return false;
+        }
+        // Backward-shift deletion keeps probe sequences intact without tombstones
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int ideal = mix(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes all entries. The table keeps enough capacity for as many entries
+     * as it held, so a map refilled at a steady rate does not regrow each time,
+     * but shrinks after a burst so the burst does not pin memory forever.
+     */
+    public void clear() {
+        int capacity = Math.max(initialCapacity, tableSizeFor(size));
+        size = 0;
+        hasEmptyKey = false;
+        if (capacity < keys.length) {
+            allocate(capacity);
+        } else {
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    /**
+     * Calls the consumer for every entry, in no particular order.
+     */
+    public void forEach(LongLongConsumer consumer) {
+        if (hasEmptyKey) {
+            consumer.accept(EMPTY, emptyKeyValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * @return Approximate heap footprint of the table in bytes.
+     */
+    public long footprintBytes() {
+        return 16L * keys.length;
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot where it would go.
+     */
+    private int slotOf(long key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @return Power-of-two table size that holds the entries under the load factor.
+     */
+    static int tableSizeFor(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(1, expectedSize) / LOAD_FACTOR) + 1;
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    /**
+     * Murmur3's 64-bit finaliser, folded to an int.
+     */
+    static int mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,463 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hash table of taps keyed by PAN, kept outside the Java heap in
+ * memory-mapped temporary files, so the number of entries is bounded by disk
+ * and the page cache rather than the heap. Taps are appended as records to a
+ * data file; an index file of 16-byte slots (key hash, record address) is
+ * probed linearly, and removals shift later slots back instead of leaving
+ * tombstones. Space left by removed or replaced records is reclaimed by
+ * copying the live records to a new data file once it outweighs them.
+ * Files are mapped in segments of up to 256 MB and deleted on close.
+ * Instances are not thread-safe.
+ */
+public class MappedTapTable implements AutoCloseable {
+
+    private static final int SEGMENT_BITS = 28;
+    private static final long SEGMENT_BYTES = 1L << SEGMENT_BITS;
+    private static final long MIN_MAPPING_BYTES = 1 << 20;
+    private static final int SLOT_BYTES = 16;
+    private static final long INITIAL_CAPACITY = 1 << 14;
+    private static final int MAX_STRING_BYTES = 0xFFFE;
+    private static final int NULL_STRING = 0xFFFF;
+    private static final TapType[] TAP_TYPES = TapType.values();
+    private static final Stop[] STOPS = Stop.values();
+
+    private final Path directory;
+    private Region index;
+    private long capacity;
+    private long size;
+    private Region data;
+    private long dataEnd;
+    private long garbageBytes;
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    /**
+     * @param directory Directory for the temporary files.
+     * @throws IOException if the files cannot be created.
+     */
+    public MappedTapTable(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.capacity = INITIAL_CAPACITY;
+        this.index = new Region(directory, "open-taps-index-", capacity * SLOT_BYTES);
+        this.data = new Region(directory, "open-taps-data-", MIN_MAPPING_BYTES);
+    }
+
+    /**
+     * @return The tap stored for the PAN, or null if none.
+     */
+    public Tap get(String pan) {
+        byte[] key = pan.getBytes(StandardCharsets.UTF_8);
+        long slot = find(PanKeys.hash64(pan), key);
+        return slot < 0 ? null : readTap(index.getLong(slot * SLOT_BYTES + 8) - 1);
+    }
+
+    /**
+     * Stores a tap for a PAN, replacing any tap already stored for it.
+     *
+     * @throws UncheckedIOException if the files cannot be grown.
+     */
+    public void put(String pan, Tap tap) {
+        byte[] key = pan.getBytes(StandardCharsets.UTF_8);
+        long hash = PanKeys.hash64(pan);
+        long address = append(key, tap);
+        long slot = find(hash, key);
+        if (slot >= 0) {
+            long old = index.getLong(slot * SLOT_BYTES + 8) - 1;
+            garbageBytes += data.getInt(old);
+            index.putLong(slot * SLOT_BYTES + 8, address + 1);
+        } else {
+            if ((size + 1) * 10 > capacity * 7) {
+                resizeIndex(capacity * 2);
+            }
+            slot = hash & (capacity - 1);
+            while (index.getLong(slot * SLOT_BYTES + 8) != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            index.putLong(slot * SLOT_BYTES, hash);
+            index.putLong(slot * SLOT_BYTES + 8, address + 1);
+            size++;
+        }
+        if (garbageBytes > MIN_MAPPING_BYTES && garbageBytes > dataEnd - garbageBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes the tap stored for a PAN.
+     *
+     * @return The removed tap, or null if none was stored.
+     */
+    public Tap remove(String pan) {
+        byte[] key = pan.getBytes(StandardCharsets.UTF_8);
+        long slot = find(PanKeys.hash64(pan), key);
+        if (slot < 0) {
+            return null;
+        }
+        long address = index.getLong(slot * SLOT_BYTES + 8) - 1;
+        Tap tap = readTap(address);
+        garbageBytes += data.getInt(address);
+        deleteSlot(slot);
+        size--;
+        return tap;
+    }
+
+    /**
+     * @return Number of taps stored.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return Bytes of live records and index slots, i.e. the space the table
+     *         would need if compacted.
+     */
+    public long usedBytes() {
+        return dataEnd - garbageBytes + capacity * SLOT_BYTES;
+    }
+
+    /**
+     * @return Bytes currently mapped for the data and index files.
+     */
+    public long mappedBytes() {
+        return data.mappedBytes() + index.mappedBytes();
+    }
+
+    /**
+     * Passes every stored tap to the consumer, in no particular order.
+     */
+    public void forEach(Consumer<Tap> consumer) {
+        for (long slot = 0; slot < capacity; slot++) {
+            long address = index.getLong(slot * SLOT_BYTES + 8);
+            if (address != 0) {
+                consumer.accept(readTap(address - 1));
+            }
+        }
+    }
+
+    /**
+     * Removes every tap and shrinks the files back to their initial size.
+     */
+    public void clear() {
+        try {
+            Region oldIndex = index;
+            Region oldData = data;
+            capacity = INITIAL_CAPACITY;
+            index = new Region(directory, "open-taps-index-", capacity * SLOT_BYTES);
+            data = new Region(directory, "open-taps-data-", MIN_MAPPING_BYTES);
+            oldIndex.close();
+            oldData.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+        dataEnd = 0;
+        garbageBytes = 0;
+    }
+
+    /**
+     * Deletes the files. Their mappings are released once garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        index.close();
+        data.close();
+    }
+
+    /**
+     * @return The slot holding the key, or -1 if none.
+     */
+    private long find(long hash, byte[] key) {
+        long slot = hash & (capacity - 1);
+        long address;
+        while ((address = index.getLong(slot * SLOT_BYTES + 8)) != 0) {
+            if (index.getLong(slot * SLOT_BYTES) == hash && keyEquals(address - 1, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot, moving back any later slot in the same probe run that
+     * could no longer be found past the gap.
+     */
+    private void deleteSlot(long slot) {
+        long gap = slot;
+        long next = (gap + 1) & (capacity - 1);
+        long address;
+        while ((address = index.getLong(next * SLOT_BYTES + 8)) != 0) {
+            long hash = index.getLong(next * SLOT_BYTES);
+            long home = hash & (capacity - 1);
+            // Move the entry back if its home slot is not cyclically within (gap, next]
+            if (((next - home) & (capacity - 1)) >= ((next - gap) & (capacity - 1))) {
+                index.putLong(gap * SLOT_BYTES, hash);
+                index.putLong(gap * SLOT_BYTES + 8, address);
+                gap = next;
+            }
+            next = (next + 1) & (capacity - 1);
+        }
+        index.putLong(gap * SLOT_BYTES, 0);
+        index.putLong(gap * SLOT_BYTES + 8, 0);
+    }
+
+    private void resizeIndex(long newCapacity) {
+        try {
+            Region oldIndex = index;
+            long oldCapacity = capacity;
+            index = new Region(directory, "open-taps-index-", newCapacity * SLOT_BYTES);
+            capacity = newCapacity;
+            for (long slot = 0; slot < oldCapacity; slot++) {
+                long address = oldIndex.getLong(slot * SLOT_BYTES + 8);
+                if (address != 0) {
+                    insertSlot(oldIndex.getLong(slot * SLOT_BYTES), address);
+                }
+            }
+            oldIndex.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void insertSlot(long hash, long address) {
+        long slot = hash & (capacity - 1);
+        while (index.getLong(slot * SLOT_BYTES + 8) != 0) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        index.putLong(slot * SLOT_BYTES, hash);
+        index.putLong(slot * SLOT_BYTES + 8, address);
+    }
+
+    /**
+     * Copies the live records to a new data file, updating the index in place.
+     */
+    private void compact() {
+        try {
+            Region oldData = data;
+            data = new Region(directory, "open-taps-data-", Math.max(MIN_MAPPING_BYTES, dataEnd - garbageBytes));
+            dataEnd = 0;
+            garbageBytes = 0;
+            byte[] record = new byte[256];
+            for (long slot = 0; slot < capacity; slot++) {
+                long address = index.getLong(slot * SLOT_BYTES + 8);
+                if (address != 0) {
+                    int length = oldData.getInt(address - 1);
+                    if (record.length < length) {
+                        record = new byte[length];
+                    }
+                    oldData.getBytes(address - 1, record, length);
+                    index.putLong(slot * SLOT_BYTES + 8, appendRecord(record, length) + 1);
+                }
+            }
+            oldData.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends a record: total length, PAN, time, tap type and stop ordinals,
+     * then ID, company and bus. Strings are UTF-8 with a 2-byte length.
+     *
+     * @return The record's address.
+     */
+    private long append(byte[] key, Tap tap) {
+        scratch.clear();
+        scratch.putInt(0);
+        putString(key);
+        ensureScratch(10);
+        scratch.putLong(tap.dateTimeEpochSecond());
+        scratch.put(tap.tapType() == null ? -1 : (byte) tap.tapType().ordinal());
+        scratch.put(tap.stopId() == null ? -1 : (byte) tap.stopId().ordinal());
+        putString(tap.id() == null ? null : tap.id().getBytes(StandardCharsets.UTF_8));
+        putString(tap.companyId() == null ? null : tap.companyId().getBytes(StandardCharsets.UTF_8));
+        putString(tap.busId() == null ? null : tap.busId().getBytes(StandardCharsets.UTF_8));
+        int length = scratch.position();
+        scratch.putInt(0, length);
+        return appendRecord(scratch.array(), length);
+    }
+
+    private long appendRecord(byte[] record, int length) {
+        long address = dataEnd;
+        long segmentEnd = (address | (SEGMENT_BYTES - 1)) + 1;
+        if (address + length > segmentEnd) {
+            address = segmentEnd; // Records never straddle two mappings
+        }
+        try {
+            data.ensureCapacity(address + length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        data.putBytes(address, record, length);
+        garbageBytes += address - dataEnd;
+        dataEnd = address + length;
+        return address;
+    }
+
+    private void putString(byte[] bytes) {
+        if (bytes == null) {
+            ensureScratch(2);
+            scratch.putShort((short) NULL_STRING);
+            return;
+        }
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Tap field too long to store: " + bytes.length + " bytes");
+        }
+        ensureScratch(2 + bytes.length);
+        scratch.putShort((short) bytes.length);
+        scratch.put(bytes);
+    }
+
+    private void ensureScratch(int bytes) {
+        if (scratch.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + bytes));
+            larger.put(scratch.array(), 0, scratch.position());
+            scratch = larger;
+        }
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        int length = data.getShort(address + 4) & 0xFFFF;
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data.get(address + 6 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Tap readTap(long address) {
+        long position = address + 4;
+        String pan = readString(position);
+        position += 2 + (data.getShort(position) & 0xFFFF);
+        long time = data.getLong(position);
+        byte tapType = data.get(position + 8);
+        byte stop = data.get(position + 9);
+        position += 10;
+        String id = readString(position);
+        position += 2 + stringBytes(position);
+        String company = readString(position);
+        position += 2 + stringBytes(position);
+        String bus = readString(position);
+        return new Tap(id, time, tapType < 0 ? null : TAP_TYPES[tapType], stop < 0 ? null : STOPS[stop], company,
+                bus, pan);
+    }
+
+    private int stringBytes(long position) {
+        int length = data.getShort(position) & 0xFFFF;
+        return length == NULL_STRING ? 0 : length;
+    }
+
+    private String readString(long position) {
+        int length = data.getShort(position) & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.getBytes(position + 2, bytes, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A temporary file mapped in segments of {@link #SEGMENT_BYTES}. While the
+     * file is smaller than one segment, it is a single mapping that is
+     * replaced by a larger one as it grows.
+     */
+    private static final class Region implements AutoCloseable {
+        private final Path file;
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private long mappedBytes;
+
+        Region(Path directory, String prefix, long initialBytes) throws IOException {
+            this.file = Files.createTempFile(directory, prefix, ".tmp");
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ensureCapacity(initialBytes);
+        }
+
+        void ensureCapacity(long bytes) throws IOException {
+            if (bytes <= mappedBytes) {
+                return;
+            }
+            if (mappedBytes < SEGMENT_BYTES) {
+                long size = Math.max(MIN_MAPPING_BYTES, Long.highestOneBit(Math.min(bytes, SEGMENT_BYTES) - 1) << 1);
+                segments.clear();
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                mappedBytes = size;
+            }
+            while (mappedBytes < bytes) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, mappedBytes, SEGMENT_BYTES));
+                mappedBytes += SEGMENT_BYTES;
+            }
+        }
+
+        long mappedBytes() {
+            return mappedBytes;
+        }
+
+        private MappedByteBuffer segment(long address) {
+            return segments.get((int) (address >>> SEGMENT_BITS));
+        }
+
+        private static int offset(long address) {
+            return (int) (address & (SEGMENT_BYTES - 1));
+        }
+
+        byte get(long address) {
+            return segment(address).get(offset(address));
+        }
+
+        short getShort(long address) {
+            return segment(address).getShort(offset(address));
+        }
+
+        int getInt(long address) {
+            return segment(address).getInt(offset(address));
+        }
+
+        long getLong(long address) {
+            return segment(address).getLong(offset(address));
+        }
+
+        void putLong(long address, long value) {
+            segment(address).putLong(offset(address), value);
+        }
+
+        void getBytes(long address, byte[] bytes, int length) {
+            segment(address).get(offset(address), bytes, 0, length);
+        }
+
+        void putBytes(long address, byte[] bytes, int length) {
+            segment(address).put(offset(address), bytes, 0, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            segments.clear();
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package littlepay.util;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches how full the heap is after garbage collection and tells the stages
+ * that hold data in memory when to give some up. The heap is under pressure
+ * from when the live data after a collection first exceeds the high threshold
+ * (reported by a {@link java.lang.management.MemoryMXBean} collection usage
+ * threshold notification, or seen after any collection) until a collection
+ * leaves it below the low threshold. Stages poll {@link #underPressure()},
+ * which is a volatile read, and use {@link #pressureSignals()} and
+ * {@link #collections()} to react once per collection rather than once per
+ * call. Only usage after a collection counts, since the heap is routinely
+ * full of garbage just before one.
+ */
+public class MemoryGovernor implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryGovernor.class.getName());
+
+    private final double highFraction;
+    private final double lowFraction;
+    private final NotificationListener listener = this::handleNotification;
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final AtomicLong collections = new AtomicLong();
+    private final AtomicLong pressureSignals = new AtomicLong();
+    private final AtomicLong episodes = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized, so waiting virtual threads unmount
+    private final Condition relieved = lock.newCondition();
+    private volatile boolean underPressure;
+    private volatile double peakUsedFraction;
+
+    /**
+     * Starts watching the heap.
+     *
+     * @param highFraction Fraction of the maximum heap, after a collection,
+     *                     above which the heap is under pressure, e.g. 0.8.
+     *                     Pressure ends below 80% of this fraction.
+     * @throws IllegalArgumentException if the fraction is not between 0 and 1.
+     */
+    public MemoryGovernor(double highFraction) {
+        this(highFraction, true);
+    }
+
+    MemoryGovernor(double highFraction, boolean listen) {
+        if (!(highFraction > 0 && highFraction < 1)) {
+            throw new IllegalArgumentException("Heap threshold must be between 0 and 1: " + highFraction);
+        }
+        this.highFraction = highFraction;
+        this.lowFraction = highFraction * 0.8;
+        if (!listen) {
+            return;
+        }
+        // Young pools are routinely full after a collection; only the old generation shows the live data
+        MemoryPoolMXBean oldGeneration = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && (oldGeneration == null || pool.getUsage().getMax() > oldGeneration.getUsage().getMax())) {
+                oldGeneration = pool;
+            }
+        }
+        if (oldGeneration != null && oldGeneration.getUsage().getMax() > 0) {
+            oldGeneration.setCollectionUsageThreshold((long) (oldGeneration.getUsage().getMax() * highFraction));
+        }
+        addListener(ManagementFactory.getMemoryMXBean());
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            addListener(collector);
+        }
+    }
+
+    private void addListener(Object bean) {
+        if (bean instanceof NotificationEmitter emitter) {
+            emitter.addNotificationListener(listener, null, null);
+            emitters.add(emitter);
+        }
+    }
+
+    /**
+     * @return Whether stages should shed memory they can do without.
+     */
+    public boolean underPressure() {
+        return underPressure;
+    }
+
+    /**
+     * @return Number of collections seen so far.
+     */
+    public long collections() {
+        return collections.get();
+    }
+
+    /**
+     * @return Number of collections after which the heap was over the high
+     *         threshold. Grows on every such collection, not just the first,
+     *         so that stages keep shedding while the pressure lasts.
+     */
+    public long pressureSignals() {
+        return pressureSignals.get();
+    }
+
+    /**
+     * @return Number of times the heap has come under pressure.
+     */
+    public long episodes() {
+        return episodes.get();
+    }
+
+    /**
+     * @return Highest fraction of the maximum heap in use after a collection.
+     */
+    public double peakUsedFraction() {
+        return peakUsedFraction;
+    }
+
+    /**
+     * Waits until the heap is no longer under pressure, at most the given
+     * time, e.g. before reading more input.
+     *
+     * @return Whether the heap is no longer under pressure.
+     */
+    public boolean awaitRelief(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (underPressure && remaining > 0) {
+                remaining = relieved.awaitNanos(remaining);
+            }
+            return !underPressure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return A one-line summary of the pressure seen.
+     */
+    public String describe() {
+        return String.format("heap peaked at %.0f%% of its maximum after a collection; over %.0f%% %d times",
+                peakUsedFraction * 100, highFraction * 100, episodes.get());
+    }
+
+    /**
+     * Stops watching the heap.
+     */
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // Already removed
+            }
+        }
+        emitters.clear();
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+        try {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData());
+                long used = 0;
+                for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                    if (isHeapPool(pool.getKey())) {
+                        used += pool.getValue().getUsed();
+                    }
+                }
+                afterCollection((double) used / Runtime.getRuntime().maxMemory());
+            } else if (notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                // Usually arrives with the notification of the same collection, so only start the pressure
+                MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+                double usedFraction = (double) info.getUsage().getUsed() / Runtime.getRuntime().maxMemory();
+                if (usedFraction >= highFraction) {
+                    startPressure(usedFraction);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read a memory notification", e);
+        }
+    }
+
+    private static boolean isHeapPool(String name) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals(name)) {
+                return pool.getType() == MemoryType.HEAP;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the fraction of the maximum heap in use after a collection.
+     */
+    void afterCollection(double usedFraction) {
+        peakUsedFraction = Math.max(peakUsedFraction, usedFraction);
+        collections.incrementAndGet();
+        if (usedFraction >= highFraction) {
+            pressureSignals.incrementAndGet();
+            startPressure(usedFraction);
+        } else if (underPressure && usedFraction < lowFraction) {
+            lock.lock();
+            try {
+                underPressure = false;
+                relieved.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void startPressure(double usedFraction) {
+        lock.lock();
+        try {
+            if (underPressure) {
+                return;
+            }
+            underPressure = true;
+            episodes.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        LOGGER.info(String.format("Heap at %.0f%% of its maximum after a collection; shedding memory",
+                usedFraction * 100));
+    }
+}
@@ -0,0 +1,56 @@
+package littlepay.util;
+
+/**
+ * Maps card PANs onto primitive {@code long} keys for compact per-card state.
+ * PANs are digit strings of at most 19 digits, which always fit in an unsigned
+ * 64-bit value, so in the common case the key is the PAN itself and exact.
+ */
+public final class PanKeys {
+
+    /**
+     * Returned for PANs that have no exact numeric key. Every 19-digit value is
+     * below 10^19, so this value (2^64 - 1 unsigned) is never a real key.
+     */
+    public static final long NO_NUMERIC_KEY = -1L;
+
+    private PanKeys() {
+    }
+
+    /**
+     * @return The PAN as an unsigned numeric key, or {@link #NO_NUMERIC_KEY} if
+     *         it is not 1-19 digits without a leading zero (a leading zero would
+     *         make "0123" and "123" share a key).
+     */
+    public static long numericKey(String pan) {
+        int length = pan.length();
+        if (length == 0 || length > 19 || (pan.charAt(0) == '0' && length > 1)) {
+            return NO_NUMERIC_KEY;
+        }
+        long key = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_NUMERIC_KEY;
+            }
+            key = key * 10 + (c - '0'); // Wraps into the unsigned range for 19 digits
+        }
+        return key;
+    }
+
+    /**
+     * A 64-bit hash of any string, for callers that can tolerate (vanishingly
+     * rare) collisions, such as Bloom filters and partitioning.
+     */
+    public static long hash64(CharSequence text) {
+        long h = 0xcbf29ce484222325L; // FNV-1a offset basis
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // Finalise so that nearby strings spread across all bits
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,358 @@
+package littlepay.util;
+
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead counters and timings for a single pipeline run.
+ * All counters are {@link LongAdder}s so that concurrent stages can record
+ * without contending on a shared cache line. The collected values can be
+ * exported as a JSON summary or in the Prometheus text exposition format.
+ */
+public class PipelineMetrics {
+
+    private final LongAdder rowsParsed = new LongAdder();
+    private final Map<SkipReason, LongAdder> rowsSkipped = new EnumMap<>(SkipReason.class);
+    private final Map<TripStatus, LongAdder> tripsByStatus = new EnumMap<>(TripStatus.class);
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LatencyHistogram rowParseNanos = new LatencyHistogram();
+    private final Map<String, StageStats> stages = new LinkedHashMap<>();
+    private volatile long openTapsOnHeap;
+    private volatile long openTapsSpilled;
+    private volatile long openTapSpillBytes;
+    private volatile long openTapsPeak;
+
+    public PipelineMetrics() {
+        for (SkipReason reason : SkipReason.values()) {
+            rowsSkipped.put(reason, new LongAdder());
+        }
+        for (TripStatus status : TripStatus.values()) {
+            tripsByStatus.put(status, new LongAdder());
+        }
+    }
+
+    public void rowParsed(long parseNanos) {
+        rowsParsed.increment();
+        rowParseNanos.record(parseNanos);
+    }
+
+    public void rowSkipped(SkipReason reason) {
+        rowsSkipped.get(reason).increment();
+    }
+
+    public void tripsProduced(List<Trip> trips) {
+        for (Trip trip : trips) {
+            tripProduced(trip);
+        }
+    }
+
+    public void tripProduced(Trip trip) {
+        tripsByStatus.get(trip.status()).increment();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Records how many unmatched ON taps are held on and off the heap. Called
+     * from a single thread.
+     */
+    public void openTaps(long onHeap, long spilled, long spillBytes) {
+        openTapsOnHeap = onHeap;
+        openTapsSpilled = spilled;
+        openTapSpillBytes = spillBytes;
+        openTapsPeak = Math.max(openTapsPeak, onHeap + spilled);
+    }
+
+    public long openTapsPeak() {
+        return openTapsPeak;
+    }
+
+    public long rowsParsed() {
+        return rowsParsed.sum();
+    }
+
+    public long rowsSkipped(SkipReason reason) {
+        return rowsSkipped.get(reason).sum();
+    }
+
+    public long trips(TripStatus status) {
+        return tripsByStatus.get(status).sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public LatencyHistogram rowParseLatency() {
+        return rowParseNanos;
+    }
+
+    /**
+     * Starts timing a named pipeline stage on the calling thread. Wall time, CPU
+     * time and (where the JVM supports it) allocated bytes are accumulated into
+     * the stage when the returned timer is closed. Work the stage hands to
+     * other threads is only counted if they run it through
+     * {@link StageTimer#runOnWorker(Runnable)}.
+     *
+     * @param stage Stage name, e.g. "read".
+     * @return Timer to close when the stage finishes.
+     */
+    public StageTimer startStage(String stage) {
+        StageStats stats;
+        synchronized (stages) {
+            stats = stages.computeIfAbsent(stage, k -> new StageStats());
+        }
+        return new StageTimer(stage, stats);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n");
+        json.append("  \"rowsParsed\": ").append(rowsParsed()).append(",\n");
+        json.append("  \"rowsSkipped\": {");
+        appendEnumCounts(json, rowsSkipped);
+        json.append("},\n");
+        json.append("  \"tripsByStatus\": {");
+        appendEnumCounts(json, tripsByStatus);
+        json.append("},\n");
+        json.append("  \"bytesRead\": ").append(bytesRead()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten()).append(",\n");
+        json.append("  \"rowParseNanos\": {")
+                .append("\"count\": ").append(rowParseNanos.count())
+                .append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", rowParseNanos.mean()))
+                .append(", \"p50\": ").append(rowParseNanos.percentile(50))
+                .append(", \"p99\": ").append(rowParseNanos.percentile(99))
+                .append(", \"p999\": ").append(rowParseNanos.percentile(99.9))
+                .append(", \"max\": ").append(rowParseNanos.max())
+                .append("},\n");
+        json.append("  \"openTaps\": {")
+                .append("\"onHeap\": ").append(openTapsOnHeap)
+                .append(", \"spilled\": ").append(openTapsSpilled)
+                .append(", \"spillBytes\": ").append(openTapSpillBytes)
+                .append(", \"peak\": ").append(openTapsPeak)
+                .append("},\n");
+        json.append("  \"stages\": {");
+        boolean first = true;
+        for (Map.Entry<String, StageStats> entry : snapshotStages().entrySet()) {
+            StageStats stats = entry.getValue();
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("    \"").append(entry.getKey()).append("\": {")
+                    .append("\"invocations\": ").append(stats.invocations.sum())
+                    .append(", \"wallNanos\": ").append(stats.wallNanos.sum())
+                    .append(", \"cpuNanos\": ").append(stats.cpuNanos.sum())
+                    .append(", \"allocatedBytes\": ").append(stats.allocatedBytes.sum())
+                    .append(", \"allocationRateBytesPerSec\": ").append(stats.allocationRate())
+                    .append("}");
+        }
+        json.append(first ? "}\n" : "\n  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder(1024);
+        text.append("# TYPE littlepay_rows_parsed_total counter\n");
+        text.append("littlepay_rows_parsed_total ").append(rowsParsed()).append('\n');
+        text.append("# TYPE littlepay_rows_skipped_total counter\n");
+        for (Map.Entry<SkipReason, LongAdder> entry : rowsSkipped.entrySet()) {
+            text.append("littlepay_rows_skipped_total{reason=\"").append(entry.getKey().name().toLowerCase())
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+        text.append("# TYPE littlepay_trips_total counter\n");
+        for (Map.Entry<TripStatus, LongAdder> entry : tripsByStatus.entrySet()) {
+            text.append("littlepay_trips_total{status=\"").append(entry.getKey().name().toLowerCase())
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+        text.append("# TYPE littlepay_bytes_read_total counter\n");
+        text.append("littlepay_bytes_read_total ").append(bytesRead()).append('\n');
+        text.append("# TYPE littlepay_bytes_written_total counter\n");
+        text.append("littlepay_bytes_written_total ").append(bytesWritten()).append('\n');
+        text.append("# TYPE littlepay_row_parse_seconds summary\n");
+        for (double quantile : new double[] { 0.5, 0.99, 0.999 }) {
+            text.append("littlepay_row_parse_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(rowParseNanos.percentile(quantile * 100) / 1e9).append('\n');
+        }
+        text.append("littlepay_row_parse_seconds_count ").append(rowParseNanos.count()).append('\n');
+        text.append("# TYPE littlepay_open_taps gauge\n");
+        text.append("littlepay_open_taps{tier=\"heap\"} ").append(openTapsOnHeap).append('\n');
+        text.append("littlepay_open_taps{tier=\"spilled\"} ").append(openTapsSpilled).append('\n');
+        text.append("# TYPE littlepay_open_tap_spill_bytes gauge\n");
+        text.append("littlepay_open_tap_spill_bytes ").append(openTapSpillBytes).append('\n');
+        text.append("# TYPE littlepay_stage_wall_seconds counter\n");
+        Map<String, StageStats> snapshot = snapshotStages();
+        for (Map.Entry<String, StageStats> entry : snapshot.entrySet()) {
+            text.append("littlepay_stage_wall_seconds{stage=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().wallNanos.sum() / 1e9).append('\n');
+        }
+        text.append("# TYPE littlepay_stage_cpu_seconds counter\n");
+        for (Map.Entry<String, StageStats> entry : snapshot.entrySet()) {
+            text.append("littlepay_stage_cpu_seconds{stage=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().cpuNanos.sum() / 1e9).append('\n');
+        }
+        text.append("# TYPE littlepay_stage_allocated_bytes_total counter\n");
+        for (Map.Entry<String, StageStats> entry : snapshot.entrySet()) {
+            text.append("littlepay_stage_allocated_bytes_total{stage=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().allocatedBytes.sum()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private Map<String, StageStats> snapshotStages() {
+        synchronized (stages) {
+            return new LinkedHashMap<>(stages);
+        }
+    }
+
+    private static <E extends Enum<E>> void appendEnumCounts(StringBuilder json, Map<E, LongAdder> counts) {
+        boolean first = true;
+        for (Map.Entry<E, LongAdder> entry : counts.entrySet()) {
+            if (!first) {
+                json.append(", ");
+            }
+            first = false;
+            json.append('"').append(entry.getKey().name()).append("\": ").append(entry.getValue().sum());
+        }
+    }
+
+    private static final class StageStats {
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder wallNanos = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        private long allocationRate() {
+            long wall = wallNanos.sum();
+            return wall == 0 ? 0 : (long) (allocatedBytes.sum() * 1e9 / wall);
+        }
+    }
+
+    /**
+     * Measures one invocation of a stage on the thread that created it, plus
+     * the CPU time and allocation of work it runs on other threads through
+     * {@link #runOnWorker(Runnable)}. Each invocation is also emitted as a
+     * {@link PipelineStageEvent} when a JFR recording with that event enabled
+     * is running.
+     */
+    public static final class StageTimer implements AutoCloseable {
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        private static final com.sun.management.ThreadMXBean SUN_THREADS = THREADS instanceof com.sun.management.ThreadMXBean sun
+                && sun.isThreadAllocatedMemorySupported() ? sun : null;
+
+        private static final ThreadLocal<StageTimer> CURRENT = new ThreadLocal<>();
+
+        private final StageStats stats;
+        private final PipelineStageEvent event;
+        private final Thread owner;
+        private final StageTimer enclosing;
+        private final LongAdder workerCpuNanos = new LongAdder();
+        private final LongAdder workerAllocatedBytes = new LongAdder();
+        private final long startWall;
+        private final long startCpu;
+        private final long startAllocated;
+
+        private StageTimer(String stage, StageStats stats) {
+            this.stats = stats;
+            this.owner = Thread.currentThread();
+            this.enclosing = CURRENT.get();
+            CURRENT.set(this);
+            this.event = new PipelineStageEvent();
+            this.event.stage = stage;
+            this.startCpu = cpuTime();
+            this.startAllocated = allocatedBytes();
+            this.event.begin();
+            this.startWall = System.nanoTime();
+        }
+
+        /**
+         * Sets the number of rows handled by this invocation.
+         */
+        public StageTimer rows(long rowCount) {
+            event.rowCount = rowCount;
+            return this;
+        }
+
+        /**
+         * Sets the number of bytes read or written by this invocation.
+         */
+        public StageTimer bytes(long bytes) {
+            event.bytes = bytes;
+            return this;
+        }
+
+        /**
+         * @return The stage being timed on the calling thread, or null if there
+         * is none.
+         */
+        public static StageTimer current() {
+            return CURRENT.get();
+        }
+
+        /**
+         * Runs part of this stage's work, such as a task in a thread pool, and
+         * adds the CPU time and allocation of the thread running it to the
+         * stage's. Work run on the thread timing the stage is counted already.
+         */
+        public void runOnWorker(Runnable work) {
+            if (Thread.currentThread() == owner) {
+                work.run();
+                return;
+            }
+            long cpu = cpuTime();
+            long allocated = allocatedBytes();
+            try {
+                work.run();
+            } finally {
+                workerCpuNanos.add(Math.max(0, cpuTime() - cpu));
+                workerAllocatedBytes.add(Math.max(0, allocatedBytes() - allocated));
+            }
+        }
+
+        @Override
+        public void close() {
+            long wall = System.nanoTime() - startWall;
+            if (enclosing != null) {
+                CURRENT.set(enclosing);
+            } else {
+                CURRENT.remove();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+            stats.invocations.increment();
+            stats.wallNanos.add(wall);
+            stats.cpuNanos.add(Math.max(0, cpuTime() - startCpu) + workerCpuNanos.sum());
+            stats.allocatedBytes.add(Math.max(0, allocatedBytes() - startAllocated) + workerAllocatedBytes.sum());
+        }
+
+        private static long cpuTime() {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+        }
+
+        private static long allocatedBytes() {
+            return SUN_THREADS != null ? SUN_THREADS.getThreadAllocatedBytes(Thread.currentThread().threadId()) : 0;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package littlepay.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one batch of a pipeline stage (read, match,
+ * write, ...). Emitted by {@link PipelineMetrics.StageTimer}; the event's
+ * duration is the stage's wall time. When no recording has the event enabled,
+ * creating and committing it costs next to nothing.
+ */
+@Name(PipelineStageEvent.NAME)
+@Label("Pipeline Stage")
+@Category({ "Littlepay", "Pipeline" })
+@Description("One batch processed by a stage of the fare calculation pipeline")
+@StackTrace(false)
+public class PipelineStageEvent extends jdk.jfr.Event {
+
+    public static final String NAME = "littlepay.PipelineStage";
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Row Count")
+    long rowCount;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
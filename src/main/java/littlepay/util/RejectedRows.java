@@ -0,0 +1,262 @@
+package littlepay.util;
+
+import com.opencsv.CSVWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Collects rows skipped by {@link CsvReader}.
+ * Every rejected row is counted by {@link SkipReason}. Only a rate-limited
+ * sample is logged, and log messages are only built, and rows read by
+ * {@link CsvReader} only turned into strings, for rows that are actually
+ * logged or written out, so a feed with millions of bad rows costs little
+ * more to parse than a clean one. Optionally, every rejected row is written to a
+ * reject file by a background thread, with its line number, reason and
+ * original content.
+ */
+public class RejectedRows implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(CsvReader.class.getName());
+    private static final String[] REJECT_FILE_HEADER = { "LineNumber", "Reason", "Detail", "Row" };
+    private static final int DEFAULT_BURST = 10;
+    private static final long DEFAULT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final Rejection END_OF_STREAM = new Rejection(0, null, null, null);
+
+    private record Rejection(long lineNumber, SkipReason reason, String detail, String[] row) {
+    }
+
+    private final PipelineMetrics metrics;
+    private final int burst;
+    private final long intervalNanos;
+    private final Map<SkipReason, LongAdder> counts = new EnumMap<>(SkipReason.class);
+    private final Map<SkipReason, AtomicInteger> logged = new EnumMap<>(SkipReason.class);
+    private final Map<SkipReason, AtomicLong> nextLogNanos = new EnumMap<>(SkipReason.class);
+    private final BlockingQueue<Rejection> queue;
+    private final Thread writerThread;
+    private volatile IOException writeFailure;
+
+    /**
+     * Creates a collector that only counts and samples rejected rows.
+     */
+    public RejectedRows(PipelineMetrics metrics) {
+        this(metrics, (Writer) null, DEFAULT_BURST, DEFAULT_INTERVAL_NANOS);
+    }
+
+    /**
+     * Creates a collector that also writes every rejected row to a file.
+     *
+     * @param metrics    Metrics to count rejected rows in.
+     * @param rejectFile File to write rejected rows to, or null for none.
+     * @throws IOException if the reject file cannot be created.
+     */
+    public RejectedRows(PipelineMetrics metrics, Path rejectFile) throws IOException {
+        this(metrics, openRejectFile(rejectFile), DEFAULT_BURST, DEFAULT_INTERVAL_NANOS);
+    }
+
+    RejectedRows(PipelineMetrics metrics, Writer rejectWriter, int burst, long intervalNanos) {
+        this.metrics = metrics;
+        this.burst = burst;
+        this.intervalNanos = intervalNanos;
+        for (SkipReason reason : SkipReason.values()) {
+            counts.put(reason, new LongAdder());
+            logged.put(reason, new AtomicInteger());
+            nextLogNanos.put(reason, new AtomicLong());
+        }
+        if (rejectWriter == null) {
+            queue = null;
+            writerThread = null;
+        } else {
+            queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            writerThread = new Thread(() -> drainTo(rejectWriter), "rejected-rows-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    private static Writer openRejectFile(Path rejectFile) throws IOException {
+        if (rejectFile == null) {
+            return null;
+        }
+        if (rejectFile.getParent() != null) {
+            Files.createDirectories(rejectFile.getParent());
+        }
+        return Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records a rejected row. The detail is a short fixed description; the
+     * offending value is available from the row itself.
+     *
+     * @param filePath   File the row was read from.
+     * @param lineNumber Line number of the row in the file.
+     * @param reason     Why the row was rejected.
+     * @param detail     Short description of the problem.
+     * @param row        The row's fields as read.
+     */
+    public void reject(String filePath, long lineNumber, SkipReason reason, String detail, String[] row) {
+        record(filePath, lineNumber, reason, detail, row, null);
+    }
+
+    /**
+     * As {@link #reject(String, long, SkipReason, String, String[])}, with
+     * the row still in the reader's buffer; its fields are only copied out if
+     * the row is logged or written to the reject file.
+     */
+    void reject(String filePath, long lineNumber, SkipReason reason, String detail, TapRowView row) {
+        record(filePath, lineNumber, reason, detail, null, row);
+    }
+
+    private void record(String filePath, long lineNumber, SkipReason reason, String detail, String[] fields,
+            TapRowView view) {
+        counts.get(reason).increment();
+        metrics.rowSkipped(reason);
+        AtomicInteger loggedCount = logged.get(reason);
+        if (loggedCount.get() < burst) {
+            int n = loggedCount.incrementAndGet();
+            if (n <= burst) {
+                fields = fields(fields, view);
+                logSample(filePath, lineNumber, detail, fields);
+            }
+            if (n == burst) {
+                nextLogNanos.get(reason).set(System.nanoTime() + intervalNanos);
+                LOGGER.warning("Further " + reason + " rows will only be logged every "
+                        + TimeUnit.NANOSECONDS.toSeconds(intervalNanos) + "s; see the rejected row counts");
+            }
+        } else if (intervalElapsed(reason)) {
+            fields = fields(fields, view);
+            logSample(filePath, lineNumber, detail, fields);
+        }
+        if (queue != null) {
+            enqueue(new Rejection(lineNumber, reason, detail, fields(fields, view)));
+        }
+    }
+
+    private static String[] fields(String[] fields, TapRowView view) {
+        return fields != null ? fields : view.toArray();
+    }
+
+    /**
+     * @return Number of rows rejected for the given reason so far.
+     */
+    public long count(SkipReason reason) {
+        return counts.get(reason).sum();
+    }
+
+    /**
+     * @return Total number of rows rejected so far.
+     */
+    public long total() {
+        long total = 0;
+        for (LongAdder count : counts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    private static void logSample(String filePath, long lineNumber, String detail, String[] row) {
+        LOGGER.warning("Skipping row (" + detail + ") at line " + lineNumber + " in file " + filePath + ": "
+                + String.join(",", row));
+    }
+
+    private boolean intervalElapsed(SkipReason reason) {
+        AtomicLong next = nextLogNanos.get(reason);
+        long now = System.nanoTime();
+        long allowedAt = next.get();
+        return now - allowedAt >= 0 && next.compareAndSet(allowedAt, now + intervalNanos);
+    }
+
+    private void enqueue(Rejection rejection) {
+        try {
+            // Wait for the writer to catch up, unless it has stopped because of an error
+            while (writeFailure == null && writerThread.isAlive()) {
+                if (queue.offer(rejection, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainTo(Writer writer) {
+        List<Rejection> batch = new ArrayList<>(256);
+        try (CSVWriter csvWriter = new CSVWriter(writer)) {
+            csvWriter.writeNext(REJECT_FILE_HEADER, false);
+            boolean done = false;
+            while (!done) {
+                batch.add(queue.take());
+                queue.drainTo(batch, 255);
+                for (Rejection rejection : batch) {
+                    if (rejection == END_OF_STREAM) {
+                        done = true;
+                        break;
+                    }
+                    csvWriter.writeNext(new String[] {
+                            Long.toString(rejection.lineNumber()),
+                            rejection.reason().name(),
+                            rejection.detail(),
+                            String.join(",", rejection.row())
+                    }, false);
+                }
+                batch.clear();
+            }
+            if (csvWriter.checkError()) {
+                writeFailure = new IOException("Failed to write rejected rows file");
+            }
+        } catch (IOException e) {
+            writeFailure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            writeFailure = new IOException("Failed to write rejected rows file", e);
+        } catch (Error e) {
+            writeFailure = new IOException("Failed to write rejected rows file", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Logs a summary of rejected rows and waits for the reject file, if any, to
+     * be fully written.
+     *
+     * @throws IOException if writing the reject file failed.
+     */
+    @Override
+    public void close() throws IOException {
+        long total = total();
+        if (total > 0) {
+            StringBuilder summary = new StringBuilder("Skipped ").append(total).append(" rows:");
+            for (Map.Entry<SkipReason, LongAdder> entry : counts.entrySet()) {
+                summary.append(' ').append(entry.getKey()).append('=').append(entry.getValue().sum());
+            }
+            LOGGER.warning(summary.toString());
+        }
+        if (writerThread != null) {
+            enqueue(END_OF_STREAM);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package littlepay.util;
+
+import littlepay.model.Trip;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a continuous stream of trips to a directory as a series of trips CSV
+ * files, starting a new file when the current one reaches a size or age
+ * limit. Files are named {@code trips-<UTC time opened>-<sequence>.csv} and
+ * each starts with the trips header. A file is written under a {@code .part}
+ * name and only renamed to its final name once complete, so anything picking
+ * up files from the directory only sees whole ones.
+ * Instances are not thread-safe.
+ */
+public class RollingTripWriter implements AutoCloseable {
+
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+    public static final long DEFAULT_MAX_AGE_SECONDS = 3600;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private final TripCsvEncoder encoder = new TripCsvEncoder();
+    private final StringBuilder line = new StringBuilder(192);
+    private Writer writer;
+    private Path partFile;
+    private long fileBytes;
+    private long fileOpenedNanos;
+    private int sequence;
+    private int filesCompleted;
+    private long tripsWritten;
+
+    /**
+     * @param directory     Directory to write the files to; created if needed.
+     * @param maxBytes      Size at which a file is completed and a new one
+     *                      started.
+     * @param maxAgeSeconds Time after which a file is completed, even if it
+     *                      is not full, so trips are not held back on a quiet
+     *                      feed.
+     * @throws IOException if the directory cannot be created.
+     */
+    public RollingTripWriter(Path directory, long maxBytes, long maxAgeSeconds) throws IOException {
+        if (maxBytes <= 0 || maxAgeSeconds <= 0) {
+            throw new IllegalArgumentException("File size and age limits must be positive: " + maxBytes + " bytes, "
+                    + maxAgeSeconds + "s");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    }
+
+    /**
+     * Appends a trip to the current file, opening a new file first if there is
+     * none.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(Trip trip) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        line.setLength(0);
+        encoder.appendTrip(line, trip);
+        writer.append(line);
+        fileBytes += line.length();
+        tripsWritten++;
+        if (fileBytes >= maxBytes) {
+            roll();
+        }
+    }
+
+    /**
+     * Completes the current file if it has reached its age limit, otherwise
+     * flushes it. Call periodically so files are completed on time even when
+     * no trips arrive.
+     *
+     * @throws IOException if the file cannot be written or renamed.
+     */
+    public void tick() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        if (System.nanoTime() - fileOpenedNanos >= maxAgeNanos) {
+            roll();
+        } else {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Completes the current file, if any; the next trip starts a new one.
+     *
+     * @throws IOException if the file cannot be written or renamed.
+     */
+    public void roll() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writer.close();
+        writer = null;
+        String partName = partFile.getFileName().toString();
+        Files.move(partFile, partFile.resolveSibling(partName.substring(0, partName.length() - PART_SUFFIX.length())),
+                StandardCopyOption.ATOMIC_MOVE);
+        filesCompleted++;
+    }
+
+    /**
+     * @return Number of files completed so far.
+     */
+    public int filesCompleted() {
+        return filesCompleted;
+    }
+
+    /**
+     * @return Number of trips written so far.
+     */
+    public long tripsWritten() {
+        return tripsWritten;
+    }
+
+    /**
+     * Completes the current file.
+     */
+    @Override
+    public void close() throws IOException {
+        roll();
+    }
+
+    private void open() throws IOException {
+        String name = String.format("trips-%s-%06d.csv", FILE_TIME.format(Instant.now()), ++sequence);
+        partFile = directory.resolve(name + PART_SUFFIX);
+        // Same charset as the trips file written by a batch run
+        writer = Files.newBufferedWriter(partFile, Charset.defaultCharset());
+        writer.write(TripCsvEncoder.HEADER_LINE);
+        fileBytes = TripCsvEncoder.HEADER_LINE.length();
+        fileOpenedNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,34 @@
+package littlepay.util;
+
+/**
+ * Examines one byte at a time; used when the Vector API is not available.
+ */
+final class ScalarDelimiterScanner implements DelimiterScanner {
+
+    @Override
+    public int scan(byte[] bytes, int from, int to, int[] positions) {
+        return scan(bytes, from, to, positions, 0);
+    }
+
+    /**
+     * Appends offsets after the first {@code count} entries of
+     * {@code positions}.
+     *
+     * @return The new number of entries.
+     */
+    static int scan(byte[] bytes, int from, int to, int[] positions, int count) {
+        for (int i = from; i < to; i++) {
+            switch (bytes[i]) {
+                case ',', '\n', '\r', '"', '\\' -> positions[count++] = i;
+                default -> {
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String description() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,13 @@
+package littlepay.util;
+
+/**
+ * Reasons a row from the taps file can be skipped by {@link CsvReader}.
+ */
+public enum SkipReason {
+    MISSING_COLUMNS,
+    INVALID_DATE,
+    INVALID_VALUE,
+    UNEXPECTED_ERROR,
+    /** Same tap as one already read, see {@link TapDeduplicator}. */
+    DUPLICATE
+}
@@ -0,0 +1,248 @@
+package littlepay.util;
+
+import littlepay.model.Tap;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Detects repeated taps, such as rows replayed by a reader or resent by a
+ * device, by tap ID or optionally by the tap's full content.
+ * Seen keys are kept in two generations, each covering one time window of tap
+ * timestamps; when taps move past the current window the older generation is
+ * recycled, so memory stays flat on a continuous feed. A repeat is always
+ * detected if it is within one window of the original.
+ * Each generation has a blocked Bloom filter in front of an exact set. Most
+ * taps are new, so the older generation's filter almost always rules a key
+ * out with a single cache-line read, and the current generation's exact set
+ * is probed just once, to insert the key.
+ * Instances are not thread-safe.
+ */
+public class TapDeduplicator {
+
+    /** Default window: repeats are expected within seconds, so a day is ample. */
+    public static final long DEFAULT_WINDOW_SECONDS = 86_400;
+
+    private static final int DEFAULT_EXPECTED_TAPS = 1 << 16;
+
+    private final long windowSeconds;
+    private final boolean contentKeys;
+    private Generation current;
+    private Generation previous;
+    private long duplicates;
+
+    /**
+     * Creates a deduplicator keyed on tap ID with the default window.
+     */
+    public TapDeduplicator() {
+        this(DEFAULT_WINDOW_SECONDS, false, DEFAULT_EXPECTED_TAPS);
+    }
+
+    /**
+     * @param windowSeconds         Length of each generation in tap-time
+     *                              seconds, or 0 or less to remember every tap.
+     * @param contentKeys           Whether taps must match in every field, not
+     *                              just the ID, to count as repeats. The content
+     *                              is compared by a 64-bit hash.
+     * @param expectedTapsPerWindow Number of taps per window to size the
+     *                              structures for; they grow if needed.
+     */
+    public TapDeduplicator(long windowSeconds, boolean contentKeys, int expectedTapsPerWindow) {
+        this.windowSeconds = windowSeconds;
+        this.contentKeys = contentKeys;
+        this.current = new Generation(expectedTapsPerWindow);
+        this.previous = new Generation(expectedTapsPerWindow);
+    }
+
+    /**
+     * Checks whether a tap has been seen before, and remembers it if not.
+     * A tap without an ID, e.g. from a file with no ID column, is keyed on
+     * its content even when keying on IDs.
+     *
+     * @return true if the tap repeats one already seen.
+     */
+    public boolean isDuplicate(Tap tap) {
+        advanceTo(tap.dateTimeEpochSecond());
+        boolean byContent = contentKeys || tap.id() == null || tap.id().isBlank();
+        long numericKey = byContent ? contentHash(tap) : PanKeys.numericKey(tap.id());
+        String textKey = null;
+        long filterKey = numericKey;
+        if (numericKey == PanKeys.NO_NUMERIC_KEY && !byContent) {
+            textKey = tap.id();
+            filterKey = PanKeys.hash64(textKey);
+        }
+        if (previous.contains(filterKey, numericKey, textKey) || !current.add(filterKey, numericKey, textKey)) {
+            duplicates++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of taps reported as duplicates so far.
+     */
+    public long duplicates() {
+        return duplicates;
+    }
+
+    private void advanceTo(long epochSecond) {
+        if (windowSeconds <= 0 || epochSecond == EpochTime.NONE) {
+            return;
+        }
+        if (current.startSecond == Long.MIN_VALUE) {
+            current.startSecond = epochSecond;
+            return;
+        }
+        long elapsed = epochSecond - current.startSecond;
+        if (elapsed < windowSeconds) {
+            return;
+        }
+        long newStart = epochSecond - elapsed % windowSeconds;
+        Generation recycled = previous;
+        recycled.clear();
+        if (elapsed >= 2 * windowSeconds) {
+            // Nothing in the current generation is within a window of the new one
+            current.clear();
+        }
+        previous = current;
+        current = recycled;
+        current.startSecond = newStart;
+    }
+
+    private static long contentHash(Tap tap) {
+        long h = PanKeys.hash64(String.valueOf(tap.id()));
+        h = h * 31 + tap.dateTimeEpochSecond();
+        h = h * 31 + (tap.tapType() == null ? -1 : tap.tapType().ordinal());
+        h = h * 31 + (tap.stopId() == null ? -1 : tap.stopId().ordinal());
+        h = h * 31 + PanKeys.hash64(String.valueOf(tap.companyId()));
+        h = h * 31 + PanKeys.hash64(String.valueOf(tap.busId()));
+        h = h * 31 + PanKeys.hash64(String.valueOf(tap.pan()));
+        return h;
+    }
+
+    /**
+     * Keys seen in one window: a Bloom filter plus the exact keys, numeric ones
+     * in a primitive map and any others in a string set.
+     */
+    private static final class Generation {
+        private final BlockedBloomFilter filter;
+        private final LongHashSet numericKeys;
+        private final Set<String> textKeys = new HashSet<>();
+        private long startSecond = Long.MIN_VALUE;
+
+        Generation(int expectedKeys) {
+            this.filter = new BlockedBloomFilter(expectedKeys);
+            this.numericKeys = new LongHashSet(expectedKeys);
+        }
+
+        boolean contains(long filterKey, long numericKey, String textKey) {
+            if (!filter.mightContain(filterKey)) {
+                return false;
+            }
+            return textKey == null ? numericKeys.contains(numericKey) : textKeys.contains(textKey);
+        }
+
+        /**
+         * Adds a key, probing the exact set only once whether or not the filter
+         * has seen it.
+         *
+         * @return false if the key was already present.
+         */
+        boolean add(long filterKey, long numericKey, String textKey) {
+            boolean added = textKey == null ? numericKeys.add(numericKey) : textKeys.add(textKey);
+            if (added && !filter.mightContain(filterKey)) {
+                filter.add(filterKey);
+            }
+            if (numericKeys.size() + textKeys.size() > filter.capacity()) {
+                // Keep the false positive rate down as the window fills up
+                filter.resize(2 * filter.capacity(), this);
+            }
+            return added;
+        }
+
+        void clear() {
+            filter.clear();
+            numericKeys.clear();
+            textKeys.clear();
+            startSecond = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * A Bloom filter that sets all of a key's bits within one 64-bit word, so a
+     * lookup touches a single cache line. With about 10 bits per key and 4 bits
+     * set per key, false positives stay at a few percent, which only costs an extra
+     * exact-set probe.
+     */
+    private static final class BlockedBloomFilter {
+        private static final int BITS_PER_KEY = 10;
+
+        private long[] words;
+        private int capacity;
+
+        BlockedBloomFilter(int expectedKeys) {
+            allocate(Math.max(64, expectedKeys));
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        boolean mightContain(long key) {
+            long hash = mix64(key);
+            long mask = mask(hash);
+            return (words[index(hash)] & mask) == mask;
+        }
+
+        void add(long key) {
+            long hash = mix64(key);
+            words[index(hash)] |= mask(hash);
+        }
+
+        void clear() {
+            Arrays.fill(words, 0);
+        }
+
+        /**
+         * Grows the filter and re-adds every key of the generation.
+         */
+        void resize(int newCapacity, Generation generation) {
+            allocate(newCapacity);
+            generation.numericKeys.forEach(this::add);
+            for (String textKey : generation.textKeys) {
+                add(PanKeys.hash64(textKey));
+            }
+        }
+
+        private void allocate(int newCapacity) {
+            long bits = (long) newCapacity * BITS_PER_KEY;
+            int wordCount = (int) Math.min(1 << 30, Long.highestOneBit(Math.max(1, bits / 64 - 1)) << 1);
+            words = new long[wordCount];
+            capacity = newCapacity;
+        }
+
+        private int index(long hash) {
+            return (int) hash & (words.length - 1);
+        }
+
+        private static long mask(long hash) {
+            // Four bit positions from the top 24 bits, independent of the index bits
+            return (1L << (hash >>> 58)) | (1L << ((hash >>> 52) & 63)) | (1L << ((hash >>> 46) & 63))
+                    | (1L << ((hash >>> 40) & 63));
+        }
+
+        /**
+         * Murmur3's 64-bit finaliser, so that sequential IDs spread over every bit.
+         */
+        private static long mix64(long key) {
+            long h = key;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package littlepay.util;
+
+/**
+ * The columns of the taps file, with the header name of each.
+ */
+public enum TapField {
+    ID("ID"),
+    DATE_TIME("DateTimeUTC"),
+    TAP_TYPE("TapType"),
+    STOP("StopId"),
+    COMPANY("CompanyId"),
+    BUS("BusID"),
+    PAN("PAN");
+
+    private final String header;
+
+    TapField(String header) {
+        this.header = header;
+    }
+
+    /**
+     * @return The column's name in the header row.
+     */
+    public String header() {
+        return header;
+    }
+}
@@ -0,0 +1,107 @@
+package littlepay.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Where each {@link TapField} is in a row of the taps file. The layout is
+ * taken from the header row, so the columns can be in any order and extra
+ * columns are ignored; a header without every column but {@code ID} is not
+ * recognised, and the columns are then taken to be in the order of
+ * {@link TapField}.
+ */
+public final class TapLayout {
+
+    /**
+     * The columns in the order of {@link TapField}, as in the sample files.
+     */
+    public static final TapLayout DEFAULT = positional();
+
+    private final int[] positions;
+    private final int minColumns;
+    private final String tooFewColumnsDetail;
+
+    private TapLayout(int[] positions) {
+        this.positions = positions;
+        this.minColumns = Arrays.stream(positions).max().orElse(-1) + 1;
+        this.tooFewColumnsDetail = "not enough columns: expected " + minColumns;
+    }
+
+    private static TapLayout positional() {
+        int[] positions = new int[TapField.values().length];
+        for (TapField field : TapField.values()) {
+            positions[field.ordinal()] = field.ordinal();
+        }
+        return new TapLayout(positions);
+    }
+
+    /**
+     * Maps the fields to the columns of a header row. Names are matched
+     * ignoring case and surrounding spaces; the first of repeated names is
+     * used.
+     *
+     * @param header The header row's fields.
+     * @return The layout, or null if the header lacks a column other than
+     *         {@code ID}.
+     */
+    public static TapLayout fromHeader(String[] header) {
+        int[] positions = new int[TapField.values().length];
+        Arrays.fill(positions, -1);
+        for (int column = header.length - 1; column >= 0; column--) {
+            String name = normalise(header[column]);
+            for (TapField field : TapField.values()) {
+                if (field.header().toLowerCase(Locale.ROOT).equals(name)) {
+                    positions[field.ordinal()] = column;
+                }
+            }
+        }
+        for (TapField field : TapField.values()) {
+            if (field != TapField.ID && positions[field.ordinal()] < 0) {
+                return null;
+            }
+        }
+        return new TapLayout(positions);
+    }
+
+    private static String normalise(String name) {
+        String trimmed = name == null ? "" : name.trim();
+        if (trimmed.startsWith("\uFEFF")) {
+            trimmed = trimmed.substring(1).trim(); // Byte order mark of a UTF-8 file
+        }
+        return trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return The column of the field, or -1 if the file has no such column.
+     */
+    public int position(TapField field) {
+        return positions[field.ordinal()];
+    }
+
+    /**
+     * @return The number of columns a row needs to hold every field.
+     */
+    public int minColumns() {
+        return minColumns;
+    }
+
+    /**
+     * @return The reject detail for a row with fewer than
+     *         {@link #minColumns()} columns, built once per layout.
+     */
+    String tooFewColumnsDetail() {
+        return tooFewColumnsDetail;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (TapField field : TapField.values()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(field.header()).append('=').append(positions[field.ordinal()]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,190 @@
+package littlepay.util;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * One row of the taps file, holding where its fields are rather than their
+ * text, so that only the fields a reader asks for are decoded. The row is
+ * either a slice of a byte buffer with the offset of each field's end, from
+ * the byte-level parser, or the fields of a row already split by opencsv.
+ * A view is reused from row to row and is not thread-safe.
+ */
+final class TapRowView {
+
+    private final AsciiText ascii = new AsciiText();
+
+    private String[] fields;
+    private byte[] buffer;
+    private int rowStart;
+    private int[] fieldEnds;
+    private int fieldCount;
+    private Charset charset;
+
+    /**
+     * Views a row split by opencsv.
+     */
+    TapRowView over(String[] fields) {
+        this.fields = fields;
+        this.buffer = null;
+        this.fieldCount = fields.length;
+        return this;
+    }
+
+    /**
+     * Views a row in a byte buffer, without copying it.
+     *
+     * @param fieldEnds  End offset of each field; each field starts after the
+     *                   previous one's separator.
+     * @param fieldCount Number of fields in the row.
+     * @param charset    An ASCII-compatible charset to decode fields with.
+     */
+    TapRowView over(byte[] buffer, int rowStart, int[] fieldEnds, int fieldCount, Charset charset) {
+        this.fields = null;
+        this.buffer = buffer;
+        this.rowStart = rowStart;
+        this.fieldEnds = fieldEnds;
+        this.fieldCount = fieldCount;
+        this.charset = charset;
+        return this;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return The field's text without surrounding spaces, as
+     *         {@link String#trim()} gives.
+     */
+    String text(int column) {
+        if (fields != null) {
+            return fields[column].trim();
+        }
+        int start = trimmedStart(column);
+        return new String(buffer, start, trimmedEnd(column, start) - start, charset);
+    }
+
+    /**
+     * The field's text without surrounding spaces, read as ASCII. For fields
+     * such as dates that are only valid in ASCII: in a byte buffer they are
+     * read in place, and any other byte reads as a character that is not
+     * valid either. The text is only valid until the next call.
+     */
+    CharSequence asciiText(int column) {
+        if (fields != null) {
+            return fields[column].trim();
+        }
+        int start = trimmedStart(column);
+        return ascii.of(buffer, start, trimmedEnd(column, start));
+    }
+
+    /**
+     * Whether the field's trimmed text is one of the given values, comparing
+     * bytes in a byte buffer so that nothing is decoded.
+     *
+     * @param values  The values.
+     * @param encoded The same values encoded in the view's charset.
+     */
+    boolean textIsAnyOf(int column, String[] values, byte[][] encoded) {
+        if (fields != null) {
+            String text = fields[column].trim();
+            for (String value : values) {
+                if (value.equals(text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int start = trimmedStart(column);
+        int length = trimmedEnd(column, start) - start;
+        for (byte[] value : encoded) {
+            if (value.length == length && Arrays.equals(buffer, start, start + length, value, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The fields as they are in the file, for reject logs.
+     */
+    String[] toArray() {
+        if (fields != null) {
+            return fields;
+        }
+        String[] line = new String[fieldCount];
+        for (int column = 0; column < fieldCount; column++) {
+            int start = start(column);
+            line[column] = new String(buffer, start, fieldEnds[column] - start, charset);
+        }
+        return line;
+    }
+
+    private int start(int column) {
+        return column == 0 ? rowStart : fieldEnds[column - 1] + 1;
+    }
+
+    // Bytes up to ' ' are the characters String.trim() removes in any ASCII-compatible charset
+
+    private int trimmedStart(int column) {
+        int start = start(column);
+        int end = fieldEnds[column];
+        while (start < end && (buffer[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimmedEnd(int column, int trimmedStart) {
+        int end = fieldEnds[column];
+        while (end > trimmedStart && (buffer[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * A slice of a byte buffer read as ASCII characters.
+     */
+    private static final class AsciiText implements CharSequence {
+        private byte[] bytes;
+        private int start;
+        private int end;
+
+        AsciiText of(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            byte b = bytes[start + index];
+            return b >= 0 ? (char) b : '\uFFFD';
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(end - start);
+            for (int i = 0; i < end - start; i++) {
+                text.append(charAt(i));
+            }
+            return text.toString();
+        }
+    }
+}
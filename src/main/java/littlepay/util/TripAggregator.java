@@ -0,0 +1,263 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rolls up trip counts and revenue by company, bus, stop pair, hour and
+ * status as trips go past, so reports don't need a second pass over the trips
+ * file. Company and bus IDs are mapped to dense dictionary ids that index
+ * primitive arrays; stop pairs and statuses index fixed-size arrays; hours are
+ * kept in primitive hash maps. Revenue is summed in cents.
+ * Instances are not thread-safe.
+ */
+public class TripAggregator {
+
+    public static final String SUMMARY_HEADER = "Dimension,Key,Trips,Revenue\n";
+
+    private static final int STOP_SLOTS = Stop.values().length + 1; // Last slot for "no stop"
+    private static final long SECONDS_PER_HOUR = 3600;
+
+    private final Dictionary companies;
+    private final Dictionary buses;
+    private final Rollup byCompany;
+    private final Rollup byBus;
+    private final Rollup byStopPair = new Rollup(STOP_SLOTS * STOP_SLOTS);
+    private final Rollup byStatus = new Rollup(TripStatus.values().length);
+    private final LongLongHashMap tripsByHour = new LongLongHashMap(256);
+    private final LongLongHashMap centsByHour = new LongLongHashMap(256);
+    private long trips;
+    private long revenueCents;
+
+    public TripAggregator() {
+        this(64, 1024);
+    }
+
+    /**
+     * @param expectedCompanies Number of distinct companies to size for.
+     * @param expectedBuses     Number of distinct buses to size for.
+     */
+    public TripAggregator(int expectedCompanies, int expectedBuses) {
+        this.companies = new Dictionary(expectedCompanies);
+        this.buses = new Dictionary(expectedBuses);
+        this.byCompany = new Rollup(expectedCompanies);
+        this.byBus = new Rollup(expectedBuses);
+    }
+
+    /**
+     * Adds one trip to every rollup.
+     */
+    public void add(Trip trip) {
+        long cents = toCents(trip.chargeAmount());
+        trips++;
+        revenueCents += cents;
+        byCompany.add(companies.idOf(trip.companyId()), cents);
+        byBus.add(buses.idOf(trip.busId()), cents);
+        byStopPair.add(stopSlot(trip.fromStopId()) * STOP_SLOTS + stopSlot(trip.toStopId()), cents);
+        if (trip.status() != null) {
+            byStatus.add(trip.status().ordinal(), cents);
+        }
+        if (trip.startedEpochSecond() != EpochTime.NONE) {
+            long hour = Math.floorDiv(trip.startedEpochSecond(), SECONDS_PER_HOUR);
+            tripsByHour.addTo(hour, 1);
+            centsByHour.addTo(hour, cents);
+        }
+    }
+
+    public void addAll(List<Trip> trips) {
+        for (Trip trip : trips) {
+            add(trip);
+        }
+    }
+
+    /**
+     * @return Number of trips added.
+     */
+    public long trips() {
+        return trips;
+    }
+
+    /**
+     * @return Total charged across all trips added, in cents.
+     */
+    public long revenueCents() {
+        return revenueCents;
+    }
+
+    /**
+     * Writes the rollups as CSV, see {@link #appendSummary(StringBuilder)}.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeSummary(Path summaryFile) throws IOException {
+        if (summaryFile.getParent() != null) {
+            Files.createDirectories(summaryFile.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(summaryFile, StandardCharsets.UTF_8)) {
+            writer.append(appendSummary(new StringBuilder(4096)));
+        }
+    }
+
+    /**
+     * Appends the rollups as CSV with columns Dimension, Key, Trips and Revenue
+     * (a plain decimal amount). Rows are grouped by dimension: {@code total},
+     * {@code company}, {@code bus}, {@code stopPair}, {@code hour} and
+     * {@code status}. Keys are in ascending order and hours are written as
+     * "dd-MM-yyyy HH:00".
+     */
+    public StringBuilder appendSummary(StringBuilder out) {
+        out.append(SUMMARY_HEADER);
+        appendRow(out, "total", "all", trips, revenueCents);
+        appendDictionary(out, "company", companies, byCompany);
+        appendDictionary(out, "bus", buses, byBus);
+        Stop[] stops = Stop.values();
+        for (int slot = 0; slot < byStopPair.trips.length; slot++) {
+            if (byStopPair.trips[slot] > 0) {
+                String key = stopName(stops, slot / STOP_SLOTS) + "-" + stopName(stops, slot % STOP_SLOTS);
+                appendRow(out, "stopPair", key, byStopPair.trips[slot], byStopPair.cents[slot]);
+            }
+        }
+        long[] hours = new long[tripsByHour.size()];
+        int[] count = { 0 };
+        tripsByHour.forEach((hour, tripCount) -> hours[count[0]++] = hour);
+        Arrays.sort(hours);
+        for (long hour : hours) {
+            String key = EpochTime.format(hour * SECONDS_PER_HOUR).substring(0, 13) + ":00";
+            appendRow(out, "hour", key, tripsByHour.get(hour, 0), centsByHour.get(hour, 0));
+        }
+        for (TripStatus status : TripStatus.values()) {
+            if (byStatus.trips[status.ordinal()] > 0) {
+                appendRow(out, "status", status.name(), byStatus.trips[status.ordinal()],
+                        byStatus.cents[status.ordinal()]);
+            }
+        }
+        return out;
+    }
+
+    private static void appendDictionary(StringBuilder out, String dimension, Dictionary dictionary, Rollup rollup) {
+        Integer[] ids = new Integer[dictionary.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, Comparator.comparing(dictionary::nameOf));
+        for (int id : ids) {
+            appendRow(out, dimension, escape(dictionary.nameOf(id)), rollup.trips[id], rollup.cents[id]);
+        }
+    }
+
+    private static void appendRow(StringBuilder out, String dimension, String key, long trips, long cents) {
+        out.append(dimension).append(',').append(key).append(',').append(trips).append(',');
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        out.append(cents / 100).append('.');
+        if (cents % 100 < 10) {
+            out.append('0');
+        }
+        out.append(cents % 100).append('\n');
+    }
+
+    /**
+     * Quotes a key that contains CSV special characters.
+     */
+    private static String escape(String key) {
+        if (key.indexOf(',') < 0 && key.indexOf('"') < 0 && key.indexOf('\n') < 0 && key.indexOf('\r') < 0) {
+            return key;
+        }
+        return '"' + key.replace("\"", "\"\"") + '"';
+    }
+
+    private static int stopSlot(Stop stop) {
+        return stop == null ? STOP_SLOTS - 1 : stop.ordinal();
+    }
+
+    private static String stopName(Stop[] stops, int slot) {
+        return slot < stops.length ? stops[slot].toPascalCase() : "None";
+    }
+
+    private static long toCents(BigDecimal amount) {
+        if (amount == null) {
+            return 0;
+        }
+        return amount.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Maps strings to dense ids in first-seen order. Trips from the same
+     * company or bus tend to arrive together, so the last lookup is cached.
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> ids;
+        private final List<String> names;
+        private String lastName;
+        private int lastId = -1;
+
+        Dictionary(int expectedSize) {
+            this.ids = new HashMap<>(expectedSize * 2);
+            this.names = new ArrayList<>(expectedSize);
+        }
+
+        int idOf(String name) {
+            String key = name == null ? "" : name;
+            if (key.equals(lastName)) {
+                return lastId;
+            }
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = names.size();
+                ids.put(key, id);
+                names.add(key);
+            }
+            lastName = key;
+            lastId = id;
+            return id;
+        }
+
+        String nameOf(int id) {
+            return names.get(id);
+        }
+
+        int size() {
+            return names.size();
+        }
+    }
+
+    /**
+     * Trip counts and revenue indexed by id, grown as ids are added.
+     */
+    private static final class Rollup {
+        long[] trips;
+        long[] cents;
+
+        Rollup(int capacity) {
+            trips = new long[Math.max(1, capacity)];
+            cents = new long[trips.length];
+        }
+
+        void add(int id, long amount) {
+            if (id >= trips.length) {
+                int capacity = Math.max(id + 1, trips.length * 2);
+                trips = Arrays.copyOf(trips, capacity);
+                cents = Arrays.copyOf(cents, capacity);
+            }
+            trips[id]++;
+            cents[id] += amount;
+        }
+    }
+}
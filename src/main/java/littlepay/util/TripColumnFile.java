@@ -0,0 +1,553 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A columnar binary file of trips for analytics jobs that scan a few fields
+ * of many trips, instead of re-parsing a trips CSV.
+ * Trips are stored sorted by start time in row groups of up to
+ * {@value #DEFAULT_ROW_GROUP_SIZE} trips. Within a row group each column is
+ * stored on its own: times as variable-length deltas of epoch seconds,
+ * charges as whole cents (rounded as in a trips CSV), stops and statuses as
+ * one byte each, and company, bus and PAN as an index into a dictionary of
+ * the group's distinct values. Each column is compressed on its own if that makes it smaller. A reader
+ * only reads the columns it asks for, and skips row groups whose start
+ * times, recorded in the footer, are outside the range it asks for.
+ *
+ * <p>Layout: magic number and version, the row groups' column chunks, a
+ * footer with each row group's trip count, first and last start time and
+ * where each of its column chunks is, then the footer's offset and the magic
+ * number again.
+ */
+public class TripColumnFile implements AutoCloseable {
+
+    static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x4c505443; // "LPTC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 12;
+    private static final int CHUNK_ENTRY_SIZE = 17;
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    private static final Column[] COLUMNS = Column.values();
+    private static final Comparator<Trip> FILE_ORDER = Comparator.comparingLong(Trip::startedEpochSecond)
+            .thenComparing(Trip::pan, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    /**
+     * A column of the file. Columns that are not read are left empty in the
+     * trips a scan returns: null, {@link EpochTime#NONE} for times and 0 for
+     * the duration.
+     */
+    public enum Column {
+        STARTED, FINISHED, DURATION, FROM_STOP, TO_STOP, CHARGE, COMPANY_ID, BUS_ID, PAN, STATUS
+    }
+
+    private final FileChannel channel;
+    private final long tripCount;
+    private final int[] groupRows;
+    private final long[] groupFirstStarted;
+    private final long[] groupLastStarted;
+    private final long[][] chunkOffsets;
+    private final int[][] chunkLengths;
+    private final int[][] chunkRawLengths;
+    private final byte[][] chunkCodecs;
+    private long bytesRead;
+
+    private TripColumnFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("Not a columnar trips file: file too short");
+        }
+        ByteBuffer header = read(0, HEADER_SIZE);
+        ByteBuffer trailer = read(fileSize - TRAILER_SIZE, TRAILER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION || trailer.getInt(8) != MAGIC) {
+            throw new IOException("Not a columnar trips file, or an unsupported version");
+        }
+        long footerOffset = trailer.getLong(0);
+        if (footerOffset < HEADER_SIZE || footerOffset > fileSize - TRAILER_SIZE) {
+            throw new IOException("Corrupt columnar trips file: footer out of range");
+        }
+        ByteBuffer footer = read(footerOffset, (int) (fileSize - TRAILER_SIZE - footerOffset));
+        this.tripCount = footer.getLong();
+        int groups = footer.getInt();
+        this.groupRows = new int[groups];
+        this.groupFirstStarted = new long[groups];
+        this.groupLastStarted = new long[groups];
+        this.chunkOffsets = new long[groups][COLUMNS.length];
+        this.chunkLengths = new int[groups][COLUMNS.length];
+        this.chunkRawLengths = new int[groups][COLUMNS.length];
+        this.chunkCodecs = new byte[groups][COLUMNS.length];
+        for (int group = 0; group < groups; group++) {
+            groupRows[group] = footer.getInt();
+            groupFirstStarted[group] = footer.getLong();
+            groupLastStarted[group] = footer.getLong();
+            for (int column = 0; column < COLUMNS.length; column++) {
+                chunkOffsets[group][column] = footer.getLong();
+                chunkLengths[group][column] = footer.getInt();
+                chunkRawLengths[group][column] = footer.getInt();
+                chunkCodecs[group][column] = footer.get();
+            }
+        }
+    }
+
+    /**
+     * Opens a columnar trips file for reading.
+     *
+     * @throws IOException if the file cannot be read or is not a columnar
+     *                     trips file.
+     */
+    public static TripColumnFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new TripColumnFile(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes trips to a new file with {@link FileSupport#replace}, so readers
+     * never see a partly written one.
+     *
+     * @param trips Trips in any order.
+     * @param path  File to write.
+     * @throws IOException if the file cannot be written.
+     * @throws IllegalArgumentException if a charge is too large.
+     */
+    public static void write(List<Trip> trips, Path path) throws IOException {
+        write(trips, path, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    static void write(List<Trip> trips, Path path, int rowGroupSize) throws IOException {
+        List<Trip> sorted = new ArrayList<>(trips);
+        sorted.sort(FILE_ORDER);
+        FileSupport.replace(path, file -> writeTo(sorted, file, rowGroupSize));
+    }
+
+    private static void writeTo(List<Trip> sorted, Path file, int rowGroupSize) throws IOException {
+        int groups = (sorted.size() + rowGroupSize - 1) / rowGroupSize;
+        ByteBuffer footer = ByteBuffer.allocate(12 + groups * (20 + COLUMNS.length * CHUNK_ENTRY_SIZE));
+        footer.putLong(sorted.size()).putInt(groups);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+            for (int start = 0; start < sorted.size(); start += rowGroupSize) {
+                List<Trip> group = sorted.subList(start, Math.min(start + rowGroupSize, sorted.size()));
+                footer.putInt(group.size())
+                        .putLong(group.get(0).startedEpochSecond())
+                        .putLong(group.get(group.size() - 1).startedEpochSecond());
+                for (Column column : COLUMNS) {
+                    ColumnBuffer raw = encode(column, group);
+                    byte[] compressed = deflate(deflater, raw);
+                    boolean deflated = compressed.length < raw.size();
+                    footer.putLong(channel.position())
+                            .putInt(deflated ? compressed.length : raw.size())
+                            .putInt(raw.size())
+                            .put(deflated ? DEFLATED : STORED);
+                    writeFully(channel, deflated ? ByteBuffer.wrap(compressed) : raw.toByteBuffer());
+                }
+            }
+            long footerOffset = channel.position();
+            writeFully(channel, footer.flip());
+            writeFully(channel, ByteBuffer.allocate(TRAILER_SIZE).putLong(footerOffset).putInt(MAGIC).flip());
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, ColumnBuffer raw) {
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.size());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.size() / 2 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    private static ColumnBuffer encode(Column column, List<Trip> group) {
+        ColumnBuffer out = new ColumnBuffer();
+        switch (column) {
+            case STARTED -> out.putTimes(group, Trip::startedEpochSecond);
+            case FINISHED -> out.putTimes(group, Trip::finishedEpochSecond);
+            case DURATION -> out.putTimes(group, Trip::durationSecs);
+            case FROM_STOP -> group.forEach(trip -> out.write(ordinal(trip.fromStopId())));
+            case TO_STOP -> group.forEach(trip -> out.write(ordinal(trip.toStopId())));
+            case STATUS -> group.forEach(trip -> out.write(ordinal(trip.status())));
+            case CHARGE -> group.forEach(trip -> out.putNullableLong(cents(trip.chargeAmount())));
+            case COMPANY_ID -> out.putDictionary(group, Trip::companyId);
+            case BUS_ID -> out.putDictionary(group, Trip::busId);
+            case PAN -> out.putDictionary(group, Trip::pan);
+        }
+        return out;
+    }
+
+    private static int ordinal(Enum<?> value) {
+        return value == null ? -1 : value.ordinal();
+    }
+
+    private static long cents(BigDecimal charge) {
+        if (charge == null) {
+            return EpochTime.NONE;
+        }
+        try {
+            // Rounded as the trips CSV shows it
+            return charge.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Charge too large for a columnar trips file: " + charge, e);
+        }
+    }
+
+    /**
+     * @return Whether a file starts like a columnar trips file, as opposed to
+     *         e.g. a trips CSV.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isTripColumnFile(Path path) throws IOException {
+        return FileSupport.startsWith(path, MAGIC);
+    }
+
+    /**
+     * @return Number of trips in the file.
+     */
+    public long size() {
+        return tripCount;
+    }
+
+    /**
+     * @return Number of row groups in the file.
+     */
+    public int rowGroups() {
+        return groupRows.length;
+    }
+
+    /**
+     * @return Bytes read from the file so far, including the footer.
+     */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Reads every trip with every column, in start-time order.
+     */
+    public List<Trip> readAll() throws IOException {
+        List<Trip> trips = new ArrayList<>((int) Math.min(tripCount, Integer.MAX_VALUE));
+        scan(EnumSet.allOf(Column.class), trips::add);
+        return trips;
+    }
+
+    /**
+     * Reads some columns of every trip, in start-time order.
+     */
+    public void scan(Set<Column> columns, Consumer<Trip> action) throws IOException {
+        scan(columns, Long.MIN_VALUE, Long.MAX_VALUE, action);
+    }
+
+    /**
+     * Reads some columns of the trips that started in a time range, in
+     * start-time order. Only row groups that can hold such trips are read.
+     *
+     * @param columns         Columns to read; the rest are left empty.
+     * @param fromEpochSecond Start of the range, inclusive.
+     * @param toEpochSecond   End of the range, exclusive.
+     * @param action          Called with each trip.
+     * @throws IOException if the file cannot be read or is corrupt.
+     */
+    public void scan(Set<Column> columns, long fromEpochSecond, long toEpochSecond, Consumer<Trip> action)
+            throws IOException {
+        for (int group = 0; group < groupRows.length; group++) {
+            if (groupLastStarted[group] < fromEpochSecond || groupFirstStarted[group] >= toEpochSecond) {
+                continue;
+            }
+            // Only a group that straddles the range needs its start times to filter rows
+            boolean filter = groupFirstStarted[group] < fromEpochSecond || groupLastStarted[group] >= toEpochSecond;
+            RowGroup rows = new RowGroup(groupRows[group]);
+            for (Column column : COLUMNS) {
+                if (columns.contains(column) || (filter && column == Column.STARTED)) {
+                    rows.decode(column, readChunk(group, column.ordinal()));
+                }
+            }
+            for (int row = 0; row < groupRows[group]; row++) {
+                if (filter && (rows.started[row] < fromEpochSecond || rows.started[row] >= toEpochSecond)) {
+                    continue;
+                }
+                action.accept(rows.trip(row, columns));
+            }
+        }
+    }
+
+    private ByteBuffer readChunk(int group, int column) throws IOException {
+        ByteBuffer stored = read(chunkOffsets[group][column], chunkLengths[group][column]);
+        if (chunkCodecs[group][column] == STORED) {
+            return stored;
+        }
+        byte[] raw = new byte[chunkRawLengths[group][column]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            if (inflater.inflate(raw) != raw.length) {
+                throw new IOException("Corrupt columnar trips file: short column chunk");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt columnar trips file: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Corrupt columnar trips file: unexpected end of file");
+            }
+        }
+        bytesRead += length;
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The decoded columns of one row group. Columns that were not read stay
+     * null.
+     */
+    private static final class RowGroup {
+        private final int rows;
+        private long[] started;
+        private long[] finished;
+        private long[] durations;
+        private byte[] fromStops;
+        private byte[] toStops;
+        private byte[] statuses;
+        private long[] cents;
+        private String[] companyIds;
+        private String[] busIds;
+        private String[] pans;
+
+        RowGroup(int rows) {
+            this.rows = rows;
+        }
+
+        void decode(Column column, ByteBuffer in) {
+            switch (column) {
+                case STARTED -> started = times(in);
+                case FINISHED -> finished = times(in);
+                case DURATION -> durations = times(in);
+                case FROM_STOP -> fromStops = bytes(in);
+                case TO_STOP -> toStops = bytes(in);
+                case STATUS -> statuses = bytes(in);
+                case CHARGE -> {
+                    cents = new long[rows];
+                    for (int row = 0; row < rows; row++) {
+                        cents[row] = getNullableLong(in);
+                    }
+                }
+                case COMPANY_ID -> companyIds = dictionary(in);
+                case BUS_ID -> busIds = dictionary(in);
+                case PAN -> pans = dictionary(in);
+            }
+        }
+
+        Trip trip(int row, Set<Column> columns) {
+            // Start times may have been read only to filter rows
+            long startedAt = started != null && columns.contains(Column.STARTED) ? started[row] : EpochTime.NONE;
+            return new Trip(startedAt,
+                    finished != null ? finished[row] : EpochTime.NONE,
+                    durations != null ? durations[row] : 0,
+                    fromStops != null ? stop(fromStops[row]) : null,
+                    toStops != null ? stop(toStops[row]) : null,
+                    cents != null && cents[row] != EpochTime.NONE ? BigDecimal.valueOf(cents[row], 2) : null,
+                    companyIds != null ? companyIds[row] : null,
+                    busIds != null ? busIds[row] : null,
+                    pans != null ? pans[row] : null,
+                    statuses != null && statuses[row] >= 0 ? TripStatus.values()[statuses[row]] : null);
+        }
+
+        private long[] times(ByteBuffer in) {
+            long[] values = new long[rows];
+            long previous = 0;
+            for (int row = 0; row < rows; row++) {
+                long encoded = getVarLong(in);
+                if (encoded == 0) {
+                    values[row] = EpochTime.NONE;
+                } else {
+                    previous += unzigzag(encoded - 1);
+                    values[row] = previous;
+                }
+            }
+            return values;
+        }
+
+        private byte[] bytes(ByteBuffer in) {
+            byte[] values = new byte[rows];
+            in.get(values);
+            return values;
+        }
+
+        private String[] dictionary(ByteBuffer in) {
+            String[] entries = new String[(int) getVarLong(in)];
+            for (int i = 0; i < entries.length; i++) {
+                byte[] utf8 = new byte[(int) getVarLong(in)];
+                in.get(utf8);
+                entries[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+            String[] values = new String[rows];
+            for (int row = 0; row < rows; row++) {
+                int index = (int) getVarLong(in);
+                values[row] = index == 0 ? null : entries[index - 1];
+            }
+            return values;
+        }
+
+        private static Stop stop(byte ordinal) {
+            return ordinal < 0 ? null : Stop.values()[ordinal];
+        }
+    }
+
+    private static long getNullableLong(ByteBuffer in) {
+        long encoded = getVarLong(in);
+        return encoded == 0 ? EpochTime.NONE : unzigzag(encoded - 1);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Encodes one column chunk. Nullable numbers are written as 0 for none,
+     * or their zigzag encoding plus one, so small values of either sign take
+     * one byte.
+     */
+    private static final class ColumnBuffer extends ByteArrayOutputStream {
+
+        ColumnBuffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        void putTimes(List<Trip> group, ToLongFunction<Trip> field) {
+            long previous = 0;
+            for (Trip trip : group) {
+                long value = field.applyAsLong(trip);
+                if (value == EpochTime.NONE) {
+                    putVarLong(0);
+                } else {
+                    putPresentLong(value - previous);
+                    previous = value;
+                }
+            }
+        }
+
+        void putNullableLong(long value) {
+            if (value == EpochTime.NONE) {
+                putVarLong(0);
+            } else {
+                putPresentLong(value);
+            }
+        }
+
+        private void putPresentLong(long value) {
+            long encoded = zigzag(value);
+            if (encoded == -1L) {
+                throw new IllegalArgumentException("Value out of range for a columnar trips file: " + value);
+            }
+            putVarLong(encoded + 1);
+        }
+
+        void putDictionary(List<Trip> group, Function<Trip, String> field) {
+            Map<String, Integer> indexes = new HashMap<>();
+            List<String> entries = new ArrayList<>();
+            int[] rows = new int[group.size()];
+            for (int row = 0; row < rows.length; row++) {
+                String value = field.apply(group.get(row));
+                rows[row] = value == null ? 0 : indexes.computeIfAbsent(value, v -> {
+                    entries.add(v);
+                    return entries.size();
+                });
+            }
+            putVarLong(entries.size());
+            for (String entry : entries) {
+                byte[] utf8 = entry.getBytes(StandardCharsets.UTF_8);
+                putVarLong(utf8.length);
+                write(utf8, 0, utf8.length);
+            }
+            for (int index : rows) {
+                putVarLong(index);
+            }
+        }
+
+        void putVarLong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+}
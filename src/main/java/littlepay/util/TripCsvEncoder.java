@@ -0,0 +1,111 @@
+package littlepay.util;
+
+import littlepay.model.Trip;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Encodes trips as lines of the trips CSV file, producing exactly the text
+ * {@link CsvWriter} writes through opencsv, but appending straight into a
+ * reusable buffer instead of building a {@code String[]} per trip.
+ * Instances are not thread-safe.
+ */
+public class TripCsvEncoder {
+
+    public static final String HEADER_LINE = "Started,Finished,DurationSecs,FromStopId,ToStopId,ChargeAmount,"
+            + "CompanyId,BusID,PAN,Status\n";
+
+    // CsvWriter's opencsv settings: no quote character and '"' as the escape character
+    private static final char QUOTE_CHARACTER = '\u0000';
+    private static final char ESCAPE_CHARACTER = '"';
+    private static final char SEPARATOR = ',';
+
+    private final DecimalFormat currencyFormat = new DecimalFormat("$0.00");
+    private final char decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+
+    /**
+     * Appends one trip as a CSV line, including the line end.
+     */
+    public StringBuilder appendTrip(StringBuilder out, Trip trip) {
+        if (trip.startedEpochSecond() != EpochTime.NONE) {
+            EpochTime.appendTo(out, trip.startedEpochSecond());
+        }
+        out.append(SEPARATOR);
+        if (trip.finishedEpochSecond() != EpochTime.NONE) {
+            EpochTime.appendTo(out, trip.finishedEpochSecond());
+        }
+        out.append(SEPARATOR).append(trip.durationSecs()).append(SEPARATOR);
+        if (trip.fromStopId() != null) {
+            out.append(trip.fromStopId().toPascalCase());
+        }
+        out.append(SEPARATOR);
+        if (trip.toStopId() != null) {
+            out.append(trip.toStopId().toPascalCase());
+        }
+        out.append(SEPARATOR);
+        appendCharge(out, trip.chargeAmount() != null ? trip.chargeAmount() : BigDecimal.ZERO);
+        out.append(SEPARATOR);
+        appendField(out, trip.companyId());
+        out.append(SEPARATOR);
+        appendField(out, trip.busId());
+        out.append(SEPARATOR);
+        appendField(out, trip.pan());
+        out.append(SEPARATOR);
+        if (trip.status() != null) {
+            out.append(trip.status().name());
+        }
+        return out.append('\n');
+    }
+
+    /**
+     * Appends an amount formatted as in the ChargeAmount column, e.g. "$3.25".
+     */
+    public StringBuilder appendCharge(StringBuilder out, BigDecimal amount) {
+        if (amount.signum() < 0 || amount.precision() - amount.scale() > 15) {
+            // Rare cases where DecimalFormat's sign and rounding rules are easier to reuse
+            return out.append(currencyFormat.format(amount));
+        }
+        long cents = amount.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+        out.append('$').append(cents / 100).append(decimalSeparator);
+        long fraction = cents % 100;
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    /**
+     * Appends a free-text field with the same escaping opencsv applies when no
+     * quote character is configured, so that {@link TripCsvReader} reads it
+     * back as one field. Null appends nothing.
+     */
+    public static void appendField(StringBuilder out, String value) {
+        if (value == null) {
+            return;
+        }
+        if (!needsEscaping(value)) {
+            out.append(value);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == QUOTE_CHARACTER || c == ESCAPE_CHARACTER || c == SEPARATOR || c == '\n') {
+                out.append(ESCAPE_CHARACTER);
+            }
+            out.append(c);
+        }
+    }
+
+    private static boolean needsEscaping(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == QUOTE_CHARACTER || c == ESCAPE_CHARACTER || c == SEPARATOR || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,174 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Reads the records of a trips file as written by {@link CsvWriter} and
+ * {@link TripCsvEncoder}: no quoting, with '"' escaping separators, line ends
+ * and itself. A record ends at the first unescaped line end, so escaped line
+ * ends inside a field stay part of the record.
+ * Instances are not thread-safe.
+ */
+public class TripCsvReader implements AutoCloseable {
+
+    private static final int COLUMNS = 10;
+
+    private final Reader reader;
+    private final char[] buffer = new char[1 << 16];
+    private int position;
+    private int limit;
+    private final StringBuilder record = new StringBuilder(128);
+    private final char decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+
+    /**
+     * @throws IOException if the file cannot be opened.
+     */
+    public TripCsvReader(Path file) throws IOException {
+        this.reader = new InputStreamReader(Files.newInputStream(file), Charset.defaultCharset());
+    }
+
+    /**
+     * Reads the next record, which is the header line for the first call.
+     *
+     * @return false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        record.setLength(0);
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            record.append((char) c);
+            if (c == '"') {
+                int escaped = read();
+                if (escaped == -1) {
+                    break;
+                }
+                record.append((char) escaped);
+            }
+        }
+        return c != -1 || !record.isEmpty();
+    }
+
+    /**
+     * Reads one character from the buffer, which avoids the per-character lock
+     * of {@code BufferedReader.read()}.
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * @return The current record as written, without its line end.
+     */
+    public CharSequence record() {
+        return record;
+    }
+
+    /**
+     * @return One field of the current record with escapes removed, or an empty
+     *         string if the record has fewer fields.
+     */
+    public String field(int column) {
+        StringBuilder value = new StringBuilder(20);
+        int current = 0;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == '"' && i + 1 < record.length()) {
+                if (current == column) {
+                    value.append(record.charAt(i + 1));
+                }
+                i++;
+            } else if (c == ',') {
+                if (++current > column) {
+                    break;
+                }
+            } else if (current == column) {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Decodes the current record. Empty fields become {@link EpochTime#NONE}
+     * or null, except the free-text fields, which stay empty strings.
+     *
+     * @throws IllegalArgumentException if the record is not a valid trip.
+     */
+    public Trip trip() {
+        String[] fields = splitFields();
+        try {
+            return new Trip(
+                    fields[0].isEmpty() ? EpochTime.NONE : EpochTime.parseOrThrow(fields[0]),
+                    fields[1].isEmpty() ? EpochTime.NONE : EpochTime.parseOrThrow(fields[1]),
+                    Long.parseLong(fields[2]),
+                    fields[3].isEmpty() ? null : Stop.fromString(fields[3]),
+                    fields[4].isEmpty() ? null : Stop.fromString(fields[4]),
+                    parseCharge(fields[5]),
+                    fields[6],
+                    fields[7],
+                    fields[8],
+                    fields[9].isEmpty() ? null : TripStatus.valueOf(fields[9]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid trip record: " + record, e);
+        }
+    }
+
+    /**
+     * Splits the current record into {@value #COLUMNS} unescaped fields in one
+     * pass, padding with empty strings.
+     */
+    private String[] splitFields() {
+        String[] fields = new String[COLUMNS];
+        StringBuilder value = new StringBuilder(20);
+        int column = 0;
+        for (int i = 0; i < record.length() && column < COLUMNS; i++) {
+            char c = record.charAt(i);
+            if (c == '"' && i + 1 < record.length()) {
+                value.append(record.charAt(++i));
+            } else if (c == ',') {
+                fields[column++] = value.toString();
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        for (; column < COLUMNS; column++) {
+            fields[column] = value.toString();
+            value.setLength(0);
+        }
+        return fields;
+    }
+
+    private BigDecimal parseCharge(String text) {
+        // "$3.25", or "-$3.25" for the rare negative amount
+        String digits = text.replace("$", "").replace(decimalSeparator, '.');
+        return new BigDecimal(digits);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
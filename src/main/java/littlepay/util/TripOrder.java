@@ -0,0 +1,110 @@
+package littlepay.util;
+
+import littlepay.model.Trip;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Sorts trips into output order: by start time, then by PAN, keeping the
+ * input order of trips that tie on both.
+ * Large lists are sorted as primitive keys rather than objects: each trip
+ * becomes one {@code long} holding its start time relative to the earliest
+ * and its index in the list, and {@link Arrays#parallelSort(long[])} sorts
+ * the keys. The index makes equal start times keep their input order, so
+ * only the short runs of trips that start in the same second are then
+ * sorted by PAN, with a stable sort. The result is exactly that of a stable
+ * sort with {@link #COMPARATOR}, which is used instead for lists whose keys
+ * do not fit in 63 bits or with a missing start time or PAN.
+ */
+public final class TripOrder {
+
+    /**
+     * The output order of trips.
+     */
+    public static final Comparator<Trip> COMPARATOR = Comparator.comparingLong(Trip::startedEpochSecond)
+            .thenComparing(Trip::pan);
+
+    /**
+     * Below this many trips, {@link Arrays#parallelSort(long[])} sorts on
+     * one thread and packing keys saves little.
+     */
+    static final int MIN_PACKED_SIZE = 8192;
+
+    private static final Comparator<Trip> BY_PAN = Comparator.comparing(Trip::pan);
+
+    private TripOrder() {
+    }
+
+    /**
+     * Sorts trips into output order in place.
+     *
+     * @param trips A modifiable list of trips.
+     */
+    public static void sort(List<Trip> trips) {
+        if (trips.size() < MIN_PACKED_SIZE || !sortPacked(trips)) {
+            trips.sort(COMPARATOR);
+        }
+    }
+
+    /**
+     * Sorts trips by packed primitive keys, whatever their number.
+     *
+     * @return Whether the trips were sorted; false if their keys do not fit
+     *         in a {@code long}, in which case the list is unchanged.
+     */
+    static boolean sortPacked(List<Trip> trips) {
+        Trip[] unsorted = trips.toArray(new Trip[0]);
+        if (unsorted.length == 0) {
+            return true;
+        }
+        long minStarted = Long.MAX_VALUE;
+        long maxStarted = Long.MIN_VALUE;
+        for (Trip trip : unsorted) {
+            if (trip.startedEpochSecond() == EpochTime.NONE || trip.pan() == null) {
+                return false;
+            }
+            minStarted = Math.min(minStarted, trip.startedEpochSecond());
+            maxStarted = Math.max(maxStarted, trip.startedEpochSecond());
+        }
+        int indexBits = bitsFor(unsorted.length - 1);
+        long startedSpan = maxStarted - minStarted;
+        if (startedSpan < 0 || bitsFor(startedSpan) + indexBits > 63) {
+            return false;
+        }
+
+        long[] keys = new long[unsorted.length];
+        for (int i = 0; i < unsorted.length; i++) {
+            keys[i] = ((unsorted[i].startedEpochSecond() - minStarted) << indexBits) | i;
+        }
+        Arrays.parallelSort(keys);
+
+        long indexMask = (1L << indexBits) - 1;
+        Trip[] sorted = new Trip[unsorted.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = unsorted[(int) (keys[i] & indexMask)];
+        }
+        int runStart = 0;
+        for (int i = 1; i <= keys.length; i++) {
+            if (i == keys.length || keys[i] >>> indexBits != keys[runStart] >>> indexBits) {
+                if (i - runStart > 1) {
+                    Arrays.sort(sorted, runStart, i, BY_PAN);
+                }
+                runStart = i;
+            }
+        }
+
+        ListIterator<Trip> out = trips.listIterator();
+        for (Trip trip : sorted) {
+            out.next();
+            out.set(trip);
+        }
+        return true;
+    }
+
+    private static int bitsFor(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+}
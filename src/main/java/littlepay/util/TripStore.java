@@ -0,0 +1,409 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A read-optimised file of trips for looking up one card's trips in a time
+ * range without scanning a whole trips CSV.
+ * Trips are stored sorted by PAN and start time in blocks of about
+ * {@value #BLOCK_SIZE} bytes. A sparse index holds the first key of each
+ * block, so a lookup is a binary search over the index followed by a scan of
+ * the few blocks holding the card's trips. The file is memory-mapped in
+ * segments, so it can be larger than 2 GB, and reads go through the page
+ * cache without copying the file onto the heap.
+ *
+ * <p>Layout: a {@value #HEADER_SIZE}-byte header, the data blocks, the index
+ * entries (first start time and PAN of each block), then one
+ * {@code long} offset per block pointing at its index entry.
+ */
+public class TripStore implements AutoCloseable {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+    static final int HEADER_SIZE = 48;
+
+    private static final int MAGIC = 0x4c505453; // "LPTS"
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 - 1; // Record lengths are unsigned shorts
+    private static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+    private static final Comparator<Trip> STORE_ORDER = Comparator.comparing(Trip::pan)
+            .thenComparingLong(Trip::startedEpochSecond);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long segmentSize;
+    private final long tripCount;
+    private final long blockCount;
+    private final long dataEnd;
+    private final long entryOffsetsStart;
+
+    private TripStore(FileChannel channel, long segmentSize) throws IOException {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            throw new IOException("Not a trip store: file too short");
+        }
+        int segmentCount = (int) ((fileSize + segmentSize - 1) / segmentSize);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = i * segmentSize;
+            // Segments overlap by the largest item, so no item is split between two
+            long length = Math.min(fileSize - start, segmentSize + MAX_RECORD_SIZE);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        if (getInt(0) != MAGIC || getInt(4) != VERSION) {
+            throw new IOException("Not a trip store, or an unsupported version");
+        }
+        this.tripCount = getLong(8);
+        this.blockCount = getLong(16);
+        this.dataEnd = getLong(24);
+        this.entryOffsetsStart = getLong(32);
+    }
+
+    /**
+     * Opens a trip store for reading.
+     *
+     * @throws IOException if the file cannot be read or is not a trip store.
+     */
+    public static TripStore open(Path path) throws IOException {
+        return open(path, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @return Whether a file starts like a trip store, as opposed to e.g. a
+     *         trips CSV.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isTripStore(Path path) throws IOException {
+        return FileSupport.startsWith(path, MAGIC);
+    }
+
+    static TripStore open(Path path, long segmentSize) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new TripStore(channel, segmentSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes trips to a new store, replacing any existing file only once the
+     * store is complete.
+     *
+     * @param trips Trips in any order.
+     * @param path  Store file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(List<Trip> trips, Path path) throws IOException {
+        List<Trip> sorted = new ArrayList<>(trips);
+        sorted.sort(STORE_ORDER);
+        FileSupport.replace(path, file -> writeTo(sorted, file));
+    }
+
+    private static void writeTo(List<Trip> sorted, Path file) throws IOException {
+        List<Long> blockStarts = new ArrayList<>();
+        List<Trip> blockFirsts = new ArrayList<>();
+        long position;
+        try (OutputStream out = Files.newOutputStream(file);
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16))) {
+            data.write(new byte[HEADER_SIZE]);
+            position = HEADER_SIZE;
+            RecordBuffer record = new RecordBuffer();
+            long blockEnd = 0;
+            for (Trip trip : sorted) {
+                record.encode(trip);
+                if (position >= blockEnd) {
+                    blockStarts.add(position);
+                    blockFirsts.add(trip);
+                    blockEnd = position + BLOCK_SIZE;
+                }
+                data.write(record.bytes(), 0, record.length());
+                position += record.length();
+            }
+            long dataEnd = position;
+
+            List<Long> entryOffsets = new ArrayList<>(blockStarts.size());
+            for (int i = 0; i < blockStarts.size(); i++) {
+                entryOffsets.add(position);
+                byte[] pan = utf8(blockFirsts.get(i).pan());
+                data.writeLong(blockStarts.get(i));
+                data.writeLong(blockFirsts.get(i).startedEpochSecond());
+                data.writeShort(pan.length);
+                data.write(pan);
+                position += 18 + pan.length;
+            }
+            long entryOffsetsStart = position;
+            for (long entryOffset : entryOffsets) {
+                data.writeLong(entryOffset);
+            }
+            data.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(sorted.size())
+                    .putLong(blockStarts.size())
+                    .putLong(dataEnd)
+                    .putLong(entryOffsetsStart)
+                    .flip();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(header, 0);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * @return Number of trips in the store.
+     */
+    public long size() {
+        return tripCount;
+    }
+
+    /**
+     * Finds a card's trips that started in a time range.
+     *
+     * @param pan             Card PAN.
+     * @param fromEpochSecond Start of the range, inclusive.
+     * @param toEpochSecond   End of the range, exclusive.
+     * @return Matching trips in start-time order.
+     */
+    public List<Trip> query(String pan, long fromEpochSecond, long toEpochSecond) {
+        List<Trip> trips = new ArrayList<>();
+        if (blockCount == 0 || fromEpochSecond >= toEpochSecond) {
+            return trips;
+        }
+        Cursor cursor = new Cursor(blockStart(findBlock(pan, fromEpochSecond)));
+        while (cursor.position < dataEnd) {
+            // Only the key is decoded until a record is in range
+            int byPan = cursor.readPan().compareTo(pan);
+            long started = cursor.readStarted();
+            if (byPan > 0 || (byPan == 0 && started >= toEpochSecond)) {
+                break;
+            }
+            if (byPan == 0 && started >= fromEpochSecond) {
+                trips.add(cursor.readTrip(pan, started));
+            } else {
+                cursor.skipRecord();
+            }
+        }
+        return trips;
+    }
+
+    /**
+     * @return Every trip of a card, in start-time order.
+     */
+    public List<Trip> query(String pan) {
+        return query(pan, Long.MIN_VALUE + 1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads every trip in the store sequentially, in PAN and start-time order.
+     */
+    public void forEach(Consumer<Trip> action) {
+        Cursor cursor = new Cursor(HEADER_SIZE);
+        while (cursor.position < dataEnd) {
+            String pan = cursor.readPan();
+            action.accept(cursor.readTrip(pan, cursor.readStarted()));
+        }
+    }
+
+    /**
+     * @return Index of the last block whose first key is before (pan, started),
+     *         or 0 if there is none; trips from that key on start in that block
+     *         or later.
+     */
+    private long findBlock(String pan, long started) {
+        long low = 0;
+        long high = blockCount - 1;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (compareToEntry(mid, pan, started) > 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private int compareToEntry(long block, String pan, long started) {
+        long entry = getLong(entryOffsetsStart + block * 8);
+        int byPan = pan.compareTo(readString(entry + 16, getShort(entry + 16)));
+        return byPan != 0 ? byPan : Long.compare(started, getLong(entry + 8));
+    }
+
+    private long blockStart(long block) {
+        return getLong(getLong(entryOffsetsStart + block * 8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer segmentFor(long position) {
+        return segments[(int) (position / segmentSize)];
+    }
+
+    private int offsetIn(long position) {
+        return (int) (position % segmentSize);
+    }
+
+    private int getInt(long position) {
+        return segmentFor(position).getInt(offsetIn(position));
+    }
+
+    private long getLong(long position) {
+        return segmentFor(position).getLong(offsetIn(position));
+    }
+
+    private short getShort(long position) {
+        return segmentFor(position).getShort(offsetIn(position));
+    }
+
+    /**
+     * Reads a string whose length prefix is at {@code position}.
+     */
+    private String readString(long position, int length) {
+        byte[] bytes = new byte[length];
+        segmentFor(position).get(offsetIn(position) + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sequential reader of trip records. Each record is read as its key (the
+     * PAN and start time) and then either the rest of the trip or a skip.
+     */
+    private final class Cursor {
+        private long position;
+        private long recordEnd;
+        private ByteBuffer buffer;
+
+        Cursor(long position) {
+            this.position = position;
+        }
+
+        String readPan() {
+            // A record never crosses a segment overlap, so it can be read from one buffer
+            buffer = segmentFor(position).duplicate().position(offsetIn(position));
+            recordEnd = position + (buffer.getShort() & 0xffff);
+            return string(buffer);
+        }
+
+        long readStarted() {
+            return buffer.getLong();
+        }
+
+        void skipRecord() {
+            position = recordEnd;
+        }
+
+        Trip readTrip(String pan, long started) {
+            long finished = buffer.getLong();
+            long durationSecs = buffer.getLong();
+            Stop from = stop(buffer.get());
+            Stop to = stop(buffer.get());
+            byte statusOrdinal = buffer.get();
+            TripStatus status = statusOrdinal < 0 ? null : TripStatus.values()[statusOrdinal];
+            byte scale = buffer.get();
+            long unscaled = buffer.getLong();
+            BigDecimal charge = scale == Byte.MIN_VALUE ? null : BigDecimal.valueOf(unscaled, scale);
+            String companyId = string(buffer);
+            String busId = string(buffer);
+            position = recordEnd;
+            return new Trip(started, finished, durationSecs, from, to, charge, companyId, busId, pan, status);
+        }
+
+        private Stop stop(byte ordinal) {
+            return ordinal < 0 ? null : Stop.values()[ordinal];
+        }
+
+        private String string(ByteBuffer buffer) {
+            int length = buffer.getShort();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Encodes one trip record into a reusable byte array.
+     */
+    private static final class RecordBuffer {
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_RECORD_SIZE);
+
+        void encode(Trip trip) {
+            buffer.clear();
+            buffer.putShort((short) 0); // Record length, filled in below
+            putString(trip.pan());
+            buffer.putLong(trip.startedEpochSecond());
+            buffer.putLong(trip.finishedEpochSecond());
+            buffer.putLong(trip.durationSecs());
+            buffer.put(trip.fromStopId() == null ? -1 : (byte) trip.fromStopId().ordinal());
+            buffer.put(trip.toStopId() == null ? -1 : (byte) trip.toStopId().ordinal());
+            buffer.put(trip.status() == null ? -1 : (byte) trip.status().ordinal());
+            BigDecimal charge = trip.chargeAmount();
+            if (charge == null) {
+                buffer.put(Byte.MIN_VALUE).putLong(0);
+            } else {
+                try {
+                    buffer.put((byte) charge.scale()).putLong(charge.unscaledValue().longValueExact());
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("Charge too large for the trip store: " + charge, e);
+                }
+            }
+            putString(trip.companyId());
+            putString(trip.busId());
+            buffer.putShort(0, (short) buffer.position());
+        }
+
+        private void putString(String value) {
+            if (value == null) {
+                buffer.putShort((short) -1);
+                return;
+            }
+            byte[] bytes = utf8(value);
+            if (bytes.length > Short.MAX_VALUE || bytes.length + 2 > buffer.remaining()) {
+                throw new IllegalArgumentException("Field too long for the trip store: " + value.length() + " chars");
+            }
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+
+        byte[] bytes() {
+            return buffer.array();
+        }
+
+        int length() {
+            return buffer.position();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package littlepay;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.util.CsvReader;
+import littlepay.util.FileSupport;
+import littlepay.util.PipelineMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompanyPipelinesTest {
+
+    // FareCalculator only accepts paths inside the working directory
+    private final Path workDir = Paths.get("build", "tmp", "company-pipelines-test").toAbsolutePath();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileSupport.deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileSupport.deleteRecursively(workDir);
+    }
+
+    private Path writeTaps(int count) throws IOException {
+        Random random = new Random(9);
+        List<String> lines = new ArrayList<>();
+        lines.add("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN");
+        for (int i = 0; i < count; i++) {
+            int second = i * 7 + random.nextInt(5);
+            int card = random.nextInt(150);
+            // Each card rides one company, and Company1 has most of them, as a large operator would
+            int company = card < 105 ? 1 : 2 + card % 3;
+            lines.add(String.format("%d, %02d-01-2023 %02d:%02d:%02d, %s, Stop%d, Company%d, Bus%d, %d", i,
+                    1 + second / 86_400, second / 3600 % 24, second / 60 % 60, second % 60,
+                    random.nextBoolean() ? "ON" : "OFF", 1 + random.nextInt(3), company, random.nextInt(20),
+                    5500005555550000L + card));
+        }
+        Path taps = workDir.resolve("taps.csv");
+        Files.write(taps, lines);
+        return taps;
+    }
+
+    private static List<String> tripsOfCompany(List<String> trips, String company) {
+        return trips.stream().skip(1).filter(line -> line.split(",")[6].trim().equals(company)).toList();
+    }
+
+    @Test
+    void perCompanyRunMatchesSingleRunSplitByCompany() throws Exception {
+        Path taps = writeTaps(4_000);
+        Path single = workDir.resolve("single.csv");
+        Path split = workDir.resolve("trips.csv");
+
+        FareCalculator.processFiles(taps, single);
+        FareCalculator.processFiles(taps, split, new RunOptions().perCompany(true).threads(2));
+
+        List<String> singleTrips = Files.readAllLines(single);
+        int tripCount = 0;
+        for (int company = 1; company <= 4; company++) {
+            List<String> companyTrips = Files.readAllLines(workDir.resolve("trips-Company" + company + ".csv"));
+            assertEquals(singleTrips.get(0), companyTrips.get(0));
+            assertEquals(tripsOfCompany(singleTrips, "Company" + company),
+                    companyTrips.subList(1, companyTrips.size()));
+            tripCount += companyTrips.size() - 1;
+        }
+        assertEquals(singleTrips.size() - 1, tripCount);
+        assertFalse(Files.exists(split));
+    }
+
+    @Test
+    void companiesUseTheirOwnFares() throws Exception {
+        Path taps = workDir.resolve("taps.csv");
+        Files.write(taps, List.of("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "1, 22-01-2023 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559",
+                "2, 22-01-2023 13:05:00, OFF, Stop2, Company1, Bus37, 5500005555555559",
+                "3, 22-01-2023 13:00:00, ON, Stop1, Company2, Bus1, 4111111111111111",
+                "4, 22-01-2023 13:05:00, OFF, Stop2, Company2, Bus1, 4111111111111111"));
+        Path faresDir = Files.createDirectories(workDir.resolve("fares"));
+        Files.writeString(faresDir.resolve("Company2.fares.properties"),
+                "STOP1_STOP2=2.00\nSTOP2_STOP3=4.00\nSTOP1_STOP3=6.00\n");
+
+        FareCalculator.processFiles(taps, workDir.resolve("trips.csv"),
+                new RunOptions().companyFaresDir(faresDir).perCompany(true));
+
+        assertTrue(Files.readString(workDir.resolve("trips-Company1.csv")).contains("$3.25"));
+        assertTrue(Files.readString(workDir.resolve("trips-Company2.csv")).contains("$2.00"));
+    }
+
+    @Test
+    void failingCompanyDoesNotStopOthers() throws Exception {
+        Path taps = writeTaps(500);
+        Path faresDir = Files.createDirectories(workDir.resolve("fares"));
+        Files.writeString(faresDir.resolve("Company3.fares.properties"), "NOT_A_STOP_PAIR=1.00\n");
+        CompanyPipelines pipelines = new CompanyPipelines(new RunOptions().threads(1), null, null, faresDir,
+                new PipelineMetrics());
+        List<Tap> tapList = new CsvReader().readTaps(taps.toString());
+
+        IOException failure = assertThrows(IOException.class,
+                () -> pipelines.run(tapList, workDir.resolve("trips.csv")));
+
+        assertTrue(failure.getMessage().contains("Company3"), failure.getMessage());
+        assertInstanceOf(IllegalArgumentException.class, failure.getCause());
+        for (String company : List.of("Company1", "Company2", "Company4")) {
+            assertTrue(Files.exists(workDir.resolve("trips-" + company + ".csv")), company);
+        }
+        assertFalse(Files.exists(workDir.resolve("trips-Company3.csv")));
+    }
+
+    @Test
+    void largestCompanyStartsFirstThenSmallestFirst() {
+        Tap tap = new Tap("1", 0, TapType.ON, Stop.STOP1, "C", "B", "P");
+        Map<String, List<Tap>> tapsByCompany = Map.of(
+                "Big", Collections.nCopies(100, tap),
+                "Medium", Collections.nCopies(10, tap),
+                "Small", Collections.nCopies(1, tap),
+                "Tiny", List.of());
+
+        assertEquals(List.of("Big", "Tiny", "Small", "Medium"), CompanyPipelines.schedule(tapsByCompany, 4));
+        assertEquals(List.of("Tiny", "Small", "Medium", "Big"), CompanyPipelines.schedule(tapsByCompany, 1));
+    }
+
+    @Test
+    void companyFileNamesStayInTheOutputDirectory() {
+        Path output = workDir.resolve("trips.csv");
+
+        assertEquals(workDir.resolve("trips-Company1.csv"), CompanyPipelines.companyOutputPath(output, "Company1"));
+        assertEquals(workDir, CompanyPipelines.companyOutputPath(output, "../../x").getParent());
+    }
+
+    @Test
+    void rejectsUnsupportedOptions() {
+        assertThrows(IllegalArgumentException.class, () -> new CompanyPipelines(
+                new RunOptions().journeysPath(Paths.get("journeys.csv")), null, null, null, new PipelineMetrics()));
+        assertThrows(IllegalArgumentException.class, () -> new ShardCoordinator(2,
+                new RunOptions().perCompany(true), null, null, new PipelineMetrics()));
+        // Nothing in a sorted run, per company or not, reacts to heap pressure
+        assertThrows(IllegalArgumentException.class, () -> FareCalculator.processFiles(Paths.get("taps.csv"),
+                Paths.get("trips.csv"), new RunOptions().perCompany(true).heapThresholdPercent(60)));
+    }
+}
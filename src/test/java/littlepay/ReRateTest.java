@@ -0,0 +1,59 @@
+package littlepay;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import littlepay.service.PricingService;
+import littlepay.service.TripReRater;
+import littlepay.util.CsvWriter;
+import littlepay.util.TripStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReRateTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static TripReRater stop2Stop3Increase() {
+        Properties newFares = new Properties();
+        newFares.setProperty("STOP1_STOP2", "3.25");
+        newFares.setProperty("STOP2_STOP3", "6.00");
+        newFares.setProperty("STOP1_STOP3", "7.30");
+        return new TripReRater(new PricingService(), new PricingService(newFares, new Properties()));
+    }
+
+    @Test
+    void writesTheSameDeltaFromCsvAndTripStore() throws Exception {
+        LocalDateTime started = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+        List<Trip> trips = List.of(
+                new Trip(started, started.plusMinutes(5), 300, Stop.STOP1, Stop.STOP2, new BigDecimal("3.25"),
+                        "Company1", "Bus37", "5500005555555559", TripStatus.COMPLETED),
+                new Trip(started, started.plusMinutes(9), 540, Stop.STOP2, Stop.STOP3, new BigDecimal("5.50"),
+                        "Company1", "Bus37", "4111111111111111", TripStatus.COMPLETED));
+        Path csv = tempDir.resolve("trips.csv");
+        Path store = tempDir.resolve("trips.store");
+        new CsvWriter().writeTrips(trips, csv.toString());
+        TripStore.write(trips, store);
+
+        Path csvDelta = tempDir.resolve("delta-csv.csv");
+        Path storeDelta = tempDir.resolve("delta-store.csv");
+        ReRate.reRate(csv, csvDelta, stop2Stop3Increase());
+        ReRate.reRate(store, storeDelta, stop2Stop3Increase());
+
+        String expected = ReRate.DELTA_HEADER_LINE
+                + "$5.50,$0.50,22-01-2023 13:00:00,22-01-2023 13:09:00,540,Stop2,Stop3,$6.00,Company1,Bus37,"
+                + "4111111111111111,COMPLETED\n";
+        assertEquals(expected, Files.readString(csvDelta));
+        assertEquals(expected, Files.readString(storeDelta));
+    }
+}
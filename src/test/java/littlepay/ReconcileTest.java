@@ -0,0 +1,140 @@
+package littlepay;
+
+import littlepay.util.TripCsvEncoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconcileTest {
+
+    private static final String TRIP_A = "22-01-2023 13:00:00,22-01-2023 13:05:00,300,Stop1,Stop2,$3.25,Company1,Bus37,"
+            + "5500005555555559,COMPLETED";
+    private static final String TRIP_B = "22-01-2023 13:00:00,22-01-2023 13:09:00,540,Stop2,Stop3,$5.50,Company1,Bus37,"
+            + "4111111111111111,COMPLETED";
+    private static final String TRIP_C = "22-01-2023 14:00:00,22-01-2023 14:00:00,0,Stop1,Stop1,$7.30,Company\",2,Bus1,"
+            + "4111111111111111,INCOMPLETE";
+
+    @TempDir
+    Path tempDir;
+
+    private Path tripsFile(String name, String... records) throws IOException {
+        Path path = tempDir.resolve(name);
+        StringBuilder content = new StringBuilder(TripCsvEncoder.HEADER_LINE);
+        for (String record : records) {
+            content.append(record).append('\n');
+        }
+        Files.writeString(path, content);
+        return path;
+    }
+
+    @Test
+    void sameTripsInAnyOrderMatch() throws IOException {
+        Path oldTrips = tripsFile("old.csv", TRIP_A, TRIP_B, TRIP_C);
+        Path newTrips = tripsFile("new.csv", TRIP_C, TRIP_B, TRIP_A);
+        Path report = tempDir.resolve("report.csv");
+
+        Reconcile.Summary summary = Reconcile.reconcile(oldTrips, newTrips, report, 1);
+
+        assertTrue(summary.matches());
+        assertEquals(3, summary.oldTrips());
+        assertEquals(3, summary.newTrips());
+        assertEquals(Reconcile.REPORT_HEADER_LINE, Files.readString(report));
+    }
+
+    @Test
+    void reportsMissingExtraAndDifferingTrips() throws IOException {
+        String changedA = TRIP_A.replace("$3.25", "$3.30").replace("COMPLETED", "CANCELLED");
+        String extra = TRIP_B.replace("13:00:00", "13:30:00");
+        Path oldTrips = tripsFile("old.csv", TRIP_A, TRIP_B, TRIP_C, TRIP_C);
+        Path newTrips = tripsFile("new.csv", extra, TRIP_C, changedA);
+        Path report = tempDir.resolve("report.csv");
+
+        Reconcile.Summary summary = Reconcile.reconcile(oldTrips, newTrips, report, 1);
+
+        assertFalse(summary.matches());
+        assertEquals(2, summary.missing());
+        assertEquals(1, summary.extra());
+        assertEquals(1, summary.different());
+        assertEquals(Map.of("ChargeAmount", 1L, "Status", 1L), summary.differencesByColumn());
+        assertEquals(List.of(
+                "DIFFERENT,5500005555555559,22-01-2023 13:00:00,ChargeAmount,$3.25,$3.30",
+                "DIFFERENT,5500005555555559,22-01-2023 13:00:00,Status,COMPLETED,CANCELLED",
+                "EXTRA,4111111111111111,22-01-2023 13:30:00,,," + escaped(extra),
+                "MISSING,4111111111111111,22-01-2023 13:00:00,," + escaped(TRIP_B) + ",",
+                "MISSING,4111111111111111,22-01-2023 14:00:00,," + escaped(TRIP_C) + ","),
+                sortedRows(report));
+    }
+
+    @Test
+    void partitionedRunReportsTheSame() throws IOException {
+        List<String> oldRecords = new ArrayList<>();
+        List<String> newRecords = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            String record = String.format("01-02-2023 %02d:%02d:00,,0,Stop1,,$7.30,Company1,Bus1,%d,INCOMPLETE",
+                    i / 60 % 24, i % 60, 5500005555550000L + i % 300);
+            oldRecords.add(record);
+            if (i % 97 == 0) {
+                newRecords.add(record.replace("$7.30", "$5.50"));
+            } else if (i % 89 != 0) {
+                newRecords.add(record);
+            }
+        }
+        newRecords.add("02-02-2023 00:00:00,,0,Stop1,,$7.30,Company1,Bus1,4111,INCOMPLETE");
+        Collections.reverse(newRecords);
+        Path oldTrips = tripsFile("old.csv", oldRecords.toArray(new String[0]));
+        Path newTrips = tripsFile("new.csv", newRecords.toArray(new String[0]));
+        Path wholeReport = tempDir.resolve("whole.csv");
+        Path partitionedReport = tempDir.resolve("partitioned.csv");
+
+        Reconcile.Summary whole = Reconcile.reconcile(oldTrips, newTrips, wholeReport, 1);
+        Reconcile.Summary partitioned = Reconcile.reconcile(oldTrips, newTrips, partitionedReport, 8);
+
+        assertEquals(new Reconcile.Summary(2_000, newRecords.size(), 22, 1, 21, Map.of("ChargeAmount", 21L), 1),
+                whole);
+        assertEquals(8, partitioned.partitions());
+        assertEquals(sortedRows(wholeReport), sortedRows(partitionedReport));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertTrue(files.noneMatch(path -> path.getFileName().toString().startsWith("reconcile-")));
+        }
+    }
+
+    @Test
+    void rejectsFilesWithDifferentColumns() throws IOException {
+        Path oldTrips = tripsFile("old.csv", TRIP_A);
+        Path newTrips = tempDir.resolve("new.csv");
+        Files.writeString(newTrips, "Started,PAN\n22-01-2023 13:00:00,5500005555555559\n");
+
+        assertThrows(IllegalArgumentException.class,
+                () -> Reconcile.reconcile(oldTrips, newTrips, tempDir.resolve("report.csv"), 1));
+    }
+
+    @Test
+    void partitionsKeepEachWithinHalfTheHeap() {
+        assertEquals(1, Reconcile.partitionsFor(0, 1L << 30));
+        assertEquals(1, Reconcile.partitionsFor(100L << 20, 1L << 30));
+        assertEquals(40, Reconcile.partitionsFor(5L << 30, 1L << 30));
+    }
+
+    private static String escaped(String record) {
+        StringBuilder out = new StringBuilder();
+        TripCsvEncoder.appendField(out, record);
+        return out.toString();
+    }
+
+    private static List<String> sortedRows(Path report) throws IOException {
+        List<String> lines = Files.readAllLines(report);
+        List<String> rows = new ArrayList<>(lines.subList(1, lines.size()));
+        Collections.sort(rows);
+        return rows;
+    }
+}
@@ -0,0 +1,334 @@
+package littlepay;
+
+import littlepay.model.Trip;
+import littlepay.util.EpochTime;
+import littlepay.util.FileSupport;
+import littlepay.util.TripColumnFile;
+import littlepay.util.TripCsvEncoder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the whole pipeline on a large generated tap file in every execution
+ * mode, checks that every mode writes the same trips as matching on a single
+ * thread, and fails a mode that takes longer, uses more memory or spends more
+ * time collecting garbage than its budget allows. A mode's memory is the peak
+ * resident set size of the test JVM plus those of any processes it starts,
+ * such as shard workers. Excluded from {@code test}; run
+ * with {@code ./gradlew scaleTest}, which passes {@code -Pscale.*} properties
+ * on as budgets:
+ * <ul>
+ * <li>{@code scale.taps}: Taps to generate (default 1,000,000).</li>
+ * <li>{@code scale.maxSeconds}: Wall time per mode (default 120).</li>
+ * <li>{@code scale.maxRssMb}: Peak resident set size of the test JVM and its
+ * child processes together (default 3072); only checked where
+ * {@code /proc/self/status} exists.</li>
+ * <li>{@code scale.maxGcPercent}: Share of a mode's wall time spent in
+ * garbage collection (default 50).</li>
+ * </ul>
+ */
+@Tag("scale")
+class ScaleSoakTest {
+
+    // FareCalculator only accepts paths inside the working directory
+    private static final Path WORK_DIR = Paths.get("build", "tmp", "scale-test").toAbsolutePath();
+    private static final long BASE = EpochTime.of(LocalDateTime.of(2023, 1, 1, 0, 0, 0));
+    private static final int HOT_CARDS = 3;
+
+    private static final int TAPS = Integer.getInteger("scale.taps", 1_000_000);
+    private static final long MAX_MILLIS = Long.getLong("scale.maxSeconds", 120) * 1000;
+    private static final long MAX_RSS_BYTES = Long.getLong("scale.maxRssMb", 3072) << 20;
+    private static final int MAX_GC_PERCENT = Integer.getInteger("scale.maxGcPercent", 50);
+
+    private static Path taps;
+    private static List<String> expectedLines;
+
+    /**
+     * How a mode's trips are compared with the default run's.
+     */
+    private enum Output {
+        /** Byte for byte. */
+        SAME,
+        /** The rows of the company files together, in any order. */
+        PER_COMPANY,
+        /** The columnar file, as trips CSV. */
+        COLUMNAR
+    }
+
+    private record Mode(String name, Output output, String... flags) {
+    }
+
+    private static final List<Mode> MODES = List.of(
+            new Mode("serial", Output.SAME, "--threads=1"),
+            new Mode("default", Output.SAME),
+            new Mode("threads", Output.SAME, "--threads=4"),
+            new Mode("fast-parser", Output.SAME, "--fast-parser"),
+            new Mode("async-output", Output.SAME, "--fsync=64mb"),
+            new Mode("dedup", Output.SAME, "--dedup"),
+            new Mode("lateness", Output.SAME, "--lateness=10m"),
+            new Mode("open-tap-spill", Output.SAME, "--lateness=10m", "--open-tap-budget=1mb"),
+            new Mode("heap-threshold", Output.SAME, "--lateness=10m", "--heap-threshold=60"),
+            new Mode("shards", Output.SAME, "--shards=2"),
+            new Mode("per-company", Output.PER_COMPANY, "--per-company", "--threads=2"),
+            new Mode("columnar", Output.COLUMNAR, "--columnar=" + WORK_DIR.resolve("trips.col")));
+
+    @BeforeAll
+    static void generateTaps() throws IOException {
+        FileSupport.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        taps = WORK_DIR.resolve("taps.csv");
+        long start = System.nanoTime();
+        writeTaps(taps, TAPS);
+        System.out.printf("Generated %,d taps (%,d bytes) in %d ms%n", TAPS, Files.size(taps),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        FileSupport.deleteRecursively(WORK_DIR);
+    }
+
+    /**
+     * Writes taps in time order from many cards, each with one company, so
+     * that matching per company gives the same trips. Most cards tap on and
+     * off, some forget to tap off, some tap off where they tapped on and a
+     * few taps are invalid. A sixth of the taps come from a few hot cards,
+     * which are busy enough to be split across threads.
+     */
+    private static void writeTaps(Path path, int count) throws IOException {
+        Random random = new Random(47);
+        int cards = Math.max(HOT_CARDS + 1, count / 20);
+        int[] openStop = new int[cards];
+        long second = BASE;
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            out.write("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n");
+            for (int id = 1; id <= count; id++) {
+                second += random.nextInt(3);
+                int card = random.nextInt(6) == 0 ? random.nextInt(HOT_CARDS) : random.nextInt(cards);
+                String type;
+                int stop;
+                if (random.nextInt(50) == 0) {
+                    type = "INVALID";
+                    stop = 1 + random.nextInt(3);
+                } else {
+                    boolean on = openStop[card] == 0 || random.nextInt(10) == 0;
+                    type = on ? "ON" : "OFF";
+                    stop = on || random.nextInt(20) != 0 ? 1 + random.nextInt(3) : openStop[card];
+                    openStop[card] = on ? stop : 0;
+                }
+                out.write(id + ", " + EpochTime.format(second) + ", " + type + ", Stop" + stop
+                        + ", Company" + card % 5 + ", Bus" + random.nextInt(200) + ", " + (5500005555550000L + card)
+                        + "\n");
+            }
+        }
+    }
+
+    @TestFactory
+    Stream<DynamicTest> everyModeWritesTheSameTripsWithinBudget() {
+        // Dynamic tests run in order, so the serial mode sets the expected trips for the rest
+        return MODES.stream().map(mode -> DynamicTest.dynamicTest(mode.name(), () -> runMode(mode)));
+    }
+
+    private void runMode(Mode mode) throws Exception {
+        Path output = WORK_DIR.resolve("trips.csv");
+        RunOptions options = RunOptions.parse(mode.flags());
+        System.gc();
+        boolean rssReset = resetPeakRss();
+        long gcBefore = gcMillis();
+        long start = System.nanoTime();
+
+        long childRss;
+        try (ChildRssSampler children = new ChildRssSampler()) {
+            FareCalculator.processFiles(taps, output, options);
+            childRss = children.peakBytes();
+        }
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        long gc = gcMillis() - gcBefore;
+        long ownRss = peakRssBytes(Paths.get("/proc/self/status"));
+        long rss = ownRss < 0 ? -1 : ownRss + childRss;
+        System.out.printf("%-15s %,8d ms  GC %,6d ms  peak RSS %s%n", mode.name(), millis, gc,
+                rss < 0 ? "unavailable" : (rss >> 20) + " MB" + (rssReset ? "" : " (whole run)")
+                        + (childRss > 0 ? ", " + (childRss >> 20) + " MB of it in child processes" : ""));
+
+        List<String> lines = outputLines(mode, output);
+        if (expectedLines == null) {
+            expectedLines = lines;
+            assertTrue(lines.size() > TAPS / 4, "Only " + lines.size() + " trips");
+        } else {
+            List<String> expected = mode.output() == Output.PER_COMPANY
+                    ? sortedRows(expectedLines.subList(1, expectedLines.size()))
+                    : expectedLines;
+            assertEquals(expected.size(), lines.size(), mode.name() + " trip count");
+            // Not assertEquals, which would print a million rows
+            assertTrue(expected.equals(lines), mode.name() + " wrote different trips");
+        }
+        assertTrue(millis <= MAX_MILLIS, mode.name() + " took " + millis + " ms, budget " + MAX_MILLIS);
+        assertTrue(gc * 100 <= (long) MAX_GC_PERCENT * Math.max(millis, 1),
+                mode.name() + " spent " + gc + " of " + millis + " ms in GC, budget " + MAX_GC_PERCENT + "%");
+        assertTrue(rss < 0 || rss <= MAX_RSS_BYTES,
+                mode.name() + " peaked at " + (rss >> 20) + " MB RSS, budget " + (MAX_RSS_BYTES >> 20));
+    }
+
+    private static List<String> outputLines(Mode mode, Path output) throws IOException {
+        switch (mode.output()) {
+            case SAME -> {
+                return Files.readAllLines(output);
+            }
+            case PER_COMPANY -> {
+                List<String> lines = new ArrayList<>();
+                try (Stream<Path> files = Files.list(WORK_DIR)) {
+                    for (Path file : files.filter(f -> f.getFileName().toString().startsWith("trips-")).toList()) {
+                        List<String> companyLines = Files.readAllLines(file);
+                        lines.addAll(companyLines.subList(1, companyLines.size()));
+                        Files.delete(file);
+                    }
+                }
+                return sortedRows(lines);
+            }
+            case COLUMNAR -> {
+                assertEquals(expectedLines, Files.readAllLines(output), "CSV next to the columnar file");
+                StringBuilder csv = new StringBuilder(TripCsvEncoder.HEADER_LINE);
+                TripCsvEncoder encoder = new TripCsvEncoder();
+                try (TripColumnFile file = TripColumnFile.open(WORK_DIR.resolve("trips.col"))) {
+                    for (Trip trip : file.readAll()) {
+                        encoder.appendTrip(csv, trip);
+                    }
+                }
+                return csv.toString().lines().toList();
+            }
+        }
+        throw new IllegalStateException(mode.output().name());
+    }
+
+    /**
+     * Rows other than the header, in any fixed order, to compare with the
+     * default run's.
+     */
+    private static List<String> sortedRows(List<String> rows) {
+        List<String> sorted = new ArrayList<>(rows);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * @param status A process's {@code /proc/<pid>/status} file.
+     * @return The process's peak resident set size since it started or, for
+     *         this JVM, since {@link #resetPeakRss()}; -1 where the OS does
+     *         not report it or the process has gone.
+     */
+    private static long peakRssBytes(Path status) {
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try {
+            Map<String, String> fields = new HashMap<>();
+            for (String line : Files.readAllLines(status)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    fields.put(line.substring(0, colon), line.substring(colon + 1).trim());
+                }
+            }
+            String peak = fields.get("VmHWM");
+            return peak == null ? -1 : Long.parseLong(peak.replace("kB", "").trim()) * 1024;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Polls the peak resident set size of this JVM's descendant processes
+     * while a mode runs, keeping each one's last reading. A process's peak
+     * only grows, so this misses at most its last few milliseconds.
+     */
+    private static final class ChildRssSampler implements AutoCloseable {
+        private final Map<Long, Long> peaks = new ConcurrentHashMap<>();
+        private final Thread thread;
+        private volatile boolean done;
+
+        ChildRssSampler() {
+            thread = Thread.ofPlatform().daemon().start(() -> {
+                while (!done) {
+                    sample();
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        private void sample() {
+            ProcessHandle.current().descendants().forEach(process -> {
+                long peak = peakRssBytes(Paths.get("/proc", String.valueOf(process.pid()), "status"));
+                if (peak > 0) {
+                    peaks.merge(process.pid(), peak, Math::max);
+                }
+            });
+        }
+
+        /**
+         * @return The sum of the child processes' peaks, as if they had all
+         *         peaked at once.
+         */
+        long peakBytes() {
+            return peaks.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                thread.interrupt(); // Stop sampling without waiting for it
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Resets the peak resident set size to the current one, so that each mode
+     * is measured on its own; Linux only.
+     *
+     * @return Whether the peak was reset.
+     */
+    private static boolean resetPeakRss() {
+        try {
+            Files.writeString(Paths.get("/proc/self/clear_refs"), "5");
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+}
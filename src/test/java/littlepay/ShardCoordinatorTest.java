@@ -0,0 +1,137 @@
+package littlepay;
+
+import littlepay.util.FileSupport;
+import littlepay.util.FsyncPolicy;
+import littlepay.util.PipelineMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardCoordinatorTest {
+
+    // FareCalculator only accepts paths inside the working directory
+    private final Path workDir = Paths.get("build", "tmp", "shard-coordinator-test").toAbsolutePath();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        FileSupport.deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileSupport.deleteRecursively(workDir);
+    }
+
+    private Path writeTaps(int count) throws IOException {
+        Random random = new Random(3);
+        List<String> lines = new ArrayList<>();
+        lines.add("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN");
+        for (int i = 0; i < count; i++) {
+            int second = i * 7 + random.nextInt(5);
+            lines.add(String.format("%d, %02d-01-2023 %02d:%02d:%02d, %s, Stop%d, Company%d, Bus%d, %d", i,
+                    1 + second / 86_400, second / 3600 % 24, second / 60 % 60, second % 60,
+                    random.nextBoolean() ? "ON" : "OFF", 1 + random.nextInt(3), 1 + random.nextInt(2),
+                    random.nextInt(20), 5500005555550000L + random.nextInt(150)));
+        }
+        lines.add("bad, row"); // Skipped by whichever worker gets it
+        Path taps = workDir.resolve("taps.csv");
+        Files.write(taps, lines);
+        return taps;
+    }
+
+    @Test
+    void shardedRunMatchesSingleProcess() throws Exception {
+        Path taps = writeTaps(3_000);
+        Path single = workDir.resolve("single.csv");
+        Path sharded = workDir.resolve("sharded.csv");
+
+        FareCalculator.processFiles(taps, single);
+        FareCalculator.processFiles(taps, sharded, new RunOptions().shards(3));
+
+        assertEquals(Files.readString(single), Files.readString(sharded));
+        try (Stream<Path> leftovers = Files.list(workDir)) {
+            assertEquals(3, leftovers.count(), "Shard files should be cleaned up");
+        }
+    }
+
+    @Test
+    void partitionKeepsEachPanInOneShard() throws IOException {
+        Path taps = writeTaps(500);
+        ShardCoordinator coordinator = new ShardCoordinator(4, new RunOptions(), null, null, new PipelineMetrics());
+        List<Path> shards = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            shards.add(workDir.resolve("shard-" + i + ".csv"));
+        }
+
+        assertEquals(501, coordinator.partition(taps, shards));
+
+        for (int i = 0; i < 4; i++) {
+            List<String> lines = Files.readAllLines(shards.get(i));
+            assertTrue(lines.get(0).contains("PAN"), "Each shard starts with the header");
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.replace("\"", "").split(",");
+                if (fields.length == 7) {
+                    assertEquals(i, coordinator.shardOf(fields[6].trim()));
+                }
+            }
+        }
+    }
+
+    @Test
+    void mergeHandlesEscapedSeparatorsAndLineEnds() throws IOException {
+        String header = "Started,Finished,DurationSecs,FromStopId,ToStopId,ChargeAmount,CompanyId,BusID,PAN,Status\n";
+        Path first = workDir.resolve("a.csv");
+        Path second = workDir.resolve("b.csv");
+        Files.writeString(first, header
+                + "22-01-2023 13:00:00,22-01-2023 13:05:00,300,Stop1,Stop2,$3.25,Company1,Bus\"\n37,B\",1,COMPLETED\n"
+                + "22-01-2023 13:10:00,22-01-2023 13:15:00,300,Stop1,Stop2,$3.25,Company1,Bus37,A,COMPLETED\n");
+        Files.writeString(second, header
+                + "22-01-2023 13:00:00,22-01-2023 13:05:00,300,Stop1,Stop2,$3.25,Company1,Bus37,B0,COMPLETED\n");
+        Path merged = workDir.resolve("merged.csv");
+
+        assertEquals(3, ShardCoordinator.merge(List.of(first, second), merged));
+
+        assertEquals(header
+                // PAN "B,1" sorts before "B0"
+                + "22-01-2023 13:00:00,22-01-2023 13:05:00,300,Stop1,Stop2,$3.25,Company1,Bus\"\n37,B\",1,COMPLETED\n"
+                + "22-01-2023 13:00:00,22-01-2023 13:05:00,300,Stop1,Stop2,$3.25,Company1,Bus37,B0,COMPLETED\n"
+                + "22-01-2023 13:10:00,22-01-2023 13:15:00,300,Stop1,Stop2,$3.25,Company1,Bus37,A,COMPLETED\n",
+                Files.readString(merged));
+    }
+
+    @Test
+    void mergeReplacesTheOutputWithAnFsyncPolicy() throws IOException {
+        String header = "Started,Finished,DurationSecs,FromStopId,ToStopId,ChargeAmount,CompanyId,BusID,PAN,Status\n";
+        String trip = "22-01-2023 13:00:00,22-01-2023 13:05:00,300,Stop1,Stop2,$3.25,Company1,Bus37,A,COMPLETED\n";
+        Path shard = workDir.resolve("shard.csv");
+        Files.writeString(shard, header + trip);
+        Path merged = workDir.resolve("merged.csv");
+        Files.writeString(merged, "old");
+
+        assertEquals(1, ShardCoordinator.merge(List.of(shard), merged, FsyncPolicy.everyMegabytes(1)));
+
+        assertEquals(header + trip, Files.readString(merged));
+        try (Stream<Path> files = Files.list(workDir)) {
+            assertEquals(List.of("merged.csv", "shard.csv"), files.map(file -> file.getFileName().toString())
+                    .sorted().toList());
+        }
+    }
+
+    @Test
+    void rejectsUnsupportedOptions() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardCoordinator(2,
+                new RunOptions().summaryPath(Paths.get("summary.csv")), null, null, new PipelineMetrics()));
+    }
+}
@@ -0,0 +1,190 @@
+package littlepay;
+
+import littlepay.model.Tap;
+import littlepay.service.PricingService;
+import littlepay.service.TripProcessorService;
+import littlepay.util.CsvReader;
+import littlepay.util.PipelineMetrics;
+import littlepay.util.RejectedRows;
+import littlepay.util.RollingTripWriter;
+import littlepay.util.SkipReason;
+import littlepay.util.TripCsvEncoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TapIngestServerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    private static List<String> tapRows(int count) {
+        Random random = new Random(5);
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int second = i * 7 + random.nextInt(5);
+            rows.add(String.format("%d, %02d-01-2023 %02d:%02d:%02d, %s, Stop%d, Company%d, Bus%d, %d", i,
+                    1 + second / 86_400, second / 3600 % 24, second / 60 % 60, second % 60,
+                    random.nextBoolean() ? "ON" : "OFF", 1 + random.nextInt(3), 1 + random.nextInt(2),
+                    random.nextInt(20), 5500005555550000L + random.nextInt(150)));
+        }
+        return rows;
+    }
+
+    private TapIngestServer newServer(RunOptions options, Path outputDir, long rollBytes) throws IOException {
+        return new TapIngestServer(options, new PricingService(), new RollingTripWriter(outputDir, rollBytes, 3600),
+                new RejectedRows(metrics), metrics);
+    }
+
+    private static List<String> readTrips(Path outputDir) throws IOException {
+        List<String> trips = new ArrayList<>();
+        try (Stream<Path> files = Files.list(outputDir)) {
+            for (Path file : files.sorted().toList()) {
+                assertTrue(file.getFileName().toString().matches("trips-\\d{8}T\\d{6}Z-\\d{6}\\.csv"),
+                        "Unexpected file " + file);
+                List<String> lines = Files.readAllLines(file);
+                assertEquals(TripCsvEncoder.HEADER_LINE.strip(), lines.get(0));
+                trips.addAll(lines.subList(1, lines.size()));
+            }
+        }
+        return trips;
+    }
+
+    private static void awaitConnections(TapIngestServer server, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (server.connectionsAccepted() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, server.connectionsAccepted());
+    }
+
+    @Test
+    void streamedTripsMatchBatchRun() throws Exception {
+        List<String> rows = tapRows(3_000);
+        Path outputDir = tempDir.resolve("out");
+        // Connections interleave arbitrarily, so allow any lateness to make the result deterministic
+        TapIngestServer server = newServer(new RunOptions().latenessSeconds(1_000_000), outputDir, 16 * 1024);
+        int port = server.start(0);
+
+        TapFeedClient.send("localhost", port, rows, 8, 0);
+        awaitConnections(server, 8);
+        server.close();
+
+        Path tapsFile = tempDir.resolve("taps.csv");
+        List<String> lines = new ArrayList<>(rows);
+        lines.add(0, "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN");
+        Files.write(tapsFile, lines);
+        List<Tap> taps = new CsvReader().readTaps(tapsFile.toString());
+        StringBuilder batch = new StringBuilder();
+        TripCsvEncoder encoder = new TripCsvEncoder();
+        new TripProcessorService(new PricingService()).generateTrips(taps)
+                .forEach(trip -> encoder.appendTrip(batch, trip));
+        List<String> expected = new ArrayList<>(batch.toString().lines().toList());
+
+        List<String> actual = readTrips(outputDir);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertEquals(0, server.lateTaps());
+        try (Stream<Path> files = Files.list(outputDir)) {
+            assertTrue(files.count() > 1, "Expected the output to roll over to several files");
+        }
+    }
+
+    @Test
+    void matchingFailureIsReportedOnClose() throws Exception {
+        Properties fares = new Properties();
+        fares.setProperty("STOP1_STOP2", "3.25");
+        TapIngestServer server = new TapIngestServer(new RunOptions(), new PricingService(fares, new Properties()),
+                new RollingTripWriter(tempDir.resolve("out"), 16 * 1024, 3600), new RejectedRows(metrics), metrics);
+        int port = server.start(0);
+
+        // Trips to Stop3 have no fare
+        TapFeedClient.send("localhost", port, tapRows(200), 1, 0);
+        awaitConnections(server, 1);
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, server::close);
+        assertTrue(e.getMessage().startsWith("No fare defined"), e.getMessage());
+    }
+
+    @Test
+    void parsesLinesLikeCsvReader() throws Exception {
+        Path outputDir = tempDir.resolve("out");
+        TapIngestServer server = newServer(new RunOptions().dedup(true), outputDir,
+                RollingTripWriter.DEFAULT_MAX_BYTES);
+        int port = server.start(0);
+
+        try (Socket socket = new Socket("localhost", port); OutputStream out = socket.getOutputStream()) {
+            out.write(("1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456\r\n"
+                    + "\n" // Keep-alive
+                    + "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456\n" // Resent
+                    + "2, 20-08-2023 10:01:00, OFF, Stop4, CompanyA, Bus1, 123456\n"
+                    + "3, not a date, OFF, Stop2, CompanyA, Bus1, 123456\n"
+                    + "4, \"20-08-2023 10:02:00\n"
+                    + "5, 20-08-2023 10:05:00, OFF, Stop2, CompanyA, Bus1, 123456") // No line end before closing
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        awaitConnections(server, 1);
+        server.close();
+
+        assertEquals(2, metrics.rowsParsed());
+        assertEquals(1, metrics.rowsSkipped(SkipReason.DUPLICATE));
+        assertEquals(1, metrics.rowsSkipped(SkipReason.INVALID_VALUE));
+        assertEquals(1, metrics.rowsSkipped(SkipReason.INVALID_DATE));
+        assertEquals(1, metrics.rowsSkipped(SkipReason.UNEXPECTED_ERROR));
+        List<String> trips = readTrips(outputDir);
+        assertEquals(List.of("20-08-2023 10:00:00,20-08-2023 10:05:00,300,Stop1,Stop2,$3.25,CompanyA,Bus1,123456,"
+                + "COMPLETED"), trips);
+    }
+
+    @Test
+    void holdsManyConnectionsAtOnce() throws Exception {
+        int connections = 2_000;
+        TapIngestServer server = newServer(new RunOptions(), tempDir.resolve("out"),
+                RollingTripWriter.DEFAULT_MAX_BYTES);
+        int port = server.start(0);
+
+        Thread client = Thread.ofVirtual().start(() -> {
+            try {
+                TapFeedClient.send("localhost", port, tapRows(connections), connections, 2_000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        int peak = 0;
+        while (peak < connections && System.nanoTime() < deadline) {
+            peak = Math.max(peak, server.openConnections());
+            Thread.sleep(10);
+        }
+        client.join();
+        awaitConnections(server, connections);
+        server.close();
+
+        assertEquals(connections, peak);
+        assertEquals(connections, metrics.rowsParsed());
+        assertEquals(0, server.openConnections());
+    }
+
+    @Test
+    void rejectsOptionsThatNeedStartTimeOrder() {
+        assertThrows(IllegalArgumentException.class, () -> newServer(
+                new RunOptions().capsPath(tempDir.resolve("caps.properties")), tempDir.resolve("out"), 1024));
+    }
+}
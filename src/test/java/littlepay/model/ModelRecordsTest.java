@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -12,7 +13,7 @@ class ModelRecordsTest {
 
     @Test
     void tapRecordCreationAndAccessors() {
-        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS); // Taps hold whole seconds
         Tap tap = new Tap("1", now, TapType.ON, Stop.STOP1, "CompanyA", "Bus1", "1234567890123456");
 
         assertEquals("1", tap.id());
@@ -26,7 +27,7 @@ class ModelRecordsTest {
 
     @Test
     void tripRecordCreationAndAccessors() {
-        LocalDateTime started = LocalDateTime.now();
+        LocalDateTime started = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS); // Trips hold whole seconds
         LocalDateTime finished = started.plusHours(1);
         BigDecimal charge = new BigDecimal("3.25");
 
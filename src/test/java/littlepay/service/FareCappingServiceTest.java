@@ -0,0 +1,125 @@
+package littlepay.service;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FareCappingServiceTest {
+
+    private static final String PAN = "5500005555555559";
+    // A Monday, so the first trips of a test share a week
+    private static final LocalDateTime MONDAY = LocalDateTime.of(2023, 1, 2, 8, 0, 0);
+
+    private static FareCappingService caps(String... entries) {
+        Properties properties = new Properties();
+        for (int i = 0; i < entries.length; i += 2) {
+            properties.setProperty(entries[i], entries[i + 1]);
+        }
+        return new FareCappingService(properties);
+    }
+
+    private static Trip trip(LocalDateTime started, String fare, String companyId, String pan) {
+        return new Trip(started, started.plusMinutes(10), 600, Stop.STOP1, Stop.STOP3, new BigDecimal(fare),
+                companyId, "Bus1", pan, TripStatus.COMPLETED);
+    }
+
+    @Test
+    @DisplayName("Should charge in full until the daily cap, then only the remainder")
+    void dailyCap() {
+        FareCappingService service = caps("daily", "10.00");
+
+        assertEquals(new BigDecimal("7.30"), service.apply(trip(MONDAY, "7.30", "Company1", PAN)).chargeAmount());
+        assertEquals(new BigDecimal("2.70"),
+                service.apply(trip(MONDAY.plusHours(1), "7.30", "Company1", PAN)).chargeAmount());
+        assertEquals(new BigDecimal("0.00"),
+                service.apply(trip(MONDAY.plusHours(2), "3.25", "Company1", PAN)).chargeAmount());
+        assertEquals(2, service.cappedTrips());
+    }
+
+    @Test
+    @DisplayName("Should return the same trip when no cap is reached")
+    void uncappedTripUnchanged() {
+        FareCappingService service = caps("daily", "10.00");
+        Trip trip = trip(MONDAY, "3.25", "Company1", PAN);
+
+        assertSame(trip, service.apply(trip));
+        assertEquals(0, service.cappedTrips());
+    }
+
+    @Test
+    @DisplayName("Should reset the daily total on a new day but keep the weekly total")
+    void dayAndWeekRollover() {
+        FareCappingService service = caps("daily", "10.00", "weekly", "25.00");
+
+        service.apply(trip(MONDAY, "10.00", "Company1", PAN));
+        service.apply(trip(MONDAY.plusDays(1), "10.00", "Company1", PAN));
+        // New day, so the daily cap allows 10.00, but only 5.00 is left this week
+        assertEquals(new BigDecimal("5.00"),
+                service.apply(trip(MONDAY.plusDays(2), "10.00", "Company1", PAN)).chargeAmount());
+        assertEquals(new BigDecimal("0.00"),
+                service.apply(trip(MONDAY.plusDays(6), "3.25", "Company1", PAN)).chargeAmount());
+        // The following Monday starts a new week
+        assertEquals(new BigDecimal("3.25"),
+                service.apply(trip(MONDAY.plusDays(7), "3.25", "Company1", PAN)).chargeAmount());
+    }
+
+    @Test
+    @DisplayName("Should keep separate totals per card and per company, with company overrides")
+    void perCardAndCompany() {
+        FareCappingService service = caps("daily", "10.00", "Company2.daily", "5.00");
+
+        service.apply(trip(MONDAY, "10.00", "Company1", PAN));
+        assertEquals(new BigDecimal("7.30"),
+                service.apply(trip(MONDAY.plusMinutes(1), "7.30", "Company1", "4111111111111111")).chargeAmount());
+        assertEquals(new BigDecimal("5.00"),
+                service.apply(trip(MONDAY.plusMinutes(2), "7.30", "Company2", PAN)).chargeAmount());
+        assertEquals(new BigDecimal("3.25"),
+                service.apply(trip(MONDAY.plusMinutes(3), "3.25", "Company3", "not-a-number")).chargeAmount());
+        assertEquals(new BigDecimal("6.75"),
+                service.apply(trip(MONDAY.plusMinutes(4), "7.30", "Company3", "not-a-number")).chargeAmount());
+    }
+
+    @Test
+    @DisplayName("Should reject trips that go back to an earlier day")
+    void outOfOrderTrips() {
+        FareCappingService service = caps("daily", "10.00");
+        service.apply(trip(MONDAY.plusDays(1), "3.25", "Company1", PAN));
+
+        assertThrows(IllegalStateException.class, () -> service.apply(trip(MONDAY, "3.25", "Company1", PAN)));
+    }
+
+    @Test
+    @DisplayName("Should reject unknown keys and invalid amounts")
+    void invalidConfig() {
+        assertThrows(IllegalArgumentException.class, () -> caps("monthly", "10.00"));
+        assertThrows(IllegalArgumentException.class, () -> caps("daily", "ten"));
+        assertThrows(IllegalArgumentException.class, () -> caps("daily", "-1.00"));
+    }
+
+    @Test
+    @DisplayName("Should apply caps to trips generated by TripProcessorService")
+    void appliedByTripProcessor() {
+        TripProcessorService processor = new TripProcessorService(new PricingService(), caps("daily", "10.00"));
+        List<Tap> taps = List.of(
+                new Tap("1", MONDAY, TapType.ON, Stop.STOP1, "Company1", "Bus1", PAN),
+                new Tap("2", MONDAY.plusMinutes(10), TapType.OFF, Stop.STOP3, "Company1", "Bus1", PAN),
+                new Tap("3", MONDAY.plusHours(8), TapType.ON, Stop.STOP3, "Company1", "Bus1", PAN),
+                new Tap("4", MONDAY.plusHours(8).plusMinutes(10), TapType.OFF, Stop.STOP1, "Company1", "Bus1", PAN));
+
+        List<Trip> trips = processor.generateTrips(taps);
+
+        assertEquals(new BigDecimal("7.30"), trips.get(0).chargeAmount());
+        assertEquals(new BigDecimal("2.70"), trips.get(1).chargeAmount());
+    }
+}
@@ -0,0 +1,92 @@
+package littlepay.service;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalTripMatcherTest {
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+
+    private static Tap tap(String id, int minutes, TapType type, Stop stop, String pan) {
+        return new Tap(id, BASE_TIME.plusMinutes(minutes), type, stop, "Company1", "Bus37", pan);
+    }
+
+    @Test
+    @DisplayName("Should emit trips as soon as they are matched and incomplete trips on flush")
+    void emitsTripsAsTheyComplete() {
+        List<Trip> trips = new ArrayList<>();
+        IncrementalTripMatcher matcher = new IncrementalTripMatcher(new PricingService(), trips::add);
+
+        matcher.accept(tap("1", 0, TapType.ON, Stop.STOP1, "PAN1"));
+        matcher.accept(tap("2", 1, TapType.ON, Stop.STOP2, "PAN2"));
+        assertTrue(trips.isEmpty());
+        assertEquals(2, matcher.openTaps());
+
+        matcher.accept(tap("3", 5, TapType.OFF, Stop.STOP2, "PAN1"));
+        assertEquals(1, trips.size());
+        assertEquals(TripStatus.COMPLETED, trips.get(0).status());
+        assertEquals(1, matcher.openTaps());
+
+        matcher.accept(tap("4", 6, TapType.OFF, Stop.STOP3, "PAN3")); // OFF without ON is ignored
+        matcher.flush();
+
+        assertEquals(2, trips.size());
+        assertEquals(TripStatus.INCOMPLETE, trips.get(1).status());
+        assertEquals("PAN2", trips.get(1).pan());
+        assertEquals(0, matcher.openTaps());
+    }
+
+    @Test
+    @DisplayName("Should match out-of-order arrivals within the lateness bound exactly like the batch path")
+    void incrementalMatchesBatch() {
+        Random random = new Random(11);
+        Stop[] stops = Stop.values();
+        List<Tap> chronological = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            chronological.add(tap(Integer.toString(i), i, random.nextInt(3) == 0 ? TapType.OFF : TapType.ON,
+                    stops[random.nextInt(stops.length)], "PAN" + random.nextInt(40)));
+        }
+        // Swap neighbours so taps arrive up to a few minutes out of order
+        List<Tap> arrivals = new ArrayList<>(chronological);
+        for (int i = 0; i + 3 < arrivals.size(); i += 4) {
+            arrivals.set(i, chronological.get(i + 3));
+            arrivals.set(i + 3, chronological.get(i));
+        }
+        TripProcessorService service = new TripProcessorService(new PricingService());
+        List<Tap> late = new ArrayList<>();
+
+        List<Trip> incremental = service.generateTripsIncrementally(arrivals, 300, late::add);
+
+        assertTrue(late.isEmpty());
+        assertEquals(service.generateTrips(chronological), incremental);
+    }
+
+    @Test
+    @DisplayName("Should leave out taps that arrive later than the lateness bound")
+    void lateTapsAreNotMatched() {
+        TripProcessorService service = new TripProcessorService(new PricingService());
+        List<Tap> arrivals = List.of(
+                tap("1", 0, TapType.ON, Stop.STOP1, "PAN1"),
+                tap("2", 30, TapType.ON, Stop.STOP2, "PAN2"),
+                tap("3", 10, TapType.OFF, Stop.STOP2, "PAN1")); // 20 minutes behind PAN2's tap
+        List<Tap> late = new ArrayList<>();
+
+        List<Trip> trips = service.generateTripsIncrementally(arrivals, 600, late::add);
+
+        assertEquals(List.of("3"), late.stream().map(Tap::id).toList());
+        assertEquals(2, trips.size());
+        assertTrue(trips.stream().allMatch(trip -> trip.status() == TripStatus.INCOMPLETE));
+    }
+}
@@ -0,0 +1,112 @@
+package littlepay.service;
+
+import littlepay.model.LinkedTrip;
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JourneyLinkerTest {
+
+    private static final String PAN = "5500005555555559";
+    private static final LocalDateTime MORNING = LocalDateTime.of(2023, 1, 2, 8, 0, 0);
+
+    private final JourneyLinker linker = new JourneyLinker(new PricingService(), 3600);
+
+    private static Trip trip(LocalDateTime started, int minutes, Stop from, Stop to, String busId) {
+        return new Trip(started, started.plusMinutes(minutes), minutes * 60L, from, to,
+                new PricingService().getFare(from, to), "Company1", busId, PAN, TripStatus.COMPLETED);
+    }
+
+    @Test
+    @DisplayName("Should charge a transfer only what brings the journey up to the end-to-end fare")
+    void linksTransferAndPricesJourneyAsOne() {
+        LinkedTrip first = linker.link(trip(MORNING, 10, Stop.STOP1, Stop.STOP2, "Bus1"));
+        LinkedTrip second = linker.link(trip(MORNING.plusMinutes(30), 10, Stop.STOP2, Stop.STOP3, "Bus2"));
+
+        assertEquals(first.journeyId(), second.journeyId());
+        assertEquals(1, first.leg());
+        assertEquals(2, second.leg());
+        assertEquals(new BigDecimal("3.25"), first.trip().chargeAmount());
+        // Stop1 to Stop3 costs 7.30 in total, so 4.05 rather than 5.50
+        assertEquals(new BigDecimal("4.05"), second.trip().chargeAmount());
+        assertEquals(1, linker.linkedTrips());
+    }
+
+    @Test
+    @DisplayName("Should charge a return journey at least its dearest trip")
+    void returnJourneyChargesDearestTrip() {
+        linker.link(trip(MORNING, 10, Stop.STOP1, Stop.STOP2, "Bus1"));
+        LinkedTrip back = linker.link(trip(MORNING.plusMinutes(20), 10, Stop.STOP2, Stop.STOP1, "Bus2"));
+
+        assertEquals(2, back.leg());
+        assertEquals(0, back.trip().chargeAmount().signum());
+    }
+
+    @Test
+    @DisplayName("Should start a new journey outside the window, on the same bus or from another stop")
+    void startsNewJourneys() {
+        LinkedTrip first = linker.link(trip(MORNING, 10, Stop.STOP1, Stop.STOP2, "Bus1"));
+        LinkedTrip sameBus = linker.link(trip(MORNING.plusMinutes(20), 10, Stop.STOP2, Stop.STOP3, "Bus1"));
+        LinkedTrip otherStop = linker.link(trip(MORNING.plusMinutes(40), 10, Stop.STOP1, Stop.STOP2, "Bus2"));
+        LinkedTrip tooLate = linker.link(trip(MORNING.plusMinutes(120), 10, Stop.STOP2, Stop.STOP3, "Bus3"));
+
+        assertNotEquals(first.journeyId(), sameBus.journeyId());
+        assertNotEquals(sameBus.journeyId(), otherStop.journeyId());
+        assertNotEquals(otherStop.journeyId(), tooLate.journeyId());
+        assertEquals(1, tooLate.leg());
+        assertEquals(new BigDecimal("5.50"), tooLate.trip().chargeAmount());
+        assertEquals(0, linker.linkedTrips());
+    }
+
+    @Test
+    @DisplayName("Should drop journeys once their transfer window has passed")
+    void expiresOpenJourneys() {
+        for (int i = 0; i < 100; i++) {
+            Trip trip = trip(MORNING.plusMinutes(i), 5, Stop.STOP1, Stop.STOP2, "Bus1");
+            linker.link(new Trip(trip.startedEpochSecond(), trip.finishedEpochSecond(), trip.durationSecs(),
+                    trip.fromStopId(), trip.toStopId(), trip.chargeAmount(), trip.companyId(), trip.busId(),
+                    "card" + i, trip.status()));
+        }
+        // At minute 99 only trips that finished at minute 39 or later can be continued
+        assertEquals(66, linker.openJourneys());
+    }
+
+    @Test
+    @DisplayName("Should price journeys in the pipeline before caps, at the journey's start band")
+    void linksInTripProcessorService() {
+        Properties rules = new Properties();
+        rules.setProperty("band.peak", "MON 08:00-09:00");
+        rules.setProperty("peak.STOP1_STOP3", "9.00");
+        Properties caps = new Properties();
+        caps.setProperty("daily", "8.00");
+        PricingService pricing = new PricingService(rules);
+        List<LinkedTrip> legs = new ArrayList<>();
+        TripProcessorService processor = new TripProcessorService(pricing, new FareCappingService(caps),
+                new JourneyLinker(pricing, 3600), legs::add);
+
+        List<Trip> trips = processor.generateTrips(List.of(
+                new Tap("1", MORNING.plusMinutes(50), TapType.ON, Stop.STOP1, "Company1", "Bus1", PAN),
+                new Tap("2", MORNING.plusMinutes(55), TapType.OFF, Stop.STOP2, "Company1", "Bus1", PAN),
+                new Tap("3", MORNING.plusMinutes(65), TapType.ON, Stop.STOP2, "Company1", "Bus2", PAN),
+                new Tap("4", MORNING.plusMinutes(75), TapType.OFF, Stop.STOP3, "Company1", "Bus2", PAN)));
+
+        assertEquals(2, legs.size());
+        assertEquals(legs.get(0).journeyId(), legs.get(1).journeyId());
+        assertEquals(new BigDecimal("3.25"), trips.get(0).chargeAmount());
+        // Peak Stop1-Stop3 journey fare 9.00 leaves 5.75, which the 8.00 daily cap reduces to 4.75
+        assertEquals(new BigDecimal("4.75"), trips.get(1).chargeAmount().setScale(2));
+        assertEquals(trips.get(1), legs.get(1).trip());
+    }
+}
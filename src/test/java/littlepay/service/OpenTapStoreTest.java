@@ -0,0 +1,116 @@
+package littlepay.service;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpenTapStoreTest {
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+
+    @TempDir
+    Path tempDir;
+
+    private static Tap tap(int id, String pan) {
+        return new Tap(Integer.toString(id), BASE_TIME.plusSeconds(id), TapType.ON, Stop.STOP1, "Company1", "Bus37",
+                pan);
+    }
+
+    @Test
+    @DisplayName("Should spill the least recently used taps once over budget and bring them back on use")
+    void spillsLeastRecentlyUsed() throws Exception {
+        try (OpenTapStore store = new OpenTapStore(4 * 1024, tempDir)) {
+            for (int i = 0; i < 100; i++) {
+                store.put("PAN" + i, tap(i, "PAN" + i));
+            }
+            assertEquals(100, store.size());
+            assertTrue(store.heapBytes() <= 4 * 1024);
+            assertTrue(store.spilledEntries() > 0);
+            assertEquals(100, store.heapEntries() + store.spilledEntries());
+
+            assertEquals(tap(0, "PAN0"), store.get("PAN0")); // The first in is the first spilled
+            assertEquals(1, store.recalls());
+            store.put("PAN1", tap(101, "PAN1")); // Replaces a spilled tap
+            assertEquals(tap(101, "PAN1"), store.get("PAN1"));
+            store.remove("PAN2");
+            assertNull(store.get("PAN2"));
+            assertEquals(99, store.size());
+            assertEquals(100, store.peakSize());
+        }
+    }
+
+    @Test
+    @DisplayName("Should drain taps from both tiers")
+    void drainsBothTiers() throws Exception {
+        Map<String, Tap> expected = new HashMap<>();
+        try (OpenTapStore store = new OpenTapStore(16 * 1024, tempDir)) {
+            Random random = new Random(3);
+            for (int i = 0; i < 5_000; i++) {
+                String pan = "PAN" + random.nextInt(1_000);
+                if (random.nextInt(4) == 0) {
+                    expected.remove(pan);
+                    store.remove(pan);
+                } else if (random.nextBoolean()) {
+                    assertEquals(expected.get(pan), store.get(pan));
+                } else {
+                    expected.put(pan, tap(i, pan));
+                    store.put(pan, tap(i, pan));
+                }
+            }
+            assertEquals(expected.size(), store.size());
+            Map<String, Tap> drained = new HashMap<>();
+
+            store.drain(tap -> drained.put(tap.pan(), tap));
+
+            assertEquals(expected, drained);
+            assertEquals(0, store.size());
+            assertEquals(0, store.heapBytes());
+        }
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count(), "Spill files should be deleted on close");
+        }
+    }
+
+    @Test
+    @DisplayName("Should give the same trips with a tiny heap budget as without one")
+    void spillingDoesNotChangeTrips() throws Exception {
+        Random random = new Random(7);
+        Stop[] stops = Stop.values();
+        List<Tap> taps = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            taps.add(new Tap(Integer.toString(i), BASE_TIME.plusSeconds(i * 10L),
+                    random.nextInt(3) == 0 ? TapType.OFF : TapType.ON, stops[random.nextInt(stops.length)],
+                    "Company1", "Bus37", "PAN" + random.nextInt(5_000)));
+        }
+        TripProcessorService service = new TripProcessorService(new PricingService());
+
+        List<Trip> spilled;
+        try (OpenTapStore store = new OpenTapStore(8 * 1024, tempDir)) {
+            spilled = service.generateTripsIncrementally(taps, 300, tap -> { }, store);
+            assertTrue(store.spills() > 1_000);
+        }
+
+        assertEquals(service.generateTrips(taps), spilled);
+    }
+
+    @Test
+    void rejectsNonPositiveBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new OpenTapStore(0, tempDir));
+    }
+}
@@ -0,0 +1,138 @@
+package littlepay.service;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.model.Trip;
+import littlepay.util.EpochTime;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelTripMatcherTest {
+
+    private static final long BASE = EpochTime.of(LocalDateTime.of(2023, 1, 1, 0, 0, 0));
+
+    private final TripMatcher tripMatcher = new TripMatcher(new PricingService());
+
+    /**
+     * Taps from a few very busy cards and many quiet ones, in random order,
+     * with ON and OFF taps mixed so that segment boundaries fall on every kind
+     * of tap, and many taps in the same second.
+     */
+    private static List<Tap> skewedTaps(int count) {
+        Random random = new Random(50);
+        Stop[] stops = Stop.values();
+        List<Tap> taps = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String pan = random.nextInt(3) == 0 ? "4111" + random.nextInt(2) : "55000055" + random.nextInt(500);
+            taps.add(new Tap("T" + i, BASE + random.nextInt(count / 4), random.nextInt(5) < 3 ? TapType.ON
+                    : TapType.OFF, stops[random.nextInt(stops.length)], "Company1", "Bus" + i, pan));
+        }
+        return taps;
+    }
+
+    /**
+     * Each card's trips in order, matched one card at a time as before
+     * matching was parallel.
+     */
+    private Map<String, List<Trip>> matchedOneCardAtATime(List<Tap> taps) {
+        Map<String, List<Tap>> tapsByPan = new HashMap<>();
+        taps.stream()
+                .sorted(Comparator.comparingLong(Tap::dateTimeEpochSecond))
+                .forEach(tap -> tapsByPan.computeIfAbsent(tap.pan(), pan -> new ArrayList<>()).add(tap));
+        Map<String, List<Trip>> tripsByPan = new HashMap<>();
+        tapsByPan.forEach((pan, panTaps) -> {
+            List<Trip> trips = new ArrayList<>();
+            Tap lastOnTap = null;
+            for (Tap tap : panTaps) {
+                lastOnTap = tripMatcher.match(lastOnTap, tap, trips::add);
+            }
+            if (lastOnTap != null) {
+                trips.add(tripMatcher.createIncompleteTrip(lastOnTap));
+            }
+            tripsByPan.put(pan, trips);
+        });
+        return tripsByPan;
+    }
+
+    private static Map<String, List<Trip>> byPan(List<Trip> trips) {
+        Map<String, List<Trip>> tripsByPan = new HashMap<>();
+        for (Trip trip : trips) {
+            tripsByPan.computeIfAbsent(trip.pan(), pan -> new ArrayList<>()).add(trip);
+        }
+        return tripsByPan;
+    }
+
+    @Test
+    void splitCardsMatchAsOneCardAtATime() {
+        List<Tap> taps = skewedTaps(20_000);
+        Map<String, List<Trip>> expected = matchedOneCardAtATime(taps);
+
+        for (int threads : new int[] {1, 2, 4}) {
+            // Small units, so the busy cards are cut into dozens of segments
+            List<Trip> trips = new ParallelTripMatcher(tripMatcher, threads, 64).match(taps);
+
+            assertEquals(expected, byPan(trips), threads + " threads");
+        }
+    }
+
+    @Test
+    void segmentBoundariesCompleteOrAbandonTheOpenTap() {
+        List<Tap> taps = new ArrayList<>();
+        TapType[] types = {TapType.ON, TapType.ON, TapType.OFF, TapType.OFF, TapType.ON, TapType.OFF};
+        for (int i = 0; i < 600; i++) {
+            taps.add(new Tap("T" + i, BASE + i / 3, types[i % types.length], Stop.values()[i % 3], "Company1",
+                    "Bus1", "4111"));
+        }
+        Map<String, List<Trip>> expected = matchedOneCardAtATime(taps);
+
+        // Every unit size puts the boundaries on a different mix of ON and OFF taps
+        for (int unitTaps = 1; unitTaps <= 7; unitTaps++) {
+            List<Trip> trips = new ParallelTripMatcher(tripMatcher, 3, unitTaps).match(taps);
+
+            assertEquals(expected, byPan(trips), "units of " + unitTaps);
+        }
+    }
+
+    @Test
+    void invalidTapAtASegmentBoundaryKeepsTheOpenTap() {
+        List<Tap> taps = new ArrayList<>();
+        TapType[] types = {TapType.ON, TapType.ON, TapType.INVALID, TapType.OFF};
+        for (int i = 0; i < types.length; i++) {
+            taps.add(new Tap("T" + i, BASE + i * 10, types[i], Stop.values()[i % 3], "Company1", "Bus1", "4111"));
+        }
+        Map<String, List<Trip>> expected = matchedOneCardAtATime(taps);
+
+        // Units of two would cut the card as ON, ON | INVALID, OFF
+        List<Trip> trips = new ParallelTripMatcher(tripMatcher, 2, 2).match(taps);
+
+        assertEquals(2, expected.get("4111").size());
+        assertEquals(expected, byPan(trips));
+        assertEquals(byPan(new ParallelTripMatcher(tripMatcher, 1, 100).match(taps)), byPan(trips));
+    }
+
+    @Test
+    void noTapsGiveNoTrips() {
+        assertEquals(List.of(), new ParallelTripMatcher(tripMatcher, 4).match(List.of()));
+    }
+
+    @Test
+    void processorGivesTheSameTripsOnAnyNumberOfThreads() {
+        List<Tap> taps = skewedTaps(50_000);
+        PricingService pricing = new PricingService();
+
+        List<Trip> expected = new TripProcessorService(pricing, null, null, null, 1).generateTrips(taps);
+        List<Trip> parallel = new TripProcessorService(pricing, null, null, null, 4).generateTrips(taps);
+
+        assertEquals(expected, parallel);
+    }
+}
@@ -5,8 +5,12 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Properties;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class PricingServiceTest {
 
@@ -88,4 +92,76 @@ class PricingServiceTest {
     // always find something or be Zero if it were a lone stop with no fares.
     // If PricingService were to handle a stop with no associated fares, getMaxFare
     // should return BigDecimal.ZERO by its current logic.
-}
\ No newline at end of file
+
+    private static PricingService rules(String... entries) {
+        Properties properties = new Properties();
+        for (int i = 0; i < entries.length; i += 2) {
+            properties.setProperty(entries[i], entries[i + 1]);
+        }
+        return new PricingService(properties);
+    }
+
+    private static long at(int dayOfMonth, int hour, int minute) {
+        // 2 January 2023 was a Monday
+        return LocalDateTime.of(2023, 1, dayOfMonth, hour, minute).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    @Test
+    void getFare_PeakBandAppliesOnlyInsideItsWindows() {
+        PricingService service = rules(
+                "band.peak", "MON-FRI 07:00-09:30, MON-FRI 16:00-18:30",
+                "peak.STOP1_STOP2", "4.00");
+        assertEquals(new BigDecimal("4.00"), service.getFare(Stop.STOP1, Stop.STOP2, at(2, 7, 0)));
+        assertEquals(new BigDecimal("4.00"), service.getFare(Stop.STOP2, Stop.STOP1, at(6, 18, 29)));
+        assertEquals(new BigDecimal("3.25"), service.getFare(Stop.STOP1, Stop.STOP2, at(2, 9, 30)));
+        assertEquals(new BigDecimal("3.25"), service.getFare(Stop.STOP1, Stop.STOP2, at(7, 8, 0))); // Saturday
+        // Pairs without a band fare keep the base fare
+        assertEquals(new BigDecimal("5.50"), service.getFare(Stop.STOP2, Stop.STOP3, at(2, 8, 0)));
+        assertEquals(new BigDecimal("3.25"), service.getFare(Stop.STOP1, Stop.STOP2));
+    }
+
+    @Test
+    void getFare_WindowsCanWrapPastMidnightAndTheEndOfTheWeek() {
+        PricingService service = rules(
+                "band.night", "SUN 22:00-02:00",
+                "night.STOP1_STOP3", "2.00");
+        assertEquals(new BigDecimal("2.00"), service.getFare(Stop.STOP1, Stop.STOP3, at(8, 23, 0)));
+        assertEquals(new BigDecimal("2.00"), service.getFare(Stop.STOP1, Stop.STOP3, at(9, 1, 59))); // Monday
+        assertEquals(new BigDecimal("7.30"), service.getFare(Stop.STOP1, Stop.STOP3, at(9, 2, 0)));
+    }
+
+    @Test
+    void getFare_OffsetShiftsTheWindows() {
+        PricingService service = rules(
+                "band.peak", "MON 08:00-09:00",
+                "peak.STOP1_STOP2", "4.00",
+                "offset", "+10:00");
+        assertEquals(new BigDecimal("4.00"), service.getFare(Stop.STOP1, Stop.STOP2, at(1, 22, 30))); // 08:30 Monday local
+        assertEquals(new BigDecimal("3.25"), service.getFare(Stop.STOP1, Stop.STOP2, at(2, 8, 30)));
+    }
+
+    @Test
+    void getMaxFare_UsesTheBandFares() {
+        PricingService service = rules(
+                "band.weekend", "SAT-SUN 00:00-24:00",
+                "weekend.STOP1_STOP3", "5.00",
+                "weekend.STOP2_STOP3", "2.00");
+        assertEquals(new BigDecimal("5.00"), service.getMaxFare(Stop.STOP1, at(7, 12, 0)));
+        assertEquals(new BigDecimal("3.25"), service.getMaxFare(Stop.STOP2, at(8, 12, 0)));
+        assertEquals(new BigDecimal("7.30"), service.getMaxFare(Stop.STOP1, at(6, 12, 0)));
+    }
+
+    @Test
+    void rejectsInvalidRules() {
+        assertThrows(IllegalArgumentException.class, () -> rules(
+                "band.peak", "MON-FRI 07:00-10:00", "band.school", "MON 09:00-11:00"));
+        assertThrows(IllegalArgumentException.class, () -> rules("band.peak", "MON-FRI 07:00"));
+        assertThrows(IllegalArgumentException.class, () -> rules("band.peak", "MON 07:00-25:00"));
+        assertThrows(IllegalArgumentException.class, () -> rules("band.peak", "XYZ 07:00-09:00"));
+        assertThrows(IllegalArgumentException.class, () -> rules("offpeak.STOP1_STOP2", "2.00"));
+        assertThrows(IllegalArgumentException.class, () -> rules(
+                "band.peak", "MON 07:00-09:00", "peak.STOP1_STOP9", "2.00"));
+        assertThrows(IllegalArgumentException.class, () -> rules(
+                "band.peak", "MON 07:00-09:00", "peak.STOP1_STOP2", "-1"));
+    }
+}
@@ -0,0 +1,101 @@
+package littlepay.service;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TapReorderBufferTest {
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+
+    private static Tap tap(String id, int minutes) {
+        return new Tap(id, BASE_TIME.plusMinutes(minutes), TapType.ON, Stop.STOP1, "Company1", "Bus37",
+                "5500005555555559");
+    }
+
+    private static List<String> ids(List<Tap> taps) {
+        return taps.stream().map(Tap::id).toList();
+    }
+
+    @Test
+    @DisplayName("Should hold taps until the watermark passes them and release them in time order")
+    void releasesInOrderBehindWatermark() {
+        List<Tap> released = new ArrayList<>();
+        List<Tap> late = new ArrayList<>();
+        TapReorderBuffer buffer = new TapReorderBuffer(300, released::add, late::add);
+
+        buffer.add(tap("a", 0));
+        buffer.add(tap("c", 4));
+        buffer.add(tap("b", 2));
+        assertTrue(released.isEmpty(), "Nothing is 5 minutes behind the latest tap yet");
+        assertEquals(3, buffer.buffered());
+
+        buffer.add(tap("d", 8));
+        assertEquals(List.of("a", "b"), ids(released));
+
+        buffer.flush();
+        assertEquals(List.of("a", "b", "c", "d"), ids(released));
+        assertTrue(late.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should keep arrival order for taps with the same timestamp")
+    void equalTimestampsKeepArrivalOrder() {
+        List<Tap> released = new ArrayList<>();
+        TapReorderBuffer buffer = new TapReorderBuffer(0, released::add, tap -> fail("No tap is late"));
+
+        buffer.add(tap("a", 1));
+        buffer.add(tap("b", 1));
+        buffer.add(tap("c", 1));
+        buffer.flush();
+
+        assertEquals(List.of("a", "b", "c"), ids(released));
+    }
+
+    @Test
+    @DisplayName("Should count and side-output taps that arrive behind the watermark")
+    void lateTapsGoToSideOutput() {
+        List<Tap> released = new ArrayList<>();
+        List<Tap> late = new ArrayList<>();
+        TapReorderBuffer buffer = new TapReorderBuffer(60, released::add, late::add);
+
+        buffer.add(tap("a", 0));
+        buffer.add(tap("b", 10));
+        buffer.add(tap("late", 5));
+        buffer.add(tap("ok", 9));
+        buffer.flush();
+
+        assertEquals(List.of("late"), ids(late));
+        assertEquals(1, buffer.lateTaps());
+        assertEquals(List.of("a", "ok", "b"), ids(released));
+    }
+
+    @Test
+    @DisplayName("Should release taps when the watermark is advanced without new taps")
+    void advanceWatermarkReleasesTaps() {
+        List<Tap> released = new ArrayList<>();
+        TapReorderBuffer buffer = new TapReorderBuffer(3600, released::add, tap -> {
+        });
+        buffer.add(tap("a", 0));
+
+        buffer.advanceWatermark(tap("now", 1).dateTimeEpochSecond());
+
+        assertEquals(List.of("a"), ids(released));
+        assertEquals(0, buffer.buffered());
+    }
+
+    @Test
+    void rejectsNegativeLateness() {
+        assertThrows(IllegalArgumentException.class, () -> new TapReorderBuffer(-1, tap -> {
+        }, tap -> {
+        }));
+    }
+}
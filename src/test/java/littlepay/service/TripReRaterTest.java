@@ -0,0 +1,86 @@
+package littlepay.service;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TripReRaterTest {
+
+    private static final LocalDateTime MONDAY_PEAK = LocalDateTime.of(2023, 1, 2, 8, 0, 0);
+
+    private static Properties properties(String... entries) {
+        Properties properties = new Properties();
+        for (int i = 0; i < entries.length; i += 2) {
+            properties.setProperty(entries[i], entries[i + 1]);
+        }
+        return properties;
+    }
+
+    private static Trip trip(Stop from, Stop to, String charge, TripStatus status) {
+        return new Trip(MONDAY_PEAK, MONDAY_PEAK.plusMinutes(10), 600, from, to, new BigDecimal(charge), "Company1",
+                "Bus1", "5500005555555559", status);
+    }
+
+    private final TripReRater reRater = new TripReRater(new PricingService(),
+            new PricingService(properties("STOP1_STOP2", "3.25", "STOP2_STOP3", "6.00", "STOP1_STOP3", "7.30"),
+                    new Properties()));
+
+    @Test
+    @DisplayName("Should re-rate only trips whose fare changed")
+    void reRatesAffectedTrips() {
+        assertEquals(new BigDecimal("6.00"), reRater.reRate(trip(Stop.STOP3, Stop.STOP2, "5.50", TripStatus.COMPLETED)));
+        assertNull(reRater.reRate(trip(Stop.STOP1, Stop.STOP2, "3.25", TripStatus.COMPLETED)));
+        assertNull(reRater.reRate(trip(Stop.STOP2, Stop.STOP2, "0", TripStatus.CANCELLED)));
+        // The maximum fare from Stop2 rose from 5.50 to 6.00
+        assertEquals(new BigDecimal("6.00"), reRater.reRate(trip(Stop.STOP2, null, "5.50", TripStatus.INCOMPLETE)));
+        assertNull(reRater.reRate(trip(Stop.STOP1, null, "7.30", TripStatus.INCOMPLETE)));
+
+        assertEquals(5, reRater.tripsRead());
+        assertEquals(2, reRater.tripsReRated());
+    }
+
+    @Test
+    @DisplayName("Should count capped or journey-priced trips instead of re-rating them")
+    void countsAdjustedTrips() {
+        assertNull(reRater.reRate(trip(Stop.STOP2, Stop.STOP3, "2.00", TripStatus.COMPLETED)));
+        assertEquals(1, reRater.tripsNeedingReprocess());
+        assertEquals(0, reRater.tripsReRated());
+    }
+
+    @Test
+    @DisplayName("Should not re-rate full-fare trips of a card with a capped trip")
+    void countsFullFareTripsOfAdjustedCards() {
+        Trip fullFare = trip(Stop.STOP2, Stop.STOP3, "5.50", TripStatus.COMPLETED);
+        Trip capped = trip(Stop.STOP1, Stop.STOP3, "1.20", TripStatus.COMPLETED);
+        reRater.survey(fullFare);
+        reRater.survey(capped);
+
+        // The full-fare trip set what the capped one paid
+        assertNull(reRater.reRate(fullFare));
+        assertNull(reRater.reRate(capped));
+        assertEquals(1, reRater.tripsNeedingReprocess());
+        assertEquals(0, reRater.tripsReRated());
+    }
+
+    @Test
+    @DisplayName("Should re-rate by the time band the trip started in")
+    void reRatesTimeBandChanges() {
+        PricingService base = new PricingService();
+        TripReRater peakChange = new TripReRater(base, new PricingService(properties(
+                "band.peak", "MON-FRI 07:00-09:00", "peak.STOP1_STOP2", "4.00")));
+
+        assertEquals(new BigDecimal("4.00"),
+                peakChange.reRate(trip(Stop.STOP1, Stop.STOP2, "3.25", TripStatus.COMPLETED)));
+        Trip evening = new Trip(MONDAY_PEAK.plusHours(10), MONDAY_PEAK.plusHours(11), 3600, Stop.STOP1, Stop.STOP2,
+                new BigDecimal("3.25"), "Company1", "Bus1", "5500005555555559", TripStatus.COMPLETED);
+        assertNull(peakChange.reRate(evening));
+    }
+}
@@ -0,0 +1,86 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncTripWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Trip> sampleTrips() {
+        LocalDateTime start = LocalDateTime.of(2023, 1, 15, 8, 30, 0);
+        List<Trip> trips = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            LocalDateTime started = start.plusMinutes(i * 7L);
+            trips.add(new Trip(started, started.plusSeconds(915), 915, Stop.STOP1, Stop.STOP2,
+                    new BigDecimal("3.25"), "Company" + i % 3, "Bus" + i, "5500005555555" + i, TripStatus.COMPLETED));
+        }
+        LocalDateTime time = LocalDateTime.of(2023, 1, 16, 9, 5, 30);
+        trips.add(new Trip(time, null, 0, Stop.STOP3, null, new BigDecimal("7.3"), "CompanyB", "Bus002",
+                "9876543210987654", TripStatus.INCOMPLETE));
+        trips.add(new Trip(time, time.plusMinutes(2), 120, Stop.STOP3, Stop.STOP3, BigDecimal.ZERO,
+                "Company,With\"Specials", "Bus\u00e9\u20ac\ud83d\ude8c", null, TripStatus.CANCELLED));
+        trips.add(new Trip(time, time, 0, Stop.STOP1, Stop.STOP2, new BigDecimal("1234567.895"), "C", "B", "P",
+                TripStatus.COMPLETED));
+        trips.add(new Trip(time, time, 0, Stop.STOP1, Stop.STOP2, null, null, null, null, null));
+        return trips;
+    }
+
+    @Test
+    void outputMatchesCsvWriterByteForByte() throws Exception {
+        List<Trip> trips = sampleTrips();
+        Path expected = tempDir.resolve("expected.csv");
+        new CsvWriter().writeTrips(trips, expected.toString());
+
+        Path actual = tempDir.resolve("out").resolve("trips.csv");
+        // A tiny buffer forces many hand-offs between the two buffers
+        try (AsyncTripWriter writer = new AsyncTripWriter(actual, FsyncPolicy.everyMegabytes(1), 64)) {
+            writer.writeAll(trips);
+            assertFalse(Files.exists(actual), "Target must not appear before commit");
+            writer.commit();
+            assertEquals(Files.size(actual), writer.bytesWritten());
+        }
+
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual));
+        try (var files = Files.list(actual.getParent())) {
+            assertEquals(1, files.count(), "Temporary file should have been renamed");
+        }
+    }
+
+    @Test
+    void closingWithoutCommitKeepsExistingTargetAndRemovesTempFile() throws Exception {
+        Path target = tempDir.resolve("trips.csv");
+        Files.writeString(target, "previous run");
+
+        try (AsyncTripWriter writer = new AsyncTripWriter(target, FsyncPolicy.AT_END, 64)) {
+            writer.writeAll(sampleTrips());
+        }
+
+        assertEquals("previous run", Files.readString(target));
+        try (var files = Files.list(tempDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void parsesFsyncPolicies() {
+        assertEquals(FsyncPolicy.NONE, FsyncPolicy.parse("none"));
+        assertEquals(FsyncPolicy.AT_END, FsyncPolicy.parse("END"));
+        assertEquals(new FsyncPolicy(FsyncPolicy.Mode.EVERY_N_BYTES, 64L * 1024 * 1024), FsyncPolicy.parse("64mb"));
+        assertThrows(IllegalArgumentException.class, () -> FsyncPolicy.parse("0mb"));
+        assertThrows(IllegalArgumentException.class, () -> FsyncPolicy.parse("sometimes"));
+    }
+}
@@ -13,7 +13,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -121,9 +125,183 @@ class CsvReaderTest {
         assertEquals("2", taps.get(0).id());
     }
 
+    @Test
+    void readTaps_DuplicateTapsSkippedWhenDeduplicating() throws IOException {
+        File testFile = createTestCsvFile("duplicate_taps.csv",
+                "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456",
+                "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456", // Replayed row
+                "2, 20-08-2023 10:05:00, OFF, Stop2, CompanyA, Bus1, 123456");
+        PipelineMetrics metrics = new PipelineMetrics();
+        CsvReader dedupReader = new CsvReader(metrics, new RejectedRows(metrics), new TapDeduplicator());
+
+        List<Tap> taps = dedupReader.readTaps(testFile.getAbsolutePath());
+
+        assertEquals(2, taps.size());
+        assertEquals(1, metrics.rowsSkipped(SkipReason.DUPLICATE));
+        assertEquals(3, csvReader.readTaps(testFile.getAbsolutePath()).size()); // Kept without a deduplicator
+    }
+
+    @Test
+    void readTaps_DeduplicatesByContentWithoutAnIdColumn() throws IOException {
+        File testFile = createTestCsvFile("taps_without_ids.csv",
+                "DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456",
+                "20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456", // Replayed row
+                "20-08-2023 10:05:00, OFF, Stop2, CompanyA, Bus1, 123456");
+
+        for (DelimiterScanner scanner : new DelimiterScanner[] { null, new ScalarDelimiterScanner() }) {
+            PipelineMetrics metrics = new PipelineMetrics();
+            CsvReader dedupReader = new CsvReader(metrics, new RejectedRows(metrics), new TapDeduplicator(), scanner);
+
+            List<Tap> taps = dedupReader.readTaps(testFile.getAbsolutePath());
+
+            assertEquals(2, taps.size());
+            assertNull(taps.get(0).id());
+            assertEquals(1, metrics.rowsSkipped(SkipReason.DUPLICATE));
+            assertEquals(0, metrics.rowsSkipped(SkipReason.UNEXPECTED_ERROR));
+        }
+    }
+
     @Test
     void readTaps_FileNotFound() {
         File nonExistentFile = new File(tempDir.toFile(), "non_existent_taps.csv");
         assertThrows(IOException.class, () -> csvReader.readTaps(nonExistentFile.getAbsolutePath()));
     }
-}
\ No newline at end of file
+
+    @Test
+    void readTaps_FastParserMatchesOpenCsvOnLineEndsAndShortRows() throws IOException {
+        assertFastParserMatchesOpenCsv("ID,DateTimeUTC,TapType,StopId,CompanyId,BusID,PAN\r\n"
+                + "1,20-08-2023 10:00:00,ON,Stop1,CompanyA,Bus1,123456\r\n"
+                + "\n"
+                + "2, 20-08-2023 10:05:00 , OFF, Stop2,CompanyA,Bus1,123456\r"
+                + "3,20-08-2023 10:06:00,ON,Stop1,CompanyA\n"
+                + "4,20-08-2023 10:07:00,ON,Stop1,CompanyA,Bus1,5500005555555559,extra,columns\n"
+                + "5,not a date,ON,Stop1,CompanyA,Bus1,123456\r\r\n"
+                + "6,20-08-2023 10:08:00,OFF,Stop3,CompanyA,Bus1,123456", 4);
+    }
+
+    @Test
+    void readTaps_FastParserHandsQuotedRowsToOpenCsv() throws IOException {
+        assertFastParserMatchesOpenCsv("ID,DateTimeUTC,TapType,StopId,CompanyId,BusID,PAN\n"
+                + "1,20-08-2023 10:00:00,ON,Stop1,CompanyA,Bus1,123456\n"
+                + "2,20-08-2023 10:05:00,OFF,Stop2,\"Company, A\",Bus1,123456\n"
+                + "3,20-08-2023 10:06:00,ON,Stop1,CompanyA\n"
+                + "4,20-08-2023 10:07:00,ON,Stop1,CompanyA,Bus1,\"multi\nline\"\n", 3);
+        assertFastParserMatchesOpenCsv("\"ID\",DateTimeUTC,TapType,StopId,CompanyId,BusID,PAN\n"
+                + "1,20-08-2023 10:00:00,ON,Stop1,CompanyA,Bus1,123456\n", 1);
+    }
+
+    @Test
+    void readTaps_FastParserMatchesOpenCsvAcrossBufferRefills() throws IOException {
+        Random random = new Random(42);
+        String[] lineEnds = { "\n", "\r\n", "\r" };
+        StringBuilder csv = new StringBuilder("ID,DateTimeUTC,TapType,StopId,CompanyId,BusID,PAN\n");
+        int rows = 40_000; // Several times the parser's buffer
+        for (int i = 0; i < rows; i++) {
+            csv.append(i).append(",20-08-2023 10:").append(String.format("%02d", i % 60)).append(":00,")
+                    .append(i % 2 == 0 ? "ON" : "OFF").append(",Stop").append(1 + i % 3)
+                    .append(",Company").append(i % 7).append(",Bus").append(i % 11).append(',')
+                    .append(5500005555555559L + random.nextInt(1000))
+                    .append(lineEnds[random.nextInt(lineEnds.length)]);
+        }
+        assertFastParserMatchesOpenCsv(csv.toString(), rows);
+    }
+
+    @Test
+    void readTaps_FastParserOnEmptyFile() throws IOException {
+        assertFastParserMatchesOpenCsv("", 0);
+    }
+
+    @Test
+    void readTaps_ColumnsFoundFromHeader() throws IOException {
+        String content = "PAN,Extra,BusID,companyid,StopId,TapType, DateTimeUTC ,ID\n"
+                + "123456,x,Bus1,CompanyA,Stop2,OFF,20-08-2023 10:05:00,7\n"
+                + "123456,x,Bus1\n";
+        assertFastParserMatchesOpenCsv(content, 1);
+
+        Path input = tempDir.resolve("reordered.csv");
+        Files.writeString(input, content);
+        Tap tap = csvReader.readTaps(input.toString()).get(0);
+        assertEquals(new Tap("7", EpochTime.parse("20-08-2023 10:05:00"), TapType.OFF, Stop.STOP2, "CompanyA",
+                "Bus1", "123456"), tap);
+    }
+
+    @Test
+    void readTaps_UnrecognisedHeaderReadsColumnsInOrder() throws IOException {
+        File testFile = createTestCsvFile("unnamed_taps.csv",
+                "a,b,c,d,e,f,g",
+                "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456");
+
+        List<Tap> taps = csvReader.readTaps(testFile.getAbsolutePath());
+
+        assertEquals(1, taps.size());
+        assertEquals("123456", taps.get(0).pan());
+    }
+
+    @Test
+    void readTaps_ProjectionLeavesOtherFieldsNull() throws IOException {
+        File testFile = createTestCsvFile("projected_taps.csv",
+                "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456");
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        for (DelimiterScanner scanner : Arrays.asList(null, DelimiterScanner.create())) {
+            List<Tap> taps = new CsvReader(metrics, new RejectedRows(metrics), null, scanner,
+                    EnumSet.of(TapField.PAN), null).readTaps(testFile.getAbsolutePath());
+
+            assertEquals(List.of(new Tap(null, EpochTime.parse("20-08-2023 10:00:00"), TapType.ON, Stop.STOP1, null,
+                    null, "123456")), taps);
+        }
+    }
+
+    @Test
+    void readTaps_CompanyFilterSkipsOtherCompaniesWithoutCheckingThem() throws IOException {
+        String content = "ID,DateTimeUTC,TapType,StopId,CompanyId,BusID,PAN\n"
+                + "1,20-08-2023 10:00:00,ON,Stop1,CompanyA,Bus1,123456\n"
+                + "2,not a date,ON,Stop1, CompanyB ,Bus1,123456\n"
+                + "3,20-08-2023 10:05:00,OFF,Stop9,CompanyC,Bus1,123456\n"
+                + "4,20-08-2023 10:06:00,OFF,Stop2,CompanyA\n"
+                + "5,not a date,ON,Stop1,CompanyB\n";
+        Path input = tempDir.resolve("companies.csv");
+        Files.writeString(input, content);
+
+        for (DelimiterScanner scanner : Arrays.asList(null, DelimiterScanner.create())) {
+            PipelineMetrics metrics = new PipelineMetrics();
+            RejectedRows rejects = new RejectedRows(metrics);
+            CsvReader reader = new CsvReader(metrics, rejects, null, scanner, EnumSet.allOf(TapField.class),
+                    Set.of("CompanyA", "CompanyB"));
+
+            List<Tap> taps = reader.readTaps(input.toString());
+
+            assertEquals(List.of("1"), taps.stream().map(Tap::id).toList());
+            assertEquals(1, reader.filteredRows());
+            assertEquals(3, rejects.total());
+        }
+    }
+
+    /**
+     * Reads the same content with opencsv and with the fast parser, using each
+     * scanner, and checks they give the same taps and the same rejects.
+     */
+    private void assertFastParserMatchesOpenCsv(String content, int expectedTaps) throws IOException {
+        Path input = tempDir.resolve("taps-" + content.hashCode() + ".csv");
+        Files.writeString(input, content);
+        Path expectedRejects = tempDir.resolve("expected-rejects.csv");
+        List<Tap> expected = readTaps(input, expectedRejects, null);
+        assertEquals(expectedTaps, expected.size());
+
+        for (DelimiterScanner scanner : List.of(new ScalarDelimiterScanner(), DelimiterScanner.create())) {
+            Path actualRejects = tempDir.resolve("actual-rejects.csv");
+            assertEquals(expected, readTaps(input, actualRejects, scanner), scanner.description());
+            assertEquals(Files.readString(expectedRejects), Files.readString(actualRejects), scanner.description());
+        }
+    }
+
+    private static List<Tap> readTaps(Path input, Path rejectsFile, DelimiterScanner scanner) throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics();
+        try (RejectedRows rejects = new RejectedRows(metrics, rejectsFile)) {
+            return new CsvReader(metrics, rejects, null, scanner).readTaps(input.toString());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package littlepay.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Compares the delimiter scanners, and the byte-level parser against opencsv,
+ * on generated tap rows of production width. Run with
+ * {@code gradle scannerBenchmark}; not part of the test suite.
+ */
+public class DelimiterScannerBenchmark {
+
+    private static final int ROWS = 500_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        byte[] csv = generateTaps(ROWS);
+        System.out.printf("%d rows, %.1f MB%n", ROWS, csv.length / 1e6);
+
+        int[] positions = new int[csv.length];
+        for (DelimiterScanner scanner : new DelimiterScanner[] { new ScalarDelimiterScanner(),
+                DelimiterScanner.create() }) {
+            long best = Long.MAX_VALUE;
+            int count = 0;
+            for (int round = 0; round < ROUNDS * 4; round++) {
+                long start = System.nanoTime();
+                count = scanner.scan(csv, 0, csv.length, positions);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("scan  %-34s %8.2f ms  %6.2f GB/s  (%d delimiters)%n", scanner.description(),
+                    best / 1e6, csv.length / (double) best, count);
+        }
+
+        Path file = Files.createTempFile("taps-benchmark", ".csv");
+        try {
+            Files.write(file, csv);
+            parse("opencsv", file, null);
+            parse("fast, scalar", file, new ScalarDelimiterScanner());
+            parse("fast, " + DelimiterScanner.create().description(), file, DelimiterScanner.create());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void parse(String label, Path file, DelimiterScanner scanner) throws IOException {
+        long best = Long.MAX_VALUE;
+        int taps = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            PipelineMetrics metrics = new PipelineMetrics();
+            long start = System.nanoTime();
+            taps = new CsvReader(metrics, new RejectedRows(metrics), null, scanner).readTaps(file.toString()).size();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("parse %-34s %8.2f ms  (%d taps)%n", label, best / 1e6, taps);
+    }
+
+    /**
+     * @return Rows shaped like the production feed: numeric IDs, full
+     *         timestamps, company and bus IDs and 16-digit PANs.
+     */
+    private static byte[] generateTaps(int rows) {
+        Random random = new Random(1);
+        StringBuilder csv = new StringBuilder(rows * 72);
+        csv.append("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n");
+        for (int i = 0; i < rows; i++) {
+            int minute = i / 60 % 1440;
+            csv.append(1_000_000 + i).append(", ")
+                    .append(String.format("%02d-01-2023 %02d:%02d:%02d", 1 + i / 86_400 % 28, minute / 60,
+                            minute % 60, i % 60))
+                    .append(", ").append(random.nextBoolean() ? "ON" : "OFF")
+                    .append(", Stop").append(1 + random.nextInt(3))
+                    .append(", Company").append(1 + random.nextInt(5))
+                    .append(", Bus").append(10 + random.nextInt(90))
+                    .append(", ").append(5_500_000_000_000_000L + random.nextInt(1_000_000)).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
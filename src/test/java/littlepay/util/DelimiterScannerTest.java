@@ -0,0 +1,56 @@
+package littlepay.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelimiterScannerTest {
+
+    @Test
+    void scan_FindsEveryStructuralByte() {
+        byte[] bytes = "a,\"b\\c\"\r\nd,e\n".getBytes(StandardCharsets.US_ASCII);
+        int[] positions = new int[bytes.length];
+
+        int count = new ScalarDelimiterScanner().scan(bytes, 0, bytes.length, positions);
+
+        assertArrayEquals(new int[] { 1, 2, 4, 6, 7, 8, 10, 12 }, Arrays.copyOf(positions, count));
+    }
+
+    @Test
+    void scan_RespectsRange() {
+        byte[] bytes = ",a,b,".getBytes(StandardCharsets.US_ASCII);
+        int[] positions = new int[bytes.length];
+
+        int count = new ScalarDelimiterScanner().scan(bytes, 1, 4, positions);
+
+        assertArrayEquals(new int[] { 2 }, Arrays.copyOf(positions, count));
+    }
+
+    @Test
+    void create_MatchesScalarScannerOnAllLengthsAndOffsets() {
+        DelimiterScanner scanner = DelimiterScanner.create();
+        ScalarDelimiterScanner scalar = new ScalarDelimiterScanner();
+        byte[] alphabet = "ab,\n\r\"\\01 ".getBytes(StandardCharsets.US_ASCII);
+        Random random = new Random(7);
+        byte[] bytes = new byte[300];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = random.nextInt(4) == 0 ? alphabet[random.nextInt(alphabet.length)] : (byte) random.nextInt();
+        }
+        int[] expected = new int[bytes.length];
+        int[] actual = new int[bytes.length];
+
+        // Every tail length and a few unaligned starts, so both the vector loop and its tail are covered
+        for (int from = 0; from < 5; from++) {
+            for (int to = from; to <= bytes.length; to++) {
+                int expectedCount = scalar.scan(bytes, from, to, expected);
+                int actualCount = scanner.scan(bytes, from, to, actual);
+                assertArrayEquals(Arrays.copyOf(expected, expectedCount), Arrays.copyOf(actual, actualCount),
+                        scanner.description() + " on [" + from + ", " + to + ")");
+            }
+        }
+    }
+}
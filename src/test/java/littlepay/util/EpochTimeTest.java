@@ -0,0 +1,64 @@
+package littlepay.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EpochTimeTest {
+
+    @Test
+    void parseAndFormatMatchDateTimeFormatter() {
+        Random random = new Random(42);
+        long min = LocalDateTime.of(1900, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+        long max = LocalDateTime.of(2200, 12, 31, 23, 59, 59).toEpochSecond(ZoneOffset.UTC);
+        for (int i = 0; i < 100_000; i++) {
+            long epochSecond = min + (long) (random.nextDouble() * (max - min));
+            String expected = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC).format(EpochTime.FORMATTER);
+
+            assertEquals(expected, EpochTime.format(epochSecond));
+            assertEquals(epochSecond, EpochTime.parse(expected), expected);
+        }
+    }
+
+    @Test
+    void leapDaysAndYearBoundaries() {
+        for (String text : new String[] { "29-02-2024 12:00:00", "29-02-2000 00:00:00", "31-12-1999 23:59:59",
+                "01-01-1970 00:00:00", "31-12-1969 23:59:59", "01-01-0001 00:00:00", "31-12-9999 23:59:59" }) {
+            long expected = LocalDateTime.parse(text, EpochTime.FORMATTER).toEpochSecond(ZoneOffset.UTC);
+            assertEquals(expected, EpochTime.parse(text), text);
+            assertEquals(text, EpochTime.format(expected));
+        }
+    }
+
+    @Test
+    void unusualValuesFallBackToTheFormatter() {
+        // Not a leap year: the fast path declines and the formatter decides
+        assertEquals(EpochTime.NONE, EpochTime.parse("29-02-2023 10:00:00"));
+        assertEquals(LocalDateTime.parse("29-02-2023 10:00:00", EpochTime.FORMATTER).toEpochSecond(ZoneOffset.UTC),
+                EpochTime.parseOrThrow("29-02-2023 10:00:00"));
+
+        assertEquals(EpochTime.NONE, EpochTime.parse("20-08-2023 25:00:00"));
+        assertThrows(DateTimeParseException.class, () -> EpochTime.parseOrThrow("20-08-2023 25:00:00"));
+        assertThrows(DateTimeParseException.class, () -> EpochTime.parseOrThrow("20-AUG-2023 10:00:00"));
+    }
+
+    @Test
+    void isWellFormedChecksShapeOnly() {
+        assertTrue(EpochTime.isWellFormed("20-08-2023 10:00:00"));
+        assertTrue(EpochTime.isWellFormed("99-99-2023 99:99:99"));
+        assertFalse(EpochTime.isWellFormed("2023-08-20 10:00:00"));
+        assertFalse(EpochTime.isWellFormed("20-08-2023 10:00"));
+        assertFalse(EpochTime.isWellFormed("20-08-2023T10:00:00"));
+    }
+
+    @Test
+    void noneConvertsToNull() {
+        assertNull(EpochTime.toLocalDateTime(EpochTime.NONE));
+        assertEquals(EpochTime.NONE, EpochTime.of(null));
+    }
+}
@@ -0,0 +1,71 @@
+package littlepay.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileSupportTest {
+
+    @TempDir
+    Path tempDir;
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.toList();
+        }
+    }
+
+    @Test
+    void replaceSwapsInTheCompleteFile() throws IOException {
+        Path target = tempDir.resolve("trips.bin");
+        Files.writeString(target, "old");
+
+        FileSupport.replace(target, file -> Files.writeString(file, "new"));
+
+        assertEquals("new", Files.readString(target));
+        assertEquals(List.of(target), files());
+    }
+
+    @Test
+    void failedReplaceKeepsTheOldFile() throws IOException {
+        Path target = tempDir.resolve("trips.bin");
+        Files.writeString(target, "old");
+
+        assertThrows(IOException.class, () -> FileSupport.replace(target, file -> {
+            Files.writeString(file, "partial");
+            throw new IOException("Disk full");
+        }));
+
+        assertEquals("old", Files.readString(target));
+        assertEquals(List.of(target), files());
+    }
+
+    @Test
+    void startsWithChecksTheMagicNumber() throws IOException {
+        Path file = tempDir.resolve("file");
+        Files.write(file, new byte[] { 0x4C, 0x50, 0x54, 0x53, 0 });
+
+        assertTrue(FileSupport.startsWith(file, 0x4C505453));
+        assertFalse(FileSupport.startsWith(file, 0x4C505443));
+        Files.write(file, new byte[] { 0x4C, 0x50 });
+        assertFalse(FileSupport.startsWith(file, 0x4C505453));
+    }
+
+    @Test
+    void deleteRecursivelyRemovesTheTree() throws IOException {
+        Path dir = Files.createDirectories(tempDir.resolve("work").resolve("shard-0"));
+        Files.writeString(dir.resolve("taps.csv"), "taps");
+
+        FileSupport.deleteRecursively(tempDir.resolve("work"));
+        FileSupport.deleteRecursively(tempDir.resolve("work"));
+
+        assertEquals(List.of(), files());
+    }
+}
@@ -0,0 +1,35 @@
+package littlepay.util;
+
+import littlepay.model.LinkedTrip;
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JourneyWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void writesJourneyColumnsBeforeTripColumns() throws Exception {
+        LocalDateTime started = LocalDateTime.of(2023, 1, 2, 8, 0, 0);
+        Trip trip = new Trip(started, started.plusMinutes(5), 300, Stop.STOP2, Stop.STOP3, new BigDecimal("4.05"),
+                "Company1", "Bus2", "5500005555555559", TripStatus.COMPLETED);
+        Path file = tempDir.resolve("journeys.csv");
+
+        JourneyWriter.write(List.of(new LinkedTrip(trip, 7, 2)), file);
+
+        assertEquals(JourneyWriter.HEADER_LINE
+                + "7,2," + new TripCsvEncoder().appendTrip(new StringBuilder(), trip), Files.readString(file));
+    }
+}
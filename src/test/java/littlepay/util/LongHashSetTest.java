@@ -0,0 +1,33 @@
+package littlepay.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongHashSetTest {
+
+    @Test
+    void behavesLikeHashSet() {
+        LongHashSet set = new LongHashSet(4);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 50_000; i++) {
+            long value = i % 11 == 0 ? Long.MIN_VALUE : random.nextInt(20_000) - 10_000L;
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        Set<Long> seen = new HashSet<>();
+        set.forEach(seen::add);
+        assertEquals(expected, seen);
+
+        set.clear();
+
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.add(42));
+    }
+}
@@ -0,0 +1,68 @@
+package littlepay.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongLongHashMapTest {
+
+    @Test
+    void behavesLikeHashMap() {
+        LongLongHashMap map = new LongLongHashMap(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            // A small key range so puts, updates and removes all collide often
+            long key = random.nextInt(2_000) - 1_000L;
+            if (i % 7 == 0) {
+                key = Long.MIN_VALUE;
+            }
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            } else {
+                long value = random.nextLong();
+                expected.put(key, value);
+                map.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey(), -1));
+        }
+        Map<Long, Long> seen = new HashMap<>();
+        map.forEach(seen::put);
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    void addToAndClear() {
+        LongLongHashMap map = new LongLongHashMap();
+        for (long key = 0; key < 5_000; key++) {
+            map.addTo(key, 2);
+            map.addTo(key, 3);
+        }
+        assertEquals(5_000, map.size());
+        assertEquals(5, map.get(1234, 0));
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(1234));
+        assertEquals(0, map.get(1234, 0));
+    }
+
+    @Test
+    void panKeys() {
+        assertEquals(5500005555555559L, PanKeys.numericKey("5500005555555559"));
+        // 19 digits above Long.MAX_VALUE still map to distinct unsigned keys
+        assertEquals("9999999999999999999", Long.toUnsignedString(PanKeys.numericKey("9999999999999999999")));
+        assertEquals(PanKeys.NO_NUMERIC_KEY, PanKeys.numericKey("0123"));
+        assertEquals(PanKeys.NO_NUMERIC_KEY, PanKeys.numericKey("12345678901234567890"));
+        assertEquals(PanKeys.NO_NUMERIC_KEY, PanKeys.numericKey("PAN1"));
+        assertEquals(PanKeys.NO_NUMERIC_KEY, PanKeys.numericKey(""));
+    }
+}
@@ -0,0 +1,92 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedTapTableTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Tap tap(int id, String pan) {
+        return new Tap(Integer.toString(id), 1_674_392_400L + id, id % 2 == 0 ? TapType.ON : TapType.OFF,
+                Stop.values()[id % Stop.values().length], "Company" + id % 3, "Bus" + id % 50, pan);
+    }
+
+    @Test
+    void behavesLikeHashMap() throws Exception {
+        Map<String, Tap> expected = new HashMap<>();
+        Random random = new Random(42);
+        try (MappedTapTable table = new MappedTapTable(tempDir)) {
+            for (int i = 0; i < 200_000; i++) {
+                // Enough keys to resize the index, with replaces and removes to force compaction
+                String pan = Long.toString(5500005555550000L + random.nextInt(30_000));
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(pan), table.remove(pan));
+                } else {
+                    Tap tap = tap(i, pan);
+                    expected.put(pan, tap);
+                    table.put(pan, tap);
+                }
+            }
+            assertEquals(expected.size(), table.size());
+            for (Map.Entry<String, Tap> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), table.get(entry.getKey()));
+            }
+            assertNull(table.get("no such card"));
+            Map<String, Tap> seen = new HashMap<>();
+            table.forEach(tap -> seen.put(tap.pan(), tap));
+            assertEquals(expected, seen);
+            // Compaction keeps the garbage below the live records
+            assertTrue(table.mappedBytes() <= 4 * table.usedBytes(), table.mappedBytes() + " mapped");
+        }
+    }
+
+    @Test
+    void storesNullAndNonAsciiFields() throws Exception {
+        Tap tap = new Tap(null, 0, null, null, "Compa\u00f1\u00eda", "", "PAN1");
+        try (MappedTapTable table = new MappedTapTable(tempDir)) {
+            table.put("PAN1", tap);
+
+            assertEquals(tap, table.get("PAN1"));
+        }
+    }
+
+    @Test
+    void clearAndCloseDeleteFiles() throws Exception {
+        MappedTapTable table = new MappedTapTable(tempDir);
+        for (int i = 0; i < 50_000; i++) {
+            table.put("PAN" + i, tap(i, "PAN" + i));
+        }
+        long grown = table.mappedBytes();
+
+        table.clear();
+
+        assertEquals(0, table.size());
+        assertNull(table.get("PAN1"));
+        assertTrue(table.mappedBytes() < grown);
+        table.put("PAN1", tap(1, "PAN1"));
+        assertEquals(1, table.size());
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(2, files.count());
+        }
+
+        table.close();
+
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+}
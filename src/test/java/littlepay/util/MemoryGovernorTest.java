@@ -0,0 +1,103 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import littlepay.service.OpenTapStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryGovernorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void pressureStartsAboveHighThresholdAndEndsBelowLow() {
+        MemoryGovernor governor = new MemoryGovernor(0.8, false);
+
+        governor.afterCollection(0.5);
+        assertFalse(governor.underPressure());
+        governor.afterCollection(0.85);
+        governor.afterCollection(0.9);
+        assertTrue(governor.underPressure());
+        assertEquals(2, governor.pressureSignals());
+        governor.afterCollection(0.7); // Below the high threshold but not the low one
+        assertTrue(governor.underPressure());
+        governor.afterCollection(0.6);
+
+        assertFalse(governor.underPressure());
+        assertEquals(1, governor.episodes());
+        assertEquals(5, governor.collections());
+        assertEquals(0.9, governor.peakUsedFraction());
+    }
+
+    @Test
+    void awaitReliefReturnsWhenPressureEnds() throws Exception {
+        MemoryGovernor governor = new MemoryGovernor(0.8, false);
+        governor.afterCollection(0.9);
+        assertFalse(governor.awaitRelief(10));
+
+        Thread relief = Thread.ofVirtual().start(() -> governor.afterCollection(0.1));
+
+        assertTrue(governor.awaitRelief(10_000));
+        relief.join();
+    }
+
+    @Test
+    void seesRealCollections() throws Exception {
+        // Any live data is over 0.001% of the heap, so every collection is a pressure signal
+        try (MemoryGovernor governor = new MemoryGovernor(0.00001)) {
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            // The threshold and collection notifications arrive separately, so wait for both
+            while ((!governor.underPressure() || governor.collections() == 0) && System.nanoTime() < deadline) {
+                System.gc();
+                Thread.sleep(50);
+            }
+
+            assertTrue(governor.underPressure());
+            assertTrue(governor.collections() > 0);
+        }
+    }
+
+    @Test
+    void openTapStoreShedsTapsUnderPressureAndRegrows() throws Exception {
+        MemoryGovernor governor = new MemoryGovernor(0.8, false);
+        List<Tap> taps = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            taps.add(new Tap(Integer.toString(i), i, TapType.ON, Stop.STOP1, "Company1", "Bus37", "PAN" + i));
+        }
+        try (OpenTapStore store = new OpenTapStore(Long.MAX_VALUE, tempDir, governor)) {
+            taps.forEach(tap -> store.put(tap.pan(), tap));
+            assertEquals(0, store.spills());
+            long heapBytes = store.heapBytes();
+
+            governor.afterCollection(0.9);
+            store.put("PAN0", taps.get(0));
+
+            assertEquals(1, store.budgetCuts());
+            assertTrue(store.heapBytes() <= heapBytes / 2, store.heapBytes() + " of " + heapBytes);
+            assertEquals(5_000, store.size());
+
+            governor.afterCollection(0.1);
+            store.put("PAN1", taps.get(1));
+
+            assertTrue(store.heapBudgetBytes() >= heapBytes - 1, "Budget should double back from half");
+            for (Tap tap : taps) {
+                assertEquals(tap, store.get(tap.pan()));
+            }
+        }
+    }
+
+    @Test
+    void rejectsInvalidThreshold() {
+        assertThrows(IllegalArgumentException.class, () -> new MemoryGovernor(1.0, false));
+        assertThrows(IllegalArgumentException.class, () -> new MemoryGovernor(0, false));
+    }
+}
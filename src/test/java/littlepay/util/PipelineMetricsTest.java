@@ -0,0 +1,133 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineMetricsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void csvReaderCountsParsedAndSkippedRowsByReason() throws IOException {
+        Path file = tempDir.resolve("taps.csv");
+        Files.write(file, List.of(
+                "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456",
+                "2, 20-AUG-2023 10:05:00, OFF, Stop2, CompanyA, Bus1, 123456",
+                "3, 20-08-2023 10:05:00, OFF, StopX, CompanyA, Bus1, 123456",
+                "4, 20-08-2023 10:05:00, OFF, Stop2, CompanyA, Bus1"));
+
+        PipelineMetrics metrics = new PipelineMetrics();
+        new CsvReader(metrics).readTaps(file.toString());
+
+        assertEquals(1, metrics.rowsParsed());
+        assertEquals(1, metrics.rowsSkipped(SkipReason.INVALID_DATE));
+        assertEquals(1, metrics.rowsSkipped(SkipReason.INVALID_VALUE));
+        assertEquals(1, metrics.rowsSkipped(SkipReason.MISSING_COLUMNS));
+        assertEquals(Files.size(file), metrics.bytesRead());
+        assertEquals(1, metrics.rowParseLatency().count());
+    }
+
+    @Test
+    void tripsAreCountedByStatusAndExported() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        LocalDateTime time = LocalDateTime.of(2023, 1, 1, 10, 0);
+        metrics.tripsProduced(List.of(
+                new Trip(time, time.plusMinutes(5), 300, Stop.STOP1, Stop.STOP2, new BigDecimal("3.25"), "C", "B",
+                        "1", TripStatus.COMPLETED),
+                new Trip(time, null, 0, Stop.STOP1, null, new BigDecimal("7.30"), "C", "B", "2",
+                        TripStatus.INCOMPLETE)));
+        try (PipelineMetrics.StageTimer timer = metrics.startStage("match")) {
+            timer.rows(2);
+        }
+
+        assertEquals(1, metrics.trips(TripStatus.COMPLETED));
+        assertEquals(1, metrics.trips(TripStatus.INCOMPLETE));
+        assertEquals(0, metrics.trips(TripStatus.CANCELLED));
+
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"COMPLETED\": 1"));
+        assertTrue(json.contains("\"match\": {\"invocations\": 1"));
+
+        String prometheus = metrics.toPrometheus();
+        assertTrue(prometheus.contains("littlepay_trips_total{status=\"incomplete\"} 1"));
+        assertTrue(prometheus.contains("littlepay_stage_wall_seconds{stage=\"match\"}"));
+    }
+
+    @Test
+    void openTapsAreExportedAsGauges() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.openTaps(10, 90, 4096);
+        metrics.openTaps(5, 0, 0);
+
+        assertEquals(100, metrics.openTapsPeak());
+        assertTrue(metrics.toJson().contains("\"openTaps\": {\"onHeap\": 5, \"spilled\": 0, \"spillBytes\": 0,"
+                + " \"peak\": 100}"));
+        String prometheus = metrics.toPrometheus();
+        assertTrue(prometheus.contains("littlepay_open_taps{tier=\"heap\"} 5\n"));
+        assertTrue(prometheus.contains("littlepay_open_taps{tier=\"spilled\"} 0\n"));
+    }
+
+    @Test
+    void workOnOtherThreadsCountsTowardTheStage() throws InterruptedException {
+        PipelineMetrics metrics = new PipelineMetrics();
+        AtomicReference<byte[][]> allocated = new AtomicReference<>();
+        try (PipelineMetrics.StageTimer timer = metrics.startStage("match")) {
+            assertSame(timer, PipelineMetrics.StageTimer.current());
+            Thread worker = new Thread(() -> timer.runOnWorker(() -> {
+                byte[][] chunks = new byte[64][];
+                for (int i = 0; i < chunks.length; i++) {
+                    chunks[i] = new byte[128 * 1024];
+                }
+                allocated.set(chunks);
+            }));
+            worker.start();
+            worker.join();
+        }
+
+        assertNull(PipelineMetrics.StageTimer.current());
+        assertEquals(64, allocated.get().length);
+        Matcher allocatedBytes = Pattern.compile("\"allocatedBytes\": (\\d+)").matcher(metrics.toJson());
+        assertTrue(allocatedBytes.find());
+        assertTrue(Long.parseLong(allocatedBytes.group(1)) >= 64 * 128 * 1024, allocatedBytes.group());
+    }
+
+    @Test
+    void histogramPercentilesStayWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000);
+        }
+
+        assertEquals(10_000, histogram.count());
+        assertEquals(10_000_000, histogram.max());
+        long p50 = histogram.percentile(50);
+        assertTrue(Math.abs(p50 - 5_000_000) <= 5_000_000 * 0.04, "p50 was " + p50);
+        long p99 = histogram.percentile(99);
+        assertTrue(Math.abs(p99 - 9_900_000) <= 9_900_000 * 0.04, "p99 was " + p99);
+    }
+
+    @Test
+    void histogramBucketsCoverTheFullLongRange() {
+        for (long value : new long[] { 0, 1, 31, 32, 33, 1_000_000, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.indexFor(value);
+            assertTrue(LatencyHistogram.upperBoundOf(index) >= value, "value " + value);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package littlepay.util;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PipelineStageEventTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void stageTimerEmitsEventWhenRecording() throws Exception {
+        Path file = tempDir.resolve("run.jfr");
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        try (Recording recording = new Recording()) {
+            recording.enable(PipelineStageEvent.NAME);
+            recording.start();
+            try (PipelineMetrics.StageTimer timer = metrics.startStage("read")) {
+                timer.rows(42).bytes(1024);
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().equals(PipelineStageEvent.NAME))
+                .toList();
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertEquals("read", event.getString("stage"));
+        assertEquals(42, event.getLong("rowCount"));
+        assertEquals(1024, event.getLong("bytes"));
+    }
+}
@@ -0,0 +1,149 @@
+package littlepay.util;
+
+import littlepay.model.Tap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RejectedRowsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void writesEveryRejectedRowWithLineNumberAndReason() throws IOException {
+        Path input = tempDir.resolve("taps.csv");
+        Files.write(input, List.of(
+                "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "1, 20-08-2023 10:00:00, ON, Stop1, CompanyA, Bus1, 123456",
+                "2, 20-AUG-2023 10:05:00, OFF, Stop2, CompanyA, Bus1, 123456",
+                "3, 20-08-2023 10:05:00, SIDEWAYS, Stop2, CompanyA, Bus1, 123456",
+                "4, 20-08-2023 10:05:00, OFF, StopX, CompanyA, Bus1, 123456",
+                "5, 20-08-2023 10:05:00, OFF"));
+        Path rejectFile = tempDir.resolve("rejects.csv");
+
+        PipelineMetrics metrics = new PipelineMetrics();
+        List<Tap> taps;
+        try (RejectedRows rejects = new RejectedRows(metrics, rejectFile)) {
+            taps = new CsvReader(metrics, rejects).readTaps(input.toString());
+            assertEquals(4, rejects.total());
+            assertEquals(2, rejects.count(SkipReason.INVALID_VALUE));
+        }
+
+        assertEquals(1, taps.size());
+        assertEquals(1, metrics.rowsSkipped(SkipReason.INVALID_DATE));
+        assertEquals(1, metrics.rowsSkipped(SkipReason.MISSING_COLUMNS));
+        List<String> lines = Files.readAllLines(rejectFile);
+        assertEquals(List.of(
+                "LineNumber,Reason,Detail,Row",
+                "3,INVALID_DATE,invalid date format,\"2, 20-AUG-2023 10:05:00, OFF, Stop2, CompanyA, Bus1, 123456\"",
+                "4,INVALID_VALUE,unknown tap type,\"3, 20-08-2023 10:05:00, SIDEWAYS, Stop2, CompanyA, Bus1, 123456\"",
+                "5,INVALID_VALUE,unknown stop ID,\"4, 20-08-2023 10:05:00, OFF, StopX, CompanyA, Bus1, 123456\"",
+                "6,MISSING_COLUMNS,not enough columns: expected 7,\"5, 20-08-2023 10:05:00, OFF\""),
+                lines);
+    }
+
+    @Test
+    void logsOnlyARateLimitedSamplePerReason() throws IOException {
+        Logger logger = Logger.getLogger(CsvReader.class.getName());
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        logger.addHandler(handler);
+        try (RejectedRows rejects = new RejectedRows(new PipelineMetrics(), (java.io.Writer) null, 3,
+                TimeUnit.HOURS.toNanos(1))) {
+            for (int i = 0; i < 1000; i++) {
+                rejects.reject("taps.csv", i, SkipReason.INVALID_DATE, "invalid date format", new String[] { "x" });
+            }
+            assertEquals(1000, rejects.count(SkipReason.INVALID_DATE));
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        // 3 sampled rows, the notice that further rows are suppressed, and the summary
+        assertEquals(5, records.size());
+        assertTrue(records.get(4).getMessage().contains("INVALID_DATE=1000"));
+    }
+
+    @Test
+    void bufferedRowIsCopiedBeforeTheBufferIsReused() throws Exception {
+        StringWriter out = new StringWriter();
+        RejectedRows rejects = new RejectedRows(new PipelineMetrics(), out, 0, TimeUnit.HOURS.toNanos(1));
+        byte[] buffer = "a,b\n".getBytes(StandardCharsets.US_ASCII);
+
+        rejects.reject("taps.csv", 2, SkipReason.MISSING_COLUMNS, "not enough columns",
+                new TapRowView().over(buffer, 0, new int[] { 1, 3 }, 2, StandardCharsets.US_ASCII));
+        buffer[0] = 'x';
+        rejects.close();
+
+        assertEquals("LineNumber,Reason,Detail,Row\n2,MISSING_COLUMNS,not enough columns,\"a,b\"\n", out.toString());
+    }
+
+    @Test
+    void rejectWriterAcceptsRowsFromAnyThread() throws Exception {
+        StringWriter out = new StringWriter();
+        RejectedRows rejects = new RejectedRows(new PipelineMetrics(), out, 0, TimeUnit.HOURS.toNanos(1));
+        Thread other = new Thread(() -> rejects.reject("taps.csv", 7, SkipReason.UNEXPECTED_ERROR, "boom",
+                new String[] { "a", "b" }));
+        other.start();
+        other.join();
+        rejects.close();
+
+        assertEquals("LineNumber,Reason,Detail,Row\n7,UNEXPECTED_ERROR,boom,\"a,b\"\n", out.toString());
+    }
+
+    @Test
+    void writerThatThrowsFailsCloseInsteadOfBlocking() {
+        Writer broken = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                throw new IllegalStateException("Writer broke");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        RejectedRows rejects = new RejectedRows(new PipelineMetrics(), broken, 0, TimeUnit.HOURS.toNanos(1));
+
+        IOException failure = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            // More rows than the queue holds, so rejecting waits on the stopped writer
+            for (int i = 0; i < 10_000; i++) {
+                rejects.reject("taps.csv", i + 2, SkipReason.UNEXPECTED_ERROR, "boom", new String[] { "a" });
+            }
+            return assertThrows(IOException.class, rejects::close);
+        });
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+    }
+}
@@ -0,0 +1,75 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RollingTripWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Trip trip(int i) {
+        long started = EpochTime.parse("20-08-2023 10:00:00") + i * 60L;
+        return new Trip(started, started + 300, 300, Stop.STOP1, Stop.STOP2, new BigDecimal("3.25"), "CompanyA",
+                "Bus1", String.valueOf(5500005555555559L + i), TripStatus.COMPLETED);
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.sorted().toList();
+        }
+    }
+
+    @Test
+    void rollsToNewFileAtSizeLimit() throws IOException {
+        int lineBytes = new TripCsvEncoder().appendTrip(new StringBuilder(), trip(0)).length();
+        try (RollingTripWriter writer = new RollingTripWriter(tempDir,
+                TripCsvEncoder.HEADER_LINE.length() + 4L * lineBytes, 3600)) {
+            for (int i = 0; i < 10; i++) {
+                writer.write(trip(i));
+            }
+            assertEquals(2, writer.filesCompleted());
+            assertEquals(3, files().size());
+            assertTrue(files().get(2).toString().endsWith(".csv.part"), "Current file is still in progress");
+        }
+
+        List<Path> files = files();
+        assertEquals(3, files.size());
+        int trips = 0;
+        for (Path file : files) {
+            assertTrue(file.getFileName().toString().endsWith(".csv"));
+            List<String> lines = Files.readAllLines(file);
+            assertEquals(TripCsvEncoder.HEADER_LINE.strip(), lines.get(0));
+            trips += lines.size() - 1;
+        }
+        assertEquals(10, trips);
+        assertTrue(files.get(0).getFileName().toString().endsWith("-000001.csv"));
+    }
+
+    @Test
+    void createsNoFileWithoutTrips() throws IOException {
+        try (RollingTripWriter writer = new RollingTripWriter(tempDir, 1024, 3600)) {
+            writer.tick();
+            writer.roll();
+        }
+        assertTrue(files().isEmpty());
+    }
+
+    @Test
+    void rejectsNonPositiveLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new RollingTripWriter(tempDir, 0, 3600));
+        assertThrows(IllegalArgumentException.class, () -> new RollingTripWriter(tempDir, 1024, 0));
+    }
+}
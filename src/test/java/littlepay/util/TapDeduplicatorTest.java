@@ -0,0 +1,74 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Tap;
+import littlepay.model.TapType;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TapDeduplicatorTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+
+    private static Tap tap(String id, LocalDateTime time, String pan) {
+        return new Tap(id, time, TapType.ON, Stop.STOP1, "Company1", "Bus37", pan);
+    }
+
+    @Test
+    void detectsRepeatedIds() {
+        TapDeduplicator deduplicator = new TapDeduplicator();
+
+        assertFalse(deduplicator.isDuplicate(tap("1", START, "5500005555555559")));
+        assertFalse(deduplicator.isDuplicate(tap("tap-2", START, "5500005555555559")));
+        assertTrue(deduplicator.isDuplicate(tap("1", START.plusSeconds(5), "5500005555555559")));
+        assertTrue(deduplicator.isDuplicate(tap("tap-2", START.plusSeconds(5), "4111111111111111")));
+        assertEquals(2, deduplicator.duplicates());
+    }
+
+    @Test
+    void contentKeysKeepDifferentTapsThatShareAnId() {
+        TapDeduplicator deduplicator = new TapDeduplicator(3600, true, 16);
+
+        assertFalse(deduplicator.isDuplicate(tap("1", START, "5500005555555559")));
+        assertFalse(deduplicator.isDuplicate(tap("1", START, "4111111111111111")));
+        assertTrue(deduplicator.isDuplicate(tap("1", START, "4111111111111111")));
+    }
+
+    @Test
+    void tapsWithoutAnIdAreKeyedOnContent() {
+        TapDeduplicator deduplicator = new TapDeduplicator(3600, false, 16);
+
+        assertFalse(deduplicator.isDuplicate(tap("", START, "5500005555555559")));
+        assertFalse(deduplicator.isDuplicate(tap(" ", START, "4111111111111111")));
+        assertFalse(deduplicator.isDuplicate(tap(null, START.plusSeconds(1), "5500005555555559")));
+        assertTrue(deduplicator.isDuplicate(tap(null, START.plusSeconds(1), "5500005555555559")));
+        assertEquals(1, deduplicator.duplicates());
+    }
+
+    @Test
+    void forgetsTapsOlderThanTwoWindows() {
+        TapDeduplicator deduplicator = new TapDeduplicator(3600, false, 16);
+
+        assertFalse(deduplicator.isDuplicate(tap("1", START, "5500005555555559")));
+        assertFalse(deduplicator.isDuplicate(tap("2", START.plusMinutes(90), "5500005555555559")));
+        // Within one window of the original, so still remembered after a rotation
+        assertTrue(deduplicator.isDuplicate(tap("2", START.plusMinutes(100), "5500005555555559")));
+        assertFalse(deduplicator.isDuplicate(tap("1", START.plusHours(3), "5500005555555559")));
+    }
+
+    @Test
+    void noFalsePositivesAtScale() {
+        TapDeduplicator deduplicator = new TapDeduplicator(0, false, 1024);
+        for (int i = 0; i < 200_000; i++) {
+            String id = i % 2 == 0 ? Integer.toString(i) : "id-" + i;
+            assertFalse(deduplicator.isDuplicate(tap(id, START.plusSeconds(i), "5500005555555559")), id);
+        }
+        for (int i = 0; i < 200_000; i += 997) {
+            String id = i % 2 == 0 ? Integer.toString(i) : "id-" + i;
+            assertTrue(deduplicator.isDuplicate(tap(id, START, "5500005555555559")), id);
+        }
+    }
+}
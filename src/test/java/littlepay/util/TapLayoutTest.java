@@ -0,0 +1,35 @@
+package littlepay.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TapLayoutTest {
+
+    @Test
+    void defaultLayoutIsFieldOrder() {
+        for (TapField field : TapField.values()) {
+            assertEquals(field.ordinal(), TapLayout.DEFAULT.position(field));
+        }
+        assertEquals(7, TapLayout.DEFAULT.minColumns());
+    }
+
+    @Test
+    void headerNamesAreMatchedIgnoringCaseAndSpaces() {
+        TapLayout layout = TapLayout.fromHeader(new String[] {
+                "\uFEFFpan", " DATETIMEUTC ", "Notes", "TapType", "StopId", "CompanyId", "BusID", "PAN" });
+
+        assertNotNull(layout);
+        assertEquals(0, layout.position(TapField.PAN));
+        assertEquals(1, layout.position(TapField.DATE_TIME));
+        assertEquals(6, layout.position(TapField.BUS));
+        assertEquals(-1, layout.position(TapField.ID));
+        assertEquals(7, layout.minColumns());
+    }
+
+    @Test
+    void headerWithoutARequiredColumnIsNotRecognised() {
+        assertNull(TapLayout.fromHeader(new String[] { "ID", "DateTimeUTC", "TapType", "StopId", "CompanyId", "PAN" }));
+        assertNull(TapLayout.fromHeader(new String[0]));
+    }
+}
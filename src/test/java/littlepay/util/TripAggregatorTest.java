@@ -0,0 +1,82 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TripAggregatorTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Trip> sampleTrips() {
+        return List.of(
+                new Trip(START, START.plusMinutes(5), 300, Stop.STOP1, Stop.STOP2, new BigDecimal("3.25"),
+                        "Company1", "Bus37", "5500005555555559", TripStatus.COMPLETED),
+                new Trip(START.plusMinutes(10), START.plusMinutes(11), 60, Stop.STOP2, Stop.STOP2, BigDecimal.ZERO,
+                        "Company1", "Bus37", "4111111111111111", TripStatus.CANCELLED),
+                new Trip(START.plusHours(1), null, 0, Stop.STOP3, null, new BigDecimal("7.30"),
+                        "Company2", "Bus,12", "5500005555555559", TripStatus.INCOMPLETE),
+                new Trip(START.plusHours(1).plusMinutes(30), START.plusHours(2), 1800, Stop.STOP2, Stop.STOP1,
+                        new BigDecimal("3.25"), "Company1", "Bus36", "5500005555555559", TripStatus.COMPLETED));
+    }
+
+    @Test
+    void rollsUpTripsAndRevenueByDimension() {
+        TripAggregator aggregator = new TripAggregator(1, 1);
+        aggregator.addAll(sampleTrips());
+
+        assertEquals(4, aggregator.trips());
+        assertEquals(1380, aggregator.revenueCents());
+        String expected = String.join("\n",
+                "Dimension,Key,Trips,Revenue",
+                "total,all,4,13.80",
+                "company,Company1,3,6.50",
+                "company,Company2,1,7.30",
+                "bus,\"Bus,12\",1,7.30",
+                "bus,Bus36,1,3.25",
+                "bus,Bus37,2,3.25",
+                "stopPair,Stop1-Stop2,1,3.25",
+                "stopPair,Stop2-Stop1,1,3.25",
+                "stopPair,Stop2-Stop2,1,0.00",
+                "stopPair,Stop3-None,1,7.30",
+                "hour,22-01-2023 13:00,2,3.25",
+                "hour,22-01-2023 14:00,2,10.55",
+                "status,COMPLETED,2,6.50",
+                "status,INCOMPLETE,1,7.30",
+                "status,CANCELLED,1,0.00") + "\n";
+        assertEquals(expected, aggregator.appendSummary(new StringBuilder()).toString());
+    }
+
+    @Test
+    void writesSummaryFile() throws IOException {
+        TripAggregator aggregator = new TripAggregator();
+        aggregator.addAll(sampleTrips());
+        Path summary = tempDir.resolve("reports/summary.csv");
+
+        aggregator.writeSummary(summary);
+
+        assertEquals(aggregator.appendSummary(new StringBuilder()).toString(),
+                Files.readString(summary, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void emptySummaryHasOnlyTotals() {
+        assertEquals(TripAggregator.SUMMARY_HEADER + "total,all,0,0.00\n",
+                new TripAggregator().appendSummary(new StringBuilder()).toString());
+    }
+}
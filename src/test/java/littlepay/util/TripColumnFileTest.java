@@ -0,0 +1,163 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TripColumnFileTest {
+
+    private static final long BASE = EpochTime.of(LocalDateTime.of(2023, 1, 1, 0, 0, 0));
+    private static final String[] FARES = {"0.00", "2.50", "3.25", "5.50", "7.30"};
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Trip> randomTrips(int count) {
+        Random random = new Random(7);
+        Stop[] stops = Stop.values();
+        TripStatus[] statuses = TripStatus.values();
+        List<Trip> trips = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long started = BASE + random.nextInt(30 * 86_400);
+            boolean incomplete = random.nextInt(10) == 0;
+            trips.add(new Trip(started, incomplete ? EpochTime.NONE : started + 300, incomplete ? 0 : 300,
+                    stops[random.nextInt(stops.length)], incomplete ? null : stops[random.nextInt(stops.length)],
+                    new BigDecimal(FARES[random.nextInt(FARES.length)]), "Company" + random.nextInt(3), "Bus" + random.nextInt(40),
+                    "55000055555" + (10_000 + random.nextInt(3_000)), statuses[random.nextInt(statuses.length)]));
+        }
+        return trips;
+    }
+
+    private static List<Trip> inFileOrder(List<Trip> trips) {
+        return trips.stream()
+                .sorted(Comparator.comparingLong(Trip::startedEpochSecond).thenComparing(Trip::pan))
+                .toList();
+    }
+
+    @Test
+    void roundTripsEveryColumn() throws IOException {
+        List<Trip> trips = new ArrayList<>(randomTrips(5_000));
+        trips.add(new Trip(BASE, EpochTime.NONE, 0, null, null, null, null, null, "PAN", null));
+        trips.add(new Trip(BASE - 1, BASE + 10, 11, Stop.STOP1, Stop.STOP2, new BigDecimal("0.00"),
+                "Compa\u00f1\u00eda", "", "PAN", TripStatus.COMPLETED));
+        Path path = tempDir.resolve("trips.col");
+        TripColumnFile.write(trips, path, 1_000);
+
+        try (TripColumnFile file = TripColumnFile.open(path)) {
+            assertEquals(trips.size(), file.size());
+            assertEquals(6, file.rowGroups());
+            assertEquals(inFileOrder(trips), file.readAll());
+        }
+        assertTrue(TripColumnFile.isTripColumnFile(path));
+    }
+
+    @Test
+    void chargesAreRoundedToCents() throws IOException {
+        Path path = tempDir.resolve("trips.col");
+        TripColumnFile.write(List.of(new Trip(BASE, BASE, 0, Stop.STOP1, Stop.STOP1, new BigDecimal("3.255"),
+                "Company1", "Bus1", "PAN", TripStatus.CANCELLED)), path);
+
+        try (TripColumnFile file = TripColumnFile.open(path)) {
+            assertEquals(new BigDecimal("3.26"), file.readAll().get(0).chargeAmount());
+        }
+    }
+
+    @Test
+    void projectedScanReadsOnlyItsColumns() throws IOException {
+        List<Trip> trips = randomTrips(200_000);
+        Path path = tempDir.resolve("trips.col");
+        TripColumnFile.write(trips, path);
+
+        Map<String, Long> centsByCompany = new HashMap<>();
+        long bytesRead;
+        try (TripColumnFile file = TripColumnFile.open(path)) {
+            file.scan(EnumSet.of(TripColumnFile.Column.CHARGE, TripColumnFile.Column.COMPANY_ID), trip -> {
+                assertNull(trip.pan());
+                centsByCompany.merge(trip.companyId(), trip.chargeAmount().movePointRight(2).longValueExact(),
+                        Long::sum);
+            });
+            bytesRead = file.bytesRead();
+        }
+
+        Map<String, Long> expected = new HashMap<>();
+        for (Trip trip : trips) {
+            expected.merge(trip.companyId(), trip.chargeAmount().movePointRight(2).longValueExact(), Long::sum);
+        }
+        assertEquals(expected, centsByCompany);
+        long fileSize = Files.size(path);
+        assertTrue(bytesRead < fileSize / 4, bytesRead + " of " + fileSize + " bytes read");
+    }
+
+    @Test
+    void timeRangeScanSkipsRowGroups() throws IOException {
+        List<Trip> trips = randomTrips(20_000);
+        Path path = tempDir.resolve("trips.col");
+        TripColumnFile.write(trips, path, 1_000);
+        long from = BASE + 10 * 86_400 + 123;
+        long to = BASE + 12 * 86_400;
+
+        List<Trip> found = new ArrayList<>();
+        long bytesRead;
+        long allBytesRead;
+        try (TripColumnFile file = TripColumnFile.open(path)) {
+            file.scan(EnumSet.allOf(TripColumnFile.Column.class), from, to, found::add);
+            bytesRead = file.bytesRead();
+            file.readAll();
+            allBytesRead = file.bytesRead() - bytesRead;
+        }
+
+        assertEquals(inFileOrder(trips).stream()
+                .filter(trip -> trip.startedEpochSecond() >= from && trip.startedEpochSecond() < to)
+                .toList(), found);
+        assertTrue(bytesRead < allBytesRead / 5, bytesRead + " of " + allBytesRead + " bytes read");
+    }
+
+    @Test
+    void smallerThanCsv() throws IOException {
+        List<Trip> trips = randomTrips(50_000);
+        Path path = tempDir.resolve("trips.col");
+        TripColumnFile.write(trips, path);
+        StringBuilder csv = new StringBuilder(TripCsvEncoder.HEADER_LINE);
+        TripCsvEncoder encoder = new TripCsvEncoder();
+        trips.forEach(trip -> encoder.appendTrip(csv, trip));
+
+        assertTrue(Files.size(path) < csv.length() / 4, Files.size(path) + " vs " + csv.length() + " CSV bytes");
+    }
+
+    @Test
+    void emptyFileHasNoTrips() throws IOException {
+        Path path = tempDir.resolve("trips.col");
+        TripColumnFile.write(List.of(), path);
+
+        try (TripColumnFile file = TripColumnFile.open(path)) {
+            assertEquals(0, file.size());
+            assertEquals(List.of(), file.readAll());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path csv = tempDir.resolve("trips.csv");
+        Files.writeString(csv, TripCsvEncoder.HEADER_LINE + "01-01-2023 00:00:00, , 0, Stop1, Stop1, $0.00\n");
+
+        assertFalse(TripColumnFile.isTripColumnFile(csv));
+        assertThrows(IOException.class, () -> TripColumnFile.open(csv));
+    }
+}
@@ -0,0 +1,73 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TripCsvReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsBackTripsWrittenByCsvWriter() throws Exception {
+        LocalDateTime started = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+        List<Trip> trips = List.of(
+                new Trip(started, started.plusMinutes(5), 300, Stop.STOP1, Stop.STOP2, new BigDecimal("3.25"),
+                        "Company1", "Bus37", "5500005555555559", TripStatus.COMPLETED),
+                new Trip(started, null, 0, Stop.STOP3, null, new BigDecimal("7.30"),
+                        "Company,\"2\"", "Bus\nA", "4111111111111111", TripStatus.INCOMPLETE));
+        Path file = tempDir.resolve("trips.csv");
+        new CsvWriter().writeTrips(trips, file.toString());
+
+        List<Trip> read = new ArrayList<>();
+        try (TripCsvReader reader = new TripCsvReader(file)) {
+            assertTrue(reader.next());
+            assertEquals(TripCsvEncoder.HEADER_LINE.strip(), reader.record().toString());
+            while (reader.next()) {
+                read.add(reader.trip());
+            }
+        }
+        assertEquals(trips, read);
+    }
+
+    @Test
+    void fieldRemovesEscapes() throws Exception {
+        Path file = tempDir.resolve("escaped.csv");
+        Files.writeString(file, "a,b\",c,d\"\nd,e\n");
+
+        try (TripCsvReader reader = new TripCsvReader(file)) {
+            assertTrue(reader.next());
+            assertEquals("a", reader.field(0));
+            assertEquals("b,c", reader.field(1));
+            assertEquals("d\nd", reader.field(2));
+            assertEquals("e", reader.field(3));
+            assertEquals("", reader.field(4));
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void rejectsInvalidRecords() throws Exception {
+        Path file = tempDir.resolve("bad.csv");
+        Files.writeString(file, TripCsvEncoder.HEADER_LINE + "22-01-2023 13:00:00,,0,Stop9,,$1.00,C,B,P,COMPLETED\n");
+
+        try (TripCsvReader reader = new TripCsvReader(file)) {
+            reader.next();
+            assertTrue(reader.next());
+            assertThrows(IllegalArgumentException.class, reader::trip);
+            assertFalse(reader.next());
+        }
+    }
+}
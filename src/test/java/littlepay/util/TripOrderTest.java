@@ -0,0 +1,81 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TripOrderTest {
+
+    private static final long BASE = EpochTime.of(LocalDateTime.of(2023, 1, 1, 0, 0, 0));
+
+    private static List<Trip> randomTrips(int count, long span) {
+        Random random = new Random(11);
+        List<Trip> trips = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // Few start times and PANs, so many trips tie on both; the bus ID records the input order
+            long started = BASE + (long) (random.nextDouble() * span);
+            String pan = random.nextBoolean() ? Long.toString(5500005555550000L + random.nextInt(500))
+                    : "4" + random.nextInt(50);
+            trips.add(new Trip(started, started + 60, 60, Stop.STOP1, Stop.STOP2, BigDecimal.ONE, "Company1",
+                    "Bus" + i, pan, TripStatus.COMPLETED));
+        }
+        return trips;
+    }
+
+    private static List<Trip> sortedByComparator(List<Trip> trips) {
+        List<Trip> expected = new ArrayList<>(trips);
+        expected.sort(TripOrder.COMPARATOR);
+        return expected;
+    }
+
+    @Test
+    void packedSortMatchesStableComparatorSort() {
+        List<Trip> trips = randomTrips(50_000, 3_600);
+        List<Trip> expected = sortedByComparator(trips);
+
+        assertTrue(TripOrder.sortPacked(trips));
+
+        assertEquals(expected, trips);
+    }
+
+    @Test
+    void sortsAnyListSize() {
+        for (int size : new int[] {0, 1, 2, 100, TripOrder.MIN_PACKED_SIZE, 20_000}) {
+            List<Trip> trips = new LinkedList<>(randomTrips(size, 86_400));
+            List<Trip> expected = sortedByComparator(trips);
+
+            TripOrder.sort(trips);
+
+            assertEquals(expected, trips, "size " + size);
+        }
+    }
+
+    @Test
+    void fallsBackWhenKeysDoNotFit() {
+        List<Trip> trips = randomTrips(1_000, 60);
+        trips.add(new Trip(Long.MAX_VALUE - 1, EpochTime.NONE, 0, Stop.STOP1, null, null, "Company1", "Bus",
+                "4111", TripStatus.INCOMPLETE));
+        List<Trip> unsorted = new ArrayList<>(trips);
+
+        assertFalse(TripOrder.sortPacked(trips));
+        assertEquals(unsorted, trips);
+
+        trips.add(0, new Trip(EpochTime.NONE, EpochTime.NONE, 0, Stop.STOP1, null, null, "Company1", "Bus",
+                "4111", TripStatus.INCOMPLETE));
+        assertFalse(TripOrder.sortPacked(trips));
+
+        List<Trip> expected = sortedByComparator(trips);
+        TripOrder.sort(trips);
+        assertEquals(expected, trips);
+    }
+}
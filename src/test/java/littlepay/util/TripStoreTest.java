@@ -0,0 +1,125 @@
+package littlepay.util;
+
+import littlepay.model.Stop;
+import littlepay.model.Trip;
+import littlepay.model.TripStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TripStoreTest {
+
+    private static final long BASE = EpochTime.of(LocalDateTime.of(2023, 1, 1, 0, 0, 0));
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Trip> randomTrips(int count) {
+        Random random = new Random(5);
+        Stop[] stops = Stop.values();
+        TripStatus[] statuses = TripStatus.values();
+        List<Trip> trips = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long started = BASE + random.nextInt(30 * 86_400);
+            boolean incomplete = random.nextInt(10) == 0;
+            trips.add(new Trip(started, incomplete ? EpochTime.NONE : started + 300, incomplete ? 0 : 300,
+                    stops[random.nextInt(stops.length)], incomplete ? null : stops[random.nextInt(stops.length)],
+                    new BigDecimal(random.nextInt(800) + ".25"), "Company" + random.nextInt(3), "Bus" + random.nextInt(40),
+                    "55000055555" + (10_000 + random.nextInt(300)), statuses[random.nextInt(statuses.length)]));
+        }
+        return trips;
+    }
+
+    private static List<Trip> bruteForce(List<Trip> trips, String pan, long from, long to) {
+        return trips.stream()
+                .filter(trip -> trip.pan().equals(pan) && trip.startedEpochSecond() >= from
+                        && trip.startedEpochSecond() < to)
+                .sorted(Comparator.comparingLong(Trip::startedEpochSecond))
+                .toList();
+    }
+
+    @Test
+    void queriesMatchBruteForce() throws IOException {
+        List<Trip> trips = randomTrips(20_000);
+        Path storePath = tempDir.resolve("trips.store");
+        TripStore.write(trips, storePath);
+
+        // A small segment size makes records and index entries straddle segment boundaries
+        try (TripStore store = TripStore.open(storePath, 100_000)) {
+            assertEquals(trips.size(), store.size());
+            Random random = new Random(9);
+            for (int i = 0; i < 200; i++) {
+                String pan = "55000055555" + (10_000 + random.nextInt(310));
+                long from = BASE + random.nextInt(30 * 86_400);
+                long to = from + random.nextInt(10 * 86_400);
+                assertEquals(bruteForce(trips, pan, from, to), store.query(pan, from, to), pan);
+            }
+            String pan = trips.get(0).pan();
+            assertEquals(bruteForce(trips, pan, Long.MIN_VALUE, Long.MAX_VALUE), store.query(pan));
+        }
+    }
+
+    @Test
+    void keepsTripsWithTheSameKeyAcrossBlocks() throws IOException {
+        LocalDateTime started = LocalDateTime.of(2023, 1, 22, 13, 0, 0);
+        List<Trip> trips = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            trips.add(new Trip(started, started.plusMinutes(5), 300, Stop.STOP1, Stop.STOP2, new BigDecimal("3.25"),
+                    "Company1", "Bus" + i, "5500005555555559", TripStatus.COMPLETED));
+        }
+        Path storePath = tempDir.resolve("same-key.store");
+        TripStore.write(trips, storePath);
+
+        try (TripStore store = TripStore.open(storePath)) {
+            assertEquals(trips, store.query("5500005555555559"));
+            assertTrue(store.query("5500005555555558").isEmpty());
+            assertTrue(store.query("5500005555555560").isEmpty());
+        }
+    }
+
+    @Test
+    void forEachReadsEveryTripInStoreOrder() throws IOException {
+        List<Trip> trips = randomTrips(5_000);
+        Path storePath = tempDir.resolve("scan.store");
+        TripStore.write(trips, storePath);
+
+        List<Trip> scanned = new ArrayList<>();
+        try (TripStore store = TripStore.open(storePath, 100_000)) {
+            store.forEach(scanned::add);
+        }
+        List<Trip> expected = new ArrayList<>(trips);
+        expected.sort(Comparator.comparing(Trip::pan).thenComparingLong(Trip::startedEpochSecond));
+        assertEquals(expected, scanned);
+    }
+
+    @Test
+    void emptyStore() throws IOException {
+        Path storePath = tempDir.resolve("empty.store");
+        TripStore.write(List.of(), storePath);
+
+        try (TripStore store = TripStore.open(storePath)) {
+            assertEquals(0, store.size());
+            assertTrue(store.query("5500005555555559").isEmpty());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path notAStore = tempDir.resolve("trips.csv");
+        Files.writeString(notAStore, "Started,Finished,DurationSecs,FromStopId,ToStopId,ChargeAmount\n");
+
+        assertThrows(IOException.class, () -> TripStore.open(notAStore));
+        assertFalse(TripStore.isTripStore(notAStore));
+    }
+}
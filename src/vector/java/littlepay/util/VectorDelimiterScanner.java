@@ -0,0 +1,43 @@
+package littlepay.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Compares a whole vector of bytes (32 with AVX2, 64 with AVX-512) against
+ * each structural character at once, and turns the combined match mask into
+ * offsets with one bit scan per match. Most bytes of a row are field content,
+ * so most of the work is a few vector compares per chunk.
+ * Only created by {@link DelimiterScanner#create()} when the
+ * {@code jdk.incubator.vector} module is present.
+ */
+final class VectorDelimiterScanner implements DelimiterScanner {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    @Override
+    public int scan(byte[] bytes, int from, int to, int[] positions) {
+        int count = 0;
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            ByteVector chunk = ByteVector.fromArray(SPECIES, bytes, i);
+            VectorMask<Byte> matches = chunk.eq((byte) ',')
+                    .or(chunk.eq((byte) '\n'))
+                    .or(chunk.eq((byte) '\r'))
+                    .or(chunk.eq((byte) '"'))
+                    .or(chunk.eq((byte) '\\'));
+            long bits = matches.toLong();
+            while (bits != 0) {
+                positions[count++] = i + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return ScalarDelimiterScanner.scan(bytes, i, to, positions, count);
+    }
+
+    @Override
+    public String description() {
+        return "vector (" + SPECIES.vectorByteSize() + "-byte chunks)";
+    }
+}